@@ -0,0 +1,64 @@
+--
+--  Tigase PubSub Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+run 'database/derby-pubsub-schema-3.2.0.sql';
+
+-- LOAD FILE: database/derby-pubsub-schema-3.2.0.sql
+
+-- QUERY START:
+create procedure TigPubSubLoadNode(service_jid varchar(2049), node_name varchar(1024))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 3
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubLoadNode';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubPurgeItems(node_id bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubPurgeItems';
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date, id );
+-- QUERY END:
+
+-- QUERY START:
+create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date, id );
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubTrimItems(node_id bigint, max_items int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubTrimItems';
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetItemMeta(node_id bigint, item_id varchar(1024))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.pubsub.repository.derby.StoredProcedures.tigPubSubGetItemMeta';
+-- QUERY END:
@@ -0,0 +1,116 @@
+--
+--  Tigase PubSub Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+source database/mysql-pubsub-schema-3.2.0.sql;
+
+-- LOAD FILE: database/mysql-pubsub-schema-3.2.0.sql
+
+-- QUERY START:
+drop procedure if exists TigPubSubLoadNode;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigPubSubPurgeItems;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigPubSubTrimItems;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigPubSubGetItemMeta;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigPubSubCreateItemsDateIndexes;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigPubSubLoadNode(_service_jid varchar(2049), _node_name varchar(1024))
+begin
+	declare _node_id bigint;
+
+	select n.node_id into _node_id
+	from tig_pubsub_nodes n
+		inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+		where sj.service_jid_sha1 = SHA1(_service_jid) and n.name_sha1 = SHA1(_node_name)
+			and sj.service_jid = _service_jid and n.name = _node_name;
+
+	select n.node_id, n.configuration, cj.jid, n.creation_date
+	from tig_pubsub_nodes n
+		inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+		where n.node_id = _node_id;
+
+	select pj.jid, pa.affiliation from tig_pubsub_affiliations pa
+		inner join tig_pubsub_jids pj on pa.jid_id = pj.jid_id
+		where pa.node_id = _node_id;
+
+	select pj.jid, ps.subscription, ps.subscription_id
+		from tig_pubsub_subscriptions ps
+		inner join tig_pubsub_jids pj on ps.jid_id = pj.jid_id
+		where ps.node_id = _node_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubPurgeItems(_node_id bigint)
+begin
+	delete from tig_pubsub_items where node_id = _node_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubTrimItems(_node_id bigint, _max_items int)
+begin
+	delete i from tig_pubsub_items i
+		inner join (
+			select id_sha1 from tig_pubsub_items where node_id = _node_id
+				order by update_date desc limit _max_items, 18446744073709551615
+		) x on i.id_sha1 = x.id_sha1
+		where i.node_id = _node_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubGetItemMeta(_node_id bigint, _item_id varchar(1024))
+begin
+	select creation_date, update_date
+		from tig_pubsub_items
+		where node_id = _node_id and id_sha1 = SHA1(_item_id) and id = _item_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigPubSubCreateItemsDateIndexes()
+begin
+	if not exists (select 1 from information_schema.statistics where table_schema = database()
+			and table_name = 'tig_pubsub_items' and index_name = 'tig_pubsub_items_node_id_update_date') then
+		create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date, id_sha1 );
+	end if;
+	if not exists (select 1 from information_schema.statistics where table_schema = database()
+			and table_name = 'tig_pubsub_items' and index_name = 'tig_pubsub_items_node_id_creation_date') then
+		create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date, id_sha1 );
+	end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigPubSubCreateItemsDateIndexes();
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigPubSubCreateItemsDateIndexes;
+-- QUERY END:
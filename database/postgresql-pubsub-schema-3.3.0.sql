@@ -0,0 +1,105 @@
+--
+--  Tigase PubSub Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+\i database/postgresql-pubsub-schema-3.2.0.sql
+
+-- LOAD FILE: database/postgresql-pubsub-schema-3.2.0.sql
+
+-- PostgreSQL functions cannot return multiple result sets, so data of a node
+-- is returned as a single result set in which the kind column tells whether
+-- row contains node metadata (0), affiliation (1) or subscription (2)
+-- QUERY START:
+create or replace function TigPubSubLoadNode(_service_jid varchar(2049), _node_name varchar(1024)) returns table (
+    kind int,
+    node_id bigint,
+    configuration text,
+    jid varchar(2049),
+    creation_date timestamp,
+    state varchar(20),
+    subscription_id varchar(40)
+) as $$
+declare
+    _node_id bigint;
+begin
+    select n.node_id into _node_id
+        from tig_pubsub_nodes n
+            inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+            where sj.service_jid = _service_jid and n.name = _node_name;
+
+    if _node_id is null then
+        return;
+    end if;
+
+    return query select 0, n.node_id, n.configuration, cj.jid, n.creation_date, cast(null as varchar(20)), cast(null as varchar(40))
+        from tig_pubsub_nodes n
+            inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+            where n.node_id = _node_id;
+
+    return query select 1, pa.node_id, cast(null as text), pj.jid, cast(null as timestamp), pa.affiliation, cast(null as varchar(40))
+        from tig_pubsub_affiliations pa
+            inner join tig_pubsub_jids pj on pa.jid_id = pj.jid_id
+            where pa.node_id = _node_id;
+
+    return query select 2, ps.node_id, cast(null as text), pj.jid, cast(null as timestamp), ps.subscription, ps.subscription_id
+        from tig_pubsub_subscriptions ps
+            inner join tig_pubsub_jids pj on ps.jid_id = pj.jid_id
+            where ps.node_id = _node_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubPurgeItems(bigint) returns void as $$
+	delete from tig_pubsub_items where node_id = $1
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_pubsub_items_node_id_update_date')) is null) then
+    create index tig_pubsub_items_node_id_update_date on tig_pubsub_items ( node_id, update_date, id );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_pubsub_items_node_id_creation_date')) is null) then
+    create index tig_pubsub_items_node_id_creation_date on tig_pubsub_items ( node_id, creation_date, id );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubTrimItems(bigint, int) returns void as $$
+	delete from tig_pubsub_items where node_id = $1 and id in (
+		select id from tig_pubsub_items where node_id = $1 order by update_date desc offset $2
+	)
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigPubSubGetItemMeta(bigint,varchar(1024)) returns table (
+	creation_date timestamp, update_date timestamp
+) as $$
+	select creation_date, update_date
+		from tig_pubsub_items
+		where node_id = $1 and id = $2
+$$ LANGUAGE SQL;
+-- QUERY END:
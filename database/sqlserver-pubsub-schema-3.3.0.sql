@@ -0,0 +1,130 @@
+--
+--  Tigase PubSub Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+-- LOAD FILE: database/sqlserver-pubsub-schema-3.2.0.sql
+
+-- QUERY START:
+SET QUOTED_IDENTIFIER ON
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubLoadNode')
+	DROP PROCEDURE TigPubSubLoadNode
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubLoadNode
+	@_service_jid nvarchar(2049),
+	@_node_name nvarchar(1024)
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_node_id bigint;
+
+	select @_node_id = n.node_id
+		from tig_pubsub_nodes n
+			inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id
+			where sj.service_jid_sha1 = HASHBYTES('SHA1', @_service_jid) and n.name_sha1 = HASHBYTES('SHA1', @_node_name)
+				and sj.service_jid = @_service_jid and n.name = @_node_name;
+
+	select n.node_id, n.configuration, cj.jid, n.creation_date
+		from tig_pubsub_nodes n
+			inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id
+			where n.node_id = @_node_id;
+
+	select pj.jid, pa.affiliation from tig_pubsub_affiliations pa
+		inner join tig_pubsub_jids pj on pa.jid_id = pj.jid_id
+		where pa.node_id = @_node_id;
+
+	select pj.jid, ps.subscription, ps.subscription_id
+		from tig_pubsub_subscriptions ps
+		inner join tig_pubsub_jids pj on ps.jid_id = pj.jid_id
+		where ps.node_id = @_node_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubPurgeItems')
+	DROP PROCEDURE TigPubSubPurgeItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubPurgeItems
+	@_node_id bigint
+AS
+begin
+	delete from dbo.tig_pubsub_items where node_id = @_node_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_update_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_update_date ON [dbo].[tig_pubsub_items](node_id, update_date, id_index);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_pubsub_items') AND NAME ='IX_tig_pubsub_items_node_id_creation_date')
+	CREATE INDEX IX_tig_pubsub_items_node_id_creation_date ON [dbo].[tig_pubsub_items](node_id, creation_date, id_index);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubTrimItems')
+	DROP PROCEDURE TigPubSubTrimItems
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubTrimItems
+	@_node_id bigint,
+	@_max_items int
+AS
+begin
+	SET NOCOUNT ON;
+	with items as (
+		select row_number() over (order by update_date desc) as pos
+			from dbo.tig_pubsub_items where node_id = @_node_id
+	)
+	delete from items where pos > @_max_items;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigPubSubGetItemMeta')
+	DROP PROCEDURE TigPubSubGetItemMeta
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure dbo.TigPubSubGetItemMeta
+	@_node_id bigint,
+	@_item_id nvarchar(1024)
+AS
+begin
+	select creation_date, update_date
+		from dbo.tig_pubsub_items
+		where node_id = @_node_id AND id = @_item_id;
+end
+-- QUERY END:
+GO
@@ -26,6 +26,7 @@ import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -99,6 +100,8 @@ public abstract class AbstractComponent<T extends ComponentConfig> extends Abstr
 	/** Field description */
 	protected final ModulesManager modulesManager = new ModulesManager();
 
+	private final AtomicInteger outQueueSize = new AtomicInteger(0);
+
 	private final PacketWriter writer;
 
 	/**
@@ -140,6 +143,10 @@ public abstract class AbstractComponent<T extends ComponentConfig> extends Abstr
 	public synchronized void everyMinute() {
 		super.everyMinute();
 		modulesManager.everyMinute();
+		// packets dropped by outgoing filters are not counted as processed
+		StatisticsList list = new StatisticsList(Level.INFO);
+		super.getStatistics(list);
+		outQueueSize.set(list.getValue(getName(), "Total Out queues wait", 0));
 	}
 	
 	@Override
@@ -183,6 +190,44 @@ public abstract class AbstractComponent<T extends ComponentConfig> extends Abstr
 	protected PacketWriter getWriter() {
 		return writer;
 	}
+
+	/**
+	 * Returns number of packets waiting in output queues of this component.
+	 * Packets are counted when they are added to and taken from the queues,
+	 * so the value is available without collecting statistics.
+	 *
+	 * @return
+	 */
+	public int getOutQueueSize() {
+		return Math.max(0, outQueueSize.get());
+	}
+
+	@Override
+	protected boolean addOutPacket(Packet packet) {
+		// counted before adding, as packet may be taken from queue at once
+		outQueueSize.incrementAndGet();
+		boolean added = super.addOutPacket(packet);
+		if (!added) {
+			outQueueSize.decrementAndGet();
+		}
+		return added;
+	}
+
+	@Override
+	protected boolean addOutPacketNB(Packet packet) {
+		outQueueSize.incrementAndGet();
+		boolean added = super.addOutPacketNB(packet);
+		if (!added) {
+			outQueueSize.decrementAndGet();
+		}
+		return added;
+	}
+
+	@Override
+	protected void processOutPacket(Packet packet) {
+		outQueueSize.decrementAndGet();
+		super.processOutPacket(packet);
+	}
 	
 	@Override
 	@SuppressWarnings("unchecked")
@@ -270,6 +315,14 @@ public abstract class AbstractComponent<T extends ComponentConfig> extends Abstr
 			}
 			sendException(packet, e);
 		} catch (Exception e) {
+			ComponentException ce = createComponentException(e);
+			if (ce != null) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, e.getMessage() + " when processing " + packet.toString(), e);
+				}
+				sendException(packet, ce);
+				return;
+			}
 			if (log.isLoggable(Level.SEVERE)) {
 				log.log(Level.SEVERE, e.getMessage() + " when processing " + packet.toString(), e);
 			}
@@ -277,6 +330,19 @@ public abstract class AbstractComponent<T extends ComponentConfig> extends Abstr
 		}
 	}
 
+	/**
+	 * Allows to map exception thrown during processing of packet to error
+	 * other than <code>internal-server-error</code>.
+	 *
+	 * @param e
+	 *
+	 * @return error which should be sent back or <code>null</code> if
+	 *         exception is unexpected
+	 */
+	protected ComponentException createComponentException(Exception e) {
+		return null;
+	}
+
 	public <M extends Module> M registerModule(final M module) {
 		return this.modulesManager.register(module, false);
 	}
@@ -307,6 +307,15 @@ public abstract class AbstractNodeConfig {
 		return form.getAsStrings("pubsub#roster_groups_allowed");
 	}
 
+	public NotificationPriority getNotificationPriority() {
+		String s = form.getAsString(TIGASE + "notification_priority");
+		try {
+			return s == null ? NotificationPriority.normal : NotificationPriority.valueOf(s);
+		} catch (Exception e) {
+			return NotificationPriority.normal;
+		}
+	}
+
 	public SendLastPublishedItem getSendLastPublishedItem() {
 		String s = form.getAsString(PUBSUB + "send_last_published_item");
 		try {
@@ -374,6 +383,8 @@ public abstract class AbstractNodeConfig {
 																					CollectionItemsOrdering.byUpdateDate.name(),
 				"Whether to sort collection items by creation date or update time",
 				null, asStrinTable( CollectionItemsOrdering.values() ) ) );
+		form.addField(Field.fieldListSingle(TIGASE + "notification_priority", NotificationPriority.normal.name(),
+				"Priority of notifications when server is overloaded", null, asStrinTable(NotificationPriority.values())));
 
 	}
 
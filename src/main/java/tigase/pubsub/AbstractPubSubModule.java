@@ -28,7 +28,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,8 +47,6 @@ import tigase.util.JIDUtils;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterAbstract;
-import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
-import tigase.xmpp.impl.roster.RosterElement;
 
 import java.util.Arrays;
 
@@ -143,6 +140,22 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 	 */
 	public static Collection<BareJID> getActiveSubscribers(final AbstractNodeConfig nodeConfig, final BareJID[] jids,
 			final IAffiliations affiliations, final ISubscriptions subscriptions) {
+		return getActiveSubscribers(new NodeConfigSnapshot(nodeConfig), jids, affiliations, subscriptions);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param nodeConfig
+	 * @param jids
+	 * @param affiliations
+	 * @param subscriptions
+	 * 
+	 * @return
+	 */
+	public static Collection<BareJID> getActiveSubscribers(final NodeConfigSnapshot nodeConfig, final BareJID[] jids,
+			final IAffiliations affiliations, final ISubscriptions subscriptions) {
 		Set<BareJID> result = new HashSet<BareJID>();
 		final boolean presenceExpired = nodeConfig.isPresenceExpired();
 
@@ -199,6 +212,23 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 	 */
 	public static Collection<BareJID> getActiveSubscribers(final AbstractNodeConfig nodeConfig,
 			final IAffiliations affiliations, final ISubscriptions subscriptions) throws RepositoryException {
+		return getActiveSubscribers(new NodeConfigSnapshot(nodeConfig), affiliations, subscriptions);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param nodeConfig
+	 * @param affiliations
+	 * @param subscriptions
+	 * 
+	 * @return
+	 * 
+	 * @throws RepositoryException
+	 */
+	public static Collection<BareJID> getActiveSubscribers(final NodeConfigSnapshot nodeConfig,
+			final IAffiliations affiliations, final ISubscriptions subscriptions) throws RepositoryException {
 		UsersSubscription[] subscribers = subscriptions.getSubscriptionsForPublish();
 
 		if ( logAbstract.isLoggable( Level.FINEST ) ){
@@ -314,12 +344,8 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 				return true;
 			}
 
-			Map<BareJID,RosterElement> buddies = getRepository().getUserRoster(owner.getJid());
-			RosterElement re = buddies.get(bareJid);
-			if (re != null) {
-				if (re.getSubscription() == SubscriptionType.both || re.getSubscription() == SubscriptionType.from
-						|| re.getSubscription() == SubscriptionType.from_pending_out)
-					return true;
+			if (getRepository().getUserRosterIndex(owner.getJid()).isSubscribedFrom(bareJid)) {
+				return true;
 			}
 		}
 
@@ -341,33 +367,48 @@ public abstract class AbstractPubSubModule extends StatisticHolderImpl implement
 	 */
 	protected boolean isSenderInRosterGroup(BareJID bareJid, AbstractNodeConfig nodeConfig, IAffiliations affiliations,
 			final ISubscriptions subscriptions) throws RepositoryException {
+		return isSenderInRosterGroup(bareJid, nodeConfig.getRosterGroupsAllowed(), affiliations, subscriptions);
+	}
+
+	/**
+	 * Method description
+	 * 
+	 * 
+	 * @param jid
+	 * @param nodeConfig
+	 * @param affiliations
+	 * @param subscriptions
+	 * 
+	 * @return
+	 * 
+	 * @throws RepositoryException
+	 */
+	protected boolean isSenderInRosterGroup(BareJID bareJid, NodeConfigSnapshot nodeConfig, IAffiliations affiliations,
+			final ISubscriptions subscriptions) throws RepositoryException {
+		return isSenderInRosterGroup(bareJid, nodeConfig.getRosterGroupsAllowed(), affiliations, subscriptions);
+	}
+
+	private boolean isSenderInRosterGroup(BareJID bareJid, final String[] groupsAllowed, IAffiliations affiliations,
+			final ISubscriptions subscriptions) throws RepositoryException {
 		final UsersSubscription[] subscribers = subscriptions.getSubscriptions();
-		final String[] groupsAllowed = nodeConfig.getRosterGroupsAllowed();
 
 		if ((groupsAllowed == null) || (groupsAllowed.length == 0)) {
 			return true;
 		}
 		
-		// @TODO - is there a way to optimize this?
 		for (UsersSubscription owner : subscribers) {
 			UsersAffiliation affiliation = affiliations.getSubscriberAffiliation(owner.getJid());
 
 			if (affiliation.getAffiliation() != Affiliation.owner) {
 				continue;
 			}
-			if (bareJid.equals(owner)) {
+			if (bareJid.equals(owner.getJid())) {
 				return true;
 			}
 
-			Map<BareJID,RosterElement> buddies = getRepository().getUserRoster(owner.getJid());
-			RosterElement re = buddies.get(bareJid);
-			if (re != null && re.getGroups() != null) {
-				for (String group : groupsAllowed) {
-					if (Utils.contain(group, groupsAllowed)) {
-						return true;
-					}				
-				}
-			}			
+			if (getRepository().getUserRosterIndex(owner.getJid()).isInGroups(bareJid, groupsAllowed)) {
+				return true;
+			}
 		}
 
 		return false;
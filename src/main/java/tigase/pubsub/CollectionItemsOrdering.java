@@ -24,6 +24,7 @@ package tigase.pubsub;
 import tigase.pubsub.repository.IItems;
 
 import java.util.Comparator;
+import java.util.Date;
 
 public enum CollectionItemsOrdering {
 
@@ -56,6 +57,17 @@ public enum CollectionItemsOrdering {
 		return comparator;
 	}
 
+	/**
+	 * Returns date of item by which items are ordered.
+	 *
+	 * @param item
+	 *
+	 * @return
+	 */
+	public Date getDate( IItems.ItemMeta item ) {
+		return this == byCreationDate ? item.getCreationDate() : item.getItemUpdateDate();
+	}
+
 	private final String description;
 	private final Comparator<IItems.ItemMeta> comparator;
 
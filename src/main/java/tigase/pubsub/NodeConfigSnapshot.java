@@ -0,0 +1,213 @@
+/*
+ * NodeConfigSnapshot.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+/**
+ * Immutable copy of configuration of a node with values already parsed from
+ * form fields, used by read-only paths (publishing, retrieval of items,
+ * access checks) instead of cloning and parsing {@link AbstractNodeConfig} on
+ * every request.
+ *
+ * Snapshot is not updated when configuration changes, a new one needs to be
+ * created instead. Arrays returned by getters are shared by all users of
+ * snapshot, so they must not be modified.
+ */
+public final class NodeConfigSnapshot {
+
+	private static final String[] EMPTY = new String[0];
+
+	private final AccessModel accessModel;
+	private final boolean allowToViewSubscribers;
+	private final String bodyXslt;
+	private final String bodyXsltEmbedded;
+	private final String[] children;
+	private final String collection;
+	private final CollectionItemsOrdering collectionItemsOrdering;
+	private final boolean deliverPayloads;
+	private final boolean deliverPresenceBased;
+	private final String[] domains;
+	private final Integer maxItems;
+	private final String nodeName;
+	private final NodeType nodeType;
+	private final NotificationPriority notificationPriority;
+	private final boolean notifyConfig;
+	private final boolean notifySubscriptionAffiliationState;
+	private final boolean persistItem;
+	private final boolean presenceExpired;
+	private final PublisherModel publisherModel;
+	private final String[] rosterGroupsAllowed;
+	private final SendLastPublishedItem sendLastPublishedItem;
+	private final String title;
+
+	public NodeConfigSnapshot(AbstractNodeConfig config) {
+		this.nodeName = config.getNodeName();
+		this.nodeType = config.getNodeType();
+		this.title = config.getTitle();
+		this.collection = config.getCollection();
+		this.children = copy(config.getChildren());
+		this.domains = copy(config.getDomains());
+		this.accessModel = config.getNodeAccessModel();
+		this.publisherModel = config.getPublisherModel();
+		this.sendLastPublishedItem = config.getSendLastPublishedItem();
+		this.notificationPriority = config.getNotificationPriority();
+		this.collectionItemsOrdering = config.getCollectionItemsOrdering();
+		this.rosterGroupsAllowed = copy(config.getRosterGroupsAllowed());
+		this.bodyXslt = config.getBodyXslt();
+		this.bodyXsltEmbedded = config.getBodyXsltEmbedded();
+		this.deliverPayloads = config.isDeliver_payloads();
+		this.deliverPresenceBased = config.isDeliverPresenceBased();
+		this.notifyConfig = config.isNotify_config();
+		this.presenceExpired = config.isPresenceExpired();
+		this.notifySubscriptionAffiliationState = config.isTigaseNotifyChangeSubscriptionAffiliationState();
+		this.allowToViewSubscribers = config.isAllowToViewSubscribers();
+		if (config instanceof LeafNodeConfig) {
+			LeafNodeConfig leafConfig = (LeafNodeConfig) config;
+			this.maxItems = leafConfig.getMaxItems();
+			this.persistItem = leafConfig.isPersistItem();
+		} else {
+			this.maxItems = null;
+			this.persistItem = false;
+		}
+	}
+
+	/**
+	 * Creates snapshot of configuration.
+	 *
+	 * @param config
+	 *
+	 * @return snapshot or <code>null</code> if <code>config</code> is
+	 *         <code>null</code>
+	 */
+	public static NodeConfigSnapshot of(AbstractNodeConfig config) {
+		return config == null ? null : new NodeConfigSnapshot(config);
+	}
+
+	private static String[] copy(String[] values) {
+		if (values == null) {
+			return null;
+		}
+		return values.length == 0 ? EMPTY : values.clone();
+	}
+
+	public String getBodyXslt() {
+		return bodyXslt;
+	}
+
+	public String getBodyXsltEmbedded() {
+		return bodyXsltEmbedded;
+	}
+
+	public String[] getChildren() {
+		return children;
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	public CollectionItemsOrdering getCollectionItemsOrdering() {
+		return collectionItemsOrdering;
+	}
+
+	public String[] getDomains() {
+		return domains;
+	}
+
+	/**
+	 * @return maximal number of items of leaf node or <code>null</code> if not
+	 *         limited or node is not a leaf node
+	 */
+	public Integer getMaxItems() {
+		return maxItems;
+	}
+
+	public AccessModel getNodeAccessModel() {
+		return accessModel;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	public NodeType getNodeType() {
+		return nodeType;
+	}
+
+	public NotificationPriority getNotificationPriority() {
+		return notificationPriority;
+	}
+
+	public PublisherModel getPublisherModel() {
+		return publisherModel;
+	}
+
+	public String[] getRosterGroupsAllowed() {
+		return rosterGroupsAllowed;
+	}
+
+	public SendLastPublishedItem getSendLastPublishedItem() {
+		return sendLastPublishedItem;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public boolean isAllowToViewSubscribers() {
+		return allowToViewSubscribers;
+	}
+
+	public boolean isDeliver_payloads() {
+		return deliverPayloads;
+	}
+
+	public boolean isDeliverPresenceBased() {
+		return deliverPresenceBased;
+	}
+
+	public boolean isNotify_config() {
+		return notifyConfig;
+	}
+
+	/**
+	 * @return <code>true</code> if items of leaf node are persisted,
+	 *         <code>false</code> for other nodes
+	 */
+	public boolean isPersistItem() {
+		return persistItem;
+	}
+
+	public boolean isPresenceExpired() {
+		return presenceExpired;
+	}
+
+	public boolean isTigaseNotifyChangeSubscriptionAffiliationState() {
+		return notifySubscriptionAffiliationState;
+	}
+
+	@Override
+	public String toString() {
+		return "NodeConfigSnapshot{nodeName=" + nodeName + ", nodeType=" + nodeType + ", accessModel=" + accessModel
+				+ ", publisherModel=" + publisherModel + ", sendLastPublishedItem=" + sendLastPublishedItem
+				+ ", maxItems=" + maxItems + ", persistItem=" + persistItem + ", collection=" + collection + '}';
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Tigase Jabber/XMPP Publish Subscribe Component
+ * Copyright (C) 2007 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+
+import tigase.stats.StatisticsList;
+import tigase.sys.TigaseRuntime;
+
+/**
+ * Controls rate at which notifications are sent, based on heap usage and on
+ * number of packets waiting in output queue of the component.
+ *
+ * When heap usage or queue depth exceeds high level, notifications are
+ * throttled: each notification needs a credit from token bucket refilled at
+ * configured rate and senders wait (at most <code>maxDelay</code>) for a
+ * credit. When critical level is exceeded, notifications of nodes with
+ * {@link NotificationPriority#low} priority are dropped. Notifications of
+ * nodes with {@link NotificationPriority#high} priority are never throttled.
+ */
+public class NotificationThrottle {
+
+	public enum State {
+		normal,
+		throttled,
+		shedding
+	}
+
+	/**
+	 * Source of time used by throttle, replaced in tests.
+	 */
+	static class Clock {
+
+		long nanoTime() {
+			return System.nanoTime();
+		}
+
+		void sleep(long millis) throws InterruptedException {
+			Thread.sleep(millis);
+		}
+
+	}
+
+	private static final long STATE_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final AtomicLong deferred = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private volatile float criticalMemoryUsageLevel = 95;
+	private volatile float highMemoryUsageLevel = 90;
+	private volatile long maxDelay = 1000;
+	private volatile int queueHighWatermark = 0;
+	private volatile int rate = 1000;
+
+	private final Clock clock;
+	private DoubleSupplier heapUsage = () -> TigaseRuntime.getTigaseRuntime().getHeapMemUsage();
+	private volatile IntSupplier queueDepth = () -> 0;
+
+	private volatile State state = State.normal;
+	private volatile boolean stateChecked = false;
+	private volatile long stateCheckedAt = 0;
+	private volatile boolean stopped = false;
+
+	private double tokens = 0;
+	private long tokensRefilledAt;
+
+	public NotificationThrottle() {
+		this(new Clock());
+	}
+
+	NotificationThrottle(Clock clock) {
+		this.clock = clock;
+		this.tokensRefilledAt = clock.nanoTime();
+	}
+
+	/**
+	 * Checks if notification of node with given priority may be sent. Method
+	 * waits if notifications are throttled and returns <code>false</code> if
+	 * notification should be dropped.
+	 *
+	 * @param priority
+	 *
+	 * @return
+	 */
+	public boolean acquire(NotificationPriority priority) {
+		State current = getState();
+		if (stopped || current == State.normal || priority == NotificationPriority.high) {
+			return true;
+		}
+		if (current == State.shedding && priority == NotificationPriority.low) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (tryTake()) {
+			return true;
+		}
+
+		deferred.incrementAndGet();
+		long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+		try {
+			while (!stopped && !tryTake()) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - clock.nanoTime());
+				if (left <= 0) {
+					break;
+				}
+				clock.sleep(Math.min(left, Math.max(1, 1000 / Math.max(1, rate))));
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	public long getDeferredCount() {
+		return deferred.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns current state of throttling, which is recalculated at most
+	 * every 100ms.
+	 *
+	 * @return
+	 */
+	public State getState() {
+		long now = clock.nanoTime();
+		if (!stateChecked || now - stateCheckedAt >= STATE_CHECK_INTERVAL) {
+			stateChecked = true;
+			stateCheckedAt = now;
+			state = calculateState();
+		}
+		return state;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "notifications/throttle state", getState().name(), Level.FINE);
+		list.add(compName, "notifications/deferred", deferred.get(), Level.FINE);
+		list.add(compName, "notifications/dropped", dropped.get(), Level.FINE);
+	}
+
+	/**
+	 * Sets levels at which notifications are throttled.
+	 *
+	 * @param highMemoryUsageLevel
+	 *            heap usage (in %) above which notifications are throttled
+	 * @param criticalMemoryUsageLevel
+	 *            heap usage (in %) above which low priority notifications
+	 *            are dropped
+	 * @param queueHighWatermark
+	 *            number of packets waiting in output queue above which notifications
+	 *            are throttled, twice that number is critical level; 0
+	 *            disables this check
+	 * @param rate
+	 *            number of notifications per second sent while throttled
+	 * @param maxDelay
+	 *            maximal time in ms for which sending of a notification is
+	 *            delayed
+	 */
+	public void setLimits(float highMemoryUsageLevel, float criticalMemoryUsageLevel, int queueHighWatermark, int rate,
+			long maxDelay) {
+		this.highMemoryUsageLevel = highMemoryUsageLevel;
+		this.criticalMemoryUsageLevel = criticalMemoryUsageLevel;
+		this.queueHighWatermark = queueHighWatermark;
+		this.rate = rate;
+		this.maxDelay = maxDelay;
+		this.stateChecked = false;
+	}
+
+	/**
+	 * Starts throttling based on given number of packets waiting to be sent.
+	 *
+	 * @param queueDepth
+	 *            source of number of packets waiting in output queue
+	 */
+	public void start(IntSupplier queueDepth) {
+		this.queueDepth = queueDepth;
+		this.stopped = false;
+		this.stateChecked = false;
+	}
+
+	/**
+	 * Stops throttling, senders waiting for a credit are released and
+	 * notifications are not delayed or dropped anymore.
+	 */
+	public void stop() {
+		this.stopped = true;
+		this.queueDepth = () -> 0;
+		this.stateChecked = false;
+	}
+
+	void setHeapUsageSupplier(DoubleSupplier heapUsage) {
+		this.heapUsage = heapUsage;
+		this.stateChecked = false;
+	}
+
+	private State calculateState() {
+		double heap = heapUsage.getAsDouble();
+		int depth = queueHighWatermark > 0 ? queueDepth.getAsInt() : 0;
+		if (heap >= criticalMemoryUsageLevel || (queueHighWatermark > 0 && depth >= 2 * queueHighWatermark)) {
+			return State.shedding;
+		}
+		if (heap >= highMemoryUsageLevel || (queueHighWatermark > 0 && depth >= queueHighWatermark)) {
+			return State.throttled;
+		}
+		return State.normal;
+	}
+
+	private synchronized boolean tryTake() {
+		long now = clock.nanoTime();
+		// bucket holds credits for at most 1 second
+		tokens = Math.min(rate, tokens + (now - tokensRefilledAt) * rate / 1000000000d);
+		tokensRefilledAt = now;
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -27,6 +27,7 @@ package tigase.pubsub;
 import tigase.adhoc.AdHocScriptCommandManager;
 import tigase.component2.AbstractComponent;
 import tigase.component2.PacketWriter;
+import tigase.component2.exceptions.ComponentException;
 import tigase.conf.Configurable;
 import tigase.conf.ConfigurationException;
 import tigase.db.*;
@@ -101,7 +102,16 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 
 	public static final String DELAYED_ROOT_COLLECTION_LOADING_KEY = "delayed-root-collection-loading";
 
+	private static final String COLLECTIONS_INDEX_MAX_WEIGHT = "pubsub-repository-collections-index-max-weight";
 	private static final String MAX_CACHE_SIZE = "pubsub-repository-cache-size";
+	private static final String MAX_CACHE_WEIGHT = "pubsub-repository-cache-max-weight";
+	private static final String ITEMS_CACHE_MAX_WEIGHT = "pubsub-repository-items-cache-max-weight";
+	private static final String ROOT_COLLECTION_LOADING_THREADS = "pubsub-repository-root-collection-loading-threads";
+	private static final String ROSTER_CACHE_SIZE = "pubsub-repository-roster-cache-size";
+	private static final String ROSTER_CACHE_TTL = "pubsub-repository-roster-cache-ttl";
+	private static final String USER_NODES_INDEX_MAX_WEIGHT = "pubsub-repository-user-nodes-index-max-weight";
+	private static final String WRITE_BEHIND_BATCH_SIZE = "pubsub-repository-write-behind-batch-size";
+	private static final String WRITE_BEHIND_DELAY = "pubsub-repository-write-behind-delay";
 	private static final Pattern PARAMETRIZED_PROPERTY_PATTERN = Pattern.compile("(.+)\\[(.*)\\]|(.+)");
 
 	/**
@@ -112,6 +122,11 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	 * Field description
 	 */
 	protected static final String PUBSUB_REPO_POOL_SIZE_PROP_KEY = "pubsub-repo-pool-size";
+	/**
+	 * Maximal time in ms for which thread waits for database connection
+	 * before request fails
+	 */
+	protected static final String PUBSUB_REPO_POOL_MAX_WAIT_PROP_KEY = "pubsub-repo-pool-max-wait";
 
 	// ~--- fields
 	// ---------------------------------------------------------------
@@ -154,11 +169,35 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	private AdHocConfigCommandModule adHocCommandsModule;
 
 	protected CapsModule capsModule;
+	/** Maximal total number of nodes in index of collections, <code>null</code> if collections are not indexed */
+	protected Long collectionsIndexMaxWeight = 100000L;
 	/** Field description */
 	protected LeafNodeConfig defaultNodeConfig;
 	private PubSubDAO directPubSubRepository;
 	/** Field description */
 	protected Integer maxRepositoryCacheSize;
+	/** Maximal total weight (nodes + their subscribers) of cached nodes, <code>null</code> if not limited */
+	protected Long maxRepositoryCacheWeight;
+	/** Maximal total length of cached payloads of items, <code>null</code> if items are not cached */
+	protected Long itemsCacheMaxWeight;
+	/** Number of threads loading root collections in background if delayed loading of root collections is enabled */
+	protected int rootCollectionLoadingThreads = CachedPubSubRepository.DEFAULT_ROOT_COLLECTION_LOADING_THREADS;
+	/**
+	 * Maximal number of cached rosters of users, <code>null</code> if rosters
+	 * are not cached. Disabled by default, as cached roster is refreshed only
+	 * after presence subscription change seen by component or after it
+	 * expires, so contact removed from roster of owner may still be allowed to
+	 * access nodes with roster or presence access model until then.
+	 */
+	protected Integer rosterCacheSize;
+	/** Time in ms after which cached roster expires */
+	protected long rosterCacheTtl = 60 * 1000;
+	/** Maximal total number of indexed nodes of users, <code>null</code> if subscriptions and affiliations of users are not indexed */
+	protected Long userNodesIndexMaxWeight = 100000L;
+	/** Number of pending node changes triggering write, <code>null</code> if write-behind is disabled */
+	protected Integer writeBehindBatchSize;
+	/** Maximal time in ms for which node changes may wait before they are written */
+	protected long writeBehindDelay = CachedPubSubRepository.MAX_WRITE_DELAY;
 
 	/* modules */
 	protected PendingSubscriptionModule pendingSubscriptionModule;
@@ -219,10 +258,15 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		final Map<String, Object> classNames = getProperties(PUBSUB_REPO_CLASS_PROP_KEY, props);
 		final Map<String, Object> resUris = getProperties(PUBSUB_REPO_URL_PROP_KEY, props);
 		final Map<String, Object> poolSizes = getProperties(PUBSUB_REPO_POOL_SIZE_PROP_KEY, props);
+		final Map<String, Object> maxWaits = getProperties(PUBSUB_REPO_POOL_MAX_WAIT_PROP_KEY, props);
 		final String default_cls_name = (String) classNames.get(null);
 
 		PubSubDAOPool dao_pool = new PubSubDAOPool();
 		dao_pool.init(null, null, userRepository);
+		if (maxWaits.get(null) != null) {
+			Object value = maxWaits.get(null);
+			dao_pool.setMaxWait((value instanceof Number) ? ((Number) value).longValue() : Long.parseLong((String) value));
+		}
 
 		for (Entry<String, Object> e : resUris.entrySet()) {
 			String domain = e.getKey();
@@ -264,6 +308,24 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 						+ dao_pool_size);
 			}
 
+			if (PubSubDAOJDBC.class.isAssignableFrom(repoClass)) {
+				// JDBC DAO is thread safe and uses own pool of connections,
+				// so single instance is shared by all threads
+				Object maxWait = (maxWaits.containsKey(domain) ? maxWaits.get(domain) : maxWaits.get(null));
+				repoParams.put(PubSubDAOJDBC.POOL_SIZE_KEY, String.valueOf(dao_pool_size));
+				if (maxWait != null) {
+					repoParams.put(PubSubDAOJDBC.POOL_MAX_WAIT_KEY, String.valueOf(maxWait));
+				}
+				try {
+					IPubSubDAO dao = repoClass.newInstance();
+					dao.init(resUri, repoParams, userRepository);
+					dao_pool.addSharedDao(domain == null ? null : BareJID.bareJIDInstanceNS(domain), dao);
+				} catch (InstantiationException | IllegalAccessException ex) {
+					throw new RepositoryException("Cound not create instance of " + repoClass.getCanonicalName(), ex);
+				}
+				dao_pool_size = 0;
+			}
+
 			for (int i = 0; i < dao_pool_size; i++) {
 				try {
 					IPubSubDAO dao = repoClass.newInstance();
@@ -291,9 +353,46 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 	// ~--- methods
 	// --------------------------------------------------------------
 
+	/**
+	 * Requests which failed because repository was overloaded are answered
+	 * with <code>resource-constraint</code> error and requests rejected
+	 * while database is not available with <code>service-unavailable</code>.
+	 */
+	@Override
+	protected ComponentException createComponentException(Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RepositoryTimeoutException || cause instanceof java.sql.SQLTimeoutException) {
+				return new ComponentException(Authorization.RESOURCE_CONSTRAINT, "Service is overloaded, try again later");
+			}
+			if (cause instanceof java.sql.SQLTransientConnectionException) {
+				return new ComponentException(Authorization.SERVICE_UNAVAILABLE, "Service is temporarily unavailable");
+			}
+		}
+		return null;
+	}
+
 	protected IPubSubRepository createPubSubRepository(PubSubDAO directRepository) {
-		IPubSubRepository wrapper = new PubSubRepositoryWrapper(new CachedPubSubRepository(directRepository,
-				maxRepositoryCacheSize)) {
+		CachedPubSubRepository cachedRepository = new CachedPubSubRepository(directRepository, maxRepositoryCacheSize);
+		if (maxRepositoryCacheWeight != null) {
+			cachedRepository.setMaxCacheWeight(maxRepositoryCacheWeight);
+		}
+		if (itemsCacheMaxWeight != null) {
+			cachedRepository.setItemsCacheMaxWeight(itemsCacheMaxWeight);
+		}
+		cachedRepository.setRootCollectionLoadingThreads(rootCollectionLoadingThreads);
+		if (rosterCacheSize != null) {
+			cachedRepository.setRosterCache(rosterCacheSize, rosterCacheTtl);
+		}
+		if (userNodesIndexMaxWeight != null) {
+			cachedRepository.setUserNodesIndexMaxWeight(userNodesIndexMaxWeight);
+		}
+		if (collectionsIndexMaxWeight != null) {
+			cachedRepository.setCollectionsIndexMaxWeight(collectionsIndexMaxWeight);
+		}
+		if (writeBehindBatchSize != null) {
+			cachedRepository.setWriteBehind(writeBehindBatchSize, writeBehindDelay);
+		}
+		IPubSubRepository wrapper = new PubSubRepositoryWrapper(cachedRepository) {
 			@Override
 			public ISubscriptions getNodeSubscriptions(final BareJID serviceJid, final String nodeName)
 					throws RepositoryException {
@@ -325,7 +424,17 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		} // end of if (params.get(GEN_USER_DB_URI) != null)
 		props.put(PUBSUB_REPO_URL_PROP_KEY, repo_uri);
 		props.put(PUBSUB_REPO_POOL_SIZE_PROP_KEY, 10);
+		props.put(PUBSUB_REPO_POOL_MAX_WAIT_PROP_KEY, JDBCConnectionPool.DEF_MAX_WAIT);
 		props.put(MAX_CACHE_SIZE, "2000");
+		props.put(MAX_CACHE_WEIGHT, "off");
+		props.put(ITEMS_CACHE_MAX_WEIGHT, "off");
+		props.put(ROOT_COLLECTION_LOADING_THREADS, CachedPubSubRepository.DEFAULT_ROOT_COLLECTION_LOADING_THREADS);
+		props.put(ROSTER_CACHE_SIZE, "off");
+		props.put(ROSTER_CACHE_TTL, 60 * 1000L);
+		props.put(USER_NODES_INDEX_MAX_WEIGHT, "100000");
+		props.put(COLLECTIONS_INDEX_MAX_WEIGHT, "100000");
+		props.put(WRITE_BEHIND_BATCH_SIZE, "off");
+		props.put(WRITE_BEHIND_DELAY, CachedPubSubRepository.MAX_WRITE_DELAY);
 
 		String[] admins;
 
@@ -352,6 +461,7 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		if (pubsubRepository instanceof StatisticHolder) {
 			((StatisticHolder) pubsubRepository).getStatistics(getName(), list);
 		}
+		componentConfig.getNotificationThrottle().getStatistics(getName(), list);
 	}
 	
 	@Override
@@ -513,6 +623,7 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 				this.pubsubRepository));
 		this.adHocCommandsModule.register(new RetrieveItemsCommand(this.componentConfig, this.pubsubRepository,
 				this.userRepository));
+		this.adHocCommandsModule.register(new VerifyCollectionsIndexCommand(this.pubsubRepository));
 	}
 
 	@Override
@@ -637,6 +748,88 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 			}
 		}
 
+		String maxCacheWeight = (String) props.get(MAX_CACHE_WEIGHT);
+
+		if (maxCacheWeight != null) {
+			try {
+				maxRepositoryCacheWeight = Long.valueOf(maxCacheWeight);
+				props.put(MAX_CACHE_WEIGHT, maxRepositoryCacheWeight.toString());
+			} catch (Exception e) {
+				maxRepositoryCacheWeight = null;
+				props.put(MAX_CACHE_WEIGHT, "off");
+			}
+		}
+
+		String itemsCacheWeight = (String) props.get(ITEMS_CACHE_MAX_WEIGHT);
+
+		if (itemsCacheWeight != null) {
+			try {
+				itemsCacheMaxWeight = Long.valueOf(itemsCacheWeight);
+				props.put(ITEMS_CACHE_MAX_WEIGHT, itemsCacheMaxWeight.toString());
+			} catch (Exception e) {
+				itemsCacheMaxWeight = null;
+				props.put(ITEMS_CACHE_MAX_WEIGHT, "off");
+			}
+		}
+
+		if (props.containsKey(ROOT_COLLECTION_LOADING_THREADS)) {
+			rootCollectionLoadingThreads = ((Number) props.get(ROOT_COLLECTION_LOADING_THREADS)).intValue();
+		}
+
+		String rosterCache = (String) props.get(ROSTER_CACHE_SIZE);
+
+		if (rosterCache != null) {
+			try {
+				rosterCacheSize = Integer.valueOf(rosterCache);
+				props.put(ROSTER_CACHE_SIZE, rosterCacheSize.toString());
+			} catch (Exception e) {
+				rosterCacheSize = null;
+				props.put(ROSTER_CACHE_SIZE, "off");
+			}
+		}
+		if (props.containsKey(ROSTER_CACHE_TTL)) {
+			rosterCacheTtl = ((Number) props.get(ROSTER_CACHE_TTL)).longValue();
+		}
+
+		String userNodesIndexWeight = (String) props.get(USER_NODES_INDEX_MAX_WEIGHT);
+
+		if (userNodesIndexWeight != null) {
+			try {
+				userNodesIndexMaxWeight = Long.valueOf(userNodesIndexWeight);
+				props.put(USER_NODES_INDEX_MAX_WEIGHT, userNodesIndexMaxWeight.toString());
+			} catch (Exception e) {
+				userNodesIndexMaxWeight = null;
+				props.put(USER_NODES_INDEX_MAX_WEIGHT, "off");
+			}
+		}
+
+		String collectionsIndexWeight = (String) props.get(COLLECTIONS_INDEX_MAX_WEIGHT);
+
+		if (collectionsIndexWeight != null) {
+			try {
+				collectionsIndexMaxWeight = Long.valueOf(collectionsIndexWeight);
+				props.put(COLLECTIONS_INDEX_MAX_WEIGHT, collectionsIndexMaxWeight.toString());
+			} catch (Exception e) {
+				collectionsIndexMaxWeight = null;
+				props.put(COLLECTIONS_INDEX_MAX_WEIGHT, "off");
+			}
+		}
+
+		String writeBehind = (String) props.get(WRITE_BEHIND_BATCH_SIZE);
+
+		if (writeBehind != null) {
+			try {
+				writeBehindBatchSize = Integer.valueOf(writeBehind);
+				props.put(WRITE_BEHIND_BATCH_SIZE, writeBehindBatchSize.toString());
+			} catch (Exception e) {
+				writeBehindBatchSize = null;
+				props.put(WRITE_BEHIND_BATCH_SIZE, "off");
+			}
+		}
+		if (props.containsKey(WRITE_BEHIND_DELAY)) {
+			writeBehindDelay = ((Number) props.get(WRITE_BEHIND_DELAY)).longValue();
+		}
+
 		// Is there a shared user repository pool? If so I want to use it:
 		userRepository = (UserRepository) props.get(RepositoryFactory.SHARED_USER_REPO_PROP_KEY);
 
@@ -674,6 +867,7 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		super.start();
 		EventBus eventBus = EventBusFactory.getInstance();
 		eventBus.addHandler("remove", "tigase:user", removeUserEventHandler);
+		componentConfig.getNotificationThrottle().start(this::getOutQueueSize);
 	}
 
 	@Override
@@ -681,6 +875,14 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 		super.stop();
 		EventBus eventBus = EventBusFactory.getInstance();
 		eventBus.removeHandler("remove", "tigase:user", removeUserEventHandler);
+		componentConfig.getNotificationThrottle().stop();
+		if (publishNodeModule != null) {
+			publishNodeModule.stop();
+		}
+		// changes not written to the database yet need to be stored
+		if (pubsubRepository != null) {
+			pubsubRepository.destroy();
+		}
 	}
 	
 	@Override
@@ -728,6 +930,9 @@ public class PubSubComponent extends AbstractComponent<PubSubConfig> implements
 			// handle removal of pep service etc..
 			try {
 				pubsubRepository.onUserRemoved(jid);
+				if (publishNodeModule != null) {
+					publishNodeModule.invalidateLastItems(jid);
+				}
 			} catch (RepositoryException ex) {
 				log.log(Level.WARNING, "could not remove PubSub data for removed user " + jidStr, ex);
 			}
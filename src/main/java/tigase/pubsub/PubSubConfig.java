@@ -27,8 +27,8 @@ import java.util.Map;
 
 import tigase.component2.AbstractComponent;
 import tigase.component2.ComponentConfig;
+import tigase.pubsub.modules.NotificationFanOut;
 import tigase.pubsub.repository.IPubSubRepository;
-import tigase.sys.TigaseRuntime;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 
@@ -42,14 +42,30 @@ import tigase.xmpp.JID;
 public class PubSubConfig extends ComponentConfig {
 
 	private static final String PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY = "pubsub-high-memory-usage-level";
+	private static final String PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_KEY = "pubsub-critical-memory-usage-level";
+	private static final String PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_KEY = "pubsub-notifications-queue-high-watermark";
+	private static final String PUBSUB_THROTTLED_NOTIFICATIONS_RATE_KEY = "pubsub-throttled-notifications-rate";
+	private static final String PUBSUB_LAST_ITEM_CACHE_SIZE_KEY = "pubsub-last-item-cache-size";
+	private static final String PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_KEY = "notifications-shared-payload";
+	private static final String PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_KEY = "notifications-fan-out-threads";
+	private static final String PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_KEY = "notifications-fan-out-chunk-size";
+	private static final String PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_KEY = "notifications-fan-out-queue-size";
 	private static final String PUBSUB_LOW_MEMORY_DELAY_KEY = "pubsub-low-memory-delay";
 	private static final String PUBSUB_PERSISTENT_PEP_KEY = "persistent-pep";
 	private static final String PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY = "pep-remove-empty-geoloc";
 	private static final String PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY = "send-last-published-item-on-presence";
 	
 	private static final int DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL = 90;
+	private static final int DEF_PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_VAL = 95;
+	private static final int DEF_PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_VAL = 10000;
+	private static final int DEF_PUBSUB_THROTTLED_NOTIFICATIONS_RATE_VAL = 1000;
 	private static final long DEF_PUBSUB_LOW_MEMORY_DELAY_VAL = 1000;
 	private static final boolean DEF_PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_VAL = false;
+	private static final int DEF_PUBSUB_LAST_ITEM_CACHE_SIZE_VAL = 10000;
+	private static final boolean DEF_PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_VAL = true;
+	private static final int DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_VAL = 0;
+	private static final int DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_VAL = NotificationFanOut.DEF_CHUNK_SIZE;
+	private static final int DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_VAL = NotificationFanOut.DEF_QUEUE_SIZE;
 	
 	protected String[] admins;
 
@@ -59,9 +75,18 @@ public class PubSubConfig extends ComponentConfig {
 
 	private long lowMemoryDelay = DEF_PUBSUB_LOW_MEMORY_DELAY_VAL;
 	private float highMemoryUsageLevel = DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL;
+	private float criticalMemoryUsageLevel = DEF_PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_VAL;
+	private int notificationsQueueHighWatermark = DEF_PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_VAL;
+	private int throttledNotificationsRate = DEF_PUBSUB_THROTTLED_NOTIFICATIONS_RATE_VAL;
+	private final NotificationThrottle notificationThrottle = new NotificationThrottle();
 	private boolean persistentPep = false;
 	private boolean pepRemoveEmptyGeoloc = false;
 	private boolean sendLastPublishedItemOnPresence = false;
+	private int lastItemCacheSize = DEF_PUBSUB_LAST_ITEM_CACHE_SIZE_VAL;
+	private boolean notificationsSharedPayload = DEF_PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_VAL;
+	private int notificationsFanOutThreads = DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_VAL;
+	private int notificationsFanOutChunkSize = DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_VAL;
+	private int notificationsFanOutQueueSize = DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_VAL;
 	
 	public PubSubConfig(AbstractComponent<?> component) {
 		super(component);		
@@ -82,18 +107,38 @@ public class PubSubConfig extends ComponentConfig {
 		final HashMap<String, Object> props = new HashMap<String, Object>();
 		props.put(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY, DEF_PUBSUB_HIGH_MEMORY_USAGE_LEVEL_VAL);
 		props.put(PUBSUB_LOW_MEMORY_DELAY_KEY, DEF_PUBSUB_LOW_MEMORY_DELAY_VAL);
+		props.put(PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_KEY, DEF_PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_KEY, DEF_PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_VAL);
+		props.put(PUBSUB_THROTTLED_NOTIFICATIONS_RATE_KEY, DEF_PUBSUB_THROTTLED_NOTIFICATIONS_RATE_VAL);
 		props.put(PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_KEY, DEF_PUBSUB_PEP_REMOVE_EMPTY_GEOLOC_VAL);
+		props.put(PUBSUB_LAST_ITEM_CACHE_SIZE_KEY, DEF_PUBSUB_LAST_ITEM_CACHE_SIZE_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_KEY, DEF_PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_KEY, DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_KEY, DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_VAL);
+		props.put(PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_KEY, DEF_PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_VAL);
 		return props;
 	}
 
-	public long getDelayOnLowMemory() {
-		if (isHighMemoryUsage()) {
-			return lowMemoryDelay;
-		}
-		
-		return 0;
+	/**
+	 * Returns maximal number of nodes for which last published item is kept
+	 * in memory, 0 disables caching of last published items.
+	 *
+	 * @return
+	 */
+	public int getLastItemCacheSize() {
+		return lastItemCacheSize;
 	}
-	
+
+	/**
+	 * Returns controller deciding if notifications may be sent, based on heap
+	 * usage and number of notifications waiting to be sent.
+	 *
+	 * @return
+	 */
+	public NotificationThrottle getNotificationThrottle() {
+		return notificationThrottle;
+	}
+
 	public IPubSubRepository getPubSubRepository() {
 		return pubSubRepository;
 	}
@@ -156,6 +201,15 @@ public class PubSubConfig extends ComponentConfig {
 		if (props.containsKey(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY)) {
 			this.highMemoryUsageLevel = ((Integer) props.get(PUBSUB_HIGH_MEMORY_USAGE_LEVEL_KEY)).floatValue();
 		}
+		if (props.containsKey(PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_KEY)) {
+			this.criticalMemoryUsageLevel = ((Integer) props.get(PUBSUB_CRITICAL_MEMORY_USAGE_LEVEL_KEY)).floatValue();
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_KEY)) {
+			this.notificationsQueueHighWatermark = (Integer) props.get(PUBSUB_NOTIFICATIONS_QUEUE_HIGH_WATERMARK_KEY);
+		}
+		if (props.containsKey(PUBSUB_THROTTLED_NOTIFICATIONS_RATE_KEY)) {
+			this.throttledNotificationsRate = (Integer) props.get(PUBSUB_THROTTLED_NOTIFICATIONS_RATE_KEY);
+		}
 		if (props.containsKey(PUBSUB_PERSISTENT_PEP_KEY)) {
 			this.persistentPep = (Boolean) props.get(PUBSUB_PERSISTENT_PEP_KEY);
 		}
@@ -165,16 +219,29 @@ public class PubSubConfig extends ComponentConfig {
 		if (props.containsKey(PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY)) {
 			this.sendLastPublishedItemOnPresence = (Boolean) props.get(PUBSUB_SEND_LAST_PUBLISHED_ITEM_ON_PRESECE_KEY);
 		}
+		if (props.containsKey(PUBSUB_LAST_ITEM_CACHE_SIZE_KEY)) {
+			this.lastItemCacheSize = (Integer) props.get(PUBSUB_LAST_ITEM_CACHE_SIZE_KEY);
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_KEY)) {
+			this.notificationsSharedPayload = (Boolean) props.get(PUBSUB_NOTIFICATIONS_SHARED_PAYLOAD_KEY);
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_KEY)) {
+			this.notificationsFanOutThreads = (Integer) props.get(PUBSUB_NOTIFICATIONS_FAN_OUT_THREADS_KEY);
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_KEY)) {
+			this.notificationsFanOutChunkSize = (Integer) props.get(PUBSUB_NOTIFICATIONS_FAN_OUT_CHUNK_SIZE_KEY);
+		}
+		if (props.containsKey(PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_KEY)) {
+			this.notificationsFanOutQueueSize = (Integer) props.get(PUBSUB_NOTIFICATIONS_FAN_OUT_QUEUE_SIZE_KEY);
+		}
+		notificationThrottle.setLimits(highMemoryUsageLevel, criticalMemoryUsageLevel, notificationsQueueHighWatermark,
+				throttledNotificationsRate, lowMemoryDelay);
 	}
 
 	void setPubSubRepository(IPubSubRepository pubSubRepository) {
 		this.pubSubRepository = pubSubRepository;
 	}
 	
-	private boolean isHighMemoryUsage() {
-		return TigaseRuntime.getTigaseRuntime().getHeapMemUsage() > highMemoryUsageLevel;
-	}	
-	
 	public boolean isPepPeristent() {
 		return persistentPep;
 	}
@@ -183,6 +250,36 @@ public class PubSubConfig extends ComponentConfig {
 		return pepRemoveEmptyGeoloc;
 	}
 
+	/**
+	 * Returns number of threads used to send notifications to subscribers of
+	 * big nodes, 0 means that notifications are sent by thread processing
+	 * publication.
+	 *
+	 * @return
+	 */
+	public int getNotificationsFanOutThreads() {
+		return notificationsFanOutThreads;
+	}
+
+	public int getNotificationsFanOutChunkSize() {
+		return notificationsFanOutChunkSize;
+	}
+
+	public int getNotificationsFanOutQueueSize() {
+		return notificationsFanOutQueueSize;
+	}
+
+	/**
+	 * Returns <code>true</code> if payload of notification (event, headers,
+	 * body) should be created once and shared by notifications sent to all
+	 * subscribers.
+	 *
+	 * @return
+	 */
+	public boolean isNotificationsSharedPayload() {
+		return notificationsSharedPayload;
+	}
+
 	public boolean isSendLastPublishedItemOnPresence() {
 		return sendLastPublishedItemOnPresence;
 	}
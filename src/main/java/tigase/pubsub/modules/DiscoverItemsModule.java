@@ -27,8 +27,8 @@ import java.util.List;
 import tigase.component2.PacketWriter;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
-import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.AbstractPubSubModule;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.Utils;
@@ -119,8 +119,8 @@ public class DiscoverItemsModule extends AbstractPubSubModule {
 			} else {
 				log.finest("Asking about Items of node " + nodeName);
 
-				AbstractNodeConfig nodeConfig = (nodeName == null) ? null : getRepository().getNodeConfig(toJid.getBareJID(),
-						nodeName);
+				NodeConfigSnapshot nodeConfig = (nodeName == null) ? null : getRepository().getNodeConfigSnapshot(
+						toJid.getBareJID(), nodeName);
 				String[] nodes;
 
 				if ((nodeName == null) || ((nodeConfig != null) && (nodeConfig.getNodeType() == NodeType.collection))) {
@@ -131,13 +131,14 @@ public class DiscoverItemsModule extends AbstractPubSubModule {
 						nodes = getRepository().getRootCollection(toJid.getBareJID());
 					} else {
 						parentName = nodeName;
-						nodes = nodeConfig.getChildren();
+						nodes = getRepository().getNodeChildren(toJid.getBareJID(), nodeName);
 					}
 
 					// = this.repository.getNodesList();
 					if (nodes != null) {
 						for (String node : nodes) {
-							AbstractNodeConfig childNodeConfig = this.getRepository().getNodeConfig(toJid.getBareJID(), node);
+							NodeConfigSnapshot childNodeConfig = this.getRepository().getNodeConfigSnapshot(toJid.getBareJID(),
+									node);
 
 							if (childNodeConfig != null) {
 								boolean allowed = ((senderJid == null) || (childNodeConfig == null)) ? true
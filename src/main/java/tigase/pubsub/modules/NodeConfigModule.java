@@ -24,7 +24,9 @@ package tigase.pubsub.modules;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import tigase.component2.PacketWriter;
 import tigase.component2.eventbus.Event;
@@ -45,6 +47,7 @@ import tigase.pubsub.exceptions.PubSubException;
 import tigase.pubsub.modules.NodeConfigModule.NodeConfigurationChangedHandler.NodeConfigurationChangedEvent;
 import tigase.pubsub.repository.IAffiliations;
 import tigase.pubsub.repository.ISubscriptions;
+import tigase.pubsub.repository.RepositoryException;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.server.Packet;
 import tigase.xml.Element;
@@ -172,6 +175,29 @@ public class NodeConfigModule extends AbstractConfigCreateNode {
 		getEventBus().addHandler(NodeConfigurationChangedEvent.TYPE, handler);
 	}
 
+	/**
+	 * Checks if node may be placed in a collection without creating a cycle in
+	 * tree of collections.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param collection
+	 *
+	 * @throws PubSubException
+	 *             if collection is the node itself or one of its children
+	 * @throws RepositoryException
+	 */
+	private void checkCollectionCycle(BareJID serviceJid, String nodeName, String collection) throws PubSubException,
+			RepositoryException {
+		if ((collection == null) || collection.equals("")) {
+			return;
+		}
+		if (collection.equals(nodeName) || isIn(nodeName, getRepository().getNodeParents(serviceJid, collection))) {
+			throw new PubSubException(Authorization.NOT_ALLOWED, "Node '" + nodeName + "' cannot be added to collection '"
+					+ collection + "' as it would create a cycle");
+		}
+	}
+
 	private Element createAssociateNotification(final String collectionNodeName, String associatedNodeName) {
 		Element colE = new Element("collection", new String[] { "node" }, new String[] { collectionNodeName });
 
@@ -295,6 +321,7 @@ public class NodeConfigModule extends AbstractConfigCreateNode {
 
 				parseConf(nodeConfig, configure, config);
 				if (!collectionOld.equals(nodeConfig.getCollection())) {
+					checkCollectionCycle(toJid, nodeName, nodeConfig.getCollection());
 					if (collectionOld.equals("")) {
 						AbstractNodeConfig colNodeConfig = getRepository().getNodeConfig(toJid, nodeConfig.getCollection());
 
@@ -345,15 +372,18 @@ public class NodeConfigModule extends AbstractConfigCreateNode {
 							(nodeConfig.getChildren() == null) ? new String[] {} : nodeConfig.getChildren(),
 							(children == null) ? new String[] {} : children);
 
+					// all added nodes are checked before any of them is moved, so
+					// rejected change does not leave some of them moved
+					final Map<String, AbstractNodeConfig> addedConfigs = new LinkedHashMap<String, AbstractNodeConfig>();
 					for (String ann : addedChildNodes) {
+						checkCollectionCycle(toJid, ann, nodeName);
+
 						AbstractNodeConfig nc = getRepository().getNodeConfig(toJid, ann);
 
 						if (nc == null) {
 							throw new PubSubException(Authorization.ITEM_NOT_FOUND, "(#2) Node '" + ann + "' doesn't exists");
 						}
-						if (nc.getCollection().equals("")) {
-							getRepository().removeFromRootCollection(toJid, nc.getNodeName());						
-						} else {
+						if (!nc.getCollection().equals("")) {
 							AbstractNodeConfig cnc = getRepository().getNodeConfig(toJid, nc.getCollection());
 
 							if (cnc == null) {
@@ -364,6 +394,20 @@ public class NodeConfigModule extends AbstractConfigCreateNode {
 								throw new PubSubException(Authorization.NOT_ALLOWED, "(#2) Node '" + nc.getCollection()
 										+ "' is not collection node");
 							}
+						}
+						addedConfigs.put(ann, nc);
+					}
+					for (Map.Entry<String, AbstractNodeConfig> e : addedConfigs.entrySet()) {
+						String ann = e.getKey();
+						AbstractNodeConfig nc = e.getValue();
+
+						if (nc.getCollection().equals("")) {
+							getRepository().removeFromRootCollection(toJid, nc.getNodeName());						
+						} else {
+							// previous parent is loaded again, as it may be shared with
+							// node moved in previous iteration
+							AbstractNodeConfig cnc = getRepository().getNodeConfig(toJid, nc.getCollection());
+
 							((CollectionNodeConfig) cnc).removeChildren(nc.getNodeName());
 							getRepository().update(toJid, cnc.getNodeName(), cnc);
 						}
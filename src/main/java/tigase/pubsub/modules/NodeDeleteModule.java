@@ -212,6 +212,7 @@ public class NodeDeleteModule extends AbstractPubSubModule {
 			}
 			log.fine("Delete node [" + nodeName + "]");
 			getRepository().deleteNode(toJid, nodeName);
+			publishModule.invalidateLastItem(toJid, nodeName);
 
 			NodeDeleteEvent event = new NodeDeleteEvent(packet, nodeName);
 			getEventBus().fire(event);
@@ -0,0 +1,288 @@
+/*
+ * NotificationFanOut.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.pubsub.utils.LatencyHistogram;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.JID;
+
+/**
+ * Sends notifications to subscribers of big nodes using pool of worker
+ * threads, so thread processing publication is not blocked for the whole
+ * time needed to create notifications for all subscribers.
+ *
+ * Subscribers are assigned to workers by hash of their bare JID, so
+ * notifications for a subscriber are always sent by the same worker and
+ * keep their order. Subscribers of each worker are split into chunks and
+ * queued in a bounded queue of the worker. When queue is full, publishing
+ * thread waits, so fan-out is slowed down to the rate at which workers are
+ * able to pass notifications to the component output queue.
+ */
+public class NotificationFanOut {
+
+	private static final Logger log = Logger.getLogger(NotificationFanOut.class.getName());
+
+	public static final int DEF_CHUNK_SIZE = 1000;
+
+	public static final int DEF_QUEUE_SIZE = 64;
+
+	private static final int MAX_TRACKED_NODES = 1000;
+
+	private class Chunk implements Runnable {
+
+		private final FanOut fanOut;
+		private final List<JID> subscribers;
+
+		private Chunk(FanOut fanOut, List<JID> subscribers) {
+			this.fanOut = fanOut;
+			this.subscribers = subscribers;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (JID jid : subscribers) {
+					fanOut.sender.accept(jid);
+				}
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Problem with sending notifications of node " + fanOut.nodeKey, ex);
+			} finally {
+				pendingNotifications.addAndGet(-subscribers.size());
+				fanOut.chunkDone();
+			}
+		}
+	}
+
+	private class FanOut {
+
+		private final String nodeKey;
+		private final AtomicInteger remaining = new AtomicInteger(1);
+		private final Consumer<JID> sender;
+		private final long start = System.nanoTime();
+
+		private FanOut(String nodeKey, Consumer<JID> sender) {
+			this.nodeKey = nodeKey;
+			this.sender = sender;
+		}
+
+		private void chunkDone() {
+			if (remaining.decrementAndGet() == 0) {
+				recordLatency(nodeKey, (System.nanoTime() - start) / 1000000);
+			}
+		}
+	}
+
+	private class Worker extends Thread {
+
+		private final BlockingQueue<Chunk> queue;
+
+		private Worker(int id, int queueSize) {
+			super("pubsub-fan-out-" + id);
+			this.queue = new ArrayBlockingQueue<Chunk>(queueSize);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try {
+					queue.take().run();
+				} catch (InterruptedException ex) {
+					// stopping
+				}
+			}
+		}
+	}
+
+	private final AtomicLong backPressureWaits = new AtomicLong(0);
+	private final int chunkSize;
+	private final AtomicLong chunksCounter = new AtomicLong(0);
+	private final AtomicLong fanOutsCounter = new AtomicLong(0);
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicInteger pendingNotifications = new AtomicInteger(0);
+	private final ConcurrentHashMap<String, LatencyHistogram> nodesLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private volatile boolean stopped = false;
+	private final Worker[] workers;
+
+	public NotificationFanOut(int threads, int chunkSize, int queueSize) {
+		this.chunkSize = chunkSize;
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i, queueSize);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Checks if notifications for given number of subscribers should be sent
+	 * using worker threads.
+	 *
+	 * @param subscribers
+	 *
+	 * @return
+	 */
+	public boolean isApplicable(int subscribers) {
+		return subscribers > chunkSize;
+	}
+
+	/**
+	 * Sends notifications to subscribers using worker threads. Method returns
+	 * when all chunks are queued, not when all notifications are sent.
+	 *
+	 * @param nodeKey
+	 *            identifies node in latency statistics
+	 * @param subscribers
+	 * @param sender
+	 *            creates and sends notification to single subscriber
+	 */
+	public void fanOut(String nodeKey, JID[] subscribers, Consumer<JID> sender) {
+		fanOutsCounter.incrementAndGet();
+		FanOut fanOut = new FanOut(nodeKey, sender);
+
+		List<List<JID>> partitions = new ArrayList<List<JID>>(workers.length);
+		int expected = subscribers.length / workers.length + 1;
+		for (int i = 0; i < workers.length; i++) {
+			partitions.add(new ArrayList<JID>(Math.min(expected, chunkSize)));
+		}
+
+		for (JID jid : subscribers) {
+			int idx = (jid.getBareJID().hashCode() & Integer.MAX_VALUE) % workers.length;
+			List<JID> partition = partitions.get(idx);
+			partition.add(jid);
+			if (partition.size() >= chunkSize) {
+				submit(workers[idx], new Chunk(fanOut, partition));
+				partitions.set(idx, new ArrayList<JID>(Math.min(expected, chunkSize)));
+			}
+		}
+		for (int i = 0; i < workers.length; i++) {
+			List<JID> partition = partitions.get(i);
+			if (!partition.isEmpty()) {
+				submit(workers[i], new Chunk(fanOut, partition));
+			}
+		}
+
+		// releasing reference held while chunks were queued
+		fanOut.chunkDone();
+	}
+
+	/**
+	 * Returns number of notifications queued but not sent yet.
+	 *
+	 * @return
+	 */
+	public int getPendingNotifications() {
+		return pendingNotifications.get();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "fan-out/publications", fanOutsCounter.get(), Level.FINE);
+		list.add(compName, "fan-out/chunks", chunksCounter.get(), Level.FINE);
+		list.add(compName, "fan-out/back-pressure waits", backPressureWaits.get(), Level.FINE);
+		int queued = 0;
+		for (Worker worker : workers) {
+			queued += worker.queue.size();
+		}
+		list.add(compName, "fan-out/queued chunks", queued, Level.FINE);
+		list.add(compName, "fan-out/latency", latency.toString(), Level.FINE);
+		if (list.checkLevel(Level.FINEST)) {
+			for (java.util.Map.Entry<String, LatencyHistogram> e : nodesLatency.entrySet()) {
+				list.add(compName, "fan-out/latency of " + e.getKey(), e.getValue().toString(), Level.FINEST);
+			}
+		}
+	}
+
+	LatencyHistogram getLatency(String nodeKey) {
+		return nodeKey == null ? latency : nodesLatency.get(nodeKey);
+	}
+
+	/**
+	 * Stops worker threads. Chunks which were queued but not sent yet are
+	 * sent by the calling thread, as are all notifications passed to
+	 * {@link #fanOut(String, JID[], Consumer)} after fan-out was stopped.
+	 */
+	public void stop() {
+		stopped = true;
+		for (Worker worker : workers) {
+			worker.interrupt();
+		}
+		List<Chunk> queued = new ArrayList<Chunk>();
+		for (Worker worker : workers) {
+			worker.queue.drainTo(queued);
+		}
+		for (Chunk chunk : queued) {
+			chunk.run();
+		}
+	}
+
+	boolean isStopped() {
+		for (Worker worker : workers) {
+			if (worker.isAlive()) {
+				return false;
+			}
+		}
+		return stopped;
+	}
+
+	private void recordLatency(String nodeKey, long millis) {
+		latency.record(millis);
+		LatencyHistogram histogram = nodesLatency.get(nodeKey);
+		if (histogram == null && nodesLatency.size() < MAX_TRACKED_NODES) {
+			histogram = nodesLatency.computeIfAbsent(nodeKey, k -> new LatencyHistogram());
+		}
+		if (histogram != null) {
+			histogram.record(millis);
+		}
+	}
+
+	private void submit(Worker worker, Chunk chunk) {
+		chunk.fanOut.remaining.incrementAndGet();
+		chunksCounter.incrementAndGet();
+		pendingNotifications.addAndGet(chunk.subscribers.size());
+		if (stopped) {
+			chunk.run();
+			return;
+		}
+		if (worker.queue.offer(chunk)) {
+			return;
+		}
+		backPressureWaits.incrementAndGet();
+		try {
+			worker.queue.put(chunk);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			// we are not able to wait, so we send notifications ourselves
+			chunk.run();
+		}
+	}
+
+}
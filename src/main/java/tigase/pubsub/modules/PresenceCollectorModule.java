@@ -440,6 +440,13 @@ public class PresenceCollectorModule extends AbstractPubSubModule {
 //		PresenceChangeEvent event = new PresenceChangeEvent( packet );
 //		config.getEventBus().fire( event, this );
 
+		if ( type == StanzaType.subscribe || type == StanzaType.subscribed || type == StanzaType.unsubscribe
+				|| type == StanzaType.unsubscribed ){
+			// presence subscription changes roster of both users
+			getRepository().invalidateUserRoster( toJid.getBareJID() );
+			getRepository().invalidateUserRoster( jid.getBareJID() );
+		}
+
 		if ( type == null || type == StanzaType.available ){
 			String[] caps = config.isPepPeristent() ? capsModule.processPresence(packet) : null;
 			boolean added = addJid( toJid.getBareJID(), jid, caps );
@@ -31,6 +31,10 @@ import tigase.criteria.ElementCriteria;
 import tigase.pubsub.*;
 import tigase.pubsub.exceptions.PubSubErrorCondition;
 import tigase.pubsub.exceptions.PubSubException;
+import tigase.pubsub.modules.NodeConfigModule.NodeConfigurationChangedHandler;
+import tigase.pubsub.modules.NodeConfigModule.NodeConfigurationChangedHandler.NodeConfigurationChangedEvent;
+import tigase.pubsub.modules.NodeDeleteModule.NodeDeleteHandler;
+import tigase.pubsub.modules.NodeDeleteModule.NodeDeleteHandler.NodeDeleteEvent;
 import tigase.pubsub.modules.PresenceCollectorModule.CapsChangeHandler;
 import tigase.pubsub.modules.PresenceCollectorModule.CapsChangeHandler.CapsChangeEvent;
 import tigase.pubsub.modules.PresenceCollectorModule.PresenceChangeHandler;
@@ -38,19 +42,20 @@ import tigase.pubsub.modules.PresenceCollectorModule.PresenceChangeHandler.Prese
 import tigase.pubsub.repository.*;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
-import tigase.server.Message;
+import tigase.pubsub.utils.LastItemCache;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.DateTimeFormatter;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 import tigase.xmpp.StanzaType;
-import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
-import tigase.xmpp.impl.roster.RosterElement;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,16 +68,6 @@ import java.util.logging.Logger;
  */
 public class PublishItemModule extends AbstractPubSubModule {
 
-	private static class Item {
-		final String id;
-		final Date updateDate;
-
-		Item(String id, Date date) {
-			this.updateDate = date;
-			this.id = id;
-		}
-	}
-
 	public interface ItemPublishedHandler extends EventHandler {
 
 		public static class ItemPublishedEvent extends Event<ItemPublishedHandler> {
@@ -141,7 +136,7 @@ public class PublishItemModule extends AbstractPubSubModule {
 				String nodeName = feature.substring(0, feature.length() - "+notify".length());
 
 				try {
-					AbstractNodeConfig nodeConfig = config.getPubSubRepository().getNodeConfig(serviceJid, nodeName);
+					NodeConfigSnapshot nodeConfig = config.getPubSubRepository().getNodeConfigSnapshot(serviceJid, nodeName);
 					if (nodeConfig != null
 							&& nodeConfig.getSendLastPublishedItem() == SendLastPublishedItem.on_sub_and_presence) {
 						publishLastItem(serviceJid, nodeConfig, buddyJid);
@@ -158,7 +153,11 @@ public class PublishItemModule extends AbstractPubSubModule {
 	private final DateTimeFormatter dtf = new DateTimeFormatter();
 
 	private final LeafNodeConfig defaultPepNodeConfig;
-	private long idCounter = 0;
+	private final AtomicLong idCounter = new AtomicLong(0);
+
+	private final LastItemCache lastItemCache;
+
+	private final NotificationFanOut fanOut;
 
 	private final Set<String> pepNodes = new HashSet<String>();
 
@@ -188,8 +187,9 @@ public class PublishItemModule extends AbstractPubSubModule {
 						if (e.getValue().getSubscription() != Subscription.subscribed)
 							continue;
 						String nodeName = e.getKey();
-						AbstractNodeConfig nodeConfig = config.getPubSubRepository().getNodeConfig(serviceJid, nodeName);
-						if (nodeConfig.getSendLastPublishedItem() != SendLastPublishedItem.on_sub_and_presence)
+						NodeConfigSnapshot nodeConfig = config.getPubSubRepository().getNodeConfigSnapshot(serviceJid, nodeName);
+						if (nodeConfig == null
+								|| nodeConfig.getSendLastPublishedItem() != SendLastPublishedItem.on_sub_and_presence)
 							continue;
 						publishLastItem(serviceJid, nodeConfig, userJid);
 					}
@@ -202,6 +202,29 @@ public class PublishItemModule extends AbstractPubSubModule {
 
 	};
 
+	private final NodeConfigurationChangedHandler nodeConfigurationChangedHandler = new NodeConfigurationChangedHandler() {
+
+		@Override
+		public void onConfigurationChanged(Packet packet, String nodeName) {
+			// compiled stylesheets of node could be outdated now
+			if (xslTransformer != null) {
+				xslTransformer.invalidate(nodeName);
+			}
+		}
+
+	};
+
+	private final NodeDeleteHandler nodeDeleteHandler = new NodeDeleteHandler() {
+
+		@Override
+		public void onNodeDeleted(Packet packet, String nodeName) {
+			if (xslTransformer != null) {
+				xslTransformer.invalidate(nodeName);
+			}
+		}
+
+	};
+
 	private final PresenceCollectorModule presenceCollector;
 
 	private final XsltTool xslTransformer;
@@ -229,8 +252,16 @@ public class PublishItemModule extends AbstractPubSubModule {
 		defaultPepNodeConfig.setValue("pubsub#presence_based_delivery", true);
 		defaultPepNodeConfig.setValue("pubsub#send_last_published_item", "on_sub_and_presence");
 
+		this.lastItemCache = config.getLastItemCacheSize() > 0 ? new LastItemCache(config.getLastItemCacheSize()) : null;
+		this.fanOut = config.getNotificationsFanOutThreads() > 0
+				? new NotificationFanOut(config.getNotificationsFanOutThreads(), config.getNotificationsFanOutChunkSize(),
+						config.getNotificationsFanOutQueueSize())
+				: null;
+
 		this.config.getEventBus().addHandler(CapsChangeEvent.TYPE, capsChangeHandler);
 		this.config.getEventBus().addHandler(PresenceChangeEvent.TYPE, presenceChangeHandler);
+		this.config.getEventBus().addHandler(NodeConfigurationChangedEvent.TYPE, nodeConfigurationChangedHandler);
+		this.config.getEventBus().addHandler(NodeDeleteEvent.TYPE, nodeDeleteHandler);
 	}
 
 	/**
@@ -241,6 +272,10 @@ public class PublishItemModule extends AbstractPubSubModule {
 	 * @param nodesSubscriptions
 	 */
 	protected void beforePrepareNotification(final AbstractNodeConfig nodeConfig, final ISubscriptions nodesSubscriptions) {
+		beforePrepareNotification(new NodeConfigSnapshot(nodeConfig), nodesSubscriptions);
+	}
+
+	protected void beforePrepareNotification(final NodeConfigSnapshot nodeConfig, final ISubscriptions nodesSubscriptions) {
 		if (nodeConfig.isPresenceExpired()) {
 		}
 	}
@@ -288,13 +323,20 @@ public class PublishItemModule extends AbstractPubSubModule {
 	public void doPublishItems(BareJID serviceJID, String nodeName, LeafNodeConfig leafNodeConfig,
 			IAffiliations nodeAffiliations, ISubscriptions nodeSubscriptions, String publisher, List<Element> itemsToSend)
 					throws RepositoryException {
+		doPublishItems(serviceJID, nodeName, new NodeConfigSnapshot(leafNodeConfig), nodeAffiliations,
+				nodeSubscriptions, publisher, itemsToSend);
+	}
+
+	public void doPublishItems(BareJID serviceJID, String nodeName, NodeConfigSnapshot leafNodeConfig,
+			IAffiliations nodeAffiliations, ISubscriptions nodeSubscriptions, String publisher, List<Element> itemsToSend)
+					throws RepositoryException {
 		getEventBus().fire(new ItemPublishedHandler.ItemPublishedEvent(serviceJID, nodeName, itemsToSend));
 
 		final Element items = new Element("items", new String[] { "node" }, new String[] { nodeName });
 
 		items.addChildren(itemsToSend);
-		sendNotifications(items, JID.jidInstance(serviceJID), nodeName,
-				this.getRepository().getNodeConfig(serviceJID, nodeName), nodeAffiliations, nodeSubscriptions);
+		sendNotifications(items, JID.jidInstance(serviceJID), nodeName, leafNodeConfig, nodeAffiliations,
+				nodeSubscriptions);
 
 		List<String> parents = getParents(serviceJID, nodeName);
 
@@ -307,7 +349,7 @@ public class PublishItemModule extends AbstractPubSubModule {
 
 				headers.put("Collection", collection);
 
-				AbstractNodeConfig colNodeConfig = this.getRepository().getNodeConfig(serviceJID, collection);
+				NodeConfigSnapshot colNodeConfig = this.getRepository().getNodeConfigSnapshot(serviceJID, collection);
 				ISubscriptions colNodeSubscriptions = this.getRepository().getNodeSubscriptions(serviceJID, collection);
 				IAffiliations colNodeAffiliations = this.getRepository().getNodeAffiliations(serviceJID, collection);
 
@@ -317,23 +359,52 @@ public class PublishItemModule extends AbstractPubSubModule {
 		}
 		if (leafNodeConfig.isPersistItem()) {
 			IItems nodeItems = getRepository().getNodeItems(serviceJID, nodeName);
+			IItems.ItemData lastItem = null;
+			boolean itemRemoved = false;
+			// items are collected and sent to repository in a single batch,
+			// only the latest operation on each item id is relevant
+			final Map<String, IItems.ItemData> toWrite = new LinkedHashMap<String, IItems.ItemData>();
+			final Set<String> toDelete = new LinkedHashSet<String>();
 
 			for (Element item : itemsToSend) {
 				final String id = item.getAttributeStaticStr("id");
 
 				if ( !config.isPepRemoveEmptyGeoloc() ){
-					nodeItems.writeItem( System.currentTimeMillis(), id, publisher, item );
+					toDelete.remove( id );
+					lastItem = new IItems.ItemData( System.currentTimeMillis(), id, publisher, item );
+					toWrite.put( id, lastItem );
 				} else {
 					Element geoloc = item.findChildStaticStr( new String[] { "item", "geoloc" } );
 					if ( geoloc != null && ( geoloc.getChildren() == null || geoloc.getChildren().size() == 0 ) ){
-						nodeItems.deleteItem( id );
+						toWrite.remove( id );
+						toDelete.add( id );
+						itemRemoved = true;
 					} else {
-						nodeItems.writeItem( System.currentTimeMillis(), id, publisher, item );
+						toDelete.remove( id );
+						lastItem = new IItems.ItemData( System.currentTimeMillis(), id, publisher, item );
+						toWrite.put( id, lastItem );
 					}
 				}
 			}
-			if (leafNodeConfig.getMaxItems() != null) {
-				trimItems(nodeItems, leafNodeConfig.getMaxItems());
+			if (!toDelete.isEmpty()) {
+				nodeItems.deleteItems(toDelete);
+			}
+			if (!toWrite.isEmpty()) {
+				nodeItems.writeItems(new ArrayList<IItems.ItemData>(toWrite.values()));
+			}
+			final Integer maxItems = leafNodeConfig.getMaxItems();
+			if (maxItems != null) {
+				trimItems(nodeItems, maxItems);
+				if (maxItems < 1) {
+					itemRemoved = true;
+				}
+			}
+			if (lastItemCache != null) {
+				if (itemRemoved || lastItem == null) {
+					lastItemCache.invalidate(serviceJID, nodeName);
+				} else {
+					lastItemCache.published(serviceJID, nodeName, lastItem.getItem());
+				}
 			}
 		}
 	}
@@ -371,19 +442,7 @@ public class PublishItemModule extends AbstractPubSubModule {
 	 * @throws RepositoryException
 	 */
 	protected List<String> getParents(final BareJID serviceJid, final String nodeName) throws RepositoryException {
-		ArrayList<String> result = new ArrayList<String>();
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
-		String cn = nodeConfig.getCollection();
-
-		while ((cn != null) && !"".equals(cn)) {
-			result.add(cn);
-
-			AbstractNodeConfig nc = getRepository().getNodeConfig(serviceJid, cn);
-
-			cn = nc.getCollection();
-		}
-
-		return result;
+		return Arrays.asList(getRepository().getNodeParents(serviceJid, nodeName));
 	}
 
 	/**
@@ -397,20 +456,14 @@ public class PublishItemModule extends AbstractPubSubModule {
 	 * @throws RepositoryException
 	 */
 	protected JID[] getValidBuddies(BareJID id) throws RepositoryException {
-		ArrayList<JID> result = new ArrayList<JID>();
-		Map<BareJID, RosterElement> rosterJids = this.getRepository().getUserRoster(id);
-
-			if (rosterJids != null) {
-			for (Entry<BareJID, RosterElement> e : rosterJids.entrySet()) {
-				SubscriptionType sub = e.getValue().getSubscription();
+		List<BareJID> buddies = this.getRepository().getUserRosterIndex(id).getSubscribedFrom();
+		JID[] result = new JID[buddies.size()];
 
-				if (sub == SubscriptionType.both || sub == SubscriptionType.from || sub == SubscriptionType.from_pending_out) {
-					result.add(JID.jidInstance(e.getKey()));
-				}
-			}
+		for (int i = 0; i < result.length; i++) {
+			result[i] = JID.jidInstance(buddies.get(i));
 		}
 
-		return result.toArray(new JID[] {});
+		return result;
 	}
 
 	/**
@@ -462,11 +515,12 @@ public class PublishItemModule extends AbstractPubSubModule {
 
 			items.addChild(item);
 
-			sendNotifications(subscribers, items, senderJid, null, publish.getAttributeStaticStr("node"), null);
+			sendNotifications(subscribers, items, senderJid, (NodeConfigSnapshot) null,
+					publish.getAttributeStaticStr("node"), null);
 
 			packetWriter.write(packet.okResult((Element) null, 0));
-			sendNotifications(new JID[]{senderJid}, items, senderJid, null, publish.getAttributeStaticStr("node"),
-							  null);
+			sendNotifications(new JID[]{senderJid}, items, senderJid, (NodeConfigSnapshot) null,
+							  publish.getAttributeStaticStr("node"), null);
 		} catch (tigase.pubsub.repository.RepositoryException e) {
 			if (log.isLoggable(Level.FINER)) {
 				log.finer("Connot find roster of user " + senderJid + ". Probably anonymous user.");
@@ -497,14 +551,15 @@ public class PublishItemModule extends AbstractPubSubModule {
 				return;
 			}
 
-			AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(toJid, nodeName);
+			NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(toJid, nodeName);
 
 			if (nodeConfig == null) {
 				if (packet.getStanzaTo().getLocalpart() == null || !config.isPepPeristent()) {
 					throw new PubSubException(element, Authorization.ITEM_NOT_FOUND);
 				} else {
 					// this is PubSub service for particular user - we should autocreate node
-					nodeConfig = createPepNode(toJid, nodeName, packet.getStanzaFrom().getBareJID());
+					createPepNode(toJid, nodeName, packet.getStanzaFrom().getBareJID());
+					nodeConfig = getRepository().getNodeConfigSnapshot(toJid, nodeName);
 				}
 			} else {
 				if (nodeConfig.getNodeType() == NodeType.collection) {
@@ -527,11 +582,10 @@ public class PublishItemModule extends AbstractPubSubModule {
 				}
 			}
 
-			LeafNodeConfig leafNodeConfig = (LeafNodeConfig) nodeConfig;
 			List<Element> itemsToSend = makeItemsToSend(publish);
 			final Packet resultIq = packet.okResult((Element) null, 0);
 
-			if (leafNodeConfig.isPersistItem()) {
+			if (nodeConfig.isPersistItem()) {
 
 				// checking ID
 				Element resPubsub = new Element("pubsub", new String[] { "xmlns" },
@@ -557,7 +611,7 @@ public class PublishItemModule extends AbstractPubSubModule {
 			}
 			packetWriter.write(resultIq);
 
-			doPublishItems(toJid, nodeName, leafNodeConfig, nodeAffiliations, nodeSubscriptions,
+			doPublishItems(toJid, nodeName, nodeConfig, nodeAffiliations, nodeSubscriptions,
 					element.getAttributeStaticStr("from"), itemsToSend);
 		} catch (PubSubException e1) {
 			throw e1;
@@ -569,31 +623,128 @@ public class PublishItemModule extends AbstractPubSubModule {
 	}
 
 	public void publish(BareJID serviceJid, String publisher, String nodeName, Element item) throws RepositoryException {
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJid, nodeName);
 		IAffiliations nodeAffiliations = getRepository().getNodeAffiliations(serviceJid, nodeName);
 		ISubscriptions nodeSubscriptions = getRepository().getNodeSubscriptions(serviceJid, nodeName);
 
-		doPublishItems(serviceJid, nodeName, (LeafNodeConfig) nodeConfig, nodeAffiliations, nodeSubscriptions, publisher,
+		doPublishItems(serviceJid, nodeName, nodeConfig, nodeAffiliations, nodeSubscriptions, publisher,
 				Collections.singletonList(item));
 	}
 
 	public void publishLastItem(BareJID serviceJid, AbstractNodeConfig nodeConfig, JID destinationJID)
 			throws RepositoryException {
-		IItems nodeItems = this.getRepository().getNodeItems(serviceJid, nodeConfig.getNodeName());
-		String[] ids = nodeItems.getItemsIds();
+		publishLastItem(serviceJid, new NodeConfigSnapshot(nodeConfig), destinationJID);
+	}
 
-			if (ids != null && ids.length > 0) {
-			String lastID = ids[ids.length - 1];
-			Element payload = nodeItems.getItem(lastID);
+	public void publishLastItem(BareJID serviceJid, NodeConfigSnapshot nodeConfig, JID destinationJID)
+			throws RepositoryException {
+		final String nodeName = nodeConfig.getNodeName();
+		Element payload;
+		LastItemCache.Entry cached = lastItemCache == null ? null : lastItemCache.get(serviceJid, nodeName);
+
+		if (cached != null) {
+			payload = cached.getItem();
+		} else {
+			long stamp = lastItemCache == null ? 0 : lastItemCache.getStamp();
+			payload = loadLastItem(serviceJid, nodeName);
+			if (lastItemCache != null) {
+				lastItemCache.loaded(serviceJid, nodeName, payload, stamp);
+			}
+		}
 
+		if (payload != null) {
 			Element items = new Element("items");
-			items.addAttribute("node", nodeConfig.getNodeName());
+			items.addAttribute("node", nodeName);
 			items.addChild(payload);
 
 			sendNotifications(new JID[] { destinationJID }, items, JID.jidInstance(serviceJid), nodeConfig,
-					nodeConfig.getNodeName(), null);
+					nodeName, null);
+		}
+
+	}
+
+	/**
+	 * Removes last published item of node from cache. Needs to be called
+	 * whenever items of node are removed.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 */
+	public void invalidateLastItem(BareJID serviceJid, String nodeName) {
+		if (lastItemCache != null) {
+			lastItemCache.invalidate(serviceJid, nodeName);
+		}
+	}
+
+	/**
+	 * Removes last published items of all nodes of service from cache.
+	 *
+	 * @param serviceJid
+	 */
+	public void invalidateLastItems(BareJID serviceJid) {
+		if (lastItemCache != null) {
+			lastItemCache.invalidate(serviceJid);
+		}
+	}
+
+	private Element loadLastItem(BareJID serviceJid, String nodeName) throws RepositoryException {
+		IItems nodeItems = this.getRepository().getNodeItems(serviceJid, nodeName);
+		if (nodeItems == null) {
+			return null;
+		}
+		// last item is the most recently updated one, as when it is published
+		IItems.ItemsPage page = nodeItems.getItemsPage(CollectionItemsOrdering.byUpdateDate, null, null, null, 0, 1);
+		List<IItems.ItemMeta> items = page == null ? null : page.getItems();
+
+		if (items != null && !items.isEmpty()) {
+			return nodeItems.getItem(items.get(0).getId());
+		}
+		return null;
+	}
+
+	/**
+	 * Stops worker threads sending notifications of big nodes. Needs to be
+	 * called when component is stopped.
+	 */
+	public void stop() {
+		if (fanOut != null) {
+			fanOut.stop();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		if (lastItemCache != null) {
+			lastItemCache.getStatistics(compName, list);
+		}
+		if (fanOut != null) {
+			fanOut.getStatistics(compName, list);
+		}
+	}
+
+	@Override
+	public void everyHour() {
+		super.everyHour();
+		if (lastItemCache != null) {
+			lastItemCache.everyHour();
 		}
+	}
+
+	@Override
+	public void everyMinute() {
+		super.everyMinute();
+		if (lastItemCache != null) {
+			lastItemCache.everyMinute();
+		}
+	}
 
+	@Override
+	public void everySecond() {
+		super.everySecond();
+		if (lastItemCache != null) {
+			lastItemCache.everySecond();
+		}
 	}
 
 	/**
@@ -614,6 +765,13 @@ public class PublishItemModule extends AbstractPubSubModule {
 	public void sendNotifications(Element itemToSend, final JID jidFrom, final String publisherNodeName,
 			AbstractNodeConfig nodeConfig, IAffiliations nodeAffiliations, ISubscriptions nodesSubscriptions)
 					throws RepositoryException {
+		sendNotifications(itemToSend, jidFrom, publisherNodeName, null, new NodeConfigSnapshot(nodeConfig),
+				nodeAffiliations, nodesSubscriptions);
+	}
+
+	public void sendNotifications(Element itemToSend, final JID jidFrom, final String publisherNodeName,
+			NodeConfigSnapshot nodeConfig, IAffiliations nodeAffiliations, ISubscriptions nodesSubscriptions)
+					throws RepositoryException {
 		sendNotifications(itemToSend, jidFrom, publisherNodeName, null, nodeConfig, nodeAffiliations, nodesSubscriptions);
 	}
 
@@ -636,42 +794,62 @@ public class PublishItemModule extends AbstractPubSubModule {
 	public void sendNotifications(final Element itemToSend, final JID jidFrom, final String publisherNodeName,
 			final Map<String, String> headers, AbstractNodeConfig nodeConfig, IAffiliations nodeAffiliations,
 			ISubscriptions nodesSubscriptions) throws RepositoryException {
-		beforePrepareNotification(nodeConfig, nodesSubscriptions);
+		sendNotifications(itemToSend, jidFrom, publisherNodeName, headers, new NodeConfigSnapshot(nodeConfig),
+				nodeAffiliations, nodesSubscriptions);
+	}
 
-		HashSet<JID> tmp = new HashSet<JID>();
-		for (BareJID j : getActiveSubscribers(nodeConfig, nodeAffiliations, nodesSubscriptions)) {
-			tmp.add(JID.jidInstance(j));
-		}
-		boolean updateSubscriptions = false;
+	public void sendNotifications(final Element itemToSend, final JID jidFrom, final String publisherNodeName,
+			final Map<String, String> headers, NodeConfigSnapshot nodeConfig, IAffiliations nodeAffiliations,
+			ISubscriptions nodesSubscriptions) throws RepositoryException {
+		beforePrepareNotification(nodeConfig, nodesSubscriptions);
 
-		log.log( Level.FINEST,
-						 "Sending notifications[1] item: {0}, node: {1}, conf: {2}, aff: {3}, subs: {4}, getActiveSubscribers: {5} ",
-						 new Object[] { itemToSend, publisherNodeName, nodeConfig,
-														nodeAffiliations, nodesSubscriptions, tmp } );
+		// subscribers of cached node are calculated only after subscriptions
+		// or affiliations are changed, expiration of subscriptions needs
+		// checking them one by one
+		JID[] subscribers = nodeConfig.isPresenceExpired() ? null
+				: nodesSubscriptions.getDeliverableSubscribers(nodeAffiliations);
 
-		if (nodeConfig.isPresenceExpired()) {
-			Iterator<JID> it = tmp.iterator();
-
-			while (it.hasNext()) {
-				final JID jid = it.next();
-				boolean available = this.presenceCollector.isJidAvailable(jidFrom.getBareJID(), jid.getBareJID());
-				final UsersAffiliation afi = nodeAffiliations.getSubscriberAffiliation(jid.getBareJID());
-
-				if ((afi == null) || (!available && (afi.getAffiliation() == Affiliation.member))) {
-					it.remove();
-					nodesSubscriptions.changeSubscription(jid.getBareJID(), Subscription.none);
-					updateSubscriptions = true;
-					if (log.isLoggable(Level.FINE)) {
-						log.fine("Subscriptione expired. Node: " + nodeConfig.getNodeName() + ", jid: " + jid);
+		if (subscribers != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Sending notifications[1] item: {0}, node: {1}, conf: {2}, precomputed subscribers: {3} ",
+						new Object[] { itemToSend, publisherNodeName, nodeConfig, Arrays.asList(subscribers) });
+			}
+		} else {
+			HashSet<JID> tmp = new HashSet<JID>();
+			for (BareJID j : getActiveSubscribers(nodeConfig, nodeAffiliations, nodesSubscriptions)) {
+				tmp.add(JID.jidInstance(j));
+			}
+			boolean updateSubscriptions = false;
+
+			log.log( Level.FINEST,
+							 "Sending notifications[1] item: {0}, node: {1}, conf: {2}, aff: {3}, subs: {4}, getActiveSubscribers: {5} ",
+							 new Object[] { itemToSend, publisherNodeName, nodeConfig,
+															nodeAffiliations, nodesSubscriptions, tmp } );
+
+			if (nodeConfig.isPresenceExpired()) {
+				Iterator<JID> it = tmp.iterator();
+
+				while (it.hasNext()) {
+					final JID jid = it.next();
+					boolean available = this.presenceCollector.isJidAvailable(jidFrom.getBareJID(), jid.getBareJID());
+					final UsersAffiliation afi = nodeAffiliations.getSubscriberAffiliation(jid.getBareJID());
+
+					if ((afi == null) || (!available && (afi.getAffiliation() == Affiliation.member))) {
+						it.remove();
+						nodesSubscriptions.changeSubscription(jid.getBareJID(), Subscription.none);
+						updateSubscriptions = true;
+						if (log.isLoggable(Level.FINE)) {
+							log.fine("Subscriptione expired. Node: " + nodeConfig.getNodeName() + ", jid: " + jid);
+						}
 					}
 				}
 			}
-		}
-		if (updateSubscriptions) {
-			this.getRepository().update(jidFrom.getBareJID(), nodeConfig.getNodeName(), nodesSubscriptions);
-		}
+			if (updateSubscriptions) {
+				this.getRepository().update(jidFrom.getBareJID(), nodeConfig.getNodeName(), nodesSubscriptions);
+			}
 
-		JID[] subscribers = tmp.toArray(new JID[] {});
+			subscribers = tmp.toArray(new JID[] {});
+		}
 
 		if (nodeConfig.isDeliverPresenceBased()) {
 			HashSet<JID> s = new HashSet<JID>();
@@ -691,27 +869,15 @@ public class PublishItemModule extends AbstractPubSubModule {
 					break;
 				case roster:
 					String[] allowedGroups = nodeConfig.getRosterGroupsAllowed();
-					Arrays.sort(allowedGroups);
 					List<JID> jids = this.presenceCollector.getAllAvailableJidsWithFeature(jidFrom.getBareJID(),
 							nodeConfig.getNodeName() + "+notify");
 					if (!jids.isEmpty() && (allowedGroups != null && allowedGroups.length > 0)) {
-						Map<BareJID, RosterElement> roster = this.getRepository().getUserRoster(jidFrom.getBareJID());
+						UserRoster roster = this.getRepository().getUserRosterIndex(jidFrom.getBareJID());
 						Iterator<JID> it = jids.iterator();
-						for (JID jid : jids) {
-							RosterElement re = roster.get(jid.getBareJID());
-							if (re == null) {
+						while (it.hasNext()) {
+							if (!roster.isInGroups(it.next().getBareJID(), allowedGroups)) {
 								it.remove();
-								continue;
 							}
-							boolean notInGroups = true;
-							String[] groups = re.getGroups();
-							if (groups != null) {
-								for (String group : groups) {
-									notInGroups &= Arrays.binarySearch(allowedGroups, group) < 0;
-								}
-							}
-							if (notInGroups)
-								it.remove();
 						}
 					}
 					break;
@@ -740,6 +906,12 @@ public class PublishItemModule extends AbstractPubSubModule {
 	 */
 	public void sendNotifications(final JID[] subscribers, final Element itemToSend, final JID jidFrom,
 			AbstractNodeConfig nodeConfig, final String publisherNodeName, final Map<String, String> headers) {
+		sendNotifications(subscribers, itemToSend, jidFrom, NodeConfigSnapshot.of(nodeConfig), publisherNodeName,
+				headers);
+	}
+
+	public void sendNotifications(final JID[] subscribers, final Element itemToSend, final JID jidFrom,
+			NodeConfigSnapshot nodeConfig, final String publisherNodeName, final Map<String, String> headers) {
 		List<Element> body = null;
 
 		log.log(Level.FINEST, "Sending notifications[2] item: {0}, node: {1}, conf: {2}, subs: {3} ",
@@ -753,54 +925,30 @@ public class PublishItemModule extends AbstractPubSubModule {
 				log.log(Level.WARNING, "Problem with generating BODY", e);
 			}
 		}
-		for (JID jid : subscribers) {
-
-			// in case of low memory we should slow down creation of response to
-			// prevent OOM on high traffic node
-			// maybe we should drop some notifications if we can not get enough
-			// memory for n-th time?
-			long lowMemoryDelay;
-			while ((lowMemoryDelay = config.getDelayOnLowMemory()) != 0) {
-				try {
-					System.gc();
-					Thread.sleep(lowMemoryDelay);
-				} catch (Exception e) {
-				}
-			}
-
-			Packet packet = Message.getMessage(jidFrom, jid, null, null, null, null, String.valueOf(++this.idCounter));
-			Element message = packet.getElement();
-
-			if (body != null) {
-				message.addChildren(body);
-			}
-
-			Element event = new Element("event", new String[] { "xmlns" },
-					new String[] { "http://jabber.org/protocol/pubsub#event" });
-
-			event.addChild(itemToSend);
-			String expireAttr = itemToSend.getAttributeStaticStr( new String[] {"items","item"}, "expire-at" );
-			if (expireAttr != null ) {
-				Element amp = new Element("amp");
-				amp.setXMLNS( AMP_XMLNS );
-				amp.addChild( new Element("rule",
-						new String[] {"condition", "action", "value"},
-						new String[] {"expire-at", "drop", expireAttr }));
-				message.addChild( amp );
+		// payload is the same for every subscriber, so unless disabled we
+		// create it once and only address each of notifications separately
+		final Element sharedTemplate = config.isNotificationsSharedPayload()
+				? createNotificationTemplate(itemToSend, body, headers)
+				: null;
+		final List<Element> notificationBody = body;
+		final NotificationThrottle throttle = config.getNotificationThrottle();
+		final NotificationPriority priority = nodeConfig == null
+				? NotificationPriority.normal
+				: nodeConfig.getNotificationPriority();
+
+		Consumer<JID> sender = jid -> {
+			// in case of low memory or too many waiting notifications we
+			// should slow down creation of notifications to prevent OOM on
+			// high traffic node, notifications of low priority nodes may be
+			// dropped
+			if (!throttle.acquire(priority)) {
+				return;
 			}
-			message.addChild(event);
-			if ((headers != null) && (headers.size() > 0)) {
-				Element headElem = new Element("headers", new String[] { "xmlns" },
-						new String[] { "http://jabber.org/protocol/shim" });
 
-				for (Entry<String, String> entry : headers.entrySet()) {
-					Element h = new Element("header", entry.getValue(), new String[] { "name" },
-							new String[] { entry.getKey() });
-
-					headElem.addChild(h);
-				}
-				message.addChild(headElem);
-			}
+			Element template = sharedTemplate != null
+					? sharedTemplate
+					: createNotificationTemplate(itemToSend, notificationBody, headers);
+			Packet packet = createNotification(template, jidFrom, jid, String.valueOf(idCounter.incrementAndGet()));
 
 			// we are adding notifications to outgoing queue instead temporary
 			// list
@@ -808,47 +956,102 @@ public class PublishItemModule extends AbstractPubSubModule {
 			// threads
 			// will be able to process first notifications and deliver them
 			packetWriter.write(packet);
+		};
+
+		if (fanOut != null && fanOut.isApplicable(subscribers.length)) {
+			// big node - notifications are sent by fan-out workers, so this
+			// thread may process other requests
+			fanOut.fanOut(jidFrom.getBareJID() + "/" + publisherNodeName, subscribers, sender);
+		} else {
+			for (JID jid : subscribers) {
+				sender.accept(jid);
+			}
 		}
 	}
 
 	/**
-	 * Method description
-	 *
+	 * Creates message containing payload of notification without any
+	 * addressing, which is used as template by
+	 * {@link #createNotification(Element, JID, JID, String)}. Children of
+	 * template are shared by all notifications created from it, so they must
+	 * not be modified.
 	 *
-	 * @param nodeItems
-	 * @param maxItems
+	 * @param itemToSend
+	 * @param body
+	 * @param headers
 	 *
-	 * @throws RepositoryException
+	 * @return
 	 */
-	public void trimItems(final IItems nodeItems, final Integer maxItems) throws RepositoryException {
-		final String[] ids = nodeItems.getItemsIds();
+	static Element createNotificationTemplate(final Element itemToSend, final List<Element> body,
+			final Map<String, String> headers) {
+		Element message = new Element("message");
 
-		if ((ids == null) || (ids.length <= maxItems)) {
-			return;
+		if (body != null) {
+			message.addChildren(body);
 		}
 
-		final ArrayList<Item> items = new ArrayList<Item>();
-
-		for (String id : ids) {
-			Date updateDate = nodeItems.getItemUpdateDate(id);
+		Element event = new Element("event", new String[] { "xmlns" },
+				new String[] { "http://jabber.org/protocol/pubsub#event" });
+
+		event.addChild(itemToSend);
+		String expireAttr = itemToSend.getAttributeStaticStr( new String[] {"items","item"}, "expire-at" );
+		if (expireAttr != null ) {
+			Element amp = new Element("amp");
+			amp.setXMLNS( AMP_XMLNS );
+			amp.addChild( new Element("rule",
+					new String[] {"condition", "action", "value"},
+					new String[] {"expire-at", "drop", expireAttr }));
+			message.addChild( amp );
+		}
+		message.addChild(event);
+		if ((headers != null) && (headers.size() > 0)) {
+			Element headElem = new Element("headers", new String[] { "xmlns" },
+					new String[] { "http://jabber.org/protocol/shim" });
 
-			if (updateDate != null) {
-				Item i = new Item(id, updateDate);
+			for (Entry<String, String> entry : headers.entrySet()) {
+				Element h = new Element("header", entry.getValue(), new String[] { "name" },
+						new String[] { entry.getKey() });
 
-				items.add(i);
+				headElem.addChild(h);
 			}
+			message.addChild(headElem);
 		}
-		Collections.sort(items, new Comparator<Item>() {
-			@Override
-			public int compare(Item o1, Item o2) {
-				return o2.updateDate.compareTo(o1.updateDate);
-			}
-		});
-		for (int i = maxItems; i < items.size(); i++) {
-			Item it = items.get(i);
+		return message;
+	}
 
-			nodeItems.deleteItem(it.id);
+	/**
+	 * Creates notification addressed to single subscriber, sharing children
+	 * of template instead of copying them.
+	 *
+	 * @param template
+	 * @param jidFrom
+	 * @param jidTo
+	 * @param id
+	 *
+	 * @return
+	 */
+	static Packet createNotification(final Element template, final JID jidFrom, final JID jidTo, final String id) {
+		Element message = new Element("message", new String[] { "xmlns", "from", "to", "id" },
+				new String[] { Packet.CLIENT_XMLNS, jidFrom.toString(), jidTo.toString(), id });
+		List<Element> children = template.getChildren();
+
+		if (children != null) {
+			message.addChildren(children);
 		}
+		return Packet.packetInstance(message, jidFrom, jidTo);
+	}
+
+	/**
+	 * Method description
+	 *
+	 *
+	 * @param nodeItems
+	 * @param maxItems
+	 *
+	 * @throws RepositoryException
+	 */
+	public void trimItems(final IItems nodeItems, final Integer maxItems) throws RepositoryException {
+		nodeItems.trimItems(maxItems);
 	}
 
 }
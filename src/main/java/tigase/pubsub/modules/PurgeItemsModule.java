@@ -137,17 +137,13 @@ public class PurgeItemsModule extends AbstractPubSubModule {
 			Packet result = packet.okResult((Element) null, 0);
 
 			final IItems nodeItems = this.getRepository().getNodeItems(toJid, nodeName);
-			String[] itemsToDelete = nodeItems.getItemsIds();
 			ISubscriptions nodeSubscriptions = getRepository().getNodeSubscriptions(toJid, nodeName);
 
 			publishModule.sendNotifications(new Element("purge", new String[] { "node" },
 					new String[] { nodeName }), packet.getStanzaTo(), nodeName, nodeConfig, nodeAffiliations, nodeSubscriptions);
 			log.info("Purging node " + nodeName);
-			if (itemsToDelete != null) {
-				for (String id : itemsToDelete) {
-					nodeItems.deleteItem(id);
-				}
-			}
+			nodeItems.purgeItems();
+			publishModule.invalidateLastItem(toJid, nodeName);
 
 			packetWriter.write(result);
 		} catch (PubSubException e1) {
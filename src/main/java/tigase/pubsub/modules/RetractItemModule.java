@@ -177,6 +177,7 @@ public class RetractItemModule extends AbstractPubSubModule {
 					nodeItems.deleteItem(id);
 				}
 			}
+			publishModule.invalidateLastItem(toJid, nodeName);
 
 			packetWriter.write(result);
 		} catch (PubSubException e1) {
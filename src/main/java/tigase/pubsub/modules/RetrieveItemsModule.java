@@ -35,12 +35,10 @@ import java.util.Map;
 import tigase.component2.PacketWriter;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
-import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.AbstractPubSubModule;
 import tigase.pubsub.AccessModel;
 import tigase.pubsub.Affiliation;
-import tigase.pubsub.CollectionNodeConfig;
-import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.Subscription;
@@ -97,7 +95,7 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 		return Integer.parseInt(attribute);
 	}
 
-	private void checkPermission(JID senderJid, BareJID toJid, String nodeName, AbstractNodeConfig nodeConfig)
+	private void checkPermission(JID senderJid, BareJID toJid, String nodeName, NodeConfigSnapshot nodeConfig)
 			throws PubSubException, RepositoryException {
 		if (nodeConfig == null) {
 			throw new PubSubException(Authorization.ITEM_NOT_FOUND);
@@ -203,21 +201,20 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 			}
 
 			// XXX CHECK RIGHTS AUTH ETC
-			AbstractNodeConfig nodeConfig = this.getRepository().getNodeConfig(toJid, nodeName);
+			NodeConfigSnapshot nodeConfig = this.getRepository().getNodeConfigSnapshot(toJid, nodeName);
 			checkPermission(senderJid, toJid, nodeName, nodeConfig);
 
-			if (nodeConfig instanceof CollectionNodeConfig) {
+			if (nodeConfig.getNodeType() == NodeType.collection) {
 				List<IItems.ItemMeta> itemsMeta = new ArrayList<IItems.ItemMeta>();
 				String[] childNodes = nodeConfig.getChildren();
 				Map<String, IItems> nodeItemsCache = new HashMap<String, IItems>();
 				if (childNodes != null) {
 					for (String childNodeName : childNodes) {
-						AbstractNodeConfig childNode = getRepository().getNodeConfig(toJid, childNodeName);
+						NodeConfigSnapshot childNode = getRepository().getNodeConfigSnapshot(toJid, childNodeName);
 						if (childNode == null || childNode.getNodeType() != NodeType.leaf)
 							continue;
 
-						LeafNodeConfig leafChildNode = (LeafNodeConfig) childNode;
-						if (!leafChildNode.isPersistItem())
+						if (!childNode.isPersistItem())
 							continue;
 
 						try {
@@ -259,12 +256,34 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 					}
 				}
 
-				Map<String, List<Element>> nodeItemsElMap = new HashMap<String, List<Element>>();
 				int idx = offset;
 				int count = 0;
 				String lastId = null;
+				// ids of items on requested page grouped by node, so items of
+				// each node are retrieved from repository with a single query
+				Map<String, List<String>> pageIds = new HashMap<String, List<String>>();
 				while (itemsMeta.size() > idx && (maxItems == null || count < maxItems)) {
 					IItems.ItemMeta itemMeta = itemsMeta.get(idx);
+					List<String> ids = pageIds.get(itemMeta.getNode());
+					if (ids == null) {
+						ids = new ArrayList<String>();
+						pageIds.put(itemMeta.getNode(), ids);
+					}
+					ids.add(itemMeta.getId());
+
+					idx++;
+					count++;
+				}
+
+				Map<String, Map<String, Element>> pageItems = new HashMap<String, Map<String, Element>>();
+				for (Map.Entry<String, List<String>> entry : pageIds.entrySet()) {
+					IItems nodeItems = nodeItemsCache.get(entry.getKey());
+					pageItems.put(entry.getKey(), nodeItems.getItems(entry.getValue()));
+				}
+
+				Map<String, List<Element>> nodeItemsElMap = new HashMap<String, List<Element>>();
+				for (int i = offset; i < idx; i++) {
+					IItems.ItemMeta itemMeta = itemsMeta.get(i);
 					String node = itemMeta.getNode();
 					List<Element> nodeItemsElems = nodeItemsElMap.get(node);
 					if (nodeItemsElems == null) {
@@ -274,13 +293,12 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 						nodeItemsElMap.put(node, nodeItemsElems);
 					}
 
-					IItems nodeItems = nodeItemsCache.get(node);
-					Element item = nodeItems.getItem(itemMeta.getId());
+					Map<String, Element> nodeItemsById = pageItems.get(node);
+					Element item = nodeItemsById == null ? null : nodeItemsById.get(itemMeta.getId());
 					lastId = itemMeta.getId();
-					nodeItemsElems.add(item);
-
-					idx++;
-					count++;
+					if (item != null) {
+						nodeItemsElems.add(item);
+					}
 				}
 
 				nodeItemsCache.clear();
@@ -312,7 +330,7 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 
 				packetWriter.write(iq);
 				return;
-			} else if ((nodeConfig instanceof LeafNodeConfig) && !((LeafNodeConfig) nodeConfig).isPersistItem()) {
+			} else if (!nodeConfig.isPersistItem()) {
 				throw new PubSubException(Authorization.FEATURE_NOT_IMPLEMENTED, new PubSubErrorCondition("unsupported",
 						"persistent-items"));
 			}
@@ -344,7 +362,7 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 				m = rsmGet.getChild("before");
 				if (m != null)
 					beforeId = m.getCData();
-				m = rsmGet.getChild("adter");
+				m = rsmGet.getChild("after");
 				if (m != null)
 					afterId = m.getCData();
 				m = rsmGet.getChild("dt_after", "http://tigase.org/pubsub");
@@ -354,88 +372,129 @@ public class RetrieveItemsModule extends AbstractPubSubModule {
 
 			IItems nodeItems = this.getRepository().getNodeItems( toJid, nodeName );
 
-			List<IItems.ItemMeta> itemsMeta = new ArrayList<IItems.ItemMeta>();
-			itemsMeta.addAll( nodeItems.getItemsMeta() );
-
 			CollectionItemsOrdering collectionItemsOrdering = nodeConfig.getCollectionItemsOrdering();
 
-			if ( collectionItemsOrdering != null ){
-				Collections.sort( itemsMeta, collectionItemsOrdering.getComparator() );
-			} else {
-				Collections.sort( itemsMeta, CollectionItemsOrdering.byUpdateDate.getComparator() );
-			}
-
-			if (requestedId == null) {
-				requestedId = new ArrayList<>(itemsMeta.size());
-				for ( IItems.ItemMeta item : itemsMeta) {
-					requestedId.add( item.getId());
-				}
-			}
-
 			final Element rsmResponse = new Element("set", new String[] { "xmlns" },
 					new String[] { "http://jabber.org/protocol/rsm" });
 
-			if (requestedId != null) {
+			List<Element> ritemsList = new ArrayList<Element>();
+			String lastId = null;
+			int count;
+
+			if (requestedExactItems) {
+				count = requestedId.size();
 				if (maxItems == null)
-					maxItems = requestedId.size();
+					maxItems = count;
 
-				List<Element> ritemsList = new ArrayList<Element>();
+				rsmResponse.addChild(new Element("count", "" + count));
 
-				rsmResponse.addChild(new Element("count", "" + requestedId.size()));
+				// dates are needed only to filter items by dt_after
+				final Map<String, IItems.ItemMeta> itemsMetaById = new HashMap<String, IItems.ItemMeta>();
+				if (dtAfter != null && collectionItemsOrdering != null) {
+					for ( IItems.ItemMeta item : nodeItems.getItemsMeta() ) {
+						itemsMetaById.put( item.getId(), item );
+					}
+				}
 
-				String lastId = null;
 				int c = 0;
 				boolean allow = false;
-				for (int i = 0; i < requestedId.size(); i++) {
-					if (i + offset >= requestedId.size())
-						continue;
-
-					if (c >= maxItems)
-						break;
-					String id = requestedId.get(i + offset);
-
-					Date cd = null;
-					if ( collectionItemsOrdering == CollectionItemsOrdering.byCreationDate ){
-						cd = nodeItems.getItemCreationDate( id );
-					} else if ( collectionItemsOrdering == CollectionItemsOrdering.byUpdateDate ){
-						cd = nodeItems.getItemUpdateDate( id );
-					}
+				boolean done = false;
+				int i = 0;
+				while (!done && c < maxItems && i + offset < requestedId.size()) {
+					// ids of next page are collected first, so items are
+					// retrieved from repository with a single query
+					List<String> batchIds = new ArrayList<String>();
+					List<Integer> batchIdx = new ArrayList<Integer>();
+					while (batchIds.size() < maxItems - c && i + offset < requestedId.size()) {
+						final int idx = i + offset;
+						String id = requestedId.get(idx);
+						i++;
+
+						IItems.ItemMeta meta = itemsMetaById.get( id );
+						Date cd = meta == null ? null : collectionItemsOrdering.getDate( meta );
+
+						if (dtAfter != null &&  cd !=null && !cd.after(dtAfter.getTime()))
+							continue;
 
-					if (dtAfter != null &&  cd !=null && !cd.after(dtAfter.getTime()))
-						continue;
+						if (afterId != null && !allow && afterId.equals(id)) {
+							allow = true;
+							continue;
+						} else if (afterId != null && !allow)
+							continue;
 
-					if (afterId != null && !allow && afterId.equals(id)) {
-						allow = true;
-						continue;
-					} else if (afterId != null && !allow)
-						continue;
+						if (beforeId != null && beforeId.equals(id)) {
+							done = true;
+							break;
+						}
 
-					if (beforeId != null && beforeId.equals(id))
+						batchIds.add(id);
+						batchIdx.add(idx);
+					}
+					if (batchIds.isEmpty())
 						break;
 
-					Element item = nodeItems.getItem(id);
-					if (item != null) {
-						if (c == 0) {
-							rsmResponse.addChild(new Element("first", id, new String[]{"index"}, new String[]{""
-								+ (i + offset)}));
+					Map<String, Element> batchItems = nodeItems.getItems(batchIds);
+					if (batchItems == null)
+						break;
+					for (int j = 0; j < batchIds.size(); j++) {
+						String id = batchIds.get(j);
+						Element item = batchItems.get(id);
+						if (item != null) {
+							if (c == 0) {
+								rsmResponse.addChild(new Element("first", id, new String[]{"index"}, new String[]{""
+									+ batchIdx.get(j)}));
+							}
+
+							lastId = id;
+							ritemsList.add(item);
+							++c;
 						}
-
-						lastId = id;
-						ritemsList.add(item);
-						++c;
 					}
 				}
-				if (lastId != null)
-					rsmResponse.addChild(new Element("last", lastId));
+			} else {
+				// only requested page of items is read from repository, so
+				// metadata of all items of node is not loaded and sorted
+				IItems.ItemsPage page = nodeItems.getItemsPage(
+						collectionItemsOrdering != null ? collectionItemsOrdering : CollectionItemsOrdering.byUpdateDate,
+						afterId, beforeId, (dtAfter != null && collectionItemsOrdering != null) ? dtAfter.getTime() : null,
+						offset, maxItems == null ? Integer.MAX_VALUE : maxItems);
+				count = page.getCount();
+				if (maxItems == null)
+					maxItems = count;
 
-				Collections.reverse(ritemsList);
-				ritems.addChildren(ritemsList);
+				rsmResponse.addChild(new Element("count", "" + count));
 
-				if (!(ritemsList.isEmpty() && requestedExactItems)) {
-					if (maxItems != requestedId.size())
-						rpubsub.addChild(rsmResponse);
+				List<String> pageIds = new ArrayList<String>(page.getItems().size());
+				for (IItems.ItemMeta meta : page.getItems()) {
+					pageIds.add(meta.getId());
 				}
+				Map<String, Element> pageItems = pageIds.isEmpty() ? null : nodeItems.getItems(pageIds);
+				if (pageItems != null) {
+					for (int j = 0; j < pageIds.size(); j++) {
+						String id = pageIds.get(j);
+						Element item = pageItems.get(id);
+						if (item != null) {
+							if (ritemsList.isEmpty()) {
+								rsmResponse.addChild(new Element("first", id, new String[]{"index"}, new String[]{""
+									+ (page.getFirstIndex() + j)}));
+							}
+
+							lastId = id;
+							ritemsList.add(item);
+						}
+					}
+				}
+			}
+
+			if (lastId != null)
+				rsmResponse.addChild(new Element("last", lastId));
 
+			Collections.reverse(ritemsList);
+			ritems.addChildren(ritemsList);
+
+			if (!(ritemsList.isEmpty() && requestedExactItems)) {
+				if (maxItems != count)
+					rpubsub.addChild(rsmResponse);
 			}
 
 			packetWriter.write(iq);
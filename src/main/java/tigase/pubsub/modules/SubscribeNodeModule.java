@@ -28,10 +28,10 @@ import java.util.List;
 import tigase.component2.PacketWriter;
 import tigase.criteria.Criteria;
 import tigase.criteria.ElementCriteria;
-import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.AbstractPubSubModule;
 import tigase.pubsub.AccessModel;
 import tigase.pubsub.Affiliation;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.SendLastPublishedItem;
 import tigase.pubsub.Subscription;
@@ -153,7 +153,7 @@ public class SubscribeNodeModule extends AbstractPubSubModule {
 		final BareJID jid = BareJID.bareJIDInstanceNS(subscribe.getAttributeStaticStr("jid"));
 
 		try {
-			AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJid, nodeName);
+			NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJid, nodeName);
 
 			if (nodeConfig == null) {
 				throw new PubSubException(packet.getElement(), Authorization.ITEM_NOT_FOUND);
@@ -4,48 +4,388 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
+import tigase.xml.XMLUtils;
 
 public class XsltTool {
 
+	public static final int DEF_MAX_TEMPLATES = 100;
+
+	private static final String SAX_NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+	private static class TemplatesKey {
+
+		private final int hash;
+		private final String nodeName;
+		private final String xslt;
+
+		private TemplatesKey(String nodeName, String xslt) {
+			this.nodeName = nodeName;
+			this.xslt = xslt;
+			this.hash = 31 * nodeName.hashCode() + xslt.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TemplatesKey)) {
+				return false;
+			}
+			TemplatesKey o = (TemplatesKey) obj;
+			return hash == o.hash && nodeName.equals(o.nodeName) && xslt.equals(o.xslt);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Reports tigase <code>Element</code> as stream of SAX events, so it can
+	 * be used as source of transformation without serialization to string and
+	 * parsing it again.
+	 */
+	private static class ElementXMLReader implements XMLReader {
+
+		private ContentHandler contentHandler;
+		private DTDHandler dtdHandler;
+		private EntityResolver entityResolver;
+		private ErrorHandler errorHandler;
+		private final Element element;
+
+		private ElementXMLReader(Element element) {
+			this.element = element;
+		}
+
+		@Override
+		public ContentHandler getContentHandler() {
+			return contentHandler;
+		}
+
+		@Override
+		public DTDHandler getDTDHandler() {
+			return dtdHandler;
+		}
+
+		@Override
+		public EntityResolver getEntityResolver() {
+			return entityResolver;
+		}
+
+		@Override
+		public ErrorHandler getErrorHandler() {
+			return errorHandler;
+		}
+
+		@Override
+		public boolean getFeature(String name) {
+			return SAX_NAMESPACES.equals(name);
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return null;
+		}
+
+		@Override
+		public void parse(InputSource input) throws SAXException {
+			contentHandler.startDocument();
+			emit(element, null);
+			contentHandler.endDocument();
+		}
+
+		@Override
+		public void parse(String systemId) throws SAXException {
+			parse((InputSource) null);
+		}
+
+		@Override
+		public void setContentHandler(ContentHandler handler) {
+			this.contentHandler = handler;
+		}
+
+		@Override
+		public void setDTDHandler(DTDHandler handler) {
+			this.dtdHandler = handler;
+		}
+
+		@Override
+		public void setEntityResolver(EntityResolver resolver) {
+			this.entityResolver = resolver;
+		}
+
+		@Override
+		public void setErrorHandler(ErrorHandler handler) {
+			this.errorHandler = handler;
+		}
+
+		@Override
+		public void setFeature(String name, boolean value) {
+		}
+
+		@Override
+		public void setProperty(String name, Object value) {
+		}
+
+		private void emit(Element elem, String parentXmlns) throws SAXException {
+			String xmlns = elem.getXMLNS();
+			if (xmlns == null) {
+				xmlns = parentXmlns == null ? "" : parentXmlns;
+			}
+			boolean declare = !xmlns.equals(parentXmlns == null ? "" : parentXmlns);
+
+			AttributesImpl attrs = new AttributesImpl();
+			Map<String, String> elemAttrs = elem.getAttributes();
+			if (elemAttrs != null) {
+				for (Map.Entry<String, String> e : elemAttrs.entrySet()) {
+					if ("xmlns".equals(e.getKey())) {
+						continue;
+					}
+					attrs.addAttribute("", e.getKey(), e.getKey(), "CDATA", XMLUtils.unescape(e.getValue()));
+				}
+			}
+
+			if (declare) {
+				contentHandler.startPrefixMapping("", xmlns);
+			}
+			contentHandler.startElement(xmlns, elem.getName(), elem.getName(), attrs);
+
+			String cdata = elem.getCData();
+			if (cdata != null && !cdata.isEmpty()) {
+				char[] chars = XMLUtils.unescape(cdata).toCharArray();
+				contentHandler.characters(chars, 0, chars.length);
+			}
+			List<Element> children = elem.getChildren();
+			if (children != null) {
+				for (Element child : children) {
+					emit(child, xmlns);
+				}
+			}
+
+			contentHandler.endElement(xmlns, elem.getName(), elem.getName());
+			if (declare) {
+				contentHandler.endPrefixMapping("");
+			}
+		}
+	}
+
+	/**
+	 * Builds tigase <code>Element</code>s from SAX events produced by
+	 * transformation.
+	 */
+	private static class ElementBuilder extends DefaultHandler {
+
+		private final StringBuilder cdata = new StringBuilder();
+		private final List<Element> result = new ArrayList<Element>();
+		private final Deque<Element> stack = new ArrayDeque<Element>();
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (!stack.isEmpty()) {
+				cdata.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			flushCData();
+			Element elem = stack.pop();
+			if (stack.isEmpty()) {
+				result.add(elem);
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			flushCData();
+			String name = (localName == null || localName.isEmpty()) ? qName : localName;
+			Element elem = new Element(name);
+			Element parent = stack.peek();
+			String parentXmlns = parent == null ? null : parent.getXMLNS();
+			if (uri != null && !uri.isEmpty() && !uri.equals(parentXmlns)) {
+				elem.setXMLNS(uri);
+			}
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String attrName = attributes.getQName(i);
+				if (attrName.startsWith("xmlns")) {
+					continue;
+				}
+				elem.setAttribute(attrName, XMLUtils.escape(attributes.getValue(i)));
+			}
+			if (parent != null) {
+				parent.addChild(elem);
+			}
+			stack.push(elem);
+		}
+
+		private void flushCData() {
+			if (cdata.length() > 0) {
+				stack.peek().addCData(XMLUtils.escape(cdata.toString()));
+				cdata.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Checks if element can be reported as SAX events. Elements with mixed
+	 * content or prefixed names are transformed using serialized form, as
+	 * order of text and elements or namespace prefixes would not be preserved.
+	 */
+	static boolean isStreamable(Element elem) {
+		if (elem.getName().indexOf(':') >= 0) {
+			return false;
+		}
+		Map<String, String> attrs = elem.getAttributes();
+		if (attrs != null) {
+			for (String name : attrs.keySet()) {
+				if (name.indexOf(':') >= 0) {
+					return false;
+				}
+			}
+		}
+		List<Element> children = elem.getChildren();
+		if (children == null || children.isEmpty()) {
+			return true;
+		}
+		String cdata = elem.getCData();
+		if (cdata != null && !cdata.trim().isEmpty()) {
+			return false;
+		}
+		for (Element child : children) {
+			if (!isStreamable(child)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private final SimpleParser parser = SingletonFactory.getParserInstance();
 
+	private final Map<TemplatesKey, Templates> templates;
+
 	private TransformerFactory tFactory = TransformerFactory.newInstance();
 
+	public XsltTool() {
+		this(DEF_MAX_TEMPLATES);
+	}
+
+	public XsltTool(final int maxTemplates) {
+		this.templates = new LinkedHashMap<TemplatesKey, Templates>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TemplatesKey, Templates> eldest) {
+				return size() > maxTemplates;
+			}
+		};
+	}
+
+	/**
+	 * Removes compiled stylesheets of node from cache. Needs to be called when
+	 * configuration of node changes or node is removed.
+	 *
+	 * @param nodeName
+	 */
+	public void invalidate(String nodeName) {
+		synchronized (templates) {
+			Iterator<TemplatesKey> it = templates.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().nodeName.equals(nodeName)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
 	public List<Element> transform(final Element item, AbstractNodeConfig nodeConfig) throws TransformerException, IOException {
-		Source xsltSource;
+		return transform(item, new NodeConfigSnapshot(nodeConfig));
+	}
+
+	public List<Element> transform(final Element item, NodeConfigSnapshot nodeConfig) throws TransformerException, IOException {
 		final String bodyXsltUrl = nodeConfig.getBodyXslt();
 		final String bodyXsltEmbedded = nodeConfig.getBodyXsltEmbedded();
+		final TemplatesKey key;
+		final boolean embedded;
 		if (bodyXsltEmbedded != null && bodyXsltEmbedded.length() > 1) {
-			Reader reader = new StringReader(bodyXsltEmbedded);
-			xsltSource = new StreamSource(reader);
+			key = new TemplatesKey(nodeConfig.getNodeName(), bodyXsltEmbedded);
+			embedded = true;
 		} else if (bodyXsltUrl != null && bodyXsltUrl.length() > 1) {
-			URL x = new URL(bodyXsltUrl);
-			xsltSource = new StreamSource(x.openStream());
+			key = new TemplatesKey(nodeConfig.getNodeName(), bodyXsltUrl);
+			embedded = false;
 		} else {
 			return null;
 		}
-		return transform(item, xsltSource);
+
+		Templates xslt;
+		synchronized (templates) {
+			xslt = templates.get(key);
+		}
+		if (xslt == null) {
+			Source xsltSource;
+			if (embedded) {
+				Reader reader = new StringReader(bodyXsltEmbedded);
+				xsltSource = new StreamSource(reader);
+			} else {
+				xsltSource = new StreamSource(bodyXsltUrl);
+			}
+			xslt = tFactory.newTemplates(xsltSource);
+			synchronized (templates) {
+				templates.put(key, xslt);
+			}
+		}
+		return transform(item, xslt.newTransformer());
+	}
+
+	private List<Element> transform(final Element item, Transformer transformer) throws TransformerException {
+		if (isStreamable(item)) {
+			return transformStreamed(item, transformer);
+		}
+		return transformSerialized(item, transformer);
+	}
+
+	List<Element> transformStreamed(final Element item, Transformer transformer) throws TransformerException {
+		ElementBuilder builder = new ElementBuilder();
+		transformer.transform(new SAXSource(new ElementXMLReader(item), new InputSource()), new SAXResult(builder));
+		return builder.result;
 	}
 
-	private List<Element> transform(final Element item, Source xslt) throws TransformerException {
-		Transformer transformer = tFactory.newTransformer(xslt);
+	List<Element> transformSerialized(final Element item, Transformer transformer) throws TransformerException {
 		Reader reader = new StringReader(item.toString());
 
 		StringWriter writer = new StringWriter();
@@ -18,9 +18,10 @@ import tigase.pubsub.repository.IPubSubRepository;
 import tigase.util.DateTimeFormatter;
 import tigase.xml.Element;
 
-import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 public class RetrieveItemsCommand implements AdHocCommand {
 
@@ -105,9 +106,9 @@ public class RetrieveItemsCommand implements AdHocCommand {
 							nodeItems = repository.getNodeItems( request.getIq().getTo().getBareJID(), nodeName );
 						}
 						if ( null != nodeId ){
-							final String[] itemsIds = nodeItems.getItemsIds();
-							if ( null != itemsIds && Arrays.asList(itemsIds).contains( nodeId ) ){
-								Element i = nodeItems.getItem( nodeId );
+							final Map<String, Element> items = nodeItems.getItems( Collections.singletonList( nodeId ) );
+							final Element i = items == null ? null : items.get( nodeId );
+							if ( null != i ){
 								Element field = new Element( "field", new String[] { "var" }, new String[] { "item" } );
 								field.addChild( new Element( "value", new Element[] { i }, null, null ) );
 
@@ -0,0 +1,83 @@
+/*
+ * VerifyCollectionsIndexCommand.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.modules.commands;
+
+import tigase.adhoc.AdHocCommand;
+import tigase.adhoc.AdHocCommandException;
+import tigase.adhoc.AdHocResponse;
+import tigase.adhoc.AdhHocRequest;
+import tigase.form.Form;
+import tigase.pubsub.repository.IPubSubRepository;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+
+/**
+ * Compares children of collections kept in index of collections of a service
+ * with the database, so index found inconsistent is loaded again.
+ */
+public class VerifyCollectionsIndexCommand implements AdHocCommand {
+
+	private final IPubSubRepository repository;
+
+	public VerifyCollectionsIndexCommand(IPubSubRepository pubsubRepository) {
+		this.repository = pubsubRepository;
+	}
+
+	@Override
+	public void execute(AdhHocRequest request, AdHocResponse response) throws AdHocCommandException {
+		try {
+			final Element data = request.getCommand().getChild("x", "jabber:x:data");
+			if (request.getAction() != null && "cancel".equals(request.getAction())) {
+				response.cancelSession();
+			} else if (data == null) {
+				Form form = new Form("form", "Verifying collections index",
+						"To compare index of collections with DB press finish");
+
+				response.getElements().add(form.getElement());
+				response.startSession();
+			} else {
+				Form form = new Form(data);
+				if ("submit".equals(form.getType())) {
+					int inconsistent = repository.verifyCollectionsIndex(request.getIq().getStanzaTo().getBareJID());
+					Form f = new Form("result", "Info", inconsistent == 0 ? "Index of collections is consistent"
+							: "Index of " + inconsistent + " collections was inconsistent and has been discarded");
+					response.getElements().add(f.getElement());
+				}
+				response.completeSession();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new AdHocCommandException(Authorization.INTERNAL_SERVER_ERROR, e.getMessage());
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "Verify collections index";
+	}
+
+	@Override
+	public String getNode() {
+		return "verify-collections-index";
+	}
+
+}
@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.IAffiliations;
 import tigase.pubsub.repository.ISubscriptions;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.server.Packet;
@@ -37,6 +38,15 @@ public class PresenceNodeSubscriptions implements ISubscriptions {
 		subscriptions.changeSubscription(jid, subscription);
 	}
 
+	@Override
+	public JID[] getDeliverableSubscribers(IAffiliations affiliations) {
+		// occupants are subscribed dynamically, so they are not included
+		if (!extension.getNodeOccupants(serviceJID, nodeName).isEmpty()) {
+			return null;
+		}
+		return subscriptions.getDeliverableSubscribers(affiliations);
+	}
+
 	@Override
 	public Subscription getSubscription(BareJID jid) {
 		Subscription s = subscriptions.getSubscription(jid);
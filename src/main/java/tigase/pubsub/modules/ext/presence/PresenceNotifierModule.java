@@ -7,8 +7,8 @@ import java.util.logging.Level;
 import tigase.component2.PacketWriter;
 import tigase.component2.exceptions.ComponentException;
 import tigase.criteria.Criteria;
-import tigase.pubsub.AbstractNodeConfig;
 import tigase.pubsub.AbstractPubSubModule;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.modules.PublishItemModule;
 import tigase.pubsub.modules.ext.presence.PresencePerNodeExtension.LoginToNodeHandler;
@@ -120,7 +120,7 @@ public class PresenceNotifierModule extends AbstractPubSubModule {
 	}
 
 	protected void publish(BareJID serviceJID, String nodeName, Element itemToSend) throws RepositoryException {
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJID, nodeName);
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJID, nodeName);
 		final IAffiliations nodeAffiliations = getRepository().getNodeAffiliations(serviceJID, nodeName);
 		final ISubscriptions nodeSubscriptions = getRepository().getNodeSubscriptions(serviceJID, nodeName);
 
@@ -136,7 +136,7 @@ public class PresenceNotifierModule extends AbstractPubSubModule {
 	}
 
 	protected void publishToOne(BareJID serviceJID, String nodeName, JID destinationJID) throws RepositoryException {
-		AbstractNodeConfig nodeConfig = getRepository().getNodeConfig(serviceJID, nodeName);
+		NodeConfigSnapshot nodeConfig = getRepository().getNodeConfigSnapshot(serviceJID, nodeName);
 
 		Collection<JID> occupants = presencePerNodeExtension.getNodeOccupants(serviceJID, nodeName);
 		for (JID jid : occupants) {
@@ -1,12 +1,97 @@
 package tigase.pubsub.repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.xml.Element;
 
 public interface IItems {
 
+	/**
+	 * Item which should be written to repository together with other items by
+	 * {@link IItems#writeItems(List)}.
+	 */
+	public static class ItemData {
+		private String data;
+		private final String id;
+		private final Element item;
+		private final String publisher;
+		private final long timeInMilis;
+
+		public ItemData(long timeInMilis, String id, String publisher, Element item) {
+			this.timeInMilis = timeInMilis;
+			this.id = id;
+			this.publisher = publisher;
+			this.item = item;
+		}
+
+		/**
+		 * Returns serialized form of payload. Payload is serialized only once,
+		 * even if it is needed more than once.
+		 *
+		 * @return
+		 */
+		public String getData() {
+			if (data == null) {
+				data = item.toString();
+			}
+			return data;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Element getItem() {
+			return item;
+		}
+
+		public String getPublisher() {
+			return publisher;
+		}
+
+		public long getTimeInMilis() {
+			return timeInMilis;
+		}
+	}
+
+	/**
+	 * Single page of items metadata retrieved by
+	 * {@link IItems#getItemsPage(CollectionItemsOrdering, String, String, Date, int, int)}.
+	 */
+	public static class ItemsPage {
+		private final int count;
+		private final int firstIndex;
+		private final List<ItemMeta> items;
+
+		public ItemsPage(List<ItemMeta> items, int count, int firstIndex) {
+			this.items = items;
+			this.count = count;
+			this.firstIndex = firstIndex;
+		}
+
+		/**
+		 * Returns number of all items of node.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns position of first item of page among all items of node.
+		 */
+		public int getFirstIndex() {
+			return firstIndex;
+		}
+
+		public List<ItemMeta> getItems() {
+			return items;
+		}
+	}
+
 	public static class ItemMeta {
 		private final String node;
 		private final String id;
@@ -46,18 +131,90 @@ public interface IItems {
 	
 	public abstract void deleteItem(String id) throws RepositoryException;
 
+	/**
+	 * Removes items with passed ids using single call to repository.
+	 *
+	 * @param ids
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void deleteItems(Collection<String> ids) throws RepositoryException;
+
 	public abstract Element getItem(String id) throws RepositoryException;
 
 	public abstract Date getItemCreationDate(String id) throws RepositoryException;
 
+	/**
+	 * Retrieves many items using single call to repository.
+	 *
+	 * @param ids
+	 *
+	 * @return map of found items by their id, items which do not exist are
+	 *         not included
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract Map<String, Element> getItems(List<String> ids) throws RepositoryException;
+
 	public abstract String[] getItemsIds() throws RepositoryException;
 	
 	public abstract String[] getItemsIdsSince(Date since) throws RepositoryException;
 
 	public abstract List<ItemMeta> getItemsMeta() throws RepositoryException;
+
+	/**
+	 * Retrieves metadata of single page of items, ordered from the newest
+	 * one.
+	 *
+	 * @param ordering
+	 *            date by which items are ordered
+	 * @param afterId
+	 *            if not null only items older than this item are returned
+	 * @param beforeId
+	 *            if not null only items newer than this item are returned
+	 * @param since
+	 *            if not null only items with date after this one are
+	 *            returned
+	 * @param offset
+	 *            number of matching items to skip
+	 * @param limit
+	 *            maximal number of items in page
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract ItemsPage getItemsPage(CollectionItemsOrdering ordering, String afterId, String beforeId,
+			Date since, int offset, int limit) throws RepositoryException;
 	
 	public abstract Date getItemUpdateDate(String id) throws RepositoryException;
 
+	/**
+	 * Removes all items of node using single call to repository.
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void purgeItems() throws RepositoryException;
+
+	/**
+	 * Removes oldest items of node, so that at most <code>maxItems</code> most
+	 * recently updated items are left.
+	 *
+	 * @param maxItems
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void trimItems(int maxItems) throws RepositoryException;
+
 	public abstract void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException;
 
+	/**
+	 * Writes passed items using single call to repository.
+	 *
+	 * @param items
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void writeItems(List<ItemData> items) throws RepositoryException;
+
 }
@@ -22,18 +22,22 @@
 
 package tigase.pubsub.repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import tigase.db.Repository;
 import tigase.db.UserRepository;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.IAffiliations;
 import tigase.pubsub.repository.NodeAffiliations;
 import tigase.pubsub.repository.NodeSubscriptions;
 import tigase.pubsub.repository.RepositoryException;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xml.Element;
@@ -85,6 +89,17 @@ public interface IPubSubDAO<T> extends Repository {
 	 */
 	public abstract void deleteItem(BareJID serviceJid, T nodeId, String id) throws RepositoryException;
 
+	/**
+	 * Removes items with passed ids, if possible as single batch.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param ids
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void deleteItems(BareJID serviceJid, T nodeId, Collection<String> ids) throws RepositoryException;
+
 	/**
 	 * Method description
 	 * 
@@ -124,12 +139,63 @@ public interface IPubSubDAO<T> extends Repository {
 	public abstract Date getItemCreationDate(BareJID serviceJid, T nodeId, final String id)
 			throws RepositoryException;
 
+	/**
+	 * Retrieves many items of node, if possible with single query.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param ids
+	 *
+	 * @return map of found items by their id
+	 *
+	 * @throws RepositoryException
+	 */
+	Map<String, Element> getItems(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException;
+
+	/**
+	 * Retrieves serialized payloads of many items of node without parsing
+	 * them, if possible with single query.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param ids
+	 *
+	 * @return map of serialized items by their id
+	 *
+	 * @throws RepositoryException
+	 */
+	Map<String, String> getItemsData(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException;
+
 	String[] getItemsIds(BareJID serviceJid, T nodeId) throws RepositoryException;
 
 	String[] getItemsIdsSince(BareJID serviceJid, T nodeId, Date since) throws RepositoryException;
 
 	List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, T nodeId, String nodeName)
 			throws RepositoryException;
+
+	/**
+	 * Retrieves metadata of single page of items of node, ordered from the
+	 * newest one, so that metadata of all items does not need to be loaded.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param ordering
+	 * @param afterId
+	 * @param beforeId
+	 * @param since
+	 * @param offset
+	 * @param limit
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 *
+	 * @see IItems#getItemsPage(CollectionItemsOrdering, String, String, Date,
+	 *      int, int)
+	 */
+	IItems.ItemsPage getItemsPage(BareJID serviceJid, T nodeId, String nodeName, CollectionItemsOrdering ordering,
+			String afterId, String beforeId, Date since, int offset, int limit) throws RepositoryException;
 	
 	/**
 	 * Method description
@@ -174,6 +240,19 @@ public interface IPubSubDAO<T> extends Repository {
 	public T getNodeId(BareJID serviceJid, String nodeName) throws RepositoryException;
 
 	public INodeMeta<T> getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException;
+
+	/**
+	 * Loads metadata, configuration, affiliations and subscriptions of a node
+	 * at once, using a single database round-trip if possible.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *
+	 * @return loaded node data or <code>null</code> if node does not exist
+	 *
+	 * @throws RepositoryException
+	 */
+	public NodeData<T> loadNode(BareJID serviceJid, String nodeName) throws RepositoryException;
 	
 	/**
 	 * Method description
@@ -197,6 +276,23 @@ public interface IPubSubDAO<T> extends Repository {
 	 */
 	public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Reads names of nodes which belong to a collection and passes them to
+	 * <code>consumer</code> in batches of at most <code>batchSize</code>
+	 * names.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *            name of collection or <code>null</code> for root collection
+	 * @param batchSize
+	 *            maximal number of names passed to consumer at once
+	 * @param consumer
+	 *
+	 * @throws RepositoryException
+	 */
+	public void getChildNodes(BareJID serviceJid, String nodeName, int batchSize, Consumer<String[]> consumer)
+			throws RepositoryException;
+
 	Map<BareJID, RosterElement> getUserRoster(BareJID owner) throws RepositoryException;
 
 	Map<String, UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID jid) throws RepositoryException;
@@ -214,6 +310,18 @@ public interface IPubSubDAO<T> extends Repository {
 	public void init(String resource_uri, Map<String, String> params, UserRepository userRepository)  throws RepositoryException;	
 	
 	public AbstractNodeConfig parseConfig(String nodeName, String cfgData) throws RepositoryException;
+
+	public Element parseItem(String itemData) throws RepositoryException;
+
+	/**
+	 * Removes all items of node with single statement.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 *
+	 * @throws RepositoryException
+	 */
+	public void purgeItems(BareJID serviceJid, T nodeId) throws RepositoryException;
 	
 	public void removeAllFromRootCollection(BareJID serviceJid) throws RepositoryException;
 	
@@ -255,6 +363,45 @@ public interface IPubSubDAO<T> extends Repository {
 	public void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation userAffiliation) throws RepositoryException;
 
 	public void updateNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, UsersSubscription userSubscription) throws RepositoryException;
+
+	/**
+	 * Writes many affiliations of a single node at once, so implementations
+	 * may send them to the database as a single batch.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param affiliations
+	 *
+	 * @throws RepositoryException
+	 */
+	public void updateNodeAffiliations(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersAffiliation> affiliations) throws RepositoryException;
+
+	/**
+	 * Removes oldest items of node, so that at most <code>maxItems</code> most
+	 * recently updated items are left, with single statement.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param maxItems
+	 *
+	 * @throws RepositoryException
+	 */
+	public void trimItems(BareJID serviceJid, T nodeId, int maxItems) throws RepositoryException;
+
+	/**
+	 * Writes many subscriptions of a single node at once, so implementations
+	 * may send them to the database as a single batch. Subscriptions set to
+	 * <code>none</code> are removed.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param nodeName
+	 * @param subscriptions
+	 *
+	 * @throws RepositoryException
+	 */
+	public void updateNodeSubscriptions(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersSubscription> subscriptions) throws RepositoryException;
 	
 	/**
 	 * Method description
@@ -270,5 +417,17 @@ public interface IPubSubDAO<T> extends Repository {
 	 */
 	public abstract void writeItem(BareJID serviceJid, T nodeId, long timeInMilis, final String id,
 			final String publisher, final Element item) throws RepositoryException;
+
+	/**
+	 * Writes passed items, if possible as single batch.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param items
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract void writeItems(BareJID serviceJid, T nodeId, List<IItems.ItemData> items)
+			throws RepositoryException;
 	
 }
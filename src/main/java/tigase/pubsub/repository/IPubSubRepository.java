@@ -2,7 +2,9 @@ package tigase.pubsub.repository;
 
 import java.util.Map;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterElement;
@@ -119,6 +121,36 @@ public interface IPubSubRepository {
 	 */
 	public abstract AbstractNodeConfig getNodeConfig(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Returns parsed configuration of node for read-only use. Unlike
+	 * {@link #getNodeConfig(BareJID, String)} no copy of configuration is
+	 * created, so it should be preferred whenever configuration is not going
+	 * to be modified.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *
+	 * @return snapshot of configuration or <code>null</code> if node does not
+	 *         exist
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract NodeConfigSnapshot getNodeConfigSnapshot(BareJID serviceJid, String nodeName) throws RepositoryException;
+
+	/**
+	 * Returns names of nodes which belong to a collection.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *            name of collection, <code>null</code> or empty string for root
+	 *            collection
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	public String[] getNodeChildren(BareJID serviceJid, String nodeName) throws RepositoryException;
+
 	/**
 	 * Method description
 	 * 
@@ -133,6 +165,19 @@ public interface IPubSubRepository {
 
 	public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException;
 
+	/**
+	 * Returns names of collections to which node belongs, starting from its
+	 * direct parent up to the collection which belongs to root collection.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	public String[] getNodeParents(BareJID serviceJid, String nodeName) throws RepositoryException;
+
 	/**
 	 * Method description
 	 * 
@@ -175,6 +220,49 @@ public interface IPubSubRepository {
 	 */
 	public abstract Map<BareJID,RosterElement> getUserRoster(BareJID owner) throws RepositoryException;
 
+	/**
+	 * Returns roster of a user indexed for access checks. Roster may be
+	 * cached, so it needs to be invalidated by
+	 * {@link #invalidateUserRoster(BareJID)} when it is changed.
+	 *
+	 * @param owner
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract UserRoster getUserRosterIndex(BareJID owner) throws RepositoryException;
+
+	/**
+	 * Discards cached roster of a user, ie. after presence subscription
+	 * between user and his contact was changed.
+	 *
+	 * @param owner
+	 */
+	public abstract void invalidateUserRoster(BareJID owner);
+
+	/**
+	 * Returns affiliations of a user to nodes of a service.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 *
+	 * @return map of affiliations by node name, which must not be modified
+	 *
+	 * @throws RepositoryException
+	 */
+	public abstract Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException;
+
+	/**
+	 * Returns subscriptions of a user to nodes of a service.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 *
+	 * @return map of subscriptions by node name, which must not be modified
+	 *
+	 * @throws RepositoryException
+	 */
 	public abstract Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException;
 	
 	/**
@@ -229,4 +317,18 @@ public interface IPubSubRepository {
 	public void update(BareJID serviceJid, String nodeName, ISubscriptions subscriptions) throws RepositoryException;
 	
 	public void onUserRemoved(BareJID userJid) throws RepositoryException;
+
+	/**
+	 * Compares children of collections of a service kept in memory with
+	 * children stored in the repository and discards data kept in memory if
+	 * they differ.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return number of collections with children different than in the
+	 *         repository
+	 *
+	 * @throws RepositoryException
+	 */
+	public int verifyCollectionsIndex(BareJID serviceJid) throws RepositoryException;
 }
@@ -5,6 +5,7 @@ import java.util.Map;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
 
 public interface ISubscriptions {
 
@@ -14,6 +15,17 @@ public interface ISubscriptions {
 
 	public abstract Subscription getSubscription(BareJID jid);
 
+	/**
+	 * Returns precomputed array of subscribers to which notifications should
+	 * be delivered or <code>null</code> if it is not available and active
+	 * subscribers need to be calculated. Returned array must not be modified.
+	 *
+	 * @param affiliations
+	 *
+	 * @return
+	 */
+	public abstract JID[] getDeliverableSubscribers(IAffiliations affiliations);
+
 	public abstract String getSubscriptionId(BareJID jid);
 
 	public abstract UsersSubscription[] getSubscriptions();
@@ -0,0 +1,621 @@
+/*
+ * Tigase Jabber/XMPP Publish Subscribe Component
+ * Copyright (C) 2007 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tigase.stats.StatisticsList;
+
+/**
+ * Pool of JDBC connections used by {@link PubSubDAOJDBC}.
+ *
+ * Connections are opened by {@link #open()} and then kept at size of pool
+ * by background health checker, threads borrowing connections never connect
+ * to the database. Each connection keeps statements prepared on it, so
+ * statement is prepared only once per connection and is used only by thread
+ * which borrowed connection. If all connections are in use or are being
+ * validated or replaced, thread waits at most <code>maxWait</code> ms and
+ * then {@link SQLTimeoutException} is thrown, so slow database does not
+ * block all threads of component forever.
+ *
+ * Connections are validated by health checker, not by threads borrowing
+ * them. Checker validates connections which were idle longer than
+ * <code>validationInterval</code> and connections on which statement failed,
+ * and replaces broken connections with new ones. After
+ * <code>failureThreshold</code> consecutive failures of connecting to the
+ * database or of validation, circuit breaker is opened and
+ * {@link SQLTransientConnectionException} is thrown immediately by
+ * {@link #borrow()} until checker is able to connect to the database again.
+ */
+public class JDBCConnectionPool {
+
+	public interface ConnectionFactory {
+
+		Connection createConnection() throws SQLException;
+
+	}
+
+	/**
+	 * Connection borrowed from pool with statements prepared on it.
+	 */
+	public class PooledConnection {
+
+		private final Connection conn;
+		private long lastValidated = System.currentTimeMillis();
+		private boolean recheck = false;
+		private final Map<String, CallableStatement> statements = new HashMap<String, CallableStatement>();
+		private final Map<String, PreparedStatement> queries = new HashMap<String, PreparedStatement>();
+		private PreparedStatement validationSt = null;
+
+		private PooledConnection(Connection conn) {
+			this.conn = conn;
+		}
+
+		public Connection getConnection() {
+			return conn;
+		}
+
+		/**
+		 * Forces validation of connection before it is borrowed next time.
+		 */
+		public void invalidate() {
+			lastValidated = 0;
+		}
+
+		/**
+		 * Forces validation of connection before it is borrowed next time if
+		 * statement executed on connection failed because of connection
+		 * problem (SQLState of class 08). After other errors, ie. constraint
+		 * violations, connection is still available and is validated by health
+		 * checker while it is idle.
+		 *
+		 * @param ex
+		 *            exception thrown by statement
+		 */
+		public void invalidate(SQLException ex) {
+			if (isConnectionError(ex)) {
+				invalidate();
+			} else {
+				recheck = true;
+			}
+		}
+
+		/**
+		 * Returns statement prepared on this connection for given query.
+		 *
+		 * @param query
+		 *
+		 * @return
+		 *
+		 * @throws SQLException
+		 */
+		public CallableStatement prepareCall(String query) throws SQLException {
+			CallableStatement st = statements.get(query);
+			if (st == null) {
+				st = conn.prepareCall(query);
+				statements.put(query, st);
+			}
+			return st;
+		}
+
+		/**
+		 * Returns statement prepared on this connection for given plain SQL
+		 * query.
+		 *
+		 * @param query
+		 *
+		 * @return
+		 *
+		 * @throws SQLException
+		 */
+		public PreparedStatement prepareStatement(String query) throws SQLException {
+			PreparedStatement st = queries.get(query);
+			if (st == null) {
+				st = conn.prepareStatement(query);
+				queries.put(query, st);
+			}
+			return st;
+		}
+
+		private void close() {
+			try {
+				if (!conn.isClosed()) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "closing JDBC connection: {0}", conn);
+					}
+					conn.close();
+				}
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "Problem closing jdbc connection", ex);
+			}
+		}
+
+		private boolean isValid() {
+			long now = System.currentTimeMillis();
+			if (now - lastValidated < validationInterval) {
+				return true;
+			}
+			ResultSet rs = null;
+			try {
+				if (validationSt == null) {
+					validationSt = conn.prepareStatement(validationQuery);
+				}
+				rs = validationSt.executeQuery();
+				lastValidated = now;
+				return true;
+			} catch (SQLException ex) {
+				log.log(Level.FINE, "JDBC connection is not valid, closing it", ex);
+				return false;
+			} finally {
+				if (rs != null) {
+					try {
+						rs.close();
+					} catch (SQLException ex) {
+					}
+				}
+			}
+		}
+	}
+
+	private static final Logger log = Logger.getLogger(JDBCConnectionPool.class.getName());
+
+	public static final int DEF_FAILURE_THRESHOLD = 3;
+
+	public static final long DEF_MAX_WAIT = 10000;
+
+	public static final int DEF_POOL_SIZE = 10;
+
+	public static final long DEF_RETRY_INTERVAL = 5000;
+
+	public static final long DEF_VALIDATION_INTERVAL = 60 * 1000;
+
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final AtomicLong borrowed = new AtomicLong(0);
+	private final AtomicInteger connections = new AtomicInteger(0);
+	private volatile boolean breakerOpen = false;
+	private final AtomicLong breakerOpened = new AtomicLong(0);
+	private volatile boolean closed = false;
+	private final AtomicLong created = new AtomicLong(0);
+	private final AtomicLong discarded = new AtomicLong(0);
+	private final ConnectionFactory factory;
+	private final AtomicInteger failures = new AtomicInteger(0);
+	private volatile int failureThreshold = DEF_FAILURE_THRESHOLD;
+	private final ScheduledExecutorService healthChecker;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final long maxWait;
+	private final AtomicLong maxWaitTime = new AtomicLong(0);
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<PooledConnection> recheck = new ConcurrentLinkedQueue<PooledConnection>();
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong replaced = new AtomicLong(0);
+	private volatile long retryAt = 0;
+	private volatile long retryInterval = DEF_RETRY_INTERVAL;
+	private final int size;
+	private final ConcurrentLinkedQueue<PooledConnection> suspected = new ConcurrentLinkedQueue<PooledConnection>();
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final String validationQuery;
+	private final long validationInterval;
+	private final AtomicLong waits = new AtomicLong(0);
+	private final AtomicLong waitTime = new AtomicLong(0);
+
+	public JDBCConnectionPool(ConnectionFactory factory, String validationQuery, int size, long maxWait,
+			long validationInterval) {
+		this(factory, validationQuery, size, maxWait, validationInterval, Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "pubsub-db-health-checker");
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+
+	JDBCConnectionPool(ConnectionFactory factory, String validationQuery, int size, long maxWait,
+			long validationInterval, ScheduledExecutorService healthChecker) {
+		this.factory = factory;
+		this.validationQuery = validationQuery;
+		this.size = size;
+		this.maxWait = maxWait;
+		this.validationInterval = validationInterval;
+		this.permits = new Semaphore(size, true);
+		this.healthChecker = healthChecker;
+		long checkInterval = Math.max(100, Math.min(validationInterval, DEF_RETRY_INTERVAL));
+		healthChecker.scheduleWithFixedDelay(this::checkHealth, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets number of consecutive failures after which circuit breaker is
+	 * opened and time in ms after which checker tries to connect to the
+	 * database again.
+	 *
+	 * @param failureThreshold
+	 * @param retryInterval
+	 */
+	public void setCircuitBreaker(int failureThreshold, long retryInterval) {
+		this.failureThreshold = failureThreshold;
+		this.retryInterval = retryInterval;
+	}
+
+	public boolean isCircuitBreakerOpen() {
+		return breakerOpen;
+	}
+
+	/**
+	 * Borrows connection from pool, waiting for it at most <code>maxWait</code>
+	 * ms. Connection must be returned by {@link #release(PooledConnection)}.
+	 *
+	 * @return
+	 *
+	 * @throws SQLException
+	 *             if there was no connection available in time, new
+	 *             connection could not be created or database is not
+	 *             available
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		if (breakerOpen) {
+			rejected.incrementAndGet();
+			throw new SQLTransientConnectionException("Database is not available, reconnecting in background");
+		}
+		// idle connections are validated by health checker
+		boolean acquired = permits.tryAcquire();
+		PooledConnection conn = acquired ? idle.pollFirst() : null;
+		if (conn == null) {
+			waits.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				conn = await(acquired, start);
+			} finally {
+				long waited = (System.nanoTime() - start) / 1000000;
+				waitTime.addAndGet(waited);
+				long max;
+				while (waited > (max = maxWaitTime.get()) && !maxWaitTime.compareAndSet(max, waited)) {
+					// retrying
+				}
+			}
+		}
+		active.incrementAndGet();
+		borrowed.incrementAndGet();
+		return conn;
+	}
+
+	/**
+	 * Waits for permit, if it was not acquired yet, and for idle connection
+	 * for the rest of <code>maxWait</code>.
+	 */
+	private PooledConnection await(boolean acquired, long start) throws SQLException {
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWait);
+		PooledConnection conn = null;
+		try {
+			if (!acquired) {
+				acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+				if (!acquired) {
+					timeouts.incrementAndGet();
+					throw new SQLTimeoutException("No database connection available in " + maxWait + "ms, " + size
+							+ " connections in use");
+				}
+			}
+			conn = idle.pollFirst();
+			if (conn == null) {
+				// connections are being validated or replaced by health checker
+				scheduleCheck();
+				conn = idle.pollFirst(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (conn == null) {
+			if (acquired) {
+				permits.release();
+			}
+			if (breakerOpen) {
+				rejected.incrementAndGet();
+				throw new SQLTransientConnectionException("Database is not available, reconnecting in background");
+			}
+			timeouts.incrementAndGet();
+			throw new SQLTimeoutException("No database connection available in " + maxWait + "ms, " + connections.get()
+					+ " of " + size + " connections open");
+		}
+		return conn;
+	}
+
+	/**
+	 * Closes idle connections. Connections borrowed at this moment are closed
+	 * when they are released.
+	 */
+	public void close() {
+		closed = true;
+		healthChecker.shutdownNow();
+		PooledConnection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			discard(conn);
+		}
+		while ((conn = suspected.poll()) != null) {
+			discard(conn);
+		}
+	}
+
+	/**
+	 * Opens connections of pool in calling thread, later they are replaced
+	 * by health checker.
+	 *
+	 * @throws SQLException
+	 *             if no connection to the database could be opened
+	 */
+	public synchronized void open() throws SQLException {
+		while (connections.get() < size && !closed) {
+			try {
+				idle.offerLast(connect());
+			} catch (SQLException ex) {
+				if (connections.get() == 0) {
+					throw ex;
+				}
+				log.log(Level.WARNING, "Could open only " + connections.get() + " of " + size + " JDBC connections",
+						ex);
+				return;
+			}
+		}
+	}
+
+	public int getActiveConnections() {
+		return active.get();
+	}
+
+	/**
+	 * Returns number of open connections, borrowed, idle and waiting for
+	 * validation.
+	 *
+	 * @return
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		list.add(compName, prefix + "db-pool/size", size, Level.FINE);
+		list.add(compName, prefix + "db-pool/active connections", active.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/idle connections", idle.size(), Level.FINE);
+		list.add(compName, prefix + "db-pool/open connections", connections.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/created connections", created.get(), Level.FINER);
+		list.add(compName, prefix + "db-pool/discarded connections", discarded.get(), Level.FINER);
+		list.add(compName, prefix + "db-pool/borrowed connections", borrowed.get(), Level.FINER);
+		long waitsCount = waits.get();
+		list.add(compName, prefix + "db-pool/waits", waitsCount, Level.FINE);
+		list.add(compName, prefix + "db-pool/average wait time [ms]",
+				waitsCount == 0 ? 0 : waitTime.get() / waitsCount, Level.FINE);
+		list.add(compName, prefix + "db-pool/max wait time [ms]", maxWaitTime.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/wait timeouts", timeouts.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/replaced connections", replaced.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/circuit breaker open", breakerOpen, Level.FINE);
+		list.add(compName, prefix + "db-pool/circuit breaker opened", breakerOpened.get(), Level.FINE);
+		list.add(compName, prefix + "db-pool/rejected requests", rejected.get(), Level.FINE);
+	}
+
+	public long getWaitTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Returns connection to pool.
+	 *
+	 * @param conn
+	 */
+	public void release(PooledConnection conn) {
+		active.decrementAndGet();
+		if (closed) {
+			discard(conn);
+		} else if (connections.get() > size) {
+			// connection created above size of pool
+			discard(conn);
+			discarded.incrementAndGet();
+		} else if (conn.lastValidated == 0) {
+			// statement failed, connection will be checked in background
+			suspected.offer(conn);
+			scheduleCheck();
+		} else if (conn.recheck) {
+			// statement failed for other reason, connection stays available
+			// until checker validates it
+			conn.recheck = false;
+			idle.offerFirst(conn);
+			recheck.offer(conn);
+			scheduleCheck();
+		} else {
+			// successfully used connection does not need validation
+			conn.lastValidated = System.currentTimeMillis();
+			idle.offerFirst(conn);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Validates suspected and long idle connections, replaces broken ones,
+	 * keeps number of connections at size of pool and tries to reconnect to
+	 * the database while circuit breaker is open. Executed by health checker
+	 * thread.
+	 */
+	synchronized void checkHealth() {
+		if (closed) {
+			return;
+		}
+		try {
+			PooledConnection conn;
+			while ((conn = suspected.poll()) != null) {
+				if (validate(conn)) {
+					idle.offerLast(conn);
+				}
+			}
+			while ((conn = recheck.poll()) != null) {
+				// connection borrowed in the meantime is checked by borrowing thread
+				if (idle.remove(conn)) {
+					conn.lastValidated = 0;
+					if (validate(conn)) {
+						idle.offerFirst(conn);
+					}
+				}
+			}
+
+			if (breakerOpen) {
+				if (System.currentTimeMillis() < retryAt) {
+					return;
+				}
+				try {
+					idle.offerFirst(connect());
+				} catch (SQLException ex) {
+					retryAt = System.currentTimeMillis() + retryInterval;
+					log.log(Level.FINE, "Database is still not available", ex);
+					return;
+				}
+				fill();
+				return;
+			}
+
+			// least recently used connections are at the end of queue, each
+			// validated connection is available again immediately
+			long now = System.currentTimeMillis();
+			for (int i = idle.size(); i > 0 && (conn = idle.pollLast()) != null; i--) {
+				if (now - conn.lastValidated < validationInterval) {
+					idle.offerLast(conn);
+					break;
+				}
+				if (validate(conn)) {
+					idle.offerFirst(conn);
+				}
+			}
+
+			fill();
+
+			// closing connections above size of pool, least recently used first
+			while (connections.get() > size && (conn = idle.pollLast()) != null) {
+				discard(conn);
+				discarded.incrementAndGet();
+			}
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "Problem checking JDBC connections", ex);
+		}
+	}
+
+	private PooledConnection connect() throws SQLException {
+		PooledConnection conn;
+		try {
+			conn = new PooledConnection(factory.createConnection());
+		} catch (SQLException ex) {
+			failed();
+			throw ex;
+		}
+		created.incrementAndGet();
+		connections.incrementAndGet();
+		succeeded();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "established JDBC connection: {0}", conn.conn);
+		}
+		return conn;
+	}
+
+	private void fill() {
+		while (connections.get() < size && !breakerOpen && !closed) {
+			try {
+				idle.offerLast(connect());
+			} catch (SQLException ex) {
+				log.log(Level.FINE, "Could not open JDBC connection", ex);
+				return;
+			}
+		}
+	}
+
+	private void scheduleCheck() {
+		try {
+			healthChecker.execute(this::checkHealth);
+		} catch (RejectedExecutionException ex) {
+			// pool was closed in the meantime
+		}
+	}
+
+	private void discard(PooledConnection conn) {
+		conn.close();
+		connections.decrementAndGet();
+	}
+
+	private void failed() {
+		if (failures.incrementAndGet() >= failureThreshold && !breakerOpen) {
+			retryAt = System.currentTimeMillis() + retryInterval;
+			breakerOpen = true;
+			breakerOpened.incrementAndGet();
+			log.log(Level.WARNING, "Database is not available, requests will be rejected until connection is restored");
+			// connections are checked again after database is available
+			PooledConnection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				conn.invalidate();
+				suspected.offer(conn);
+			}
+		}
+	}
+
+	private void succeeded() {
+		failures.set(0);
+		if (breakerOpen) {
+			breakerOpen = false;
+			log.log(Level.INFO, "Connection to database restored");
+		}
+	}
+
+	private boolean validate(PooledConnection conn) {
+		if (conn.isValid()) {
+			succeeded();
+			return true;
+		}
+		discard(conn);
+		replaced.incrementAndGet();
+		failed();
+		return false;
+	}
+
+	private static boolean isConnectionError(SQLException ex) {
+		for (SQLException e = ex; e != null; e = e.getNextException()) {
+			String state = e.getSQLState();
+			if ((state != null && state.startsWith("08")) || e instanceof SQLNonTransientConnectionException
+					|| e instanceof SQLTransientConnectionException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
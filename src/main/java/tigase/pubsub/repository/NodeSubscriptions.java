@@ -12,6 +12,7 @@ import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.pubsub.utils.FragmentedMap;
 
 import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
 
 import java.util.Arrays;
 import java.util.logging.Level;
@@ -100,6 +101,11 @@ public abstract class NodeSubscriptions implements ISubscriptions {
 		return this.subs.get(bareJid);
 	}
 
+	@Override
+	public JID[] getDeliverableSubscribers(IAffiliations affiliations) {
+		return null;
+	}
+
 	/**
 	 * Method description
 	 * 
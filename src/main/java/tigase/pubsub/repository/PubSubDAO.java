@@ -5,17 +5,31 @@
 package tigase.pubsub.repository;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import tigase.db.DBInitException;
 import tigase.db.UserRepository;
 import tigase.form.Form;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.CollectionNodeConfig;
 import tigase.pubsub.LeafNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.NodeData;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.stats.StatisticsList;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
@@ -42,6 +56,17 @@ public abstract class PubSubDAO<T> implements IPubSubDAO<T> {
 	public void destroy() {
 		
 	}
+
+	/**
+	 * Adds statistics of DAO, ie. of database connections used by it.
+	 *
+	 * @param compName
+	 * @param prefix
+	 *            prepended to names of statistics
+	 * @param list
+	 */
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+	}
 	
 	/**
 	 * Method description
@@ -83,6 +108,82 @@ public abstract class PubSubDAO<T> implements IPubSubDAO<T> {
 		}
 	}
 	
+	@Override
+	public Map<String, Element> getItems(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException {
+		Map<String, Element> items = new HashMap<String, Element>(ids.size());
+		for (String id : ids) {
+			Element item = getItem(serviceJid, nodeId, id);
+			if (item != null) {
+				items.put(id, item);
+			}
+		}
+		return items;
+	}
+
+	@Override
+	public Map<String, String> getItemsData(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException {
+		Map<String, String> items = new HashMap<String, String>(ids.size());
+		for (String id : ids) {
+			Element item = getItem(serviceJid, nodeId, id);
+			if (item != null) {
+				items.put(id, item.toString());
+			}
+		}
+		return items;
+	}
+
+	@Override
+	public IItems.ItemsPage getItemsPage(BareJID serviceJid, T nodeId, String nodeName,
+			final CollectionItemsOrdering ordering, String afterId, String beforeId, Date since, int offset, int limit)
+			throws RepositoryException {
+		List<IItems.ItemMeta> items = getItemsMeta(serviceJid, nodeId, nodeName);
+		if (items == null || items.isEmpty()) {
+			return new IItems.ItemsPage(Collections.<IItems.ItemMeta>emptyList(), 0, 0);
+		}
+		items = new ArrayList<IItems.ItemMeta>(items);
+		Collections.sort(items, new Comparator<IItems.ItemMeta>() {
+			@Override
+			public int compare(IItems.ItemMeta o1, IItems.ItemMeta o2) {
+				int result = ordering.getDate(o2).compareTo(ordering.getDate(o1));
+				return result != 0 ? result : o2.getId().compareTo(o1.getId());
+			}
+		});
+
+		int from = 0;
+		int to = items.size();
+		if (afterId != null || beforeId != null) {
+			from = afterId == null ? 0 : to;
+			for (int i = 0; i < items.size(); i++) {
+				String id = items.get(i).getId();
+				if (id.equals(afterId)) {
+					from = i + 1;
+				}
+				if (id.equals(beforeId)) {
+					to = i;
+				}
+			}
+		}
+
+		List<IItems.ItemMeta> page = new ArrayList<IItems.ItemMeta>();
+		int firstIndex = 0;
+		int skipped = 0;
+		for (int i = from; i < to && page.size() < limit; i++) {
+			IItems.ItemMeta item = items.get(i);
+			if (since != null && !ordering.getDate(item).after(since)) {
+				continue;
+			}
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			if (page.isEmpty()) {
+				firstIndex = i;
+			}
+			page.add(item);
+		}
+		return new IItems.ItemsPage(page, items.size(), firstIndex);
+	}
+
 	/**
 	 * Method description
 	 *
@@ -106,6 +207,101 @@ public abstract class PubSubDAO<T> implements IPubSubDAO<T> {
 		}
 	}
 	
+	@Override
+	public NodeData<T> loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+		INodeMeta<T> nodeMeta = getNodeMeta(serviceJid, nodeName);
+		if (nodeMeta == null) {
+			return null;
+		}
+		return new NodeData<T>(nodeMeta.getNodeId(), nodeMeta.getNodeConfig(), nodeMeta.getCreator(),
+				nodeMeta.getCreationTime(), getNodeAffiliations(serviceJid, nodeMeta.getNodeId()),
+				getNodeSubscriptions(serviceJid, nodeMeta.getNodeId()));
+	}
+
+	@Override
+	public void getChildNodes(BareJID serviceJid, String nodeName, int batchSize, Consumer<String[]> consumer)
+			throws RepositoryException {
+		String[] nodes = getChildNodes(serviceJid, nodeName);
+		if (nodes == null) {
+			return;
+		}
+		if (batchSize <= 0 || nodes.length <= batchSize) {
+			consumer.accept(nodes);
+			return;
+		}
+		for (int i = 0; i < nodes.length; i += batchSize) {
+			consumer.accept(Arrays.copyOfRange(nodes, i, Math.min(nodes.length, i + batchSize)));
+		}
+	}
+
+	@Override
+	public void deleteItems(BareJID serviceJid, T nodeId, Collection<String> ids) throws RepositoryException {
+		for (String id : ids) {
+			deleteItem(serviceJid, nodeId, id);
+		}
+	}
+
+	@Override
+	public void purgeItems(BareJID serviceJid, T nodeId) throws RepositoryException {
+		String[] ids = getItemsIds(serviceJid, nodeId);
+		if (ids != null) {
+			deleteItems(serviceJid, nodeId, Arrays.asList(ids));
+		}
+	}
+
+	@Override
+	public void trimItems(BareJID serviceJid, T nodeId, int maxItems) throws RepositoryException {
+		List<IItems.ItemMeta> meta = getItemsMeta(serviceJid, nodeId, null);
+		if (meta == null || meta.size() <= maxItems) {
+			return;
+		}
+		List<IItems.ItemMeta> items = new ArrayList<IItems.ItemMeta>(meta.size());
+		for (IItems.ItemMeta item : meta) {
+			if (item.getItemUpdateDate() != null) {
+				items.add(item);
+			}
+		}
+		if (items.size() <= maxItems) {
+			return;
+		}
+		Collections.sort(items, new Comparator<IItems.ItemMeta>() {
+			@Override
+			public int compare(IItems.ItemMeta o1, IItems.ItemMeta o2) {
+				return o2.getItemUpdateDate().compareTo(o1.getItemUpdateDate());
+			}
+		});
+		List<String> toDelete = new ArrayList<String>(items.size() - maxItems);
+		for (int i = maxItems; i < items.size(); i++) {
+			toDelete.add(items.get(i).getId());
+		}
+		deleteItems(serviceJid, nodeId, toDelete);
+	}
+
+	@Override
+	public void updateNodeAffiliations(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersAffiliation> affiliations) throws RepositoryException {
+		for (UsersAffiliation affiliation : affiliations) {
+			updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
+		}
+	}
+
+	@Override
+	public void updateNodeSubscriptions(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersSubscription> subscriptions) throws RepositoryException {
+		for (UsersSubscription subscription : subscriptions) {
+			if (subscription.getSubscription() == Subscription.none) {
+				removeNodeSubscription(serviceJid, nodeId, subscription.getJid());
+			} else {
+				updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
+			}
+		}
+	}
+
+	@Override
+	public void writeItems(BareJID serviceJid, T nodeId, List<IItems.ItemData> items) throws RepositoryException {
+		for (IItems.ItemData item : items) {
+			writeItem(serviceJid, nodeId, item.getTimeInMilis(), item.getId(), item.getPublisher(), item.getItem());
+		}
+	}
+
 	protected Element itemDataToElement(char[] data) {
 		DomBuilderHandler domHandler = new DomBuilderHandler();
 		parser.parse(domHandler, data, 0, data.length);
@@ -114,6 +310,18 @@ public abstract class PubSubDAO<T> implements IPubSubDAO<T> {
 		return q.element();
 	}
 	
+	@Override
+	public Element parseItem(String itemData) throws RepositoryException {
+		if (itemData == null) {
+			return null;
+		}
+		try {
+			return itemDataToElement(itemData.toCharArray());
+		} catch (Exception e) {
+			throw new RepositoryException("Item parsing error", e);
+		}
+	}
+
 	@Override
 	public AbstractNodeConfig parseConfig(String nodeName, String data) throws RepositoryException {
 		
@@ -26,13 +26,17 @@ import tigase.db.DBInitException;
 import tigase.db.DataRepository;
 import tigase.db.Repository;
 
+import tigase.pubsub.repository.JDBCConnectionPool.PooledConnection;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.server.XMPPServer;
+import tigase.stats.StatisticsList;
 
 import tigase.util.TigaseStringprepException;
 import tigase.xmpp.BareJID;
 
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.Affiliation;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.Subscription;
@@ -51,10 +55,13 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import static tigase.db.DataRepository.dbTypes.*;
@@ -63,51 +70,76 @@ import static tigase.db.DataRepository.dbTypes.*;
 public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	/**
-	 * Database active connection.
+	 * Key of parameter with maximal number of database connections.
 	 */
-	protected Connection conn = null;
+	public static final String POOL_SIZE_KEY = "pool-size";
 	/**
-	 * Prepared statement for testing whether database connection is still
-	 * working. If not connection to database is recreated.
+	 * Key of parameter with maximal time in ms for which thread waits for
+	 * database connection.
 	 */
-	private PreparedStatement conn_valid_st = null;
+	public static final String POOL_MAX_WAIT_KEY = "pool-max-wait";
+	/**
+	 * Key of parameter with number of consecutive failures of connecting to
+	 * the database after which requests are rejected until database is
+	 * available again.
+	 */
+	public static final String POOL_FAILURE_THRESHOLD_KEY = "pool-failure-threshold";
+	/**
+	 * Key of parameter with time in ms between attempts to reconnect to the
+	 * database which is not available.
+	 */
+	public static final String POOL_RETRY_INTERVAL_KEY = "pool-retry-interval";
+
+	private static final String CREATE_NODE_QUERY = "{ call TigPubSubCreateNode(?, ?, ?, ?, ?, ?) }";
+	private static final String DELETE_ALL_NODES_QUERY = "{ call TigPubSubDeleteAllNodes(?) }";
+	private static final String DELETE_ITEM_QUERY = "{ call TigPubSubDeleteItem(?, ?) }";
+	private static final String DELETE_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubDeleteNodeSubscription(?, ?) }";
+	private static final String GET_ALL_NODES_QUERY = "{ call TigPubSubGetAllNodes(?) }";
+	private static final String GET_CHILD_NODES_QUERY = "{ call TigPubSubGetChildNodes(?,?) }";
+	private static final String GET_ITEM_QUERY = "{ call TigPubSubGetItem(?, ?) }";
+	private static final String GET_ITEM_META_QUERY = "{ call TigPubSubGetItemMeta(?, ?) }";
+	private static final String GET_ITEMS_QUERY_PREFIX = "select id, data from tig_pubsub_items where node_id = ? and ";
+	/**
+	 * Sizes of IN lists used for retrieval of many items. Lists of ids are
+	 * padded to one of these sizes so only a few statements are prepared on
+	 * each connection.
+	 */
+	private static final int[] GET_ITEMS_BATCH_SIZES = { 1, 10, 100 };
+	private static final String GET_ITEMS_COUNT_QUERY = "select count(1) from tig_pubsub_items where node_id = ?";
+	private static final String GET_NODE_AFFILIATIONS_QUERY = "{ call TigPubSubGetNodeAffiliations(?) }";
+	private static final String GET_NODE_CONFIGURATION_QUERY = "{ call TigPubSubGetNodeConfiguration(?) }";
+	private static final String GET_NODE_ID_QUERY = "{ call TigPubSubGetNodeId(?, ?) }";
+	private static final String GET_NODE_ITEMS_IDS_SINCE_QUERY = "{ call TigPubSubGetNodeItemsIdsSince(?,?) }";
+	private static final String GET_NODE_ITEMS_IDS_QUERY = "{ call TigPubSubGetNodeItemsIds(?) }";
+	private static final String GET_NODE_ITEMS_META_QUERY = "{ call TigPubSubGetNodeItemsMeta(?) }";
+	private static final String GET_NODE_META_QUERY = "{ call TigPubSubGetNodeMeta(?, ?) }";
+	private static final String GET_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubGetNodeSubscriptions(?) }";
+	private static final String GET_ROOT_NODES_QUERY = "{ call TigPubSubGetRootNodes(?) }";
+	private static final String GET_USER_AFFILIATIONS_QUERY = "{ call TigPubSubGetUserAffiliations(?, ?) }";
+	private static final String GET_USER_SUBSCRIPTIONS_QUERY = "{ call TigPubSubGetUserSubscriptions(?, ?) }";
+	private static final String LOAD_NODE_QUERY = "{ call TigPubSubLoadNode(?, ?) }";
+	private static final String PURGE_ITEMS_QUERY = "{ call TigPubSubPurgeItems(?) }";
+	private static final String REMOVE_NODE_QUERY = "{ call TigPubSubRemoveNode(?) }";
+	private static final String REMOVE_SERVICE_QUERY = "{ call TigPubSubRemoveService(?) }";
+	private static final String SET_NODE_AFFILIATIONS_QUERY = "{ call TigPubSubSetNodeAffiliation(?, ?, ?) }";
+	private static final String SET_NODE_CONFIGURATION_QUERY = "{ call TigPubSubSetNodeConfiguration(?, ?, ?) }";
+	private static final String SET_NODE_SUBSCRIPTIONS_QUERY = "{ call TigPubSubSetNodeSubscription(?, ?, ?, ?) }";
+	private static final String TRIM_ITEMS_QUERY = "{ call TigPubSubTrimItems(?, ?) }";
+	private static final String WRITE_ITEM_QUERY = "{ call TigPubSubWriteItem(?, ?, ?, ?) }";
+
 	/**
 	 * Connection validation helper.
 	 */
 	private long connectionValidateInterval = 1000 * 60;
-	private CallableStatement create_node_sp = null;
 	/**
 	 * Database connection string.
 	 */
 	private DataRepository.dbTypes database = null;
-	private String db_conn = null;	
-	private CallableStatement delete_all_nodes_sp = null;
-	private CallableStatement delete_item_sp = null;
-	private CallableStatement delete_node_subscriptions_sp = null;
-	private CallableStatement get_all_nodes_sp = null;
-	private CallableStatement get_child_nodes_sp = null;
-	private CallableStatement get_item_sp = null;
-	private CallableStatement get_node_affiliations_sp = null;
-	private CallableStatement get_node_configuration_sp = null;
-	private CallableStatement get_node_id_sp = null;
-	private CallableStatement get_node_items_ids_since_sp = null;
-	private CallableStatement get_node_items_ids_sp = null;
-	private CallableStatement get_node_items_meta_sp = null;
-	private CallableStatement get_node_meta_sp = null;
-	private CallableStatement get_node_subscriptions_sp = null;
-	private CallableStatement get_root_nodes_sp = null;
-	private CallableStatement get_user_affiliations_sp = null;
-	private CallableStatement get_user_subscriptions_sp = null;
+	private String db_conn = null;
 	/**
-	 * Connection validation helper.
+	 * Pool of database connections, each with its own prepared statements.
 	 */
-	private long lastConnectionValidated = 0;
-	private CallableStatement remove_node_sp = null;
-	private CallableStatement remove_service_sp = null;
-	private CallableStatement set_node_affiliations_sp = null;
-	private CallableStatement set_node_configuration_sp = null;
-	private CallableStatement set_node_subscriptions_sp = null;
-	private CallableStatement write_item_sp = null;
+	protected JDBCConnectionPool pool = null;
 
 	private boolean schemaOk = false;
 	
@@ -122,38 +154,6 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		return;
 	}
 
-	/**
-	 * <code>checkConnection</code> method checks database connection before any
-	 * query. For some database servers (or JDBC drivers) it happens the
-	 * connection is dropped if not in use for a long time or after certain
-	 * timeout passes. This method allows us to detect the problem and
-	 * reinitialize database connection.
-	 * 
-	 * @return a <code>boolean</code> value if the database connection is
-	 *         working.
-	 * @exception SQLException
-	 *                if an error occurs on database query.
-	 */
-	private boolean checkConnection() throws SQLException {
-		try {
-			ResultSet rs = null;
-			synchronized ( conn_valid_st ) {
-				try {
-					long tmp = System.currentTimeMillis();
-					if ((tmp - lastConnectionValidated) >= connectionValidateInterval) {
-						rs = conn_valid_st.executeQuery();
-						lastConnectionValidated = tmp;
-					} // end of if ()
-				} finally {
-					release( null, rs );
-				}
-			}
-		} catch ( Exception e ) {
-			initRepo();
-		} // end of try-catch
-		return true;
-	}
-
 	@Override
 	public Long createNode( BareJID serviceJid, String nodeName, BareJID ownerJid, AbstractNodeConfig nodeConfig,
 													NodeType nodeType, Long collectionId ) throws RepositoryException {
@@ -166,8 +166,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				serializedNodeConfig = nodeConfig.getFormElement().toString();
 			}
 
-			checkConnection();
-			synchronized ( create_node_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement create_node_sp = conn.prepareCall(CREATE_NODE_QUERY);
 				try {
 					create_node_sp.setString(1, serviceJid.toString());
 					create_node_sp.setString(2, nodeName);
@@ -185,7 +186,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							case sqlserver:
 							case jtds:
 								create_node_sp.executeUpdate();
-								return getNodeId(serviceJid, nodeName);
+								return getNodeId(conn, serviceJid, nodeName);
 
 							default:
 								rs = create_node_sp.executeQuery();
@@ -199,11 +200,16 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLIntegrityConstraintViolationException e ) {
 			throw new RepositoryException( "Error while adding node to repository, already exists?", e );
 		} catch ( SQLException e ) {
-			e.printStackTrace();
+			log.log( Level.WARNING, "Problem creating node " + nodeName + " for " + serviceJid, e );
 			throw new RepositoryException( "Problem accessing repository.", e );
 		}
 
@@ -217,17 +223,57 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							 new Object[] { serviceJid, nodeId, id } );
 		}
 		try {
-			checkConnection();
-			synchronized ( delete_item_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement delete_item_sp = conn.prepareCall(DELETE_ITEM_QUERY);
 				delete_item_sp.setLong( 1, nodeId );
 				delete_item_sp.setString( 2, id );
 				delete_item_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Item removing error", e );
 		}
 	}
 
+	@Override
+	public void deleteItems( BareJID serviceJid, Long nodeId, Collection<String> ids ) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "deleting Items: serviceJid: {0}, nodeId: {1}, ids: {2}",
+							 new Object[] { serviceJid, nodeId, ids } );
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement delete_item_sp = conn.prepareCall(DELETE_ITEM_QUERY);
+				try {
+					for (String id : ids) {
+						delete_item_sp.setLong( 1, nodeId );
+						delete_item_sp.setString( 2, id );
+						delete_item_sp.addBatch();
+					}
+					delete_item_sp.executeBatch();
+				} finally {
+					delete_item_sp.clearBatch();
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items removing error", e );
+		}
+	}
+
 	@Override
 	public void deleteNode( BareJID serviceJid, Long nodeId ) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -235,10 +281,16 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							 new Object[] { serviceJid, nodeId } );
 		}
 		try {
-			checkConnection();
-			synchronized ( remove_node_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement remove_node_sp = conn.prepareCall(REMOVE_NODE_QUERY);
 				remove_node_sp.setLong( 1, nodeId );
 				remove_node_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node deleting error", e );
@@ -247,15 +299,8 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	@Override
 	public void destroy() {
-		try {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "closing JDBC connection: {0} - {1}", new Object[] {conn.getClass().getCanonicalName(), conn});
-			}			
-			if ( !conn.isClosed() ) {
-				conn.close();
-			}
-		} catch ( SQLException e ) {
-			log.log( Level.WARNING, "Problem closing jdbc connection: " + db_conn, e );
+		if (pool != null) {
+			pool.close();
 		}
 		super.destroy();
 	}
@@ -268,8 +313,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_all_nodes_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_all_nodes_sp = conn.prepareCall(GET_ALL_NODES_QUERY);
 				try {
 					get_all_nodes_sp.setString(1, serviceJid.toString());
 					rs = get_all_nodes_sp.executeQuery();
@@ -281,12 +327,118 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Nodes list getting error", e );
 		} // end of catch
 	}
 	
+	/**
+	 * Builds query for items with given number of ids. On MySQL items are
+	 * matched by SHA1 of id, so primary key is used instead of index of
+	 * prefix of id.
+	 */
+	private String getItemsQuery(int batchSize) {
+		final String param = getItemsKeyParam();
+		StringBuilder sb = new StringBuilder(GET_ITEMS_QUERY_PREFIX.length() + batchSize * (param.length() + 2) + 16);
+		sb.append(GET_ITEMS_QUERY_PREFIX).append(getItemsKeyColumn()).append(" in (");
+		for (int i = 0; i < batchSize; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(param);
+		}
+		return sb.append(')').toString();
+	}
+
+	private String getItemsCountNewerQuery(String dateColumn) {
+		return "select count(1) from tig_pubsub_items where node_id = ? and (" + dateColumn + " > ? or ("
+				+ dateColumn + " = ? and " + getItemsKeyColumn() + " > " + getItemsKeyParam() + "))";
+	}
+
+	/**
+	 * Returns column used to order items with the same date. MySQL indexes
+	 * only prefix of item id, which cannot be used for sorting, so SHA1 of id
+	 * is used there instead.
+	 */
+	private String getItemsKeyColumn() {
+		return database == DataRepository.dbTypes.mysql ? "id_sha1" : "id";
+	}
+
+	private String getItemsKeyParam() {
+		return database == DataRepository.dbTypes.mysql ? "SHA1(?)" : "?";
+	}
+
+	/**
+	 * Builds query for page of items metadata. Items are ordered by date and
+	 * id, so page after or before given item is selected by comparing with
+	 * date and id of that item, which uses index on node_id, date and id
+	 * instead of reading all items of node.
+	 */
+	private String getItemsPageQuery(String dateColumn, boolean after, boolean before, boolean since) {
+		final String key = getItemsKeyColumn();
+		final String keyParam = getItemsKeyParam();
+		StringBuilder sb = new StringBuilder(
+				"select id, creation_date, update_date from tig_pubsub_items where node_id = ?");
+		if (after) {
+			sb.append(" and (").append(dateColumn).append(" < ? or (").append(dateColumn).append(" = ? and ")
+					.append(key).append(" < ").append(keyParam).append("))");
+		}
+		if (before) {
+			sb.append(" and (").append(dateColumn).append(" > ? or (").append(dateColumn).append(" = ? and ")
+					.append(key).append(" > ").append(keyParam).append("))");
+		}
+		if (since) {
+			sb.append(" and ").append(dateColumn).append(" > ?");
+		}
+		sb.append(" order by ").append(dateColumn).append(" desc, ").append(key).append(" desc");
+		switch (database) {
+			case mysql:
+			case postgresql:
+				sb.append(" limit ? offset ?");
+				break;
+			default:
+				sb.append(" offset ? rows fetch next ? rows only");
+				break;
+		}
+		return sb.toString();
+	}
+
+	private IItems.ItemMeta getItemMeta( PooledConnection conn, long nodeId, String nodeName, String id )
+			throws SQLException {
+		CallableStatement get_item_meta_sp = conn.prepareCall(GET_ITEM_META_QUERY);
+		ResultSet rs = null;
+		try {
+			get_item_meta_sp.setLong(1, nodeId);
+			get_item_meta_sp.setString(2, id);
+			rs = get_item_meta_sp.executeQuery();
+			if (rs.next()) {
+				return new IItems.ItemMeta(nodeName, id, rs.getTimestamp(1), rs.getTimestamp(2));
+			}
+			return null;
+		} finally {
+			release(null, rs);
+		}
+	}
+
+	/**
+	 * Reads date from metadata of item without retrieving its payload.
+	 *
+	 * @param serviceJid
+	 * @param nodeId
+	 * @param id
+	 * @param field
+	 *            1 for creation date, 2 for update date
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryException
+	 */
 	protected Date getDateFromItem( BareJID serviceJid, long nodeId, String id, int field ) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "getting date from item: serviceJid: {0}, nodeId: {1}, id: {2}, field: {3}",
@@ -294,30 +446,28 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( get_item_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_item_meta_sp = conn.prepareCall(GET_ITEM_META_QUERY);
 				try {
-					get_item_sp.setLong(1, nodeId);
-					get_item_sp.setString(2, id);
-					rs = get_item_sp.executeQuery();
+					get_item_meta_sp.setLong(1, nodeId);
+					get_item_meta_sp.setString(2, id);
+					rs = get_item_meta_sp.executeQuery();
 					if (rs.next()) {
-//					String date = rs.getString( field );
-//					if ( date == null ) {
-//						return null;
-//					}
-//					-- why do we need this?
-//					return DateFormat.getDateInstance().parse( date );
 						return rs.getTimestamp(field);
 					}
 				} finally {
 					release(null, rs);
 				}
 				return null;
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Item field " + field + " reading error", e );
-//		} catch ( ParseException e ) {
-//			throw new RepositoryException( "Item field " + field + " parsing error", e );
 		} // end of catch
 	}
 
@@ -329,10 +479,185 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		return itemDataToElement( data.toCharArray() );
 	}
 
+	@Override
+	public Map<String, Element> getItems( BareJID serviceJid, Long nodeId, List<String> ids ) throws RepositoryException {
+		Map<String, String> data = getItemsData( serviceJid, nodeId, ids );
+		Map<String, Element> items = new HashMap<String, Element>(data.size());
+		for (Map.Entry<String, String> e : data.entrySet()) {
+			items.put(e.getKey(), itemDataToElement(e.getValue().toCharArray()));
+		}
+		return items;
+	}
+
+	@Override
+	public Map<String, String> getItemsData( BareJID serviceJid, Long nodeId, List<String> ids )
+			throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting items data: serviceJid: {0}, nodeId: {1}, ids: {2}",
+							 new Object[] { serviceJid, nodeId, ids } );
+		}
+		Map<String, String> items = new HashMap<String, String>(ids.size());
+		if (ids.isEmpty()) {
+			return items;
+		}
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				final int maxBatchSize = GET_ITEMS_BATCH_SIZES[GET_ITEMS_BATCH_SIZES.length - 1];
+				for (int from = 0; from < ids.size(); from += maxBatchSize) {
+					List<String> chunk = ids.subList(from, Math.min(ids.size(), from + maxBatchSize));
+					int batchSize = maxBatchSize;
+					for (int size : GET_ITEMS_BATCH_SIZES) {
+						if (size >= chunk.size()) {
+							batchSize = size;
+							break;
+						}
+					}
+					PreparedStatement get_items_st = conn.prepareStatement(getItemsQuery(batchSize));
+					ResultSet rs = null;
+					try {
+						get_items_st.setLong(1, nodeId);
+						for (int i = 0; i < batchSize; i++) {
+							// padding with last id does not change result
+							get_items_st.setString(i + 2, chunk.get(Math.min(i, chunk.size() - 1)));
+						}
+						rs = get_items_st.executeQuery();
+						while (rs.next()) {
+							String id = rs.getString(1);
+							String data = rs.getString(2);
+							// SHA1 of id may match other item on MySQL
+							if (data != null && chunk.contains(id)) {
+								items.put(id, data);
+							}
+						}
+					} finally {
+						release(null, rs);
+					}
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items reading error", e );
+		}
+		return items;
+	}
+
+	@Override
+	public IItems.ItemsPage getItemsPage( BareJID serviceJid, Long nodeId, String nodeName,
+			CollectionItemsOrdering ordering, String afterId, String beforeId, Date since, int offset, int limit )
+			throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getting items page: serviceJid: {0}, nodeId: {1}, ordering: {2}, after: {3}, "
+							 + "before: {4}, since: {5}, offset: {6}, limit: {7}",
+							 new Object[] { serviceJid, nodeId, ordering, afterId, beforeId, since, offset, limit } );
+		}
+		final String dateColumn = ordering == CollectionItemsOrdering.byCreationDate ? "creation_date" : "update_date";
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				int count = 0;
+				PreparedStatement count_st = conn.prepareStatement(GET_ITEMS_COUNT_QUERY);
+				ResultSet rs = null;
+				try {
+					count_st.setLong(1, nodeId);
+					rs = count_st.executeQuery();
+					if (rs.next()) {
+						count = rs.getInt(1);
+					}
+				} finally {
+					release(null, rs);
+				}
+
+				List<IItems.ItemMeta> items = new ArrayList<IItems.ItemMeta>();
+				if (count == 0) {
+					return new IItems.ItemsPage(items, count, 0);
+				}
+
+				IItems.ItemMeta after = afterId == null ? null : getItemMeta(conn, nodeId, nodeName, afterId);
+				if (afterId != null && after == null) {
+					return new IItems.ItemsPage(items, count, 0);
+				}
+				IItems.ItemMeta before = beforeId == null ? null : getItemMeta(conn, nodeId, nodeName, beforeId);
+
+				PreparedStatement page_st = conn.prepareStatement(
+						getItemsPageQuery(dateColumn, after != null, before != null, since != null));
+				try {
+					int i = 1;
+					page_st.setLong(i++, nodeId);
+					if (after != null) {
+						Timestamp date = new Timestamp(ordering.getDate(after).getTime());
+						page_st.setTimestamp(i++, date);
+						page_st.setTimestamp(i++, date);
+						page_st.setString(i++, after.getId());
+					}
+					if (before != null) {
+						Timestamp date = new Timestamp(ordering.getDate(before).getTime());
+						page_st.setTimestamp(i++, date);
+						page_st.setTimestamp(i++, date);
+						page_st.setString(i++, before.getId());
+					}
+					if (since != null) {
+						page_st.setTimestamp(i++, new Timestamp(since.getTime()));
+					}
+					switch (database) {
+						case mysql:
+						case postgresql:
+							page_st.setInt(i++, limit);
+							page_st.setInt(i++, offset);
+							break;
+						default:
+							page_st.setInt(i++, offset);
+							page_st.setInt(i++, limit);
+							break;
+					}
+					rs = page_st.executeQuery();
+					while (rs.next()) {
+						items.add(new IItems.ItemMeta(nodeName, rs.getString(1), rs.getTimestamp(2), rs.getTimestamp(3)));
+					}
+				} finally {
+					release(null, rs);
+				}
+
+				int firstIndex = offset;
+				if (!items.isEmpty() && (after != null || since != null)) {
+					// position of first item among all items of node is
+					// number of items which are newer than it
+					IItems.ItemMeta first = items.get(0);
+					Timestamp date = new Timestamp(ordering.getDate(first).getTime());
+					PreparedStatement index_st = conn.prepareStatement(getItemsCountNewerQuery(dateColumn));
+					try {
+						index_st.setLong(1, nodeId);
+						index_st.setTimestamp(2, date);
+						index_st.setTimestamp(3, date);
+						index_st.setString(4, first.getId());
+						rs = index_st.executeQuery();
+						if (rs.next()) {
+							firstIndex = rs.getInt(1);
+						}
+					} finally {
+						release(null, rs);
+					}
+				}
+				return new IItems.ItemsPage(items, count, firstIndex);
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items page reading error", e );
+		}
+	}
+
 	@Override
 	public Date getItemCreationDate( final BareJID serviceJid, final Long nodeId, final String id )
 			throws RepositoryException {
-		return getDateFromItem( serviceJid, nodeId, id, 3 );
+		return getDateFromItem( serviceJid, nodeId, id, 1 );
 	}
 
 //	@Override
@@ -349,8 +674,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		if ( null != nodeId ){
 			try {
 				ResultSet rs = null;
-				checkConnection();
-				synchronized ( get_node_items_ids_sp ) {
+				PooledConnection conn = takeConnection();
+				try {
+					CallableStatement get_node_items_ids_sp = conn.prepareCall(GET_NODE_ITEMS_IDS_QUERY);
 					try {
 						get_node_items_ids_sp.setLong(1, nodeId);
 						rs = get_node_items_ids_sp.executeQuery();
@@ -362,6 +688,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 					} finally {
 						release( null, rs );
 					}
+				} catch (SQLException ex) {
+					conn.invalidate(ex);
+					throw ex;
+				} finally {
+					releaseConnection(conn);
 				}
 			} catch ( SQLException e ) {
 				throw new RepositoryException( "Items list reading error", e );
@@ -380,8 +711,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Timestamp sinceTs = new Timestamp(since.getTime());
-			checkConnection();
-			synchronized (get_node_items_ids_since_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_items_ids_since_sp = conn.prepareCall(GET_NODE_ITEMS_IDS_SINCE_QUERY);
 				try {
 					get_node_items_ids_since_sp.setLong(1, nodeId);
 					get_node_items_ids_since_sp.setTimestamp(2, sinceTs);
@@ -394,6 +726,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Items list reading error", e );
@@ -409,8 +746,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( get_node_items_meta_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_items_meta_sp = conn.prepareCall(GET_NODE_ITEMS_META_QUERY);
 				try {
 					get_node_items_meta_sp.setLong(1, nodeId);
 					rs = get_node_items_meta_sp.executeQuery();
@@ -425,6 +763,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Items list reading error", e );
@@ -433,7 +776,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	
 	@Override
 	public Date getItemUpdateDate( BareJID serviceJid, Long nodeId, String id ) throws RepositoryException {
-		return getDateFromItem( serviceJid, nodeId, id, 4 );
+		return getDateFromItem( serviceJid, nodeId, id, 2 );
 	}
 
 	@Override
@@ -443,31 +786,41 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 							 new Object[] { serviceJid, nodeName } );
 		}
 		try {
-			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_node_id_sp) {
-				try {
-					get_node_id_sp.setString(1, serviceJid.toString());
-					get_node_id_sp.setString(2, nodeName);
-					rs = get_node_id_sp.executeQuery();
-					if (rs.next()) {
-						final long nodeId = rs.getLong(1);
-						if ( log.isLoggable( Level.FINEST ) ){
-							log.log( Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}, nodeId: {2}, get_node_id_sp: {3}",
-											 new Object[] { serviceJid, nodeName, nodeId, get_node_id_sp } );
-						}
-						return nodeId;
-					}
-					return null;
-				} finally {
-					release(null, rs);
-				}
+			PooledConnection conn = takeConnection();
+			try {
+				return getNodeId(conn, serviceJid, nodeName);
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Retrieving node id error", e );
 		}
 	}
 
+	private Long getNodeId( PooledConnection conn, BareJID serviceJid, String nodeName ) throws SQLException {
+		ResultSet rs = null;
+		CallableStatement get_node_id_sp = conn.prepareCall(GET_NODE_ID_QUERY);
+		try {
+			get_node_id_sp.setString(1, serviceJid.toString());
+			get_node_id_sp.setString(2, nodeName);
+			rs = get_node_id_sp.executeQuery();
+			if (rs.next()) {
+				final long nodeId = rs.getLong(1);
+				if ( log.isLoggable( Level.FINEST ) ){
+					log.log( Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}, nodeId: {2}, get_node_id_sp: {3}",
+									 new Object[] { serviceJid, nodeName, nodeId, get_node_id_sp } );
+				}
+				return nodeId;
+			}
+			return null;
+		} finally {
+			release(null, rs);
+		}
+	}
+
 	@Override
 	public NodeMeta<Long> getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -476,8 +829,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_node_meta_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_meta_sp = conn.prepareCall(GET_NODE_META_QUERY);
 				try {
 					get_node_meta_sp.setString(1, serviceJid.toString());
 					get_node_meta_sp.setString(2, nodeName);
@@ -492,7 +846,7 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 						if ( log.isLoggable( Level.FINEST ) ){
 							log.log( Level.FINEST, "Getting Node ID: serviceJid: {0}, nodeName: {1}, nodeId: {2}, get_node_id_sp: {3}",
-									new Object[] { serviceJid, nodeName, nodeId, get_node_id_sp } );
+									new Object[] { serviceJid, nodeName, nodeId, get_node_meta_sp } );
 						}
 						return nodeMeta;
 					}
@@ -500,12 +854,134 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch (TigaseStringprepException | SQLException e) {
 			throw new RepositoryException( "Retrieving node meta data error", e );
 		}
 	}
 
+	@Override
+	public NodeData<Long> loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "Loading node: serviceJid: {0}, nodeName: {1}",
+					new Object[] { serviceJid, nodeName } );
+		}
+		try {
+			ResultSet rs = null;
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement load_node_sp = conn.prepareCall(LOAD_NODE_QUERY);
+				try {
+					load_node_sp.setString(1, serviceJid.toString());
+					load_node_sp.setString(2, nodeName);
+					switch (database) {
+						case postgresql:
+							// function returns all data as single result set
+							rs = load_node_sp.executeQuery();
+							return readNodeData(nodeName, rs);
+						default:
+							break;
+					}
+
+					rs = nextResultSet(load_node_sp, load_node_sp.execute());
+					if (rs == null || !rs.next()) {
+						return null;
+					}
+					final long nodeId = rs.getLong(1);
+					final String configStr = rs.getString(2);
+					final String creator = rs.getString(3);
+					final Date creationTime = rs.getTimestamp(4);
+					rs.close();
+
+					ArrayDeque<UsersAffiliation> affiliations = new ArrayDeque<UsersAffiliation>();
+					rs = nextResultSet(load_node_sp, load_node_sp.getMoreResults());
+					while (rs != null && rs.next()) {
+						BareJID jid = BareJID.bareJIDInstanceNS(rs.getString(1));
+						Affiliation affil = Affiliation.valueOf(rs.getString(2));
+						affiliations.offer(new UsersAffiliation(jid, affil));
+					}
+
+					ArrayDeque<UsersSubscription> subscriptions = new ArrayDeque<UsersSubscription>();
+					rs = nextResultSet(load_node_sp, load_node_sp.getMoreResults());
+					while (rs != null && rs.next()) {
+						BareJID jid = BareJID.bareJIDInstanceNS(rs.getString(1));
+						Subscription subscr = Subscription.valueOf(rs.getString(2));
+						String subscrId = rs.getString(3);
+						subscriptions.offer(new UsersSubscription(jid, subscrId, subscr));
+					}
+
+					final NodeSubscriptions ns = NodeSubscriptions.create();
+					ns.init(subscriptions);
+					return new NodeData<Long>(nodeId, parseConfig(nodeName, configStr),
+							creator != null ? BareJID.bareJIDInstance(creator) : null, creationTime,
+							NodeAffiliations.create(affiliations), ns);
+				} finally {
+					release(null, rs);
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch (TigaseStringprepException | SQLException e) {
+			throw new RepositoryException( "Node loading error", e );
+		}
+	}
+
+	private NodeData<Long> readNodeData(String nodeName, ResultSet rs) throws SQLException, TigaseStringprepException, RepositoryException {
+		Long nodeId = null;
+		String configStr = null;
+		String creator = null;
+		Date creationTime = null;
+		ArrayDeque<UsersAffiliation> affiliations = new ArrayDeque<UsersAffiliation>();
+		ArrayDeque<UsersSubscription> subscriptions = new ArrayDeque<UsersSubscription>();
+		while (rs.next()) {
+			switch (rs.getInt(1)) {
+				case 0:
+					nodeId = rs.getLong(2);
+					configStr = rs.getString(3);
+					creator = rs.getString(4);
+					creationTime = rs.getTimestamp(5);
+					break;
+				case 1:
+					affiliations.offer(new UsersAffiliation(BareJID.bareJIDInstanceNS(rs.getString(4)),
+							Affiliation.valueOf(rs.getString(6))));
+					break;
+				case 2:
+					subscriptions.offer(new UsersSubscription(BareJID.bareJIDInstanceNS(rs.getString(4)),
+							rs.getString(7), Subscription.valueOf(rs.getString(6))));
+					break;
+				default:
+					break;
+			}
+		}
+		if (nodeId == null) {
+			return null;
+		}
+		final NodeSubscriptions ns = NodeSubscriptions.create();
+		ns.init(subscriptions);
+		return new NodeData<Long>(nodeId, parseConfig(nodeName, configStr),
+				creator != null ? BareJID.bareJIDInstance(creator) : null, creationTime,
+				NodeAffiliations.create(affiliations), ns);
+	}
+
+	private static ResultSet nextResultSet(Statement stmt, boolean isResultSet) throws SQLException {
+		// skipping update counts which may be returned by stored procedures
+		while (!isResultSet) {
+			if (stmt.getUpdateCount() == -1) {
+				return null;
+			}
+			isResultSet = stmt.getMoreResults();
+		}
+		return stmt.getResultSet();
+	}
+
 	@Override
 	public NodeAffiliations getNodeAffiliations( BareJID serviceJid, Long nodeId ) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -514,8 +990,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_node_affiliations_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_affiliations_sp = conn.prepareCall(GET_NODE_AFFILIATIONS_QUERY);
 				try {
 					get_node_affiliations_sp.setLong(1, nodeId);
 					rs = get_node_affiliations_sp.executeQuery();
@@ -529,6 +1006,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers reading error", e );
@@ -542,42 +1024,52 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	
 	@Override
 	public String[] getNodesList( BareJID serviceJid, String nodeName ) throws RepositoryException {
+		final List<String> names = new ArrayList<String>();
+		getChildNodes( serviceJid, nodeName, Integer.MAX_VALUE, batch -> names.addAll( Arrays.asList( batch ) ) );
+		return names.toArray( new String[0] );
+	}
+
+	@Override
+	public void getChildNodes( BareJID serviceJid, String nodeName, int batchSize, Consumer<String[]> consumer )
+			throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "Getting nodes list: serviceJid: {0}, nodeName: {1}",
 							 new Object[] { serviceJid, nodeName } );
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			if (nodeName == null) {
-				synchronized (get_root_nodes_sp) {
-					try {
-						get_root_nodes_sp.setString(1, serviceJid.toString());
-						rs = get_root_nodes_sp.executeQuery();
-						List<String> names = new ArrayList<String>();
-						while (rs.next()) {
-							names.add(rs.getString(1));
-						}
-						return names.toArray(new String[0]);
-					} finally {
-						release(null, rs);
-					}
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_nodes_sp;
+				if (nodeName == null) {
+					get_nodes_sp = conn.prepareCall(GET_ROOT_NODES_QUERY);
+					get_nodes_sp.setString(1, serviceJid.toString());
+				} else {
+					get_nodes_sp = conn.prepareCall(GET_CHILD_NODES_QUERY);
+					get_nodes_sp.setString(1, serviceJid.toString());
+					get_nodes_sp.setString(2, nodeName);
 				}
-			} else {
-				synchronized (get_child_nodes_sp) {
-					try {
-						get_child_nodes_sp.setString(1, serviceJid.toString());
-						get_child_nodes_sp.setString(2, nodeName);
-						rs = get_child_nodes_sp.executeQuery();
-						List<String> names = new ArrayList<String>();
-						while (rs.next()) {
-							names.add(rs.getString(1));
+				try {
+					rs = get_nodes_sp.executeQuery();
+					List<String> names = new ArrayList<String>();
+					while (rs.next()) {
+						names.add(rs.getString(1));
+						if (names.size() >= batchSize) {
+							consumer.accept(names.toArray(new String[names.size()]));
+							names.clear();
 						}
-						return names.toArray(new String[0]);
-					} finally {
-						release(null, rs);
 					}
+					if (!names.isEmpty()) {
+						consumer.accept(names.toArray(new String[names.size()]));
+					}
+				} finally {
+					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Nodes list getting error", e );
@@ -593,8 +1085,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			final NodeSubscriptions ns = NodeSubscriptions.create();
-			checkConnection();
-			synchronized ( get_node_subscriptions_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_subscriptions_sp = conn.prepareCall(GET_NODE_SUBSCRIPTIONS_QUERY);
 				try {
 					get_node_subscriptions_sp.setLong(1, nodeId);
 					rs = get_node_subscriptions_sp.executeQuery();
@@ -610,6 +1103,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers reading error", e );
@@ -632,8 +1130,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_item_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_item_sp = conn.prepareCall(GET_ITEM_QUERY);
 				try {
 					get_item_sp.setLong(1, nodeId);
 					get_item_sp.setString(2, id);
@@ -645,6 +1144,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Item field " + field + " reading error", e );
@@ -660,7 +1164,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Map<String, UsersAffiliation> result = new HashMap<String, UsersAffiliation>();
-			synchronized (get_user_affiliations_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_user_affiliations_sp = conn.prepareCall(GET_USER_AFFILIATIONS_QUERY);
 				try {
 					get_user_affiliations_sp.setString(1, serviceJid.toString());
 					get_user_affiliations_sp.setString(2, jid.toString());
@@ -673,6 +1179,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 			return result;
 		} catch (SQLException e) {
@@ -689,7 +1200,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		try {
 			ResultSet rs = null;
 			Map<String, UsersSubscription> result = new HashMap<String, UsersSubscription>();
-			synchronized (get_user_subscriptions_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_user_subscriptions_sp = conn.prepareCall(GET_USER_SUBSCRIPTIONS_QUERY);
 				try {
 					get_user_subscriptions_sp.setString(1, serviceJid.toString());
 					get_user_subscriptions_sp.setString(2, jid.toString());
@@ -703,6 +1216,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 			return result;
 		} catch (SQLException e) {
@@ -710,12 +1228,12 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 	}	
 
-	private void checkSchema() {
+	private void checkSchema(Connection conn) {
 		if (schemaOk)
 			return;
 		
 		try {
-			CallableStatement testCall = conn.prepareCall("{ call TigPubSubGetNodeMeta(?,?) }");
+			CallableStatement testCall = conn.prepareCall("{ call TigPubSubLoadNode(?,?) }");
 			testCall.setString(1, "tigase-pubsub");
 			testCall.setString(2, "tigase-pubsub");
 			testCall.execute();
@@ -732,7 +1250,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				"  This component uses newer schema. To continue",
 				"  use of currently deployed schema, please use",
 				"  older version of PubSub Component.",
-				"  To convert database to new schema please see:",
+				"  To upgrade database with schema 3.2.0 import",
+				"  database/<database_type>-pubsub-schema-3.3.0.sql",
+				"  To convert database from older schemas please see:",
 				"  https://projects.tigase.org/projects/tigase-pubsub/wiki/PubSub_database_schema_conversion"
 			};
 			if (XMPPServer.isOSGi()) {
@@ -768,162 +1288,107 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 			database = DataRepository.dbTypes.sqlserver;
 		}	
 		
+		int poolSize = JDBCConnectionPool.DEF_POOL_SIZE;
+		long maxWait = JDBCConnectionPool.DEF_MAX_WAIT;
+		int failureThreshold = JDBCConnectionPool.DEF_FAILURE_THRESHOLD;
+		long retryInterval = JDBCConnectionPool.DEF_RETRY_INTERVAL;
+		if (params != null) {
+			if (params.containsKey(POOL_SIZE_KEY)) {
+				poolSize = Integer.parseInt(params.get(POOL_SIZE_KEY));
+			}
+			if (params.containsKey(POOL_MAX_WAIT_KEY)) {
+				maxWait = Long.parseLong(params.get(POOL_MAX_WAIT_KEY));
+			}
+			if (params.containsKey(POOL_FAILURE_THRESHOLD_KEY)) {
+				failureThreshold = Integer.parseInt(params.get(POOL_FAILURE_THRESHOLD_KEY));
+			}
+			if (params.containsKey(POOL_RETRY_INTERVAL_KEY)) {
+				retryInterval = Long.parseLong(params.get(POOL_RETRY_INTERVAL_KEY));
+			}
+		}
+
+		loadDriver();
+		pool = new JDBCConnectionPool(() -> createConnection(), database == derby ? "VALUES 1" : "select 1", poolSize,
+				maxWait, connectionValidateInterval);
+		pool.setCircuitBreaker(failureThreshold, retryInterval);
+
 		try {
-			initRepo();
+			pool.open();
+			PooledConnection conn = pool.borrow();
+			try {
+				checkSchema(conn.getConnection());
+			} finally {
+				pool.release(conn);
+			}
 		} catch ( SQLException e ) {
-			conn = null;
+			pool.close();
+			pool = null;
 			throw new DBInitException( "Problem initializing jdbc connection: " + db_conn, e );
-		}		
+		}
 	}
 
-	
 	/**
-	 * <code>initPreparedStatements</code> method initializes internal database
-	 * connection variables such as prepared statements.
-	 * 
-	 * @exception SQLException
-	 *                if an error occurs on database query.
+	 * Returns statistics of pool of database connections.
 	 */
-	private void initPreparedStatements() throws SQLException {
-		String query;
-		switch ( database ) {
-			case derby:
-				query = "VALUES 1";
-				break;
-			default:
-				query = "select 1";
-				break;
+	@Override
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		if (pool != null) {
+			pool.getStatistics(compName, prefix, list);
 		}
-		conn_valid_st = conn.prepareStatement( query );
-
-		query = "{ call TigPubSubCreateNode(?, ?, ?, ?, ?, ?) }";
-				create_node_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubRemoveNode(?) }";
-		remove_node_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubRemoveService(?) }";
-		remove_service_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeId(?, ?) }";
-		get_node_id_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeMeta(?, ?) }";
-		get_node_meta_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetItem(?, ?) }";
-		get_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubWriteItem(?, ?, ?, ?) }";
-		write_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubDeleteItem(?, ?) }";
-		delete_item_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsIds(?) }";
-		get_node_items_ids_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsIdsSince(?,?) }";
-		get_node_items_ids_since_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeItemsMeta(?) }";
-		get_node_items_meta_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetAllNodes(?) }";
-		get_all_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetRootNodes(?) }";
-		get_root_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetChildNodes(?,?) }";
-		get_child_nodes_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubDeleteAllNodes(?) }";
-		delete_all_nodes_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubSetNodeConfiguration(?, ?, ?) }";
-		set_node_configuration_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubSetNodeAffiliation(?, ?, ?) }";
-		set_node_affiliations_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeConfiguration(?) }";
-		get_node_configuration_sp = conn.prepareCall( query );
-
-		query = "{ call TigPubSubGetNodeAffiliations(?) }";
-		get_node_affiliations_sp = conn.prepareCall( query );
+	}
 
-		query = "{ call TigPubSubGetNodeSubscriptions(?) }";
-		get_node_subscriptions_sp = conn.prepareCall( query );
+	/**
+	 * Borrows connection from pool. Connection needs to be returned using
+	 * {@link #releaseConnection(JDBCConnectionPool.PooledConnection)}.
+	 *
+	 * @return
+	 *
+	 * @throws SQLException
+	 *             if no connection was available in configured time
+	 */
+	protected PooledConnection takeConnection() throws SQLException {
+		return pool.borrow();
+	}
 
-		query = "{ call TigPubSubSetNodeSubscription(?, ?, ?, ?) }";
-		set_node_subscriptions_sp = conn.prepareCall( query );
+	protected void releaseConnection(PooledConnection conn) {
+		pool.release(conn);
+	}
 
-		query = "{ call TigPubSubDeleteNodeSubscription(?, ?) }";
-		delete_node_subscriptions_sp = conn.prepareCall( query );
-				
-		query = "{ call TigPubSubGetUserAffiliations(?, ?) }";
-		get_user_affiliations_sp = conn.prepareCall( query );
-		
-		query = "{ call TigPubSubGetUserSubscriptions(?, ?) }";
-		get_user_subscriptions_sp = conn.prepareCall( query );
+	private Connection createConnection() throws SQLException {
+		Connection conn = DriverManager.getConnection( db_conn );
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "establishing JDBC connection: {0} for {1}", new Object[]{conn, db_conn});
+		}
+		return conn;
 	}
 
-	/**
-	 * <code>initRepo</code> method initializes database connection and data
-	 * repository.
-	 * 
-	 * @exception SQLException
-	 *                if an error occurs on database query.
-	 */
-	private void initRepo() throws SQLException {
-		synchronized ( db_conn ) {
-			if (conn != null) {
-				try {
-					if (!conn.isClosed()) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "closing JDBC connection: {0}", conn);
-						}
-						conn.close();
-					}
-				} catch (Exception ex) {
-					log.log(Level.WARNING, "Exception occured while closing old DB connection for reinitialization", ex);
-				}
-			}
-			String driverClass = null;
-			switch (database) {
-				case postgresql:
-					driverClass = "org.postgresql.Driver";
-					break;
-				case mysql:
-					driverClass = "com.mysql.jdbc.Driver";
-					break;
-				case derby:
-					driverClass = "org.apache.derby.jdbc.EmbeddedDriver";
-					break;
-				case jtds:
-					driverClass = "net.sourceforge.jtds.jdbc.Driver";
-					break;
-				case sqlserver:
-					driverClass = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-					break;
-				default:
-					driverClass = "net.sf.log4jdbc.sql.jdbcapi.DriverSpy";
-					break;
-			}
-			
-			try {
-				Class.forName( driverClass, true, this.getClass().getClassLoader() );
-			} catch ( ClassNotFoundException ex ) {
-				log.log( Level.SEVERE, null, ex );
-			}		
-			
-			conn = DriverManager.getConnection( db_conn );
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "establishing JDBC connection: {0} for {1}", new Object[]{conn, db_conn});
-			}
-			checkSchema();			
-			initPreparedStatements();
+	private void loadDriver() {
+		String driverClass = null;
+		switch (database) {
+			case postgresql:
+				driverClass = "org.postgresql.Driver";
+				break;
+			case mysql:
+				driverClass = "com.mysql.jdbc.Driver";
+				break;
+			case derby:
+				driverClass = "org.apache.derby.jdbc.EmbeddedDriver";
+				break;
+			case jtds:
+				driverClass = "net.sourceforge.jtds.jdbc.Driver";
+				break;
+			case sqlserver:
+				driverClass = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+				break;
+			default:
+				driverClass = "net.sf.log4jdbc.sql.jdbcapi.DriverSpy";
+				break;
+		}
+
+		try {
+			Class.forName( driverClass, true, this.getClass().getClassLoader() );
+		} catch ( ClassNotFoundException ex ) {
+			log.log( Level.SEVERE, null, ex );
 		}
 	}
 
@@ -934,8 +1399,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (get_node_configuration_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement get_node_configuration_sp = conn.prepareCall(GET_NODE_CONFIGURATION_QUERY);
 				try {
 					get_node_configuration_sp.setLong(1, nodeId);
 					rs = get_node_configuration_sp.executeQuery();
@@ -946,6 +1412,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers reading error", e );
@@ -967,14 +1438,67 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 		}
 	}
 
+	@Override
+	public void purgeItems( BareJID serviceJid, Long nodeId ) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "purging Items: serviceJid: {0}, nodeId: {1}",
+							 new Object[] { serviceJid, nodeId } );
+		}
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement purge_items_sp = conn.prepareCall(PURGE_ITEMS_QUERY);
+				purge_items_sp.setLong( 1, nodeId );
+				purge_items_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items purging error", e );
+		}
+	}
+
+	@Override
+	public void trimItems( BareJID serviceJid, Long nodeId, int maxItems ) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "trimming Items: serviceJid: {0}, nodeId: {1}, maxItems: {2}",
+							 new Object[] { serviceJid, nodeId, maxItems } );
+		}
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement trim_items_sp = conn.prepareCall(TRIM_ITEMS_QUERY);
+				trim_items_sp.setLong( 1, nodeId );
+				trim_items_sp.setInt( 2, maxItems );
+				trim_items_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items trimming error", e );
+		}
+	}
+
 	@Override
 	public void removeAllFromRootCollection( BareJID serviceJid ) throws RepositoryException {
 		// TODO check it
 		try {
-			checkConnection();
-			synchronized ( delete_all_nodes_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement delete_all_nodes_sp = conn.prepareCall(DELETE_ALL_NODES_QUERY);
 				delete_all_nodes_sp.setString( 1, serviceJid.toString() );
 				delete_all_nodes_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Removing root collection error", e );
@@ -990,11 +1514,17 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	@Override
 	public void removeNodeSubscription( BareJID serviceJid, Long nodeId, BareJID jid ) throws RepositoryException {
 		try {
-			checkConnection();
-			synchronized ( delete_node_subscriptions_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement delete_node_subscriptions_sp = conn.prepareCall(DELETE_NODE_SUBSCRIPTIONS_QUERY);
 				delete_node_subscriptions_sp.setLong( 1, nodeId );
 				delete_node_subscriptions_sp.setString( 2, jid.toString() );
 				delete_node_subscriptions_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers fragment removing error", e );
@@ -1004,10 +1534,16 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 	@Override
 	public void removeService( BareJID serviceJid ) throws RepositoryException {
 		try {
-			checkConnection();
-			synchronized ( remove_service_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement remove_service_sp = conn.prepareCall(REMOVE_SERVICE_QUERY);
 				remove_service_sp.setString( 1, serviceJid.toString() );
 				remove_service_sp.execute();
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers fragment removing error", e );
@@ -1022,8 +1558,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (set_node_affiliations_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement set_node_affiliations_sp = conn.prepareCall(SET_NODE_AFFILIATIONS_QUERY);
 				try {
 					set_node_affiliations_sp.setLong(1, nodeId);
 					set_node_affiliations_sp.setString(2, affiliation.getJid().toString());
@@ -1046,6 +1583,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs );
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers writing error", e );
@@ -1056,14 +1598,49 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	}
 
+	@Override
+	public void updateNodeAffiliations( BareJID serviceJid, Long nodeId, String nodeName, Collection<UsersAffiliation> affiliations ) throws RepositoryException {
+		if (database == mysql || affiliations.size() < 2) {
+			// procedure is called with executeQuery() for MySQL which cannot be batched
+			super.updateNodeAffiliations(serviceJid, nodeId, nodeName, affiliations);
+			return;
+		}
+
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement set_node_affiliations_sp = conn.prepareCall(SET_NODE_AFFILIATIONS_QUERY);
+				try {
+					for (UsersAffiliation affiliation : affiliations) {
+						set_node_affiliations_sp.setLong(1, nodeId);
+						set_node_affiliations_sp.setString(2, affiliation.getJid().toString());
+						set_node_affiliations_sp.setString(3, affiliation.getAffiliation().name());
+						set_node_affiliations_sp.addBatch();
+					}
+					set_node_affiliations_sp.executeBatch();
+				} finally {
+					set_node_affiliations_sp.clearBatch();
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Node affiliations writing error", e );
+		}
+	}
+
 	@Override
 	public void updateNodeConfig(final BareJID serviceJid, final Long nodeId, final String serializedData,
 			final Long collectionId)
 			throws RepositoryException {
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (set_node_configuration_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement set_node_configuration_sp = conn.prepareCall(SET_NODE_CONFIGURATION_QUERY);
 				try {
 					set_node_configuration_sp.setLong(1, nodeId);
 					set_node_configuration_sp.setString(2, serializedData);
@@ -1090,6 +1667,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node configuration writing error", e );
@@ -1105,8 +1687,9 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized ( set_node_subscriptions_sp ) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement set_node_subscriptions_sp = conn.prepareCall(SET_NODE_SUBSCRIPTIONS_QUERY);
 				try {
 					set_node_subscriptions_sp.setLong(1, nodeId);
 					set_node_subscriptions_sp.setString(2, subscription.getJid().toString());
@@ -1129,6 +1712,11 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Node subscribers writing error", e );
@@ -1139,13 +1727,72 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 
 	}
 
+	@Override
+	public void updateNodeSubscriptions( BareJID serviceJid, Long nodeId, String nodeName, Collection<UsersSubscription> subscriptions )
+			throws RepositoryException {
+		if (database == mysql || subscriptions.size() < 2) {
+			// procedure is called with executeQuery() for MySQL which cannot be batched
+			super.updateNodeSubscriptions(serviceJid, nodeId, nodeName, subscriptions);
+			return;
+		}
+
+		List<UsersSubscription> removed = new ArrayList<UsersSubscription>();
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement set_node_subscriptions_sp = conn.prepareCall(SET_NODE_SUBSCRIPTIONS_QUERY);
+				try {
+					boolean batched = false;
+					for (UsersSubscription subscription : subscriptions) {
+						if (subscription.getSubscription() == Subscription.none) {
+							removed.add(subscription);
+							continue;
+						}
+						set_node_subscriptions_sp.setLong(1, nodeId);
+						set_node_subscriptions_sp.setString(2, subscription.getJid().toString());
+						set_node_subscriptions_sp.setString(3, subscription.getSubscription().name());
+						set_node_subscriptions_sp.setString(4, subscription.getSubid());
+						set_node_subscriptions_sp.addBatch();
+						batched = true;
+					}
+					if (batched) {
+						set_node_subscriptions_sp.executeBatch();
+					}
+				} finally {
+					set_node_subscriptions_sp.clearBatch();
+				}
+				if (!removed.isEmpty()) {
+					CallableStatement delete_node_subscriptions_sp = conn.prepareCall(DELETE_NODE_SUBSCRIPTIONS_QUERY);
+					try {
+						for (UsersSubscription subscription : removed) {
+							delete_node_subscriptions_sp.setLong( 1, nodeId );
+							delete_node_subscriptions_sp.setString( 2, subscription.getJid().toString() );
+							delete_node_subscriptions_sp.addBatch();
+						}
+						delete_node_subscriptions_sp.executeBatch();
+					} finally {
+						delete_node_subscriptions_sp.clearBatch();
+					}
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Node subscribers writing error", e );
+		}
+	}
+
 	@Override
 	public void writeItem( final BareJID serviceJid, final Long nodeId, long timeInMilis, final String id,
 												 final String publisher, final Element item ) throws RepositoryException {
 		try {
 			ResultSet rs = null;
-			checkConnection();
-			synchronized (write_item_sp) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement write_item_sp = conn.prepareCall(WRITE_ITEM_QUERY);
 				try {
 					write_item_sp.setLong(1, nodeId);
 					write_item_sp.setString(2, id);
@@ -1163,9 +1810,48 @@ public class PubSubDAOJDBC extends PubSubDAO<Long> {
 				} finally {
 					release(null, rs);
 				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
 			}
 		} catch ( SQLException e ) {
 			throw new RepositoryException( "Item writing error", e );
 		}
 	}
+
+	@Override
+	public void writeItems( final BareJID serviceJid, final Long nodeId, final List<IItems.ItemData> items )
+			throws RepositoryException {
+		if (items.isEmpty()) {
+			return;
+		}
+		try {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement write_item_sp = conn.prepareCall(WRITE_ITEM_QUERY);
+				try {
+					for (IItems.ItemData item : items) {
+						write_item_sp.setLong(1, nodeId);
+						write_item_sp.setString(2, item.getId());
+						write_item_sp.setString(3, item.getPublisher());
+						write_item_sp.setString(4, item.getData());
+						write_item_sp.addBatch();
+					}
+					write_item_sp.executeBatch();
+				} finally {
+					write_item_sp.clearBatch();
+				}
+			} catch (SQLException ex) {
+				conn.invalidate(ex);
+				throw ex;
+			} finally {
+				releaseConnection(conn);
+			}
+		} catch ( SQLException e ) {
+			throw new RepositoryException( "Items writing error", e );
+		}
+	}
+
 }
@@ -23,13 +23,16 @@
 package tigase.pubsub.repository;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tigase.db.DBInitException;
@@ -37,14 +40,18 @@ import tigase.db.DBInitException;
 import tigase.db.TigaseDBException;
 import tigase.db.UserRepository;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.NodeType;
 import tigase.pubsub.PubSubConfig;
 import tigase.pubsub.repository.NodeAffiliations;
 import tigase.pubsub.repository.NodeSubscriptions;
 import tigase.pubsub.repository.RepositoryException;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.NodeMeta;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.pubsub.utils.LatencyHistogram;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 
@@ -52,37 +59,65 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 
 	private static final Logger log = Logger.getLogger(PubSubDAOPool.class.getName());
 
-	private final Map<BareJID, LinkedBlockingQueue<IPubSubDAO>> pools = new HashMap<BareJID, LinkedBlockingQueue<IPubSubDAO>>();
+	/**
+	 * DAOs used for single domain with statistics of their usage.
+	 */
+	private static class DomainPool {
+
+		private final AtomicInteger borrowed = new AtomicInteger(0);
+		private final LinkedBlockingQueue<IPubSubDAO> queue = new LinkedBlockingQueue<IPubSubDAO>();
+		/**
+		 * Thread safe DAO (with own pool of connections) which is used by all
+		 * threads at the same time instead of being taken from the queue.
+		 */
+		private volatile IPubSubDAO shared = null;
+		private final AtomicInteger size = new AtomicInteger(0);
+		private final AtomicLong timeouts = new AtomicLong(0);
+		private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+	}
+
+	public static final long DEF_MAX_WAIT = 10000;
+
+	private final ConcurrentHashMap<BareJID, DomainPool> pools = new ConcurrentHashMap<BareJID, DomainPool>();
+
+	private volatile DomainPool defaultPool = null;
 
 	/**
 	 * Variable destroyed is set to true to ensure that all JDBC connections will be closed
 	 * and even if some of them were taken for execution in moment of pool being destroyed.
 	 */
-	private boolean destroyed = false;
+	private volatile boolean destroyed = false;
+
+	private volatile long maxWait = DEF_MAX_WAIT;
 
 	public PubSubDAOPool() {
 	}
 
 	public void addDao(BareJID domain, IPubSubDAO dao) {
-		LinkedBlockingQueue<IPubSubDAO> ee = pools.get(domain);
-		if (ee == null) {
-			ee = new LinkedBlockingQueue<IPubSubDAO>();
-			pools.put(domain, ee);
-		}
-		ee.offer(dao);
+		DomainPool pool = getOrCreatePool(domain);
+		pool.size.incrementAndGet();
+		pool.queue.offer(dao);
+	}
+
+	/**
+	 * Registers thread safe DAO which will be used concurrently by all threads
+	 * for given domain.
+	 *
+	 * @param domain
+	 * @param dao
+	 */
+	public void addSharedDao(BareJID domain, IPubSubDAO dao) {
+		getOrCreatePool(domain).shared = dao;
 	}
 
 	@Override
 	public void addToRootCollection(BareJID serviceJid, String nodeName) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.addToRootCollection(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.addToRootCollection(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
@@ -90,43 +125,40 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	public T createNode(BareJID serviceJid, String nodeName, BareJID ownerJid, AbstractNodeConfig nodeConfig,
 			NodeType nodeType, T collectionId) throws RepositoryException {
 		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.createNode(serviceJid, nodeName, ownerJid, nodeConfig, nodeType, collectionId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
+		try {
+			return dao.createNode(serviceJid, nodeName, ownerJid, nodeConfig, nodeType, collectionId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public void deleteItem(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.deleteItem(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.deleteItem(serviceJid, nodeId, id);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void deleteItems(BareJID serviceJid, T nodeId, Collection<String> ids) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.deleteItems(serviceJid, nodeId, ids);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public void deleteNode(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.deleteNode(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.deleteNode(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
@@ -136,14 +168,17 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 			log.log(Level.FINEST, "destroying IPubSubDAOPool {0}", this);
 		}
 		destroyed = true;
-		Set<BareJID> keys = new HashSet<BareJID>(pools.keySet());
-		for (BareJID serviceJid : keys) {
-			List<IPubSubDAO> list = new ArrayList<IPubSubDAO>(pools.get(serviceJid));
-			for (IPubSubDAO dao : list) {
-				try {
-					dao.destroy();
-				} finally {
-				}
+		List<DomainPool> all = new ArrayList<DomainPool>(pools.values());
+		if (defaultPool != null) {
+			all.add(defaultPool);
+		}
+		for (DomainPool pool : all) {
+			IPubSubDAO dao;
+			while ((dao = pool.queue.poll()) != null) {
+				dao.destroy();
+			}
+			if (pool.shared != null) {
+				pool.shared.destroy();
 			}
 		}
 	}
@@ -151,258 +186,226 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	@Override
 	public String[] getAllNodesList(BareJID serviceJid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getAllNodesList(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getAllNodesList(serviceJid);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public Map<String, Element> getItems(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			return dao.getItems(serviceJid, nodeId, ids);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public Map<String, String> getItemsData(BareJID serviceJid, T nodeId, List<String> ids) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			return dao.getItemsData(serviceJid, nodeId, ids);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public IItems.ItemsPage getItemsPage(BareJID serviceJid, T nodeId, String nodeName,
+			CollectionItemsOrdering ordering, String afterId, String beforeId, Date since, int offset, int limit)
+			throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			return dao.getItemsPage(serviceJid, nodeId, nodeName, ordering, afterId, beforeId, since, offset, limit);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public Element getItem(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItem(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItem(serviceJid, nodeId, id);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public Date getItemCreationDate(BareJID serviceJid, final T nodeId, final String id) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemCreationDate(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItemCreationDate(serviceJid, nodeId, id);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public String[] getItemsIds(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsIds(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItemsIds(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public String[] getItemsIdsSince(BareJID serviceJid, T nodeId, Date since) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsIdsSince(serviceJid, nodeId, since);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItemsIdsSince(serviceJid, nodeId, since);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, T nodeId, String nodeName) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemsMeta(serviceJid, nodeId, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItemsMeta(serviceJid, nodeId, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public Date getItemUpdateDate(BareJID serviceJid, T nodeId, String id) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getItemUpdateDate(serviceJid, nodeId, id);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getItemUpdateDate(serviceJid, nodeId, id);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public NodeAffiliations getNodeAffiliations(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeAffiliations(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getNodeAffiliations(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public String getNodeConfig(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeConfig(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
+		try {
+			return dao.getNodeConfig(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public T getNodeId(BareJID serviceJid, String nodeName) throws RepositoryException {
 		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeId(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
+		try {
+			return dao.getNodeId(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public INodeMeta<T> getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
 		IPubSubDAO<T> dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeMeta(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-			return null;
+		try {
+			return dao.getNodeMeta(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public NodeData<T> loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+		IPubSubDAO<T> dao = takeDao(serviceJid);
+		try {
+			return dao.loadNode(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public String[] getNodesList(BareJID serviceJid, String nodeName) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodesList(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getNodesList(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public NodeSubscriptions getNodeSubscriptions(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getNodeSubscriptions(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getNodeSubscriptions(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	protected String getPoolDetails(BareJID serviceJid) {
-		String result = "";
-
-		LinkedBlockingQueue<IPubSubDAO> ee;
-		if (pools.containsKey(serviceJid)) {
-			result += serviceJid + " pool ";
-			ee = this.pools.get(serviceJid);
-		} else {
-			result += "default pool ";
-			ee = this.pools.get(null);
+		DomainPool pool = getPool(serviceJid);
+		String result = (pool != null && pool != defaultPool) ? serviceJid + " pool " : "default pool ";
+		if (pool == null) {
+			return result + "does not exist.";
 		}
-
-		result += "has " + ee.size() + " element(s).";
-
-		return result;
+		if (pool.shared != null) {
+			return result + "uses shared DAO.";
+		}
+		return result + "has " + pool.queue.size() + " element(s), " + pool.borrowed.get() + " in use.";
 	}
 
 	@Override
 	public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getChildNodes(serviceJid, nodeName);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getChildNodes(serviceJid, nodeName);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void getChildNodes(BareJID serviceJid, String nodeName, int batchSize, Consumer<String[]> consumer)
+			throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.getChildNodes(serviceJid, nodeName, batchSize, consumer);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public Map<String, UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID jid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getUserAffiliations(serviceJid, jid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getUserAffiliations(serviceJid, jid);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	@Override
 	public Map<String, UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID jid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				return dao.getUserSubscriptions(serviceJid, jid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			return dao.getUserSubscriptions(serviceJid, jid);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
-		return null;
 	}
 
 	/**
@@ -414,13 +417,16 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	}
 
 	protected void offerDao(BareJID serviceJid, IPubSubDAO dao) {
+		DomainPool pool = getPool(serviceJid);
+		if (pool.shared == dao) {
+			return;
+		}
+		pool.borrowed.decrementAndGet();
 		if (destroyed) {
 			dao.destroy();
 			return;
 		}
-		LinkedBlockingQueue<IPubSubDAO> ee = this.pools.containsKey(serviceJid) ? this.pools.get(serviceJid)
-				: this.pools.get(null);
-		ee.offer(dao);
+		pool.queue.offer(dao);
 	}
 
 /*	//@Override
@@ -438,70 +444,171 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 		return null;
 	}*/
 
+	@Override
+	public void purgeItems(BareJID serviceJid, T nodeId) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.purgeItems(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void trimItems(BareJID serviceJid, T nodeId, int maxItems) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.trimItems(serviceJid, nodeId, maxItems);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
 	@Override
 	public void removeAllFromRootCollection(BareJID serviceJid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeAllFromRootCollection(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.removeAllFromRootCollection(serviceJid);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public void removeFromRootCollection(BareJID serviceJid, T nodeId) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeFromRootCollection(serviceJid, nodeId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.removeFromRootCollection(serviceJid, nodeId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public void removeNodeSubscription(BareJID serviceJid, T nodeId, BareJID jid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
+		try {
+			dao.removeNodeSubscription(serviceJid, nodeId, jid);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	/**
+	 * Takes DAO for domain from the pool. If all DAOs are in use, waits for
+	 * one at most configured time.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return
+	 *
+	 * @throws RepositoryTimeoutException
+	 *             if no DAO was available in time
+	 */
+	public IPubSubDAO takeDao(BareJID serviceJid) throws RepositoryException {
+		DomainPool pool = getPool(serviceJid);
+		if (pool == null) {
+			throw new RepositoryException("No PubSub DAO configured for " + serviceJid);
+		}
+		if (pool.shared != null) {
+			return pool.shared;
+		}
+
+		IPubSubDAO dao = pool.queue.poll();
+		if (dao == null) {
+			long start = System.nanoTime();
 			try {
-				dao.removeNodeSubscription(serviceJid, nodeId, jid);
-			} finally {
-				offerDao(serviceJid, dao);
+				dao = pool.queue.poll(maxWait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				log.log(Level.WARNING, "Couldn't obtain PubSub DAO from the pool", ex);
+			}
+			pool.waitTimes.record((System.nanoTime() - start) / 1000000);
+			if (dao == null) {
+				pool.timeouts.incrementAndGet();
+				throw new RepositoryTimeoutException("No PubSub DAO available in " + maxWait + "ms - "
+						+ getPoolDetails(serviceJid));
 			}
 		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+			pool.waitTimes.record(0);
 		}
+		pool.borrowed.incrementAndGet();
+		return dao;
 	}
 
-	public IPubSubDAO takeDao(BareJID serviceJid) {
-		try {
-			LinkedBlockingQueue<IPubSubDAO> ee = this.pools.containsKey(serviceJid) ? this.pools.get(serviceJid)
-					: this.pools.get(null);
-			return ee.take();
-		} catch (InterruptedException ex) {
-			log.log(Level.WARNING, "Couldn't obtain PubSub DAO from the pool", ex);
+	/**
+	 * Sets maximal time in ms for which thread waits for DAO.
+	 *
+	 * @param maxWait
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	@Override
+	public void getStatistics(String compName, String prefix, StatisticsList list) {
+		for (Map.Entry<BareJID, DomainPool> e : pools.entrySet()) {
+			getStatistics(compName, prefix + e.getKey() + "/", e.getValue(), list);
+		}
+		if (defaultPool != null) {
+			getStatistics(compName, prefix, defaultPool, list);
 		}
-		return null;
+	}
+
+	private void getStatistics(String compName, String prefix, DomainPool pool, StatisticsList list) {
+		if (pool.shared != null) {
+			if (pool.shared instanceof PubSubDAO) {
+				((PubSubDAO) pool.shared).getStatistics(compName, prefix, list);
+			}
+			return;
+		}
+		list.add(compName, prefix + "dao-pool/size", pool.size.get(), Level.FINE);
+		list.add(compName, prefix + "dao-pool/borrowed", pool.borrowed.get(), Level.FINE);
+		list.add(compName, prefix + "dao-pool/idle", pool.queue.size(), Level.FINE);
+		list.add(compName, prefix + "dao-pool/timeouts", pool.timeouts.get(), Level.FINE);
+		list.add(compName, prefix + "dao-pool/wait time", pool.waitTimes.toString(), Level.FINE);
+	}
+
+	private synchronized DomainPool getOrCreatePool(BareJID domain) {
+		if (domain == null) {
+			if (defaultPool == null) {
+				defaultPool = new DomainPool();
+			}
+			return defaultPool;
+		}
+		return pools.computeIfAbsent(domain, k -> new DomainPool());
+	}
+
+	/**
+	 * Returns pool of DAOs for domain or default pool if there is no pool for
+	 * this domain.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return
+	 */
+	private DomainPool getPool(BareJID serviceJid) {
+		DomainPool pool = serviceJid == null ? null : pools.get(serviceJid);
+		return pool != null ? pool : defaultPool;
 	}
 
 	@Override
 	public void updateNodeAffiliation(BareJID serviceJid, T nodeId, String nodeName, UsersAffiliation affiliation) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.updateNodeAffiliation(serviceJid, nodeId, nodeName, affiliation);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void updateNodeAffiliations(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersAffiliation> affiliations) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.updateNodeAffiliations(serviceJid, nodeId, nodeName, affiliations);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
@@ -509,14 +616,10 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	public void updateNodeConfig(final BareJID serviceJid, final T nodeId, final String serializedData, final T collectionId)
 			throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeConfig(serviceJid, nodeId, serializedData, collectionId);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.updateNodeConfig(serviceJid, nodeId, serializedData, collectionId);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
@@ -524,14 +627,21 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	public void updateNodeSubscription(BareJID serviceJid, T nodeId, String nodeName, UsersSubscription subscription)
 			throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.updateNodeSubscription(serviceJid, nodeId, nodeName, subscription);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void updateNodeSubscriptions(BareJID serviceJid, T nodeId, String nodeName, Collection<UsersSubscription> subscriptions)
+			throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.updateNodeSubscriptions(serviceJid, nodeId, nodeName, subscriptions);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
@@ -539,28 +649,31 @@ public class PubSubDAOPool<T> extends PubSubDAO<T> {
 	public void writeItem(final BareJID serviceJid, T nodeId, long timeInMilis, final String id,
 			final String publisher, final Element item) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
+		try {
+			dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
+
+	@Override
+	public void writeItems(BareJID serviceJid, T nodeId, List<IItems.ItemData> items) throws RepositoryException {
+		IPubSubDAO dao = takeDao(serviceJid);
+		try {
+			dao.writeItems(serviceJid, nodeId, items);
+		} finally {
+			offerDao(serviceJid, dao);
 		}
 	}
 
 	@Override
 	public void removeService(BareJID serviceJid) throws RepositoryException {
 		IPubSubDAO dao = takeDao(serviceJid);
-		if (dao != null) {
-			try {
-				dao.removeService(serviceJid);
-			} finally {
-				offerDao(serviceJid, dao);
-			}
-		} else {
-			log.warning("dao is NULL, pool empty? - " + getPoolDetails(serviceJid));
-		}	}
+		try {
+			dao.removeService(serviceJid);
+		} finally {
+			offerDao(serviceJid, dao);
+		}
+	}
 
 }
@@ -1,7 +1,9 @@
 package tigase.pubsub.repository;
 
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.stats.StatisticHolder;
 import tigase.stats.StatisticsList;
@@ -64,6 +66,16 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		return repo.getNodeConfig(serviceJid, nodeName);
 	}
 
+	@Override
+	public NodeConfigSnapshot getNodeConfigSnapshot(BareJID serviceJid, String nodeName) throws RepositoryException {
+		return repo.getNodeConfigSnapshot(serviceJid, nodeName);
+	}
+
+	@Override
+	public String[] getNodeChildren(BareJID serviceJid, String nodeName) throws RepositoryException {
+		return repo.getNodeChildren(serviceJid, nodeName);
+	}
+
 	@Override
 	public IItems getNodeItems(BareJID serviceJid, String nodeName) throws RepositoryException {
 		return repo.getNodeItems(serviceJid, nodeName);
@@ -74,6 +86,11 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		return repo.getNodeMeta(serviceJid, nodeName);
 	}
 
+	@Override
+	public String[] getNodeParents(BareJID serviceJid, String nodeName) throws RepositoryException {
+		return repo.getNodeParents(serviceJid, nodeName);
+	}
+
 	@Override
 	public ISubscriptions getNodeSubscriptions(BareJID serviceJid, String nodeName) throws RepositoryException {
 		return repo.getNodeSubscriptions(serviceJid, nodeName);
@@ -94,6 +111,21 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		return repo.getUserRoster(owner);
 	}
 
+	@Override
+	public UserRoster getUserRosterIndex(BareJID owner) throws RepositoryException {
+		return repo.getUserRosterIndex(owner);
+	}
+
+	@Override
+	public void invalidateUserRoster(BareJID owner) {
+		repo.invalidateUserRoster(owner);
+	}
+
+	@Override
+	public Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException {
+		return repo.getUserAffiliations(serviceJid, userJid);
+	}
+
 	@Override
 	public Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException {
 		return repo.getUserSubscriptions(serviceJid, userJid);
@@ -134,6 +166,11 @@ public class PubSubRepositoryWrapper implements IPubSubRepository, StatisticHold
 		
 	}
 
+	@Override
+	public int verifyCollectionsIndex(BareJID serviceJid) throws RepositoryException {
+		return repo.verifyCollectionsIndex(serviceJid);
+	}
+
 	@Override
 	public void statisticExecutedIn(long executionTime) {
 		if (repo instanceof StatisticHolder) {
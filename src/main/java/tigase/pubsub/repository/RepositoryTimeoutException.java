@@ -0,0 +1,33 @@
+/*
+ * Tigase Jabber/XMPP Publish Subscribe Component
+ * Copyright (C) 2007 "Bartosz M. Małkowski" <bartosz.malkowski@tigase.org>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.pubsub.repository;
+
+/**
+ * Thrown when repository was not available in configured time, ie. when all
+ * DAOs of the pool were in use. Request failing with this exception is
+ * answered with <code>resource-constraint</code> error.
+ */
+public class RepositoryTimeoutException extends RepositoryException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RepositoryTimeoutException(String message) {
+		super(message);
+	}
+
+}
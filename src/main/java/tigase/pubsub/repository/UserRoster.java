@@ -0,0 +1,130 @@
+/*
+ * UserRoster.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository;
+
+import tigase.xmpp.BareJID;
+import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.impl.roster.RosterAbstract.SubscriptionType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parsed roster of a user, indexed by JID and by group, so access checks
+ * do not need to iterate over roster items. Instances are immutable and may
+ * be shared between threads.
+ */
+public class UserRoster {
+
+	private final Map<String, Set<BareJID>> groups = new HashMap<String, Set<BareJID>>();
+
+	private final Map<BareJID, RosterElement> items;
+
+	private final List<BareJID> subscribedFrom = new ArrayList<BareJID>();
+
+	public UserRoster(Map<BareJID, RosterElement> items) {
+		this.items = Collections.unmodifiableMap(new HashMap<BareJID, RosterElement>(items));
+		for (Map.Entry<BareJID, RosterElement> e : this.items.entrySet()) {
+			if (isSubscribedFrom(e.getValue())) {
+				subscribedFrom.add(e.getKey());
+			}
+			String[] itemGroups = e.getValue().getGroups();
+			if (itemGroups != null) {
+				for (String group : itemGroups) {
+					Set<BareJID> jids = groups.get(group);
+					if (jids == null) {
+						jids = new HashSet<BareJID>();
+						groups.put(group, jids);
+					}
+					jids.add(e.getKey());
+				}
+			}
+		}
+	}
+
+	private static boolean isSubscribedFrom(RosterElement re) {
+		SubscriptionType sub = re.getSubscription();
+		return sub == SubscriptionType.both || sub == SubscriptionType.from || sub == SubscriptionType.from_pending_out;
+	}
+
+	public RosterElement get(BareJID jid) {
+		return items.get(jid);
+	}
+
+	/**
+	 * @return unmodifiable map of roster items by their JID
+	 */
+	public Map<BareJID, RosterElement> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return JIDs of contacts which are allowed to see presence of the owner
+	 *         of roster
+	 */
+	public List<BareJID> getSubscribedFrom() {
+		return Collections.unmodifiableList(subscribedFrom);
+	}
+
+	/**
+	 * Checks if contact is in any of groups.
+	 *
+	 * @param jid
+	 * @param groupNames
+	 *
+	 * @return
+	 */
+	public boolean isInGroups(BareJID jid, String[] groupNames) {
+		if (groupNames == null) {
+			return false;
+		}
+		for (String group : groupNames) {
+			Set<BareJID> jids = groups.get(group);
+			if (jids != null && jids.contains(jid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if contact is allowed to see presence of the owner of roster.
+	 *
+	 * @param jid
+	 *
+	 * @return
+	 */
+	public boolean isSubscribedFrom(BareJID jid) {
+		RosterElement re = items.get(jid);
+		return re != null && isSubscribedFrom(re);
+	}
+
+	public int size() {
+		return items.size();
+	}
+
+}
@@ -23,9 +23,9 @@ package tigase.pubsub.repository.cached;
 
 import tigase.pubsub.*;
 import tigase.pubsub.repository.*;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
-import tigase.stats.Counter;
 import tigase.stats.StatisticHolder;
 import tigase.stats.StatisticHolderImpl;
 import tigase.stats.StatisticsList;
@@ -33,7 +33,19 @@ import tigase.xmpp.BareJID;
 import tigase.xmpp.impl.roster.RosterElement;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,13 +61,17 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	private class NodeSaver {
 
 		public void save(Node<T> node) throws RepositoryException {
+			if (writeBehind != null) {
+				writeBehind.enqueue(node);
+				return;
+			}
 			save(node, 0);
 		}
 
 		public void save(Node<T> node, int iteration) throws RepositoryException {
 			long start = System.currentTimeMillis();
 
-			++repo_writes;
+			repoWrites.incrementAndGet();
 
 			// Prevent node modifications while it is being written to DB
 			// From 3.0.0 this should not be needed as we keep changes to the node per thread
@@ -89,6 +105,9 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 						for (Map.Entry<BareJID,UsersAffiliation> entry : changedAffiliations.entrySet()) {
 							dao.updateNodeAffiliation(node.getServiceJid(), node.getNodeId(), node.getName(), entry.getValue());
 						}
+						if (userNodesIndex != null) {
+							userNodesIndex.affiliationsChanged(node.getServiceJid(), node.getName(), changedAffiliations.values());
+						}
 						node.affiliationsSaved();
 					}
 
@@ -113,6 +132,9 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 								dao.updateNodeSubscription(node.getServiceJid(), node.getNodeId(), node.getName(), subscription);
 							}
 						}
+						if (userNodesIndex != null) {
+							userNodesIndex.subscriptionsChanged(node.getServiceJid(), node.getName(), changedSubscriptions.values());
+						}
 						node.subscriptionsSaved();
 					}
 				} catch (Exception e) {
@@ -144,86 +166,505 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 			long end = System.currentTimeMillis();
 
-			writingTime += (end - start);
+			writingTime.addAndGet(end - start);
 		}
 	}
 
-	private class SizedCache extends LinkedHashMap<String, Node> implements StatisticHolder {
-		private static final long serialVersionUID = 1L;
+	/**
+	 * Write-behind queue for node changes. Changes of a node are captured from
+	 * the calling thread, applied to the cached node and coalesced per node
+	 * until they are written to the database by a single writer thread, either
+	 * when the number of pending changes reaches the batch size or when the
+	 * oldest change waits for longer than the configured delay. Changes which
+	 * could not be written are kept and retried with increasing delay until
+	 * they are stored.
+	 */
+	private class WriteBehindQueue {
+
+		private static final int REPORT_AFTER_ATTEMPTS = 10;
+		private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+		private final int batchSize;
+		private final long maxDelay;
+		private final ConcurrentHashMap<String,NodeChanges> dirty = new ConcurrentHashMap<>();
+		private final ScheduledExecutorService executor;
+		private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+		private final ConcurrentHashMap<String,NodeChanges> inFlight = new ConcurrentHashMap<>();
+		private final AtomicInteger pendingChanges = new AtomicInteger(0);
+
+		private final StatisticHolderImpl flushStats = new StatisticHolderImpl("db/write-behind flush");
+		private final AtomicLong flushedChanges = new AtomicLong(0);
+		private final AtomicLong flushFailures = new AtomicLong(0);
+
+		public WriteBehindQueue(int batchSize, long maxDelay) {
+			this.batchSize = batchSize;
+			this.maxDelay = maxDelay;
+			this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "pubsub-write-behind");
+				t.setDaemon(true);
+				return t;
+			});
+			this.executor.scheduleWithFixedDelay(this::flush, maxDelay, maxDelay, TimeUnit.MILLISECONDS);
+		}
 
-		private int maxCacheSize = 1000;
+		public void enqueue(Node<T> node) throws RepositoryException {
+			if (node.isDeleted()) {
+				return;
+			}
 
-		private Counter requestsCounter = new Counter("cache/requests", Level.FINEST);
-		private Counter hitsCounter = new Counter("cache/hits", Level.FINEST);
+			// changes are kept per thread, so we need to capture them before
+			// they are handed over to the writer thread
+			final boolean config = node.configNeedsWriting();
+			final Map<BareJID,UsersAffiliation> affiliations = new HashMap<>();
+			for (UsersAffiliation affiliation : node.getNodeAffiliations().getChanged().values()) {
+				try {
+					affiliations.put(affiliation.getJid(), affiliation.clone());
+				} catch (CloneNotSupportedException ex) {
+					affiliations.put(affiliation.getJid(), affiliation);
+				}
+			}
+			final Map<BareJID,UsersSubscription> subscriptions = new HashMap<>();
+			for (UsersSubscription subscription : node.getNodeSubscriptions().getChanged().values()) {
+				try {
+					subscriptions.put(subscription.getJid(), subscription.clone());
+				} catch (CloneNotSupportedException ex) {
+					subscriptions.put(subscription.getJid(), subscription);
+				}
+			}
+			if (!config && affiliations.isEmpty() && subscriptions.isEmpty()) {
+				return;
+			}
+			if (config) {
+				node.configSaved();
+			}
+			node.affiliationsMerge();
+			node.subscriptionsMerge();
+
+			final int[] added = new int[1];
+			dirty.compute(createKey(node.getServiceJid(), node.getName()), (key, changes) -> {
+				if (changes == null) {
+					changes = new NodeChanges(node);
+				}
+				added[0] = changes.add(config, affiliations, subscriptions);
+				return changes;
+			});
+
+			int pending = pendingChanges.addAndGet(added[0]);
+			if (executor.isShutdown()) {
+				// writer thread is stopped, so changes are written immediately
+				flush(createKey(node.getServiceJid(), node.getName()));
+				return;
+			}
 
-		public SizedCache(int maxSize) {
-			super(maxSize, 0.1f, true);
-			maxCacheSize = maxSize;
+			if (pending >= batchSize && flushRequested.compareAndSet(false, true)) {
+				try {
+					executor.execute(this::flush);
+				} catch (RejectedExecutionException ex) {
+					flushRequested.set(false);
+				}
+			}
 		}
 
-		@Override
-		public Node get(Object key) {
-			Node val = super.get(key);
-			requestsCounter.inc();
-			if (val != null)
-				hitsCounter.inc();
-			return val;
+		public void discard(String key) {
+			NodeChanges changes = dirty.remove(key);
+			if (changes != null) {
+				pendingChanges.addAndGet(-changes.size());
+			}
 		}
 
-		@Override
-		public void getStatistics(String compName, StatisticsList list) {
-			requestsCounter.getStatistics(compName, list);
-			hitsCounter.getStatistics(compName, list);
-			list.add(compName, "cache/hit-miss ratio per minute", (requestsCounter.getPerMinute() == 0) ? 0 : ((float) hitsCounter.getPerMinute())/requestsCounter.getPerMinute(), Level.FINE);
-			list.add(compName, "cache/hit-miss ratio per second", (requestsCounter.getPerSecond() == 0) ? 0 : ((float) hitsCounter.getPerSecond())/requestsCounter.getPerSecond(), Level.FINE);
+		public void discardService(BareJID serviceJid) {
+			for (String key : dirty.keySet()) {
+				NodeChanges changes = dirty.get(key);
+				if (changes != null && serviceJid.equals(changes.node.getServiceJid())) {
+					discard(key);
+				}
+			}
 		}
 
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
-			return (size() > maxCacheSize) && !eldest.getValue().needsWriting();
+		/**
+		 * Applies changes of parents of nodes of a service which are not
+		 * written to the database yet to children of a collection read from
+		 * the database.
+		 */
+		public void applyPendingParents(BareJID serviceJid, String collection, Set<String> children) {
+			applyPendingParents(inFlight, serviceJid, collection, children);
+			applyPendingParents(dirty, serviceJid, collection, children);
 		}
 
-		@Override
-		public void statisticExecutedIn(long executionTime) {
-			throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+		public boolean isPending(String key) {
+			return dirty.containsKey(key) || inFlight.containsKey(key);
 		}
 
-		@Override
-		public void everyHour() {
-			requestsCounter.everyHour();
-			hitsCounter.everyHour();
+		public int size() {
+			return dirty.size();
 		}
 
-		@Override
-		public void everyMinute() {
-			requestsCounter.everyMinute();
-			hitsCounter.everyMinute();
+		public void flush() {
+			flushRequested.set(false);
+			if (dirty.isEmpty()) {
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			boolean force = executor.isShutdown();
+			for (String key : dirty.keySet()) {
+				NodeChanges changes = take(key, force, false);
+				if (changes != null) {
+					write(key, changes);
+				}
+			}
+			long end = System.currentTimeMillis();
+			flushStats.statisticExecutedIn(end - start);
+			writingTime.addAndGet(end - start);
 		}
 
-		@Override
-		public void everySecond() {
-			requestsCounter.everySecond();
-			hitsCounter.everySecond();
+		/**
+		 * Writes pending changes of a node immediately, waiting for a write of
+		 * the node which is already in progress.
+		 *
+		 * @throws RepositoryException
+		 *             if changes could not be written, they are kept in the
+		 *             queue and retried later
+		 */
+		public void flush(String key) throws RepositoryException {
+			NodeChanges changes = take(key, true, true);
+			if (changes != null && !write(key, changes)) {
+				throw new RepositoryException("Changes of node " + changes.node.getName()
+						+ " are not saved yet, will retry later");
+			}
+		}
+
+		/**
+		 * Takes changes of a node out of the queue, so they may be written
+		 * without holding any lock. Only one thread writes changes of a node
+		 * at a time, so older changes are never written after newer ones.
+		 */
+		private synchronized NodeChanges take(String key, boolean force, boolean waitForWrite) {
+			while (inFlight.containsKey(key)) {
+				if (!waitForWrite) {
+					return null;
+				}
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			final long now = System.currentTimeMillis();
+			final AtomicReference<NodeChanges> taken = new AtomicReference<>();
+			dirty.computeIfPresent(key, (k, changes) -> {
+				if (!force && changes.retryAt > now) {
+					return changes;
+				}
+				inFlight.put(k, changes);
+				taken.set(changes);
+				return null;
+			});
+			NodeChanges changes = taken.get();
+			if (changes != null) {
+				pendingChanges.addAndGet(-changes.size());
+			}
+			return changes;
+		}
+
+		private synchronized void written(String key) {
+			inFlight.remove(key);
+			notifyAll();
+		}
+
+		private boolean write(String key, NodeChanges changes) {
+			int size = changes.size();
+			try {
+				write(changes);
+				flushedChanges.addAndGet(size);
+				return true;
+			} catch (Exception ex) {
+				flushFailures.incrementAndGet();
+				int attempts = ++changes.attempts;
+				changes.retryAt = System.currentTimeMillis()
+						+ Math.min(maxDelay << Math.min(attempts - 1, 16), MAX_RETRY_DELAY);
+				if (attempts == REPORT_AFTER_ATTEMPTS) {
+					log.log(Level.SEVERE, "Was not able to save data for node " + changes.node.getName() + " on "
+							+ attempts + " attempts, will keep retrying", ex);
+				} else {
+					log.log(Level.WARNING, "Problem saving pubsub data, will retry: ", ex);
+				}
+				// changes made in the meantime are newer so they take precedence
+				final int[] added = new int[] { changes.size() };
+				dirty.merge(key, changes, (newer, older) -> {
+					int before = newer.size();
+					newer.addOlder(older);
+					added[0] = newer.size() - before;
+					return newer;
+				});
+				pendingChanges.addAndGet(added[0]);
+				return false;
+			} finally {
+				written(key);
+			}
+		}
+
+		private void applyPendingParents(Map<String,NodeChanges> queue, BareJID serviceJid, String collection,
+				Set<String> children) {
+			for (NodeChanges changes : queue.values()) {
+				Node<T> node = changes.node;
+				if (!changes.config || node.isDeleted() || !serviceJid.equals(node.getServiceJid())) {
+					continue;
+				}
+				String parent;
+				synchronized (node) {
+					parent = node.getNodeConfig().getCollection();
+				}
+				if (collection.equals(parent)) {
+					children.add(node.getName());
+				} else {
+					children.remove(node.getName());
+				}
+			}
+		}
+
+		public void shutdown() {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(MAX_WRITE_DELAY, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				log.log(Level.FINEST, "interrupted while waiting for write-behind thread to finish");
+			}
+			flush();
+			if (!dirty.isEmpty()) {
+				log.log(Level.SEVERE, "Was not able to save data of " + dirty.size() + " node(s) before shutdown");
+			}
+		}
+
+		public void getStatistics(String name, StatisticsList list) {
+			list.add(name, "Write-behind dirty nodes", dirty.size(), Level.FINE);
+			list.add(name, "Write-behind pending changes", pendingChanges.get(), Level.FINE);
+			list.add(name, "Write-behind flushed changes", flushedChanges.get(), Level.FINE);
+			list.add(name, "Write-behind flush failures", flushFailures.get(), Level.FINE);
+			int retrying = 0;
+			for (NodeChanges changes : dirty.values()) {
+				if (changes.attempts > 0) {
+					retrying++;
+				}
+			}
+			list.add(name, "Write-behind retrying nodes", retrying, Level.FINE);
+			flushStats.getStatistics(name, list);
+		}
+
+		private void write(NodeChanges changes) throws RepositoryException {
+			Node<T> node = changes.node;
+			if (node.isDeleted()) {
+				return;
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Writing node: {0}, changes: {1}", new Object[] { node, changes });
+			}
+
+			if (changes.config) {
+				String collection;
+				String serializedConfig;
+				synchronized (node) {
+					collection = node.getNodeConfig().getCollection();
+					serializedConfig = node.getNodeConfig().getFormElement().toString();
+				}
+				T collectionId = null;
+				if (collection != null && !collection.equals("")) {
+					collectionId = dao.getNodeId(node.getServiceJid(), collection);
+					if (collectionId == null) {
+						throw new RepositoryException("Parent collection does not exists yet!");
+					}
+				}
+				dao.updateNodeConfig(node.getServiceJid(), node.getNodeId(), serializedConfig, collectionId);
+				changes.config = false;
+			}
+
+			if (!changes.affiliations.isEmpty()) {
+				dao.updateNodeAffiliations(node.getServiceJid(), node.getNodeId(), node.getName(),
+						changes.affiliations.values());
+				if (userNodesIndex != null) {
+					userNodesIndex.affiliationsChanged(node.getServiceJid(), node.getName(), changes.affiliations.values());
+				}
+				changes.affiliations.clear();
+			}
+
+			if (!changes.subscriptions.isEmpty()) {
+				dao.updateNodeSubscriptions(node.getServiceJid(), node.getNodeId(), node.getName(),
+						changes.subscriptions.values());
+				if (userNodesIndex != null) {
+					userNodesIndex.subscriptionsChanged(node.getServiceJid(), node.getName(), changes.subscriptions.values());
+				}
+				changes.subscriptions.clear();
+			}
+			repoWrites.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Loads root collections of services in background on a bounded number of
+	 * threads. Services which were queried most recently are loaded first, as
+	 * users are most likely waiting for them.
+	 */
+	private class RootCollectionLoader {
+
+		private final ThreadPoolExecutor executor;
+		private final AtomicLong sequence = new AtomicLong(0);
+		private final Map<RootCollectionSet,LoadTask> pending = new HashMap<>();
+		private final StatisticHolderImpl waitStats = new StatisticHolderImpl("db/loadRootCollection queue wait");
+
+		public RootCollectionLoader(int threads) {
+			final AtomicInteger counter = new AtomicInteger(0);
+			this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new PriorityBlockingQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "pubsub-root-collection-loader-" + counter.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			this.executor.allowCoreThreadTimeOut(true);
+		}
+
+		/**
+		 * Schedules loading of root collection. If loading of a collection was
+		 * already scheduled but not yet started, it is moved to the front of
+		 * the queue.
+		 */
+		public void schedule(RootCollectionSet rootCollection) {
+			LoadTask task;
+			synchronized (pending) {
+				LoadTask queued = pending.get(rootCollection);
+				if (queued != null && !executor.remove(queued)) {
+					// task was already taken from the queue and will start shortly
+					return;
+				}
+				task = new LoadTask(rootCollection, sequence.incrementAndGet());
+				pending.put(rootCollection, task);
+			}
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException ex) {
+				synchronized (pending) {
+					pending.remove(rootCollection, task);
+				}
+				log.log(Level.WARNING, "Could not schedule loading of root collection of " + rootCollection.getServiceJid(), ex);
+				rootCollection.loadingFailed();
+			}
+		}
+
+		public void setThreads(int threads) {
+			// core size may not be bigger than maximal size at any time
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+
+		public void shutdown() {
+			executor.shutdownNow();
+		}
+
+		public void getStatistics(String name, StatisticsList list) {
+			list.add(name, "Root collection loading queue size", executor.getQueue().size(), Level.FINE);
+			list.add(name, "Root collection loading threads", executor.getPoolSize(), Level.FINEST);
+			waitStats.getStatistics(name, list);
+		}
+
+		private class LoadTask implements Runnable, Comparable<LoadTask> {
+
+			private final RootCollectionSet rootCollection;
+			private final long priority;
+
+			private LoadTask(RootCollectionSet rootCollection, long priority) {
+				this.rootCollection = rootCollection;
+				this.priority = priority;
+			}
+
+			@Override
+			public int compareTo(LoadTask o) {
+				// most recently scheduled first
+				return Long.compare(o.priority, priority);
+			}
+
+			@Override
+			public void run() {
+				synchronized (pending) {
+					pending.remove(rootCollection, this);
+				}
+				long waited = rootCollection.loadStarted();
+				if (waited < 0) {
+					// loading was started by other task for the same collection
+					return;
+				}
+				waitStats.statisticExecutedIn(waited);
+				try {
+					readRootCollection(rootCollection);
+				} catch (Throwable ex) {
+					log.log(Level.FINE, "Could not load root collection of " + rootCollection.getServiceJid(), ex);
+				}
+			}
+		}
+	}
+
+	private class NodeChanges {
+
+		private final Node<T> node;
+		private final Map<BareJID,UsersAffiliation> affiliations = new HashMap<>();
+		private final Map<BareJID,UsersSubscription> subscriptions = new HashMap<>();
+		private boolean config = false;
+		private int attempts = 0;
+		private long retryAt = 0;
+
+		private NodeChanges(Node<T> node) {
+			this.node = node;
+		}
+
+		private int add(boolean config, Map<BareJID,UsersAffiliation> affiliations,
+				Map<BareJID,UsersSubscription> subscriptions) {
+			int before = size();
+			this.config |= config;
+			this.affiliations.putAll(affiliations);
+			this.subscriptions.putAll(subscriptions);
+			return size() - before;
+		}
+
+		private void addOlder(NodeChanges older) {
+			this.config |= older.config;
+			older.affiliations.forEach(this.affiliations::putIfAbsent);
+			older.subscriptions.forEach(this.subscriptions::putIfAbsent);
+			this.attempts = Math.max(this.attempts, older.attempts);
+			this.retryAt = Math.max(this.retryAt, older.retryAt);
+		}
+
+		private int size() {
+			return (config ? 1 : 0) + affiliations.size() + subscriptions.size();
 		}
 
 		@Override
-		public void setStatisticsPrefix(String prefix) {
-			throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+		public String toString() {
+			return "NodeChanges{config=" + config + ", affiliations=" + affiliations.values() + ", subscriptions="
+					+ subscriptions.values() + ", attempts=" + attempts + '}';
 		}
 	}
 
 	/** Field description */
 	public final static long MAX_WRITE_DELAY = 1000l * 15l;
+	/** Default number of threads loading root collections in background */
+	public final static int DEFAULT_ROOT_COLLECTION_LOADING_THREADS = 4;
+	/** Number of names of nodes of root collection read from repository at once */
+	protected final static int ROOT_COLLECTION_BATCH_SIZE = 1000;
 	protected final IPubSubDAO<T> dao;
 	protected Logger log = Logger.getLogger(this.getClass().getName());
 	private final Integer maxCacheSize;
 	// private final Object mutex = new Object();
 	// this
-	private final StatisticHolder cacheStats;
+	private final NodeCache cache;
 	protected final Map<String, Node> nodes;
 	private long nodes_added = 0;
 
-	private long repo_writes = 0;
+	private final AtomicLong repoWrites = new AtomicLong(0);
 
 	private final ConcurrentHashMap<BareJID,RootCollectionSet> rootCollection = new ConcurrentHashMap<>();
 	private NodeSaver nodeSaver;
@@ -232,18 +673,39 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	private long updateSubscriptionsCalled = 0;
 
-	private long writingTime = 0;
+	private final AtomicLong writingTime = new AtomicLong(0);
 
 	private final Map<String,StatisticHolder> stats;
 
 	private boolean delayedRootCollectionLoading = false;
 
+	private RootCollectionLoader rootCollectionLoader = null;
+
+	private int rootCollectionLoadingThreads = DEFAULT_ROOT_COLLECTION_LOADING_THREADS;
+
+	private final AtomicLong rootCollectionLoadFailures = new AtomicLong(0);
+
+	private WriteBehindQueue writeBehind = null;
+
+	private ItemsCache itemsCache = null;
+
+	private UserRosterCache rosterCache = null;
+
+	private UserNodesIndex userNodesIndex = null;
+
+	private CollectionsIndex collectionsIndex = null;
+
+	private final ConcurrentHashMap<String,CompletableFuture<Node<T>>> nodesLoading = new ConcurrentHashMap<>();
+	private final AtomicLong nodeLoadWaits = new AtomicLong(0);
+
 	public CachedPubSubRepository(final PubSubDAO dao, final Integer maxCacheSize) {
 		this.dao = dao;
 		this.maxCacheSize = maxCacheSize;
-		final SizedCache cache = new SizedCache(this.maxCacheSize);
-		cacheStats = cache;
-		nodes = Collections.synchronizedMap(cache);
+		// nodes with changes not written to the database yet cannot be evicted
+		this.cache = new NodeCache(maxCacheSize == null ? Integer.MAX_VALUE : maxCacheSize,
+				node -> 1 + node.getNodeSubscriptions().getSubscriptionsMap().size(),
+				(key, node) -> !node.needsWriting() && !isWritePending(key));
+		nodes = cache;
 
 		// Runtime.getRuntime().addShutdownHook(makeLazyWriteThread(true));
 		log.config("Initializing Cached Repository with cache size = " + ((maxCacheSize == null) ? "OFF" : maxCacheSize));
@@ -252,6 +714,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 		this.stats = new ConcurrentHashMap<String, StatisticHolder>();
 		stats.put("getNodeItems", new StatisticHolderImpl("db/getNodeItems requests"));
+		stats.put("loadNode", new StatisticHolderImpl("db/loadNode requests"));
+		stats.put("loadRootCollection", new StatisticHolderImpl("db/loadRootCollection requests"));
 
 		// Thread.dumpStack();
 	}
@@ -267,20 +731,12 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		long subscriptionsCount = 0;
 		long affiliationsCount = 0;
 
-		// synchronized (mutex) {
-		Map<String, Node> tmp = null;
-
-		synchronized (nodes) {
-			tmp = new LinkedHashMap<String, Node>(nodes);
-		}
-
-		for (Node nd : tmp.values()) {
+		// values() returns a snapshot, so there is no need to lock whole cache
+		for (Node nd : nodes.values()) {
 			subscriptionsCount += nd.getNodeSubscriptions().getSubscriptionsMap().size();
 			affiliationsCount += nd.getNodeAffiliations().getAffiliationsMap().size();
 		}
 
-		// }
-
 		if (updateSubscriptionsCalled > 0) {
 			stats.add(name, "Update subscriptions calls", updateSubscriptionsCalled, Level.FINE);
 		} else {
@@ -299,10 +755,10 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			stats.add(name, "Affiliations count (in cache)", affiliationsCount, Level.FINEST);
 		}
 
-		if (repo_writes > 0) {
-			stats.add(name, "Repository writes", repo_writes, Level.FINE);
+		if (repoWrites.get() > 0) {
+			stats.add(name, "Repository writes", repoWrites.get(), Level.FINE);
 		} else {
-			stats.add(name, "Repository writes", repo_writes, Level.FINEST);
+			stats.add(name, "Repository writes", repoWrites.get(), Level.FINEST);
 		}
 
 		if (nodes_added > 0) {
@@ -312,20 +768,50 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 
 		if (nodes_added > 0) {
-			stats.add(name, "Total writing time", Utils.longToTime(writingTime), Level.INFO);
+			stats.add(name, "Total writing time", Utils.longToTime(writingTime.get()), Level.INFO);
 		} else {
-			stats.add(name, "Total writing time", Utils.longToTime(writingTime), Level.FINEST);
+			stats.add(name, "Total writing time", Utils.longToTime(writingTime.get()), Level.FINEST);
 		}
 
-		if (nodes_added + repo_writes > 0) {
+		if (nodes_added + repoWrites.get() > 0) {
 			if (nodes_added > 0) {
-				stats.add(name, "Average DB write time [ms]", (writingTime / (nodes_added + repo_writes)), Level.INFO);
+				stats.add(name, "Average DB write time [ms]", (writingTime.get() / (nodes_added + repoWrites.get())), Level.INFO);
 			} else {
-				stats.add(name, "Average DB write time [ms]", (writingTime / (nodes_added + repo_writes)), Level.FINEST);
+				stats.add(name, "Average DB write time [ms]", (writingTime.get() / (nodes_added + repoWrites.get())), Level.FINEST);
 			}
 		}
 
-		cacheStats.getStatistics(name, stats);
+		cache.getStatistics(name, stats);
+		stats.add(name, "cache/concurrent load waits", nodeLoadWaits.get(), Level.FINE);
+
+		if (itemsCache != null) {
+			itemsCache.getStatistics(name, stats);
+		}
+
+		if (rosterCache != null) {
+			rosterCache.getStatistics(name, stats);
+		}
+
+		if (userNodesIndex != null) {
+			userNodesIndex.getStatistics(name, stats);
+		}
+
+		if (collectionsIndex != null) {
+			collectionsIndex.getStatistics(name, stats);
+		}
+
+		if (writeBehind != null) {
+			writeBehind.getStatistics(name, stats);
+		}
+
+		stats.add(name, "Root collection loading failures", rootCollectionLoadFailures.get(), Level.FINE);
+		if (rootCollectionLoader != null) {
+			rootCollectionLoader.getStatistics(name, stats);
+		}
+
+		if (dao instanceof PubSubDAO) {
+			((PubSubDAO) dao).getStatistics(name, "", stats);
+		}
 
 		for (StatisticHolder holder : this.stats.values()) {
 			holder.getStatistics(name, stats);
@@ -338,7 +824,31 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everyHour() {
-		cacheStats.everyHour();
+		cache.everyHour();
+
+		if (itemsCache != null) {
+			itemsCache.everyHour();
+		}
+
+		if (rosterCache != null) {
+			rosterCache.everyHour();
+		}
+
+		if (userNodesIndex != null) {
+			userNodesIndex.everyHour();
+		}
+
+		if (collectionsIndex != null) {
+			collectionsIndex.everyHour();
+		}
+
+		if (writeBehind != null) {
+			writeBehind.flushStats.everyHour();
+		}
+
+		if (rootCollectionLoader != null) {
+			rootCollectionLoader.waitStats.everyHour();
+		}
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everyHour();
@@ -347,7 +857,31 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everyMinute() {
-		cacheStats.everyMinute();
+		cache.everyMinute();
+
+		if (itemsCache != null) {
+			itemsCache.everyMinute();
+		}
+
+		if (rosterCache != null) {
+			rosterCache.everyMinute();
+		}
+
+		if (userNodesIndex != null) {
+			userNodesIndex.everyMinute();
+		}
+
+		if (collectionsIndex != null) {
+			collectionsIndex.everyMinute();
+		}
+
+		if (writeBehind != null) {
+			writeBehind.flushStats.everyMinute();
+		}
+
+		if (rootCollectionLoader != null) {
+			rootCollectionLoader.waitStats.everyMinute();
+		}
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everyMinute();
@@ -356,7 +890,31 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 	@Override
 	public void everySecond() {
-		cacheStats.everySecond();
+		cache.everySecond();
+
+		if (itemsCache != null) {
+			itemsCache.everySecond();
+		}
+
+		if (rosterCache != null) {
+			rosterCache.everySecond();
+		}
+
+		if (userNodesIndex != null) {
+			userNodesIndex.everySecond();
+		}
+
+		if (collectionsIndex != null) {
+			collectionsIndex.everySecond();
+		}
+
+		if (writeBehind != null) {
+			writeBehind.flushStats.everySecond();
+		}
+
+		if (rootCollectionLoader != null) {
+			rootCollectionLoader.waitStats.everySecond();
+		}
 
 		for (StatisticHolder holder : stats.values()) {
 			holder.everySecond();
@@ -423,6 +981,10 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		String key = createKey(serviceJid, nodeName);
 		this.nodes.put(key, node);
 
+		if (collectionsIndex != null) {
+			collectionsIndex.nodeCreated(serviceJid, nodeName, collection);
+		}
+
 		long end = System.currentTimeMillis();
 
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -431,7 +993,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 
 		++nodes_added;
-		writingTime += (end - start);
+		writingTime.addAndGet(end - start);
 	}
 
 	protected NodeSubscriptions wrapNodeSubscriptions(tigase.pubsub.repository.NodeSubscriptions nodeSubscriptions) {
@@ -451,6 +1013,22 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 		this.dao.deleteNode(serviceJid, nodeId);
 
+		if (itemsCache != null) {
+			itemsCache.invalidate(key);
+		}
+
+		if (userNodesIndex != null) {
+			userNodesIndex.nodeDeleted(serviceJid, nodeName);
+		}
+
+		if (collectionsIndex != null) {
+			collectionsIndex.nodeDeleted(serviceJid, nodeName);
+		}
+
+		if (writeBehind != null) {
+			writeBehind.discard(key);
+		}
+
 		if (node != null) {
 			node.setDeleted(true);
 		}
@@ -463,11 +1041,24 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 		// No resources have been allocated by the init, but some resources
 		// have been allocated in the contructor....
+		if (writeBehind != null) {
+			// pending changes need to be stored before repository is released
+			writeBehind.shutdown();
+		}
+		synchronized (this) {
+			if (rootCollectionLoader != null) {
+				rootCollectionLoader.shutdown();
+				rootCollectionLoader = null;
+			}
+		}
 	}
 
 	@Override
 	public void forgetConfiguration(BareJID serviceJid, String nodeName) throws RepositoryException {
 		String key = createKey(serviceJid, nodeName);
+		if (writeBehind != null) {
+			writeBehind.flush(key);
+		}
 		this.nodes.remove(key);
 	}
 
@@ -495,36 +1086,83 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 
 		if (node == null) {
-			INodeMeta<T> nodeMeta = this.dao.getNodeMeta(serviceJid, nodeName);
-			if (nodeMeta == null) {
-				if ( log.isLoggable( Level.FINEST ) ){
-					log.log( Level.FINEST, "Getting node[1] -- nodeId null! serviceJid: {0}, nodeName: {1}, nodeId: {2}",
-							 new Object[] { serviceJid, nodeName, null } );
+			node = loadNode(serviceJid, nodeName, key);
+		}
+		return node;
+	}
+
+	/**
+	 * Loads node from the repository and puts it into the cache. Concurrent
+	 * calls for the same node wait for a single load in progress instead of
+	 * loading the node again, so only one instance of a node is ever cached.
+	 */
+	private Node<T> loadNode(BareJID serviceJid, String nodeName, String key) throws RepositoryException {
+		CompletableFuture<Node<T>> future = new CompletableFuture<>();
+		CompletableFuture<Node<T>> loading = nodesLoading.putIfAbsent(key, future);
+		if (loading != null) {
+			nodeLoadWaits.incrementAndGet();
+			try {
+				return loading.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new RepositoryException("Interrupted while waiting for node to be loaded", ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof RepositoryException) {
+					throw (RepositoryException) ex.getCause();
 				}
-				return null;
+				throw new RepositoryException("Node loading error", ex.getCause());
 			}
-			AbstractNodeConfig nodeConfig = nodeMeta.getNodeConfig();
+		}
 
-			if (nodeConfig == null) {
-				if ( log.isLoggable( Level.FINEST ) ){
-					log.log( Level.FINEST, "Getting node[2] -- config null! serviceJid: {0}, nodeName: {1}, cfgData: {2}",
-							 new Object[] { serviceJid, nodeName, null } );
+		try {
+			// node could be loaded by other thread after we checked cache
+			Node<T> node = cache.peek(key);
+			if (node == null) {
+				long start = System.currentTimeMillis();
+				node = readNode(serviceJid, nodeName, key);
+				this.stats.get("loadNode").statisticExecutedIn(System.currentTimeMillis() - start);
+				if (node != null) {
+					this.nodes.put(key, node);
 				}
-				return null;
 			}
+			future.complete(node);
+			return node;
+		} catch (RepositoryException | RuntimeException ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			nodesLoading.remove(key, future);
+		}
+	}
 
-			NodeAffiliations nodeAffiliations = new NodeAffiliations(this.dao.getNodeAffiliations(serviceJid, nodeMeta.getNodeId()));
-			NodeSubscriptions nodeSubscriptions = wrapNodeSubscriptions(this.dao.getNodeSubscriptions(serviceJid, nodeMeta.getNodeId()));
-
-			node = new Node(nodeMeta.getNodeId(), serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeMeta.getCreator(), nodeMeta.getCreationTime());
-
-			this.nodes.put(key, node);
+	private Node<T> readNode(BareJID serviceJid, String nodeName, String key) throws RepositoryException {
+		// metadata, affiliations and subscriptions are loaded at once
+		NodeData<T> nodeMeta = this.dao.loadNode(serviceJid, nodeName);
+		if (nodeMeta == null) {
+			if ( log.isLoggable( Level.FINEST ) ){
+				log.log( Level.FINEST, "Getting node[1] -- nodeId null! serviceJid: {0}, nodeName: {1}, nodeId: {2}",
+						 new Object[] { serviceJid, nodeName, null } );
+			}
+			return null;
+		}
+		AbstractNodeConfig nodeConfig = nodeMeta.getNodeConfig();
 
+		if (nodeConfig == null) {
 			if ( log.isLoggable( Level.FINEST ) ){
-				log.log( Level.FINEST, "Getting node[2], serviceJid: {0}, nodeName: {1}, key: {2}, node: {3}, nodeAffiliations {4}, nodeSubscriptions: {5}",
-						 new Object[] { serviceJid, nodeName, key, node, nodeAffiliations, nodeSubscriptions } );
+				log.log( Level.FINEST, "Getting node[2] -- config null! serviceJid: {0}, nodeName: {1}, cfgData: {2}",
+						 new Object[] { serviceJid, nodeName, null } );
 			}
+			return null;
+		}
+
+		NodeAffiliations nodeAffiliations = new NodeAffiliations(nodeMeta.getNodeAffiliations());
+		NodeSubscriptions nodeSubscriptions = wrapNodeSubscriptions(nodeMeta.getNodeSubscriptions());
 
+		Node<T> node = new Node<T>(nodeMeta.getNodeId(), serviceJid, nodeConfig, nodeAffiliations, nodeSubscriptions, nodeMeta.getCreator(), nodeMeta.getCreationTime());
+
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "Getting node[2], serviceJid: {0}, nodeName: {1}, key: {2}, node: {3}, nodeAffiliations {4}, nodeSubscriptions: {5}",
+					 new Object[] { serviceJid, nodeName, key, node, nodeAffiliations, nodeSubscriptions } );
 		}
 		return node;
 	}
@@ -553,6 +1191,13 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 	}
 
+	@Override
+	public NodeConfigSnapshot getNodeConfigSnapshot(BareJID serviceJid, String nodeName) throws RepositoryException {
+		Node node = getNode(serviceJid, nodeName);
+
+		return (node == null) ? null : node.getNodeConfigSnapshot();
+	}
+
 	@Override
 	public INodeMeta getNodeMeta(BareJID serviceJid, String nodeName) throws RepositoryException {
 		return getNode(serviceJid, nodeName);
@@ -570,7 +1215,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 		long end = System.currentTimeMillis();
 		this.stats.get("getNodeItems").statisticExecutedIn(end-start);
-		return new Items(nodeId, serviceJid, nodeName, this.dao);
+		return new Items(nodeId, serviceJid, nodeName, this.dao, itemsCache, key);
 	}
 
 	@Override
@@ -604,6 +1249,108 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		return nodes.toArray(new String[nodes.size()]);
 	}
 
+	@Override
+	public String[] getNodeChildren(BareJID serviceJid, String nodeName) throws RepositoryException {
+		if (nodeName == null || nodeName.isEmpty()) {
+			return getRootCollection(serviceJid);
+		}
+		if (collectionsIndex == null) {
+			// without index children kept in configuration of collection are
+			// used, so database is not queried on every request
+			NodeConfigSnapshot nodeConfig = getNodeConfigSnapshot(serviceJid, nodeName);
+			return nodeConfig == null ? null : nodeConfig.getChildren();
+		}
+		String[] children = collectionsIndex.getChildren(serviceJid, nodeName);
+		if (children == null) {
+			long stamp = collectionsIndex.getStamp(serviceJid);
+			children = loadChildNodes(serviceJid, nodeName);
+			collectionsIndex.childrenLoaded(serviceJid, nodeName, children, stamp);
+		}
+		return children;
+	}
+
+	@Override
+	public String[] getNodeParents(BareJID serviceJid, String nodeName) throws RepositoryException {
+		Set<String> parents = new LinkedHashSet<String>();
+		String parent = getNodeParent(serviceJid, nodeName);
+		while (parent != null && !parent.isEmpty()) {
+			if (parent.equals(nodeName) || !parents.add(parent)) {
+				// broken data in repository should not cause endless loop
+				log.log(Level.WARNING, "Cycle in collections of service {0} detected at node {1}, ancestors: {2}",
+						new Object[] { serviceJid, parent, parents });
+				break;
+			}
+			parent = getNodeParent(serviceJid, parent);
+		}
+		return parents.toArray(new String[parents.size()]);
+	}
+
+	private String getNodeParent(BareJID serviceJid, String nodeName) throws RepositoryException {
+		String parent = collectionsIndex == null ? null : collectionsIndex.getParent(serviceJid, nodeName);
+		if (parent == null) {
+			long stamp = collectionsIndex == null ? 0 : collectionsIndex.getStamp(serviceJid);
+			NodeConfigSnapshot nodeConfig = getNodeConfigSnapshot(serviceJid, nodeName);
+			if (nodeConfig == null) {
+				return null;
+			}
+			parent = nodeConfig.getCollection() == null ? "" : nodeConfig.getCollection();
+			if (collectionsIndex != null) {
+				collectionsIndex.parentLoaded(serviceJid, nodeName, parent, stamp);
+			}
+		}
+		return parent;
+	}
+
+	private String[] loadChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
+		String[] children = dao.getChildNodes(serviceJid, nodeName);
+		if (writeBehind == null) {
+			return children;
+		}
+		// changes of parents of nodes may not be written to database yet
+		Set<String> result = new LinkedHashSet<>();
+		if (children != null) {
+			Collections.addAll(result, children);
+		}
+		writeBehind.applyPendingParents(serviceJid, nodeName, result);
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Compares children of collections of a service kept in index of
+	 * collections with children stored in the database. If any difference is
+	 * found, index of a service is discarded and will be loaded again.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return number of collections with children different than in the
+	 *         database
+	 *
+	 * @throws RepositoryException
+	 */
+	@Override
+	public int verifyCollectionsIndex(BareJID serviceJid) throws RepositoryException {
+		if (collectionsIndex == null) {
+			return 0;
+		}
+		long stamp = collectionsIndex.getStamp(serviceJid);
+		int inconsistent = 0;
+		for (Map.Entry<String,String[]> e : collectionsIndex.getIndexedChildren(serviceJid).entrySet()) {
+			String[] stored = loadChildNodes(serviceJid, e.getKey());
+			Set<String> expected = stored == null ? Collections.<String>emptySet() : new HashSet<String>(Arrays.asList(stored));
+			if (!expected.equals(new HashSet<String>(Arrays.asList(e.getValue())))) {
+				log.log(Level.WARNING, "Children of collection {0} of service {1} in index {2} differ from database {3}",
+						new Object[] { e.getKey(), serviceJid, Arrays.toString(e.getValue()), expected });
+				++inconsistent;
+			}
+		}
+		// difference may be caused by change made concurrently with the check,
+		// which is already applied to the index
+		if (inconsistent > 0 && collectionsIndex.getStamp(serviceJid) == stamp) {
+			collectionsIndex.invalidate(serviceJid);
+		}
+		return inconsistent;
+	}
+
 	protected RootCollectionSet getRootCollectionSet(BareJID serviceJid) throws RepositoryException {
 		RootCollectionSet rootCollection = this.rootCollection.get(serviceJid);
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -621,7 +1368,9 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 
 			if (!delayedRootCollectionLoading) {
 				synchronized (rootCollection) {
-					loadRootCollections(rootCollection);
+					if (!rootCollection.checkState(RootCollectionSet.State.initialized)) {
+						loadRootCollections(rootCollection);
+					}
 				}
 			}
 		}
@@ -629,19 +1378,96 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	}
 
 	protected void loadRootCollections(RootCollectionSet rootCollection) throws RepositoryException {
-		BareJID serviceJid = rootCollection.getServiceJid();
-		String[] x = dao.getChildNodes(serviceJid, null);
-		rootCollection.loadData(x);
+		rootCollection.loadingStarted();
+		readRootCollection(rootCollection);
+	}
+
+	/**
+	 * Schedules loading of root collection in background.
+	 *
+	 * @param rootCollection
+	 */
+	protected void scheduleRootCollectionLoading(RootCollectionSet rootCollection) {
+		RootCollectionLoader loader;
+		synchronized (this) {
+			if (rootCollectionLoader == null) {
+				rootCollectionLoader = new RootCollectionLoader(rootCollectionLoadingThreads);
+			}
+			loader = rootCollectionLoader;
+		}
+		loader.schedule(rootCollection);
+	}
+
+	private void readRootCollection(RootCollectionSet rootCollection) throws RepositoryException {
+		final BareJID serviceJid = rootCollection.getServiceJid();
+		final long start = System.currentTimeMillis();
+		try {
+			dao.getChildNodes(serviceJid, null, ROOT_COLLECTION_BATCH_SIZE, rootCollection::batchLoaded);
+		} catch (RepositoryException | RuntimeException ex) {
+			rootCollectionLoadFailures.incrementAndGet();
+			rootCollection.loadingFailed();
+			throw ex;
+		}
+		final long time = System.currentTimeMillis() - start;
+		rootCollection.loadingFinished(time);
+		this.stats.get("loadRootCollection").statisticExecutedIn(time);
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Loaded root collection of {0}: {1} nodes in {2}ms, waited {3}ms",
+					new Object[] { serviceJid, rootCollection.size(), time, rootCollection.getQueueTime() });
+		}
 	}
 
 	@Override
 	public Map<BareJID,RosterElement> getUserRoster(BareJID owner) throws RepositoryException {
-		return this.dao.getUserRoster(owner);
+		return getUserRosterIndex(owner).getItems();
+	}
+
+	@Override
+	public UserRoster getUserRosterIndex(BareJID owner) throws RepositoryException {
+		UserRoster roster = rosterCache == null ? null : rosterCache.get(owner);
+		if (roster == null) {
+			long stamp = rosterCache == null ? 0 : rosterCache.getStamp();
+			roster = new UserRoster(this.dao.getUserRoster(owner));
+			if (rosterCache != null) {
+				rosterCache.loaded(owner, roster, stamp);
+			}
+		}
+		return roster;
+	}
+
+	@Override
+	public void invalidateUserRoster(BareJID owner) {
+		if (rosterCache != null) {
+			rosterCache.invalidate(owner);
+		}
+	}
+
+	@Override
+	public Map<String,UsersAffiliation> getUserAffiliations(BareJID serviceJid, BareJID userJid) throws RepositoryException {
+		if (userNodesIndex == null) {
+			return this.dao.getUserAffiliations(serviceJid, userJid);
+		}
+		Map<String,UsersAffiliation> affiliations = userNodesIndex.getAffiliations(serviceJid, userJid);
+		if (affiliations == null) {
+			long stamp = userNodesIndex.getStamp(serviceJid, userJid);
+			affiliations = this.dao.getUserAffiliations(serviceJid, userJid);
+			userNodesIndex.affiliationsLoaded(serviceJid, userJid, affiliations, stamp);
+		}
+		return affiliations;
 	}
 
 	@Override
 	public Map<String,UsersSubscription> getUserSubscriptions(BareJID serviceJid, BareJID userJid) throws RepositoryException {
-		return this.dao.getUserSubscriptions(serviceJid, userJid);
+		if (userNodesIndex == null) {
+			return this.dao.getUserSubscriptions(serviceJid, userJid);
+		}
+		Map<String,UsersSubscription> subscriptions = userNodesIndex.getSubscriptions(serviceJid, userJid);
+		if (subscriptions == null) {
+			long stamp = userNodesIndex.getStamp(serviceJid, userJid);
+			subscriptions = this.dao.getUserSubscriptions(serviceJid, userJid);
+			userNodesIndex.subscriptionsLoaded(serviceJid, userJid, subscriptions, stamp);
+		}
+		return subscriptions;
 	}
 
 	@Override
@@ -662,6 +1488,9 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		if (rootCollectionSet != null) {
 			rootCollectionSet.remove(nodeName);
 		}
+		if (writeBehind != null) {
+			writeBehind.flush(key);
+		}
 		this.nodes.remove( key );
 	}
 
@@ -670,6 +1499,105 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		this.delayedRootCollectionLoading = delayedRootCollectionLoading;
 	}
 
+	/**
+	 * Sets number of threads used to load root collections in background
+	 * when delayed loading of root collections is enabled.
+	 *
+	 * @param threads
+	 */
+	public void setRootCollectionLoadingThreads(int threads) {
+		log.config("Setting root collection loading threads = " + threads);
+		synchronized (this) {
+			rootCollectionLoadingThreads = Math.max(1, threads);
+			if (rootCollectionLoader != null) {
+				rootCollectionLoader.setThreads(rootCollectionLoadingThreads);
+			}
+		}
+	}
+
+	/**
+	 * Enables write-behind mode in which changes of nodes are not written to
+	 * the database synchronously but are queued and written in batches.
+	 *
+	 * @param batchSize number of pending changes which triggers writing
+	 * @param maxDelay maximal time (in ms) for which changes may wait before
+	 * they are written
+	 */
+	public void setWriteBehind(int batchSize, long maxDelay) {
+		if (writeBehind != null) {
+			writeBehind.shutdown();
+		}
+		log.config("Enabling write-behind with batch size = " + batchSize + " and max delay = " + maxDelay + "ms");
+		writeBehind = new WriteBehindQueue(batchSize, maxDelay);
+	}
+
+	/**
+	 * Sets limit for total weight of cached nodes, where weight of a node
+	 * is 1 + number of its subscribers. Value less or equal to 0 disables
+	 * this limit.
+	 *
+	 * @param maxCacheWeight
+	 */
+	public void setMaxCacheWeight(long maxCacheWeight) {
+		log.config("Setting cache max weight = " + maxCacheWeight);
+		cache.setMaxWeight(maxCacheWeight);
+	}
+
+	/**
+	 * Enables cache of parsed payloads of items limited by total length of
+	 * cached items. Value less or equal to 0 disables this cache.
+	 *
+	 * @param maxWeight
+	 */
+	public void setItemsCacheMaxWeight(long maxWeight) {
+		log.config("Setting items cache max weight = " + maxWeight);
+		itemsCache = maxWeight > 0 ? new ItemsCache(maxWeight) : null;
+	}
+
+	/**
+	 * Enables cache of parsed rosters of users. Value of
+	 * <code>maxSize</code> less or equal to 0 disables this cache.
+	 *
+	 * @param maxSize maximal number of cached rosters
+	 * @param ttl time (in ms) after which cached roster expires
+	 */
+	public void setRosterCache(int maxSize, long ttl) {
+		log.config("Setting roster cache size = " + maxSize + ", ttl = " + ttl + "ms");
+		rosterCache = maxSize > 0 ? new UserRosterCache(maxSize, ttl) : null;
+	}
+
+	/**
+	 * Enables index of nodes to which users are subscribed or affiliated,
+	 * limited by total number of indexed nodes. Value less or equal to 0
+	 * disables this index.
+	 *
+	 * @param maxWeight
+	 */
+	public void setUserNodesIndexMaxWeight(long maxWeight) {
+		log.config("Setting user nodes index max weight = " + maxWeight);
+		userNodesIndex = maxWeight > 0 ? new UserNodesIndex(maxWeight) : null;
+	}
+
+	/**
+	 * Enables index of parents and children of nodes of collections, limited
+	 * by total number of indexed nodes. Value less or equal to 0 disables
+	 * this index.
+	 *
+	 * @param maxWeight
+	 */
+	public void setCollectionsIndexMaxWeight(long maxWeight) {
+		log.config("Setting collections index max weight = " + maxWeight);
+		collectionsIndex = maxWeight > 0 ? new CollectionsIndex(maxWeight) : null;
+	}
+
+	long getNodeLoadWaits() {
+		return nodeLoadWaits.get();
+	}
+
+	protected boolean isWritePending(String key) {
+		return writeBehind != null && writeBehind.isPending(key);
+	}
+
 	@Override
 	public void update(BareJID serviceJid, String nodeName, AbstractNodeConfig nodeConfig) throws RepositoryException {
 		Node node = getNode(serviceJid, nodeName);
@@ -677,6 +1605,10 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		if (node != null) {
 			node.configCopyFrom(nodeConfig);
 
+			if (collectionsIndex != null) {
+				collectionsIndex.parentChanged(serviceJid, nodeName, nodeConfig.getCollection());
+			}
+
 			// node.setNodeConfigChangeTimestamp();
 			// synchronized (mutex) {
 			log.finest("Node '" + nodeName + "' added to lazy write queue (config)");
@@ -728,13 +1660,26 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 	
 	@Override
 	public void onUserRemoved(BareJID userJid) throws RepositoryException {
+		if (writeBehind != null) {
+			writeBehind.discardService(userJid);
+		}
 		dao.removeService(userJid);
+		if (itemsCache != null) {
+			itemsCache.invalidateAll();
+		}
+		if (userNodesIndex != null) {
+			userNodesIndex.invalidateAll();
+		}
+		invalidateUserRoster(userJid);
 		userRemoved(userJid);
 	}
 
 	protected void userRemoved(BareJID userJid) {
 		// clearing in memory caches
 		rootCollection.remove(userJid);
+		if (collectionsIndex != null) {
+			collectionsIndex.invalidate(userJid);
+		}
 		Iterator<Node> nodesIter = this.nodes.values().iterator();
 		while (nodesIter.hasNext()) {
 			Node node = nodesIter.next();
@@ -747,17 +1692,28 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 		}
 	}
 
+	/**
+	 * Set of nodes of root collection of a service.
+	 *
+	 * When root collection is loaded in background, nodes are added to the set
+	 * in batches passed by repository, so nodes loaded so far are available
+	 * before loading is finished. Nodes added or removed during
+	 * loading are applied to the set immediately.
+	 */
 	public static class RootCollectionSet {
 
-		private static final Logger log = Logger.getLogger(RootCollectionSet.class.getCanonicalName());
-
 		private CachedPubSubRepository cachedPubSubRepository;
 
 		private BareJID serviceJid;
 		private Set<String> rootCollections;
 
-		private Set<String> added;
 		private Set<String> removed;
+		private boolean partial = false;
+		private boolean loadStarted = false;
+
+		private long queuedAt = 0;
+		private long queueTime = -1;
+		private long loadTime = -1;
 
 		private State state = State.uninitialized;
 
@@ -773,7 +1729,8 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 						rootCollections.add(node);
 						break;
 					case loading:
-						added.add(node);
+						rootCollections.add(node);
+						removed.remove(node);
 						break;
 					default:
 						break;
@@ -787,6 +1744,26 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 			}
 		}
 
+		/**
+		 * @return time (in ms) of last load of nodes from repository or -1 if
+		 *         nodes were not loaded yet
+		 */
+		public long getLoadTime() {
+			synchronized (this) {
+				return loadTime;
+			}
+		}
+
+		/**
+		 * @return time (in ms) for which last load waited for a free loading
+		 *         thread or -1 if collection was not loaded in background
+		 */
+		public long getQueueTime() {
+			synchronized (this) {
+				return queueTime;
+			}
+		}
+
 		public BareJID getServiceJid() {
 			return serviceJid;
 		}
@@ -798,7 +1775,7 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 						rootCollections.remove(node);
 						break;
 					case loading:
-						added.remove(node);
+						rootCollections.remove(node);
 						removed.add(node);
 						break;
 					default:
@@ -806,64 +1783,112 @@ public class CachedPubSubRepository<T> implements IPubSubRepository, StatisticHo
 				}
 			}
 		}
-		
+
+		public int size() {
+			synchronized (this) {
+				return rootCollections == null ? 0 : rootCollections.size();
+			}
+		}
+
+		/**
+		 * Returns nodes of root collection. If collection is being loaded,
+		 * nodes loaded so far are returned.
+		 *
+		 * @return
+		 *
+		 * @throws IllegalStateException
+		 *             if no nodes were loaded yet
+		 */
 		public Set<String> values() throws IllegalStateException {
 			synchronized (this) {
 				switch (state) {
 					case initialized:
 						return rootCollections;
 					case loading:
+						if (partial) {
+							return new HashSet<>(rootCollections);
+						}
+						if (!loadStarted) {
+							// collection is requested again, so it should be
+							// loaded sooner
+							cachedPubSubRepository.scheduleRootCollectionLoading(this);
+						}
 						throw new IllegalStateException(state);
 					case uninitialized:
-						added = new HashSet<>();
-						removed = new HashSet<>();
-						new Thread(this::startLoadOfData).start();
-						this.state = State.loading;
+						loadingStarted();
+						queuedAt = System.currentTimeMillis();
+						cachedPubSubRepository.scheduleRootCollectionLoading(this);
 						throw new IllegalStateException(state);
 				}
 			}
 			return null;
 		}
 
-		private void startLoadOfData() {
-			try {
-				cachedPubSubRepository.loadRootCollections(this);
-			} catch (Throwable ex) {
-				log.log(Level.FINE, "Could not load");
-				synchronized (this) {
-					switch (state) {
-						case loading:
-							added = null;
-							removed = null;
-							state = State.uninitialized;
-						default:
-							break;
+		private void batchLoaded(String[] nodes) {
+			synchronized (this) {
+				if (state != State.loading) {
+					return;
+				}
+				for (String node : nodes) {
+					if (!removed.contains(node)) {
+						rootCollections.add(node);
 					}
 				}
+				partial = true;
 			}
 		}
 
-		private void loadData(String[] nodes) {
+		/**
+		 * Marks background loading as started.
+		 *
+		 * @return time (in ms) for which loading waited in queue or -1 if
+		 *         loading should not be started
+		 */
+		private long loadStarted() {
 			synchronized (this) {
-				if (nodes != null) {
-					rootCollections = Collections.synchronizedSet(new HashSet<>(nodes.length));
-				} else {
-					rootCollections = Collections.synchronizedSet(new HashSet<>());
+				if (state != State.loading || loadStarted) {
+					return -1;
 				}
+				loadStarted = true;
+				queueTime = System.currentTimeMillis() - queuedAt;
+				return queueTime;
+			}
+		}
 
-				if (added == null && removed == null) {
-					if (nodes != null) {
-						rootCollections.addAll(Arrays.asList(nodes));
-					}
-				} else {
-					rootCollections.addAll(added);
-					if (nodes != null) {
-						Arrays.stream(nodes).filter(node -> !removed.contains(node)).forEach(rootCollections::add);
-					}
-					added = null;
-					removed = null;
+		private void loadingFailed() {
+			synchronized (this) {
+				switch (state) {
+					case loading:
+						rootCollections = null;
+						removed = null;
+						partial = false;
+						loadStarted = false;
+						state = State.uninitialized;
+					default:
+						break;
+				}
+			}
+		}
+
+		private void loadingFinished(long time) {
+			synchronized (this) {
+				if (state != State.loading) {
+					return;
 				}
-				this.state = State.initialized;
+				removed = null;
+				partial = false;
+				loadTime = time;
+				state = State.initialized;
+			}
+		}
+
+		private void loadingStarted() {
+			synchronized (this) {
+				rootCollections = Collections.synchronizedSet(new HashSet<>());
+				removed = new HashSet<>();
+				partial = false;
+				loadStarted = false;
+				state = State.loading;
 			}
 		}
 
@@ -0,0 +1,389 @@
+/*
+ * CollectionsIndex.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.utils.CacheStatistics;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Index of tree of collections of a service, which keeps parent collection of
+ * each node and names of child nodes of collections, so ancestors and children
+ * of a node may be found without loading configuration of every node on the
+ * way.
+ *
+ * Parent of a node is loaded lazily from configuration of a node and list of
+ * children of a collection is loaded lazily from repository, and both are
+ * then kept up to date with nodes being created, reconfigured and deleted.
+ * Children of root collection are not kept here as they are already held by
+ * {@link CachedPubSubRepository.RootCollectionSet}.
+ *
+ * Index is limited by total weight of services, where weight of a service is 1
+ * + number of indexed parents + number of indexed children, and least
+ * recently used services are evicted first.
+ */
+public class CollectionsIndex implements StatisticHolder {
+
+	private final Generations generations = new Generations();
+	private final WeightedLru<BareJID, Tree> trees;
+
+	private final CacheStatistics statistics = new CacheStatistics("collections-index");
+
+	public CollectionsIndex(long maxWeight) {
+		this.trees = new WeightedLru<BareJID, Tree>(maxWeight, Tree::weight);
+	}
+
+	/**
+	 * Returns indexed children of a collection.
+	 *
+	 * @param serviceJid
+	 * @param collection
+	 *
+	 * @return names of child nodes or <code>null</code> if children of
+	 *         collection are not indexed
+	 */
+	public String[] getChildren(BareJID serviceJid, String collection) {
+		String[] result = null;
+		synchronized (trees) {
+			Tree tree = trees.get(serviceJid);
+			Set<String> children = tree == null ? null : tree.children.get(collection);
+			if (children != null) {
+				result = children.toArray(new String[children.size()]);
+			}
+		}
+		return statistics.counted(result);
+	}
+
+	/**
+	 * Returns indexed parent collection of a node.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *
+	 * @return name of parent collection, empty string if node belongs to root
+	 *         collection or <code>null</code> if parent of node is not indexed
+	 */
+	public String getParent(BareJID serviceJid, String nodeName) {
+		String result = null;
+		synchronized (trees) {
+			Tree tree = trees.get(serviceJid);
+			if (tree != null) {
+				result = tree.parents.get(nodeName);
+			}
+		}
+		return statistics.counted(result);
+	}
+
+	/**
+	 * Returns stamp which needs to be passed to
+	 * {@link #parentLoaded(BareJID, String, String, long)} or
+	 * {@link #childrenLoaded(BareJID, String, String[], long)} after data
+	 * was loaded from repository.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return
+	 */
+	public long getStamp(BareJID serviceJid) {
+		return generations.get(serviceJid);
+	}
+
+	public long getWeight() {
+		synchronized (trees) {
+			return trees.getWeight();
+		}
+	}
+
+	/**
+	 * Stores children of a collection loaded from repository, unless tree of
+	 * service was modified since <code>stamp</code> was retrieved.
+	 *
+	 * @param serviceJid
+	 * @param collection
+	 * @param children
+	 * @param stamp
+	 */
+	public void childrenLoaded(BareJID serviceJid, String collection, String[] children, long stamp) {
+		if (isRoot(collection)) {
+			return;
+		}
+		Set<String> loaded = new HashSet<String>();
+		if (children != null) {
+			loaded.addAll(Arrays.asList(children));
+		}
+		synchronized (trees) {
+			if (generations.get(serviceJid) != stamp) {
+				return;
+			}
+			Tree tree = tree(serviceJid);
+			tree.setChildren(collection, loaded);
+			trees.reweigh(serviceJid);
+			evict();
+		}
+	}
+
+	/**
+	 * Stores parent of a node loaded from repository, unless tree of service
+	 * was modified since <code>stamp</code> was retrieved.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param parent
+	 * @param stamp
+	 */
+	public void parentLoaded(BareJID serviceJid, String nodeName, String parent, long stamp) {
+		synchronized (trees) {
+			if (generations.get(serviceJid) != stamp) {
+				return;
+			}
+			Tree tree = tree(serviceJid);
+			tree.parents.put(nodeName, normalize(parent));
+			trees.reweigh(serviceJid);
+			evict();
+		}
+	}
+
+	/**
+	 * Adds newly created node to the tree.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param parent
+	 *            name of parent collection, empty string or <code>null</code>
+	 *            for root collection
+	 */
+	public void nodeCreated(BareJID serviceJid, String nodeName, String parent) {
+		synchronized (trees) {
+			generations.increment(serviceJid);
+			Tree tree = tree(serviceJid);
+			detach(tree, nodeName);
+			parent = normalize(parent);
+			tree.parents.put(nodeName, parent);
+			attach(tree, nodeName, parent);
+			// new node cannot have any children yet
+			tree.setChildren(nodeName, new HashSet<String>());
+			trees.reweigh(serviceJid);
+			evict();
+		}
+	}
+
+	/**
+	 * Moves node to a collection. Needs to be called whenever configuration of
+	 * a node is changed.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param parent
+	 *            name of new parent collection, empty string or
+	 *            <code>null</code> for root collection
+	 */
+	public void parentChanged(BareJID serviceJid, String nodeName, String parent) {
+		parent = normalize(parent);
+		synchronized (trees) {
+			Tree tree = trees.get(serviceJid);
+			if (tree != null && parent.equals(tree.parents.get(nodeName))) {
+				return;
+			}
+			generations.increment(serviceJid);
+			if (tree == null) {
+				return;
+			}
+			detach(tree, nodeName);
+			tree.parents.put(nodeName, parent);
+			attach(tree, nodeName, parent);
+			trees.reweigh(serviceJid);
+			evict();
+		}
+	}
+
+	/**
+	 * Removes node from the tree. Nodes for which deleted node was indexed as
+	 * a parent are removed from the index, so their parent will be loaded
+	 * again.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 */
+	public void nodeDeleted(BareJID serviceJid, String nodeName) {
+		synchronized (trees) {
+			generations.increment(serviceJid);
+			Tree tree = trees.get(serviceJid);
+			if (tree == null) {
+				return;
+			}
+			detach(tree, nodeName);
+			tree.parents.remove(nodeName);
+			tree.setChildren(nodeName, null);
+			tree.parents.values().removeIf(nodeName::equals);
+			trees.reweigh(serviceJid);
+		}
+	}
+
+	/**
+	 * Discards tree of a service, ie. after service was removed or its tree
+	 * was found inconsistent with repository.
+	 *
+	 * @param serviceJid
+	 */
+	public void invalidate(BareJID serviceJid) {
+		synchronized (trees) {
+			generations.increment(serviceJid);
+			trees.remove(serviceJid);
+		}
+	}
+
+	/**
+	 * Returns collections of a service for which children are indexed.
+	 *
+	 * @param serviceJid
+	 *
+	 * @return
+	 */
+	public Map<String, String[]> getIndexedChildren(BareJID serviceJid) {
+		Map<String, String[]> result = new HashMap<String, String[]>();
+		synchronized (trees) {
+			Tree tree = trees.get(serviceJid);
+			if (tree != null) {
+				for (Map.Entry<String, Set<String>> e : tree.children.entrySet()) {
+					result.put(e.getKey(), e.getValue().toArray(new String[e.getValue().size()]));
+				}
+			}
+		}
+		return result;
+	}
+
+	public int size() {
+		synchronized (trees) {
+			return trees.size();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "collections-index/size", size(), Level.FINEST);
+		list.add(compName, "collections-index/weight", getWeight(), Level.FINEST);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private static boolean isRoot(String collection) {
+		return collection == null || collection.isEmpty();
+	}
+
+	private static String normalize(String parent) {
+		return parent == null ? "" : parent;
+	}
+
+	private void attach(Tree tree, String nodeName, String parent) {
+		if (isRoot(parent)) {
+			return;
+		}
+		Set<String> children = tree.children.get(parent);
+		if (children != null && children.add(nodeName)) {
+			tree.childrenCount++;
+		}
+	}
+
+	private void detach(Tree tree, String nodeName) {
+		String parent = tree.parents.get(nodeName);
+		if (parent != null) {
+			if (!isRoot(parent)) {
+				Set<String> children = tree.children.get(parent);
+				if (children != null && children.remove(nodeName)) {
+					tree.childrenCount--;
+				}
+			}
+			return;
+		}
+		// previous parent is not known, so node needs to be removed from
+		// every indexed collection
+		for (Set<String> children : tree.children.values()) {
+			if (children.remove(nodeName)) {
+				tree.childrenCount--;
+			}
+		}
+	}
+
+	private void evict() {
+		trees.evict((serviceJid, tree) -> statistics.evicted());
+	}
+
+	private Tree tree(BareJID serviceJid) {
+		Tree tree = trees.get(serviceJid);
+		if (tree == null) {
+			tree = new Tree();
+			trees.put(serviceJid, tree);
+		}
+		return tree;
+	}
+
+	private static class Tree {
+
+		private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+		private final Map<String, String> parents = new HashMap<String, String>();
+		private int childrenCount = 0;
+
+		private void setChildren(String collection, Set<String> nodes) {
+			Set<String> old = nodes == null ? children.remove(collection) : children.put(collection, nodes);
+			if (old != null) {
+				childrenCount -= old.size();
+			}
+			if (nodes != null) {
+				childrenCount += nodes.size();
+			}
+		}
+
+		private int weight() {
+			return 1 + parents.size() + childrenCount;
+		}
+	}
+}
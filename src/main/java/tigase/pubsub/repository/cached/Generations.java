@@ -0,0 +1,60 @@
+/*
+ * Generations.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of modifications of cached data. Cache takes generation of a key
+ * before loading data from repository and stores loaded data only if
+ * generation did not change in the meantime, as loaded data could be already
+ * outdated then.
+ *
+ * Generations are kept in fixed number of stripes, so keys sharing a stripe
+ * are invalidated together.
+ */
+class Generations {
+
+	private static final int STRIPES = 4096;
+
+	private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+	long get(Object key) {
+		return generations.get(stripe(key));
+	}
+
+	void increment(Object key) {
+		generations.incrementAndGet(stripe(key));
+	}
+
+	void incrementAll() {
+		for (int i = 0; i < STRIPES; i++) {
+			generations.incrementAndGet(i);
+		}
+	}
+
+	private int stripe(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return h & (STRIPES - 1);
+	}
+}
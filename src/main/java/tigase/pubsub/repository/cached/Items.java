@@ -1,8 +1,17 @@
 package tigase.pubsub.repository.cached;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.repository.IItems;
 import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.RepositoryException;
@@ -19,6 +28,10 @@ class Items<T> implements IItems {
 
 	private final IPubSubDAO<T> dao;
 
+	private final ItemsCache itemsCache;
+
+	private final String key;
+
 	private final T nodeId;
 	
 	private final String nodeName;
@@ -26,6 +39,10 @@ class Items<T> implements IItems {
 	private final BareJID serviceJid;
 
 	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao) {
+		this(nodeId, serviceJid, nodeName, dao, null, null);
+	}
+
+	public Items(T nodeId, BareJID serviceJid, String nodeName, IPubSubDAO dao, ItemsCache itemsCache, String key) {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "Constructing Items, serviceJid: {0}, nodeName: {1}, nodeId: {2}, dao: {3}",
 							 new Object[] { serviceJid, nodeName, nodeId, dao } );
@@ -34,6 +51,8 @@ class Items<T> implements IItems {
 		this.dao = dao;
 		this.nodeName = nodeName;
 		this.serviceJid = serviceJid;
+		this.itemsCache = itemsCache;
+		this.key = key;
 	}
 
 	@Override
@@ -42,7 +61,26 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "Deleting item, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 							 new Object[] { serviceJid, id, nodeId, dao } );
 		}
-		this.dao.deleteItem(serviceJid, nodeId, id);
+		try {
+			this.dao.deleteItem(serviceJid, nodeId, id);
+		} finally {
+			invalidate(id);
+		}
+	}
+
+	@Override
+	public void deleteItems(Collection<String> ids) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "deleteItems, serviceJid: {0}, nodeId: {1}, dao: {2}, ids: {3}",
+						 new Object[] { serviceJid, nodeId, dao, ids } );
+		}
+		try {
+			this.dao.deleteItems(serviceJid, nodeId, ids);
+		} finally {
+			for (String id : ids) {
+				invalidate(id);
+			}
+		}
 	}
 
 	@Override
@@ -51,7 +89,39 @@ class Items<T> implements IItems {
 			log.log( Level.FINEST, "getItem, serviceJid: {0}, id: {1}, nodeId: {2}, dao: {3}",
 						 new Object[] { serviceJid, id, nodeId, dao } );
 		}
-		return this.dao.getItem(serviceJid, nodeId, id);
+		if (itemsCache == null) {
+			return this.dao.getItem(serviceJid, nodeId, id);
+		}
+		Element item = itemsCache.get(key, id);
+		if (item == null) {
+			item = load(Collections.singletonList(id)).get(id);
+		}
+		return item;
+	}
+
+	@Override
+	public Map<String, Element> getItems(List<String> ids) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getItems, serviceJid: {0}, ids: {1}, nodeId: {2}, dao: {3}",
+						 new Object[] { serviceJid, ids, nodeId, dao } );
+		}
+		if (itemsCache == null) {
+			return this.dao.getItems(serviceJid, nodeId, ids);
+		}
+		Map<String, Element> result = new LinkedHashMap<String, Element>();
+		List<String> missing = new ArrayList<String>();
+		for (String id : ids) {
+			Element item = itemsCache.get(key, id);
+			if (item != null) {
+				result.put(id, item);
+			} else {
+				missing.add(id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			result.putAll(load(missing));
+		}
+		return result;
 	}
 
 	@Override
@@ -90,6 +160,16 @@ class Items<T> implements IItems {
 		return this.dao.getItemsMeta(serviceJid, nodeId, nodeName);
 	}
 	
+	@Override
+	public ItemsPage getItemsPage(CollectionItemsOrdering ordering, String afterId, String beforeId, Date since,
+			int offset, int limit) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "getItemsPage, serviceJid: {0}, nodeId: {1}, dao: {2}, after: {3}, before: {4}, limit: {5}",
+						 new Object[] { serviceJid, nodeId, dao, afterId, beforeId, limit } );
+		}
+		return this.dao.getItemsPage(serviceJid, nodeId, nodeName, ordering, afterId, beforeId, since, offset, limit);
+	}
+
 	@Override
 	public Date getItemUpdateDate(String id) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
@@ -99,13 +179,124 @@ class Items<T> implements IItems {
 		return this.dao.getItemUpdateDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public void purgeItems() throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "purgeItems, serviceJid: {0}, nodeId: {1}, dao: {2}",
+						 new Object[] { serviceJid, nodeId, dao } );
+		}
+		try {
+			this.dao.purgeItems(serviceJid, nodeId);
+		} finally {
+			invalidate();
+		}
+	}
+
+	@Override
+	public void trimItems(int maxItems) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "trimItems, serviceJid: {0}, nodeId: {1}, dao: {2}, maxItems: {3}",
+						 new Object[] { serviceJid, nodeId, dao, maxItems } );
+		}
+		try {
+			this.dao.trimItems(serviceJid, nodeId, maxItems);
+		} finally {
+			trimmed(maxItems);
+		}
+	}
+
 	@Override
 	public void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException {
 		if ( log.isLoggable( Level.FINEST ) ){
 			log.log( Level.FINEST, "writeItem, serviceJid: {0}, nodeId: {1}, dao: {2}, id: {3}, publisher: {4}, item: {5}",
 						 new Object[] { serviceJid, nodeId, dao, id, publisher, item } );
 		}
-		this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+		try {
+			this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
+		} finally {
+			invalidate(id);
+		}
+	}
+
+	@Override
+	public void writeItems(List<ItemData> items) throws RepositoryException {
+		if ( log.isLoggable( Level.FINEST ) ){
+			log.log( Level.FINEST, "writeItems, serviceJid: {0}, nodeId: {1}, dao: {2}, items: {3}",
+						 new Object[] { serviceJid, nodeId, dao, items.size() } );
+		}
+		try {
+			this.dao.writeItems(serviceJid, nodeId, items);
+		} finally {
+			for (ItemData item : items) {
+				invalidate(item.getId());
+			}
+		}
+	}
+
+	/**
+	 * Loads serialized items from repository and parses them, so length of
+	 * serialized item is known when it is put to cache.
+	 */
+	private Map<String, Element> load(List<String> ids) throws RepositoryException {
+		Map<String, Element> result = new LinkedHashMap<String, Element>();
+		Map<String, Long> stamps = new HashMap<String, Long>();
+		for (String id : ids) {
+			stamps.put(id, itemsCache.getStamp(key, id));
+		}
+		Map<String, String> loaded = this.dao.getItemsData(serviceJid, nodeId, ids);
+		if (loaded != null) {
+			for (Map.Entry<String, String> e : loaded.entrySet()) {
+				Element item = this.dao.parseItem(e.getValue());
+				if (item != null) {
+					Long stamp = stamps.get(e.getKey());
+					if (stamp != null) {
+						itemsCache.loaded(key, e.getKey(), item, e.getValue().length(), stamp);
+					}
+					result.put(e.getKey(), item);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void invalidate() {
+		if (itemsCache != null) {
+			itemsCache.invalidate(key);
+		}
+	}
+
+	/**
+	 * Discards cached items removed by trimming, which are all items except
+	 * <code>maxItems</code> most recently updated ones.
+	 */
+	private void trimmed(int maxItems) {
+		if (itemsCache == null) {
+			return;
+		}
+		if (!itemsCache.contains(key)) {
+			// nothing to discard, only items being loaded need to be ignored
+			itemsCache.retain(key, Collections.<String>emptySet());
+			return;
+		}
+		Set<String> kept = new HashSet<String>();
+		try {
+			ItemsPage page = this.dao.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate,
+					null, null, null, 0, maxItems);
+			for (ItemMeta meta : page.getItems()) {
+				kept.add(meta.getId());
+			}
+		} catch (RepositoryException ex) {
+			log.log(Level.FINE, "Could not retrieve items kept after trimming node " + nodeName, ex);
+			invalidate();
+			return;
+		}
+		itemsCache.retain(key, kept);
+	}
+
+	private void invalidate(String id) {
+		if (itemsCache != null) {
+			itemsCache.invalidate(key, id);
+		}
 	}
 
 }
@@ -0,0 +1,386 @@
+/*
+ * ItemsCache.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.utils.CacheStatistics;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * LRU cache of parsed payloads of items, so frequently retrieved items are
+ * not parsed from the database on every request.
+ *
+ * Cache is limited by total weight of items, where weight of an item is
+ * length of its serialized form, and items larger than
+ * <code>maxItemSize</code> characters are not cached at all. Cached payloads
+ * are shared between requests and must not be modified.
+ *
+ * Entries are kept in segments, each with its own lock and its own share of
+ * maximal weight. Written, deleted or trimmed items are removed from cache by
+ * their ids, while all items of a node are removed only when node is purged
+ * or deleted. Every segment counts invalidations of its items and every node
+ * counts invalidations of all of its items, so item loaded concurrently with
+ * any of them is not stored.
+ */
+public class ItemsCache implements StatisticHolder {
+
+	public static final int DEF_MAX_ITEM_SIZE = 64 * 1024;
+
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final int MAX_SEGMENTS = 16;
+
+	private final Map<String, Set<String>> idsByNode = new ConcurrentHashMap<String, Set<String>>();
+	private final int maxItemSize;
+	private final Generations nodeGenerations = new Generations();
+	private final Segment[] segments;
+
+	private final CacheStatistics statistics = new CacheStatistics("items-cache");
+
+	public ItemsCache(long maxWeight) {
+		this(maxWeight, DEF_MAX_ITEM_SIZE);
+	}
+
+	public ItemsCache(long maxWeight, int maxItemSize) {
+		this.maxItemSize = maxItemSize;
+		// every segment should be able to keep a few of the biggest items
+		int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxWeight / (4L * maxItemSize)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(maxWeight / count + (i < maxWeight % count ? 1 : 0));
+		}
+	}
+
+	/**
+	 * Returns cached payload of item, which must not be modified.
+	 *
+	 * @param nodeKey
+	 * @param id
+	 *
+	 * @return item or <code>null</code> if item is not cached
+	 */
+	public Element get(String nodeKey, String id) {
+		Key key = new Key(nodeKey, id);
+		Segment segment = segmentFor(key);
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.entries.get(key);
+		}
+		return statistics.counted(entry == null ? null : entry.item);
+	}
+
+	/**
+	 * Returns stamp which needs to be passed to
+	 * {@link #loaded(String, String, Element, long)} after item was loaded
+	 * from repository.
+	 *
+	 * @param nodeKey
+	 * @param id
+	 *
+	 * @return
+	 */
+	public long getStamp(String nodeKey, String id) {
+		Segment segment = segmentFor(new Key(nodeKey, id));
+		synchronized (segment) {
+			// both counters only grow, so their sum changes whenever any of them does
+			return segment.invalidations + nodeGenerations.get(nodeKey);
+		}
+	}
+
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				weight += segment.entries.getWeight();
+			}
+		}
+		return weight;
+	}
+
+	/**
+	 * Discards cached item. Needs to be called whenever item is written or
+	 * deleted.
+	 *
+	 * @param nodeKey
+	 * @param id
+	 */
+	public void invalidate(String nodeKey, String id) {
+		Key key = new Key(nodeKey, id);
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.invalidations++;
+			remove(segment, key);
+		}
+	}
+
+	/**
+	 * Discards all cached items of a node. Needs to be called whenever items
+	 * of node are removed without knowing their ids, ie. when node is purged.
+	 *
+	 * @param nodeKey
+	 */
+	public void invalidate(String nodeKey) {
+		nodeGenerations.increment(nodeKey);
+		Set<String> ids = idsByNode.remove(nodeKey);
+		if (ids == null) {
+			return;
+		}
+		for (String id : ids) {
+			Key key = new Key(nodeKey, id);
+			Segment segment = segmentFor(key);
+			synchronized (segment) {
+				remove(segment, key);
+			}
+		}
+	}
+
+	/**
+	 * Discards cached items of a node other than <code>kept</code> ones. Needs
+	 * to be called when oldest items of node are removed, ie. when node is
+	 * trimmed.
+	 *
+	 * @param nodeKey
+	 * @param kept
+	 *            ids of items which are still stored in repository
+	 */
+	public void retain(String nodeKey, Set<String> kept) {
+		nodeGenerations.increment(nodeKey);
+		Set<String> ids = new HashSet<String>();
+		idsByNode.computeIfPresent(nodeKey, (k, cached) -> {
+			ids.addAll(cached);
+			return cached;
+		});
+		for (String id : ids) {
+			if (kept.contains(id)) {
+				continue;
+			}
+			Key key = new Key(nodeKey, id);
+			Segment segment = segmentFor(key);
+			synchronized (segment) {
+				remove(segment, key);
+			}
+		}
+	}
+
+	/**
+	 * Checks if any item of a node is cached.
+	 *
+	 * @param nodeKey
+	 *
+	 * @return
+	 */
+	public boolean contains(String nodeKey) {
+		return idsByNode.containsKey(nodeKey);
+	}
+
+	/**
+	 * Discards all cached items, ie. after all nodes of a service were
+	 * removed.
+	 */
+	public void invalidateAll() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.invalidations++;
+				segment.entries.clear();
+			}
+		}
+		idsByNode.clear();
+	}
+
+	/**
+	 * Stores item loaded from repository, unless item was modified since
+	 * <code>stamp</code> was retrieved.
+	 *
+	 * @param nodeKey
+	 * @param id
+	 * @param item
+	 * @param stamp
+	 */
+	public void loaded(String nodeKey, String id, Element item, long stamp) {
+		if (item == null) {
+			return;
+		}
+		loaded(nodeKey, id, item, item.toString().length(), stamp);
+	}
+
+	/**
+	 * Stores item loaded from repository, for which length of serialized form
+	 * is already known. Item is stored without copying, so it must not be
+	 * modified later.
+	 *
+	 * @param nodeKey
+	 * @param id
+	 * @param item
+	 * @param itemWeight
+	 *            length of serialized item
+	 * @param stamp
+	 *
+	 * @see #loaded(String, String, Element, long)
+	 */
+	public void loaded(String nodeKey, String id, Element item, int itemWeight, long stamp) {
+		if (item == null) {
+			return;
+		}
+		if (itemWeight > maxItemSize) {
+			// too big to be kept in memory
+			return;
+		}
+		Key key = new Key(nodeKey, id);
+		Entry entry = new Entry(item, ENTRY_OVERHEAD + itemWeight);
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			long generation = nodeGenerations.get(nodeKey);
+			if (segment.invalidations + generation != stamp) {
+				return;
+			}
+			if (segment.entries.put(key, entry) == null) {
+				idsByNode.compute(nodeKey, (k, ids) -> {
+					Set<String> result = ids == null ? new HashSet<String>() : ids;
+					result.add(id);
+					return result;
+				});
+			}
+			if (nodeGenerations.get(nodeKey) != generation) {
+				// items of node were invalidated after stamp was checked and
+				// id might not have been seen by invalidating thread
+				remove(segment, key);
+				return;
+			}
+			segment.entries.evict((evictedKey, evictedEntry) -> {
+				removeFromNode(evictedKey);
+				statistics.evicted();
+			});
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "items-cache/size", size(), Level.FINEST);
+		list.add(compName, "items-cache/weight", getWeight(), Level.FINEST);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private void remove(Segment segment, Key key) {
+		if (segment.entries.remove(key) != null) {
+			removeFromNode(key);
+		}
+	}
+
+	private void removeFromNode(Key key) {
+		idsByNode.computeIfPresent(key.nodeKey, (k, ids) -> {
+			ids.remove(key.id);
+			return ids.isEmpty() ? null : ids;
+		});
+	}
+
+	private Segment segmentFor(Key key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	private static class Entry {
+
+		private final Element item;
+		private final int weight;
+
+		private Entry(Element item, int weight) {
+			this.item = item;
+			this.weight = weight;
+		}
+	}
+
+	private static class Key {
+
+		private final String id;
+		private final String nodeKey;
+
+		private Key(String nodeKey, String id) {
+			this.nodeKey = nodeKey;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return nodeKey.equals(other.nodeKey) && id.equals(other.id);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * nodeKey.hashCode() + id.hashCode();
+		}
+	}
+
+	private static class Segment {
+
+		private final WeightedLru<Key, Entry> entries;
+		private long invalidations = 0;
+
+		private Segment(long maxWeight) {
+			this.entries = new WeightedLru<Key, Entry>(maxWeight, entry -> entry.weight);
+		}
+	}
+}
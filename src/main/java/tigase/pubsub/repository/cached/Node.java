@@ -22,6 +22,7 @@
 package tigase.pubsub.repository.cached;
 
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.NodeConfigSnapshot;
 
 import tigase.pubsub.repository.INodeMeta;
 import tigase.xmpp.BareJID;
@@ -47,6 +48,7 @@ public class Node<T> implements INodeMeta<T> {
 
 	private NodeAffiliations nodeAffiliations;
 	private AbstractNodeConfig nodeConfig;
+	private volatile NodeConfigSnapshot nodeConfigSnapshot;
 	private NodeSubscriptions nodeSubscriptions;
 
 	// private Long nodeConfigChangeTimestamp;
@@ -79,7 +81,11 @@ public class Node<T> implements INodeMeta<T> {
 	}
 
 	public void affiliationsMerge() {
+		boolean changed = nodeAffiliations.isChanged();
 		nodeAffiliations.merge();
+		if (changed) {
+			nodeSubscriptions.invalidateDeliverableSubscribers();
+		}
 	}
 
 	public boolean affiliationsNeedsWriting() {
@@ -94,6 +100,7 @@ public class Node<T> implements INodeMeta<T> {
 	public void configCopyFrom(AbstractNodeConfig nodeConfig) {
 		synchronized (this) {
 			this.nodeConfig.copyFrom(nodeConfig);
+			this.nodeConfigSnapshot = new NodeConfigSnapshot(this.nodeConfig);
 			conNeedsWriting = true;
 		}
 	}
@@ -130,6 +137,26 @@ public class Node<T> implements INodeMeta<T> {
 		return nodeConfig;
 	}
 
+	/**
+	 * Returns parsed configuration of node, which is created on first use and
+	 * then replaced whenever configuration is changed.
+	 *
+	 * @return
+	 */
+	public NodeConfigSnapshot getNodeConfigSnapshot() {
+		NodeConfigSnapshot snapshot = this.nodeConfigSnapshot;
+		if (snapshot == null) {
+			synchronized (this) {
+				snapshot = this.nodeConfigSnapshot;
+				if (snapshot == null) {
+					snapshot = new NodeConfigSnapshot(nodeConfig);
+					this.nodeConfigSnapshot = snapshot;
+				}
+			}
+		}
+		return snapshot;
+	}
+
 	// public Long getNodeConfigChangeTimestamp() {
 	// return nodeConfigChangeTimestamp;
 	// }
@@ -0,0 +1,246 @@
+/*
+ * NodeCache.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.utils.CacheStatistics;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+
+/**
+ * Segmented LRU cache of nodes.
+ *
+ * Keys are spread over a number of independently locked segments, each of
+ * them keeping its entries in access order, so concurrent lookups of
+ * different nodes do not contend on a single monitor. Cache is limited by
+ * number of entries and optionally by total weight of entries, where weight
+ * of a node is calculated by the weigher (ie. based on number of subscribers).
+ * Entries for which <code>evictable</code> returns <code>false</code> (ie.
+ * nodes with unsaved changes) are never evicted.
+ */
+public class NodeCache extends AbstractMap<String, Node> implements StatisticHolder {
+
+	private static final int DEFAULT_SEGMENTS = 16;
+
+	private final BiPredicate<String, Node> evictable;
+	private final Segment[] segments;
+	private final int segmentsMask;
+
+	private final CacheStatistics statistics = new CacheStatistics("cache");
+
+	public NodeCache(int maxSize, ToIntFunction<Node> weigher, BiPredicate<String, Node> evictable) {
+		this(maxSize, DEFAULT_SEGMENTS, weigher, evictable);
+	}
+
+	public NodeCache(int maxSize, int concurrencyLevel, ToIntFunction<Node> weigher, BiPredicate<String, Node> evictable) {
+		int count = 1;
+		while (count < concurrencyLevel && count < maxSize) {
+			count <<= 1;
+		}
+		this.segments = new Segment[count];
+		this.segmentsMask = count - 1;
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(weigher);
+			segments[i].entries.setMaxSize((int) share(maxSize, i));
+		}
+		this.evictable = evictable;
+	}
+
+	/**
+	 * Sets limit for total weight of cached nodes, value less or equal to 0
+	 * disables this limit.
+	 *
+	 * @param maxWeight
+	 */
+	public void setMaxWeight(long maxWeight) {
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				segments[i].entries.setMaxWeight(maxWeight <= 0 ? 0 : share(maxWeight, i));
+			}
+		}
+	}
+
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				weight += segment.entries.getWeight();
+			}
+		}
+		return weight;
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.entries.clear();
+			}
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.entries.containsKey(key);
+		}
+	}
+
+	@Override
+	public Set<Entry<String, Node>> entrySet() {
+		// snapshot is returned so iteration does not block any of segments
+		Map<String, Node> result = new HashMap<>(size());
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.entries.forEach(result::put);
+			}
+		}
+		return result.entrySet();
+	}
+
+	@Override
+	public Node get(Object key) {
+		Segment segment = segmentFor(key);
+		Node node = null;
+		synchronized (segment) {
+			node = segment.entries.get(key);
+			if (node != null) {
+				// number of subscribers changes over time, so we update weight
+				segment.entries.reweigh(key);
+				evict(segment, (String) key);
+			}
+		}
+		return statistics.counted(node);
+	}
+
+	/**
+	 * Returns cached node without updating access order or statistics.
+	 *
+	 * @param key
+	 *
+	 * @return cached node or <code>null</code>
+	 */
+	public Node peek(String key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.entries.get(key);
+		}
+	}
+
+	@Override
+	public Node put(String key, Node node) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			Node old = segment.entries.put(key, node);
+			evict(segment, key);
+			return old;
+		}
+	}
+
+	@Override
+	public Node remove(Object key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			return segment.entries.remove(key);
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "cache/weight", getWeight(), Level.FINEST);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private void evict(Segment segment, String insertedKey) {
+		segment.entries.evict((key, node) -> !key.equals(insertedKey) && evictable.test(key, node),
+				(key, node) -> statistics.evicted());
+	}
+
+	/**
+	 * Splits limit between segments, so that sum of limits of segments is
+	 * equal to the limit of the cache.
+	 */
+	private long share(long limit, int segment) {
+		long share = limit / segments.length;
+		if (segment < limit % segments.length) {
+			++share;
+		}
+		return Math.max(1, share);
+	}
+
+	private Segment segmentFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentsMask];
+	}
+
+	private static class Segment {
+
+		private final WeightedLru<String, Node> entries;
+
+		private Segment(ToIntFunction<Node> weigher) {
+			this.entries = new WeightedLru<String, Node>(0, weigher);
+		}
+	}
+}
@@ -1,19 +1,47 @@
 package tigase.pubsub.repository.cached;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import tigase.pubsub.Affiliation;
 import tigase.pubsub.Subscription;
 import tigase.pubsub.Utils;
+import tigase.pubsub.repository.IAffiliations;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
 
 public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscriptions {
 
+	/**
+	 * Immutable list of subscribers to which notifications are delivered,
+	 * valid only as long as <code>generation</code> is not changed.
+	 */
+	private static class Deliverable {
+
+		private final int generation;
+		private final JID[] subscribers;
+
+		private Deliverable(int generation, JID[] subscribers) {
+			this.generation = generation;
+			this.subscribers = subscribers;
+		}
+	}
+
+	private static final JID[] EMPTY = new JID[0];
+
 	protected final ThreadLocal<Map<BareJID, UsersSubscription>> changedSubs = new ThreadLocal<Map<BareJID, UsersSubscription>>();
 
+	private volatile Deliverable deliverable = null;
+
+	private final AtomicInteger generation = new AtomicInteger(0);
+
 	public NodeSubscriptions() {
 	}
 
@@ -61,6 +89,8 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 			s.setSubscription(subscription);
 
 			changedSubs().put(s.getJid(), s);
+			// shared instance was modified
+			invalidateDeliverableSubscribers();
 		}
 	}
 
@@ -87,6 +117,58 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 		return us;
 	}
 
+	/**
+	 * Returns subscribers to which notifications should be delivered, ie.
+	 * subscribed and not outcast. Array is created after subscriptions or
+	 * affiliations are merged and then shared by all publications, so it
+	 * must not be modified.
+	 *
+	 * If current thread has not merged changes, <code>null</code> is
+	 * returned, as shared array would not reflect them.
+	 *
+	 * @param affiliations
+	 *            affiliations of the same node
+	 *
+	 * @return
+	 */
+	@Override
+	public JID[] getDeliverableSubscribers(IAffiliations affiliations) {
+		if (isChanged() || affiliations.isChanged()) {
+			return null;
+		}
+
+		final int current = generation.get();
+		Deliverable d = this.deliverable;
+		if (d != null && d.generation == current) {
+			return d.subscribers;
+		}
+
+		List<JID> result = new ArrayList<JID>(subs.size());
+		for (UsersSubscription s : subs.values()) {
+			if (s.getSubscription() != Subscription.subscribed) {
+				continue;
+			}
+			UsersAffiliation affiliation = affiliations.getSubscriberAffiliation(s.getJid());
+			if (affiliation.getAffiliation() != Affiliation.outcast) {
+				result.add(JID.jidInstance(s.getJid()));
+			}
+		}
+		JID[] subscribers = result.isEmpty() ? EMPTY : result.toArray(new JID[result.size()]);
+
+		// if generation changed in meantime, snapshot will be recreated on
+		// next call
+		this.deliverable = new Deliverable(current, subscribers);
+		return subscribers;
+	}
+
+	/**
+	 * Marks list of deliverable subscribers as outdated. Needs to be called
+	 * whenever subscriptions or affiliations of node are merged.
+	 */
+	public void invalidateDeliverableSubscribers() {
+		generation.incrementAndGet();
+	}
+
 	/**
 	 * Method description
 	 * 
@@ -129,6 +211,9 @@ public class NodeSubscriptions extends tigase.pubsub.repository.NodeSubscription
 			}
 		}
 		//subs.putAll(changedSubs);
+		if (!changedSubs.isEmpty()) {
+			invalidateDeliverableSubscribers();
+		}
 		changedSubs.clear();
 	}
 
@@ -0,0 +1,401 @@
+/*
+ * UserNodesIndex.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.pubsub.utils.CacheStatistics;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Reverse index of nodes of a service to which user is subscribed or
+ * affiliated, so lookups done ie. on every available presence of a user do
+ * not need to query the database.
+ *
+ * Subscriptions and affiliations of a user are loaded lazily, each on first
+ * request, and are then kept up to date with changes written to the database.
+ * Index is limited by total weight of entries, where weight of an entry is
+ * 1 + number of indexed nodes, and least recently used entries are evicted
+ * first.
+ *
+ * Indexed maps are never modified, but replaced with modified copies, so they
+ * may be returned to callers without copying. Users are indexed also by
+ * service, so removal of a node updates only users of its service.
+ */
+public class UserNodesIndex implements StatisticHolder {
+
+	private final WeightedLru<Key, Entry> entries;
+	private final Generations generations = new Generations();
+	private final Map<BareJID, Set<BareJID>> usersByService = new HashMap<BareJID, Set<BareJID>>();
+
+	private final CacheStatistics statistics = new CacheStatistics("user-nodes-index");
+
+	public UserNodesIndex(long maxWeight) {
+		this.entries = new WeightedLru<Key, Entry>(maxWeight, Entry::weight);
+	}
+
+	/**
+	 * Updates indexed affiliations of users with changes of affiliations of a
+	 * node. Needs to be called whenever affiliations of node are written.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param affiliations
+	 *            changed affiliations, <code>none</code> means that user is
+	 *            no longer affiliated
+	 */
+	public void affiliationsChanged(BareJID serviceJid, String nodeName, Collection<UsersAffiliation> affiliations) {
+		synchronized (entries) {
+			for (UsersAffiliation affiliation : affiliations) {
+				Key key = new Key(serviceJid, affiliation.getJid());
+				generations.increment(key);
+				Entry entry = entries.get(key);
+				if (entry == null || entry.affiliations == null) {
+					continue;
+				}
+				Map<String, UsersAffiliation> changed = new HashMap<String, UsersAffiliation>(entry.affiliations);
+				if (affiliation.getAffiliation() == Affiliation.none) {
+					changed.remove(nodeName);
+				} else {
+					changed.put(nodeName, clone(affiliation));
+				}
+				entry.affiliations = Collections.unmodifiableMap(changed);
+				entries.reweigh(key);
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Updates indexed subscriptions of users with changes of subscriptions of
+	 * a node. Needs to be called whenever subscriptions of node are written.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param subscriptions
+	 *            changed subscriptions, <code>none</code> means that user is
+	 *            no longer subscribed
+	 */
+	public void subscriptionsChanged(BareJID serviceJid, String nodeName, Collection<UsersSubscription> subscriptions) {
+		synchronized (entries) {
+			for (UsersSubscription subscription : subscriptions) {
+				Key key = new Key(serviceJid, subscription.getJid());
+				generations.increment(key);
+				Entry entry = entries.get(key);
+				if (entry == null || entry.subscriptions == null) {
+					continue;
+				}
+				Map<String, UsersSubscription> changed = new HashMap<String, UsersSubscription>(entry.subscriptions);
+				if (subscription.getSubscription() == Subscription.none) {
+					changed.remove(nodeName);
+				} else {
+					changed.put(nodeName, clone(subscription));
+				}
+				entry.subscriptions = Collections.unmodifiableMap(changed);
+				entries.reweigh(key);
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Returns indexed affiliations of a user.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 *
+	 * @return unmodifiable map of affiliations by node name or
+	 *         <code>null</code> if affiliations of user are not indexed
+	 */
+	public Map<String, UsersAffiliation> getAffiliations(BareJID serviceJid, BareJID userJid) {
+		Map<String, UsersAffiliation> result = null;
+		synchronized (entries) {
+			Entry entry = entries.get(new Key(serviceJid, userJid));
+			if (entry != null) {
+				result = entry.affiliations;
+			}
+		}
+		return statistics.counted(result);
+	}
+
+	/**
+	 * Returns indexed subscriptions of a user.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 *
+	 * @return unmodifiable map of subscriptions by node name or
+	 *         <code>null</code> if subscriptions of user are not indexed
+	 */
+	public Map<String, UsersSubscription> getSubscriptions(BareJID serviceJid, BareJID userJid) {
+		Map<String, UsersSubscription> result = null;
+		synchronized (entries) {
+			Entry entry = entries.get(new Key(serviceJid, userJid));
+			if (entry != null) {
+				result = entry.subscriptions;
+			}
+		}
+		return statistics.counted(result);
+	}
+
+	/**
+	 * Returns stamp which needs to be passed to
+	 * {@link #affiliationsLoaded(BareJID, BareJID, Map, long)} or
+	 * {@link #subscriptionsLoaded(BareJID, BareJID, Map, long)} after data of
+	 * user was loaded from repository.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 *
+	 * @return
+	 */
+	public long getStamp(BareJID serviceJid, BareJID userJid) {
+		// removal of a node changes generation of whole service
+		return generations.get(new Key(serviceJid, userJid)) + generations.get(serviceJid);
+	}
+
+	public long getWeight() {
+		synchronized (entries) {
+			return entries.getWeight();
+		}
+	}
+
+	/**
+	 * Discards whole index, ie. after service or user was removed.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			generations.incrementAll();
+			entries.clear();
+			usersByService.clear();
+		}
+	}
+
+	/**
+	 * Stores affiliations of a user loaded from repository, unless they were
+	 * modified since <code>stamp</code> was retrieved.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 * @param affiliations
+	 * @param stamp
+	 */
+	public void affiliationsLoaded(BareJID serviceJid, BareJID userJid, Map<String, UsersAffiliation> affiliations,
+			long stamp) {
+		if (affiliations == null) {
+			return;
+		}
+		Map<String, UsersAffiliation> copy = new HashMap<String, UsersAffiliation>();
+		for (Map.Entry<String, UsersAffiliation> e : affiliations.entrySet()) {
+			copy.put(e.getKey(), clone(e.getValue()));
+		}
+		Key key = new Key(serviceJid, userJid);
+		synchronized (entries) {
+			if (getStamp(serviceJid, userJid) != stamp) {
+				return;
+			}
+			entry(key).affiliations = Collections.unmodifiableMap(copy);
+			entries.reweigh(key);
+			evict();
+		}
+	}
+
+	/**
+	 * Stores subscriptions of a user loaded from repository, unless they were
+	 * modified since <code>stamp</code> was retrieved.
+	 *
+	 * @param serviceJid
+	 * @param userJid
+	 * @param subscriptions
+	 * @param stamp
+	 */
+	public void subscriptionsLoaded(BareJID serviceJid, BareJID userJid, Map<String, UsersSubscription> subscriptions,
+			long stamp) {
+		if (subscriptions == null) {
+			return;
+		}
+		Map<String, UsersSubscription> copy = new HashMap<String, UsersSubscription>();
+		for (Map.Entry<String, UsersSubscription> e : subscriptions.entrySet()) {
+			copy.put(e.getKey(), clone(e.getValue()));
+		}
+		Key key = new Key(serviceJid, userJid);
+		synchronized (entries) {
+			if (getStamp(serviceJid, userJid) != stamp) {
+				return;
+			}
+			entry(key).subscriptions = Collections.unmodifiableMap(copy);
+			entries.reweigh(key);
+			evict();
+		}
+	}
+
+	/**
+	 * Removes node from indexed data of all users of a service.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 */
+	public void nodeDeleted(BareJID serviceJid, String nodeName) {
+		synchronized (entries) {
+			generations.increment(serviceJid);
+			Set<BareJID> users = usersByService.get(serviceJid);
+			if (users == null) {
+				return;
+			}
+			for (BareJID userJid : users) {
+				Key key = new Key(serviceJid, userJid);
+				Entry entry = entries.get(key);
+				if (entry.affiliations != null && entry.affiliations.containsKey(nodeName)) {
+					Map<String, UsersAffiliation> changed = new HashMap<String, UsersAffiliation>(entry.affiliations);
+					changed.remove(nodeName);
+					entry.affiliations = Collections.unmodifiableMap(changed);
+				}
+				if (entry.subscriptions != null && entry.subscriptions.containsKey(nodeName)) {
+					Map<String, UsersSubscription> changed = new HashMap<String, UsersSubscription>(entry.subscriptions);
+					changed.remove(nodeName);
+					entry.subscriptions = Collections.unmodifiableMap(changed);
+				}
+				entries.reweigh(key);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "user-nodes-index/size", size(), Level.FINEST);
+		list.add(compName, "user-nodes-index/weight", getWeight(), Level.FINEST);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private static UsersAffiliation clone(UsersAffiliation affiliation) {
+		try {
+			return affiliation.clone();
+		} catch (CloneNotSupportedException ex) {
+			return new UsersAffiliation(affiliation.getJid(), affiliation.getAffiliation());
+		}
+	}
+
+	private static UsersSubscription clone(UsersSubscription subscription) {
+		try {
+			return subscription.clone();
+		} catch (CloneNotSupportedException ex) {
+			return new UsersSubscription(subscription.getJid(), subscription.getSubid(), subscription.getSubscription());
+		}
+	}
+
+	private Entry entry(Key key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+			usersByService.computeIfAbsent(key.serviceJid, jid -> new HashSet<BareJID>()).add(key.userJid);
+		}
+		return entry;
+	}
+
+	private void evict() {
+		entries.evict((key, entry) -> {
+			Set<BareJID> users = usersByService.get(key.serviceJid);
+			users.remove(key.userJid);
+			if (users.isEmpty()) {
+				usersByService.remove(key.serviceJid);
+			}
+			statistics.evicted();
+		});
+	}
+
+	private static class Entry {
+
+		private Map<String, UsersAffiliation> affiliations;
+		private Map<String, UsersSubscription> subscriptions;
+
+		private int weight() {
+			return 1 + (affiliations == null ? 0 : affiliations.size())
+					+ (subscriptions == null ? 0 : subscriptions.size());
+		}
+	}
+	private static class Key {
+
+		private final BareJID serviceJid;
+		private final BareJID userJid;
+
+		private Key(BareJID serviceJid, BareJID userJid) {
+			this.serviceJid = serviceJid;
+			this.userJid = userJid;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return serviceJid.equals(other.serviceJid) && userJid.equals(other.userJid);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * serviceJid.hashCode() + userJid.hashCode();
+		}
+	}
+}
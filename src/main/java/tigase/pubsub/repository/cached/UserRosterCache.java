@@ -0,0 +1,179 @@
+/*
+ * UserRosterCache.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import tigase.pubsub.repository.UserRoster;
+import tigase.pubsub.utils.CacheStatistics;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.BareJID;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * LRU cache of parsed rosters of users, used by access checks of nodes
+ * with presence or roster access model.
+ *
+ * Roster is removed from cache when presence subscription between owner of
+ * roster and a contact changes. As not every change of roster is visible to
+ * the component, cached rosters expire after <code>ttl</code> ms.
+ */
+public class UserRosterCache implements StatisticHolder {
+
+	private final Map<BareJID, Entry> entries;
+
+	private final AtomicLong modifications = new AtomicLong(0);
+
+	private final long ttl;
+
+	private final CacheStatistics statistics = new CacheStatistics("roster-cache");
+
+	public UserRosterCache(final int maxSize, final long ttl) {
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<BareJID, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BareJID, Entry> eldest) {
+				if (size() > maxSize) {
+					statistics.evicted();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns cached roster of a user.
+	 *
+	 * @param owner
+	 *
+	 * @return roster or <code>null</code> if roster is not cached or expired
+	 */
+	public UserRoster get(BareJID owner) {
+		UserRoster roster = null;
+		synchronized (entries) {
+			Entry entry = entries.get(owner);
+			if (entry != null) {
+				if (entry.expires > System.currentTimeMillis()) {
+					roster = entry.roster;
+				} else {
+					entries.remove(owner);
+				}
+			}
+		}
+		return statistics.counted(roster);
+	}
+
+	/**
+	 * Returns stamp which needs to be passed to
+	 * {@link #loaded(BareJID, UserRoster, long)} after roster was loaded from
+	 * repository.
+	 *
+	 * @return
+	 */
+	public long getStamp() {
+		return modifications.get();
+	}
+
+	/**
+	 * Removes roster of a user from cache.
+	 *
+	 * @param owner
+	 */
+	public void invalidate(BareJID owner) {
+		synchronized (entries) {
+			modifications.incrementAndGet();
+			entries.remove(owner);
+		}
+	}
+
+	/**
+	 * Stores roster loaded from repository, unless cache was modified since
+	 * <code>stamp</code> was retrieved.
+	 *
+	 * @param owner
+	 * @param roster
+	 * @param stamp
+	 */
+	public void loaded(BareJID owner, UserRoster roster, long stamp) {
+		Entry entry = new Entry(roster, System.currentTimeMillis() + ttl);
+		synchronized (entries) {
+			if (modifications.get() != stamp) {
+				return;
+			}
+			entries.put(owner, entry);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "roster-cache/size", size(), Level.FINEST);
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
+	}
+
+	@Override
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	@Override
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	@Override
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+	}
+
+	private static class Entry {
+
+		private final long expires;
+		private final UserRoster roster;
+
+		private Entry(UserRoster roster, long expires) {
+			this.roster = roster;
+			this.expires = expires;
+		}
+	}
+
+}
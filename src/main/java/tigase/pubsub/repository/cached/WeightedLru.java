@@ -0,0 +1,166 @@
+/*
+ * WeightedLru.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.cached;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Entries of a cache kept in access order together with their total weight,
+ * so that least recently used entries may be evicted when cache exceeds its
+ * limits. Weight of an entry is calculated by the weigher when entry is
+ * stored and again when {@link #reweigh(Object)} is called after entry was
+ * modified.
+ *
+ * Instances are not thread safe, so they need to be guarded by lock of the
+ * cache.
+ */
+class WeightedLru<K, V> {
+
+	private final LinkedHashMap<K, Weighted<V>> entries = new LinkedHashMap<K, Weighted<V>>(16, 0.75f, true);
+	private int maxSize = Integer.MAX_VALUE;
+	private long maxWeight;
+	private long weight = 0;
+	private final ToIntFunction<? super V> weigher;
+
+	/**
+	 * @param maxWeight
+	 *            limit for total weight of entries, value less or equal to 0
+	 *            disables this limit
+	 * @param weigher
+	 */
+	WeightedLru(long maxWeight, ToIntFunction<? super V> weigher) {
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	boolean containsKey(Object key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Evicts least recently used entries until cache is within its limits.
+	 *
+	 * @param evictable
+	 *            entries for which it returns <code>false</code> are kept
+	 * @param evicted
+	 *            called for every evicted entry
+	 */
+	void evict(BiPredicate<? super K, ? super V> evictable, BiConsumer<? super K, ? super V> evicted) {
+		Iterator<Map.Entry<K, Weighted<V>>> it = entries.entrySet().iterator();
+		while (isOverLimit() && it.hasNext()) {
+			Map.Entry<K, Weighted<V>> e = it.next();
+			if (!evictable.test(e.getKey(), e.getValue().value)) {
+				continue;
+			}
+			it.remove();
+			weight -= e.getValue().weight;
+			evicted.accept(e.getKey(), e.getValue().value);
+		}
+	}
+
+	void evict(BiConsumer<? super K, ? super V> evicted) {
+		evict((key, value) -> true, evicted);
+	}
+
+	void forEach(BiConsumer<? super K, ? super V> action) {
+		for (Map.Entry<K, Weighted<V>> e : entries.entrySet()) {
+			action.accept(e.getKey(), e.getValue().value);
+		}
+	}
+
+	/**
+	 * Returns entry and marks it as recently used.
+	 */
+	V get(Object key) {
+		Weighted<V> entry = entries.get(key);
+		return entry == null ? null : entry.value;
+	}
+
+	long getWeight() {
+		return weight;
+	}
+
+	boolean isOverLimit() {
+		return entries.size() > maxSize || (maxWeight > 0 && weight > maxWeight);
+	}
+
+	V put(K key, V value) {
+		Weighted<V> entry = new Weighted<V>(value, weigher.applyAsInt(value));
+		Weighted<V> old = entries.put(key, entry);
+		weight += entry.weight - (old == null ? 0 : old.weight);
+		return old == null ? null : old.value;
+	}
+
+	/**
+	 * Updates weight of an entry after it was modified.
+	 */
+	void reweigh(Object key) {
+		Weighted<V> entry = entries.get(key);
+		if (entry != null) {
+			int before = entry.weight;
+			entry.weight = weigher.applyAsInt(entry.value);
+			weight += entry.weight - before;
+		}
+	}
+
+	V remove(Object key) {
+		Weighted<V> old = entries.remove(key);
+		if (old == null) {
+			return null;
+		}
+		weight -= old.weight;
+		return old.value;
+	}
+
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private static class Weighted<V> {
+
+		private final V value;
+		private int weight;
+
+		private Weighted(V value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
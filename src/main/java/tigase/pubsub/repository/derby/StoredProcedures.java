@@ -27,6 +27,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -190,6 +192,27 @@ public class StoredProcedures {
 		}			
 	}	
 	
+	public static void tigPubSubGetItemMeta(Long nodeId, String itemId, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select creation_date, update_date "
+					+ "from tig_pubsub_items "
+					+ "where node_id = ? and id = ?");
+			ps.setLong(1, nodeId);
+			ps.setString(2, itemId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubWriteItem(Long nodeId, String itemId, String publisher, String itemData,
 			ResultSet[] data) throws SQLException {	
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -253,6 +276,60 @@ public class StoredProcedures {
 		}			
 	}		
 	
+	public static void tigPubSubPurgeItems(Long nodeId, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("delete from tig_pubsub_items where node_id = ?");
+			ps.setLong(1, nodeId);
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigPubSubTrimItems(Long nodeId, Integer maxItems, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select id from tig_pubsub_items where node_id = ? order by update_date desc");
+			ps.setLong(1, nodeId);
+			ResultSet rs = ps.executeQuery();
+			List<String> ids = new ArrayList<String>();
+			int pos = 0;
+			while (rs.next()) {
+				if (pos++ >= maxItems) {
+					ids.add(rs.getString(1));
+				}
+			}
+			rs.close();
+			if (!ids.isEmpty()) {
+				ps = conn.prepareStatement("delete from tig_pubsub_items where node_id = ? and id = ?");
+				for (String id : ids) {
+					ps.setLong(1, nodeId);
+					ps.setString(2, id);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubGetNodeId(String serviceJid, String nodeName, ResultSet[] data) throws SQLException {	
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -297,6 +374,52 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigPubSubLoadNode(String serviceJid, String nodeName, ResultSet[] meta,
+			ResultSet[] affiliations, ResultSet[] subscriptions) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select n.node_id "
+					+ "from tig_pubsub_nodes n "
+					+ "inner join tig_pubsub_service_jids sj on n.service_id = sj.service_id "
+					+ "where sj.service_jid = ? and n.name = ?");
+			ps.setString(1, serviceJid);
+			ps.setString(2, nodeName);
+			ResultSet rs = ps.executeQuery();
+			long nodeId = rs.next() ? rs.getLong(1) : -1;
+			rs.close();
+
+			ps = conn.prepareStatement("select n.node_id, n.configuration, cj.jid, n.creation_date "
+					+ "from tig_pubsub_nodes n "
+					+ "inner join tig_pubsub_jids cj on cj.jid_id = n.creator_id "
+					+ "where n.node_id = ?");
+			ps.setLong(1, nodeId);
+			meta[0] = ps.executeQuery();
+
+			ps = conn.prepareStatement("select pj.jid, pa.affiliation"
+					+ " from tig_pubsub_affiliations pa"
+					+ " inner join tig_pubsub_jids pj on pa.jid_id = pj.jid_id"
+					+ " where pa.node_id = ?");
+			ps.setLong(1, nodeId);
+			affiliations[0] = ps.executeQuery();
+
+			ps = conn.prepareStatement("select pj.jid, ps.subscription, ps.subscription_id"
+					+ " from tig_pubsub_subscriptions ps"
+					+ " inner join tig_pubsub_jids pj on ps.jid_id = pj.jid_id"
+					+ " where ps.node_id = ?");
+			ps.setLong(1, nodeId);
+			subscriptions[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigPubSubGetNodeItemIds(Long nodeId, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -7,8 +7,7 @@ package tigase.pubsub.repository.migration;
 import java.sql.CallableStatement;
 import java.sql.SQLException;
 import java.util.Date;
-import java.util.Map;
-import tigase.db.UserRepository;
+import tigase.pubsub.repository.JDBCConnectionPool.PooledConnection;
 import tigase.pubsub.repository.RepositoryException;
 import tigase.xmpp.BareJID;
 
@@ -18,33 +17,25 @@ import tigase.xmpp.BareJID;
  */
 public class PubSubNewDAOJDBC extends tigase.pubsub.repository.PubSubDAOJDBC {
 
-	private CallableStatement fix_node_st = null;
-	private CallableStatement fix_item_st = null;
+	private static final String FIX_NODE_QUERY = "{ call TigPubSubFixNode(?,?) }";
+	private static final String FIX_ITEM_QUERY = "{ call TigPubSubFixItem(?,?,?,?) }";
 	
 	public PubSubNewDAOJDBC() {
 	}
 	
-	@Override
-	public void init(String resource_uri, Map<String, String> params, UserRepository userRepository) throws RepositoryException {
-		super.init(resource_uri, params, userRepository);
-		try {
-			fix_node_st = conn.prepareCall("{ call TigPubSubFixNode(?,?) }");
-			fix_item_st = conn.prepareCall("{ call TigPubSubFixItem(?,?,?,?) }");
-		}
-		catch (SQLException ex) {
-			throw new RepositoryException("could not initialize repository", ex);
-		}
-	}
-	
 	public void fixNode(BareJID serviceJid, long nodeId, Date creationDate) 
 			throws RepositoryException {
 		if (creationDate == null)
 			return;
 		try {
-			synchronized (fix_node_st) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement fix_node_st = conn.prepareCall(FIX_NODE_QUERY);
 				fix_node_st.setLong(1, nodeId);
 				fix_node_st.setTimestamp(2, new java.sql.Timestamp(creationDate.getTime()));
 				fix_node_st.execute();
+			} finally {
+				releaseConnection(conn);
 			}
 		}
 		catch (SQLException ex) {
@@ -54,7 +45,9 @@ public class PubSubNewDAOJDBC extends tigase.pubsub.repository.PubSubDAOJDBC {
 	
 	public void fixItem(BareJID serviceJid, long nodeId, String itemId, Date creationDate, Date updateDate) throws RepositoryException {
 		try {
-			synchronized (fix_item_st) {
+			PooledConnection conn = takeConnection();
+			try {
+				CallableStatement fix_item_st = conn.prepareCall(FIX_ITEM_QUERY);
 				fix_item_st.setLong(1, nodeId);
 				fix_item_st.setString(2, itemId);
 				if (creationDate == null) {
@@ -68,6 +61,8 @@ public class PubSubNewDAOJDBC extends tigase.pubsub.repository.PubSubDAOJDBC {
 					fix_item_st.setTimestamp(4, new java.sql.Timestamp(updateDate.getTime()));
 				}
 				fix_item_st.execute();
+			} finally {
+				releaseConnection(conn);
 			}
 		}
 		catch (SQLException ex) {
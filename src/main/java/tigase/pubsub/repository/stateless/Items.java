@@ -1,8 +1,11 @@
 package tigase.pubsub.repository.stateless;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.repository.IItems;
 import tigase.pubsub.repository.IPubSubDAO;
 import tigase.pubsub.repository.RepositoryException;
@@ -31,11 +34,21 @@ class Items implements IItems {
 		this.dao.deleteItem(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public void deleteItems(Collection<String> ids) throws RepositoryException {
+		this.dao.deleteItems(serviceJid, nodeId, ids);
+	}
+
 	@Override
 	public Element getItem(String id) throws RepositoryException {
 		return this.dao.getItem(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public Map<String, Element> getItems(List<String> ids) throws RepositoryException {
+		return this.dao.getItems(serviceJid, nodeId, ids);
+	}
+
 	@Override
 	public Date getItemCreationDate(String id) throws RepositoryException {
 		return this.dao.getItemCreationDate(serviceJid, nodeId, id);
@@ -56,14 +69,35 @@ class Items implements IItems {
 		return this.dao.getItemsMeta(serviceJid, nodeId, nodeName);
 	}
 	
+	@Override
+	public ItemsPage getItemsPage(CollectionItemsOrdering ordering, String afterId, String beforeId, Date since,
+			int offset, int limit) throws RepositoryException {
+		return this.dao.getItemsPage(serviceJid, nodeId, nodeName, ordering, afterId, beforeId, since, offset, limit);
+	}
+
 	@Override
 	public Date getItemUpdateDate(String id) throws RepositoryException {
 		return this.dao.getItemUpdateDate(serviceJid, nodeId, id);
 	}
 
+	@Override
+	public void purgeItems() throws RepositoryException {
+		this.dao.purgeItems(serviceJid, nodeId);
+	}
+
+	@Override
+	public void trimItems(int maxItems) throws RepositoryException {
+		this.dao.trimItems(serviceJid, nodeId, maxItems);
+	}
+
 	@Override
 	public void writeItem(long timeInMilis, String id, String publisher, Element item) throws RepositoryException {
 		this.dao.writeItem(serviceJid, nodeId, timeInMilis, id, publisher, item);
 	}
 
+	@Override
+	public void writeItems(List<ItemData> items) throws RepositoryException {
+		this.dao.writeItems(serviceJid, nodeId, items);
+	}
+
 }
@@ -0,0 +1,54 @@
+/*
+ * NodeData.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.repository.stateless;
+
+import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.repository.NodeAffiliations;
+import tigase.pubsub.repository.NodeSubscriptions;
+import tigase.xmpp.BareJID;
+
+import java.util.Date;
+
+/**
+ * Class holding metadata of PubSub node together with its affiliations
+ * and subscriptions, which are loaded at once.
+ */
+public class NodeData<T> extends NodeMeta<T> {
+
+	private final NodeAffiliations affiliations;
+	private final NodeSubscriptions subscriptions;
+
+	public NodeData(T id, AbstractNodeConfig config, BareJID creator, Date creationTime,
+			NodeAffiliations affiliations, NodeSubscriptions subscriptions) {
+		super(id, config, creator, creationTime);
+		this.affiliations = affiliations;
+		this.subscriptions = subscriptions;
+	}
+
+	public NodeAffiliations getNodeAffiliations() {
+		return affiliations;
+	}
+
+	public NodeSubscriptions getNodeSubscriptions() {
+		return subscriptions;
+	}
+}
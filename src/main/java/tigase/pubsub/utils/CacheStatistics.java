@@ -0,0 +1,103 @@
+/*
+ * CacheStatistics.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.utils;
+
+import java.util.logging.Level;
+
+import tigase.stats.Counter;
+import tigase.stats.StatisticsList;
+
+/**
+ * Counters of requests, hits, misses and evictions of a cache, reported with
+ * hit-miss ratio under names starting with prefix of the cache.
+ */
+public class CacheStatistics {
+
+	private final String prefix;
+
+	private final Counter requestsCounter;
+	private final Counter hitsCounter;
+	private final Counter missesCounter;
+	private final Counter evictionsCounter;
+
+	public CacheStatistics(String prefix) {
+		this.prefix = prefix;
+		this.requestsCounter = new Counter(prefix + "/requests", Level.FINEST);
+		this.hitsCounter = new Counter(prefix + "/hits", Level.FINEST);
+		this.missesCounter = new Counter(prefix + "/misses", Level.FINEST);
+		this.evictionsCounter = new Counter(prefix + "/evictions", Level.FINEST);
+	}
+
+	/**
+	 * Counts lookup in cache as a hit if <code>result</code> is not
+	 * <code>null</code> or as a miss otherwise.
+	 *
+	 * @param result
+	 *            value found in cache
+	 *
+	 * @return passed value
+	 */
+	public <V> V counted(V result) {
+		requestsCounter.inc();
+		if (result != null) {
+			hitsCounter.inc();
+		} else {
+			missesCounter.inc();
+		}
+		return result;
+	}
+
+	public void evicted() {
+		evictionsCounter.inc();
+	}
+
+	public void everyHour() {
+		requestsCounter.everyHour();
+		hitsCounter.everyHour();
+		missesCounter.everyHour();
+		evictionsCounter.everyHour();
+	}
+
+	public void everyMinute() {
+		requestsCounter.everyMinute();
+		hitsCounter.everyMinute();
+		missesCounter.everyMinute();
+		evictionsCounter.everyMinute();
+	}
+
+	public void everySecond() {
+		requestsCounter.everySecond();
+		hitsCounter.everySecond();
+		missesCounter.everySecond();
+		evictionsCounter.everySecond();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		requestsCounter.getStatistics(compName, list);
+		hitsCounter.getStatistics(compName, list);
+		missesCounter.getStatistics(compName, list);
+		evictionsCounter.getStatistics(compName, list);
+		list.add(compName, prefix + "/hit-miss ratio per minute", (requestsCounter.getPerMinute() == 0) ? 0 : ((float) hitsCounter.getPerMinute())/requestsCounter.getPerMinute(), Level.FINE);
+		list.add(compName, prefix + "/hit-miss ratio per second", (requestsCounter.getPerSecond() == 0) ? 0 : ((float) hitsCounter.getPerSecond())/requestsCounter.getPerSecond(), Level.FINE);
+	}
+
+}
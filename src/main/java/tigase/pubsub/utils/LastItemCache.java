@@ -0,0 +1,263 @@
+/*
+ * LastItemCache.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.utils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+/**
+ * In-memory cache of last published item of each node, used to send last
+ * published item to subscribers without querying repository. Last item is
+ * the most recently updated item of a node.
+ *
+ * Cache is bounded by number of nodes and items larger than
+ * <code>maxItemSize</code> characters (estimated without serializing them)
+ * are not cached at all. Cache remembers also that node has no items, so
+ * nodes without items are not queried again until something is published.
+ */
+public class LastItemCache {
+
+	/**
+	 * Result of lookup in cache.
+	 */
+	public static class Entry {
+
+		private final Element item;
+
+		private Entry(Element item) {
+			this.item = item;
+		}
+
+		/**
+		 * @return copy of last published item or <code>null</code> if node has
+		 *         no items
+		 */
+		public Element getItem() {
+			return item == null ? null : item.clone();
+		}
+
+	}
+
+	public static final int DEF_MAX_ITEM_SIZE = 64 * 1024;
+
+	private static final Entry NO_ITEMS = new Entry(null);
+
+	private final Map<String, Entry> entries;
+
+	private final int maxItemSize;
+
+	private final AtomicLong modifications = new AtomicLong(0);
+
+	private final CacheStatistics statistics = new CacheStatistics("last-item-cache");
+
+	public LastItemCache(final int maxSize) {
+		this(maxSize, DEF_MAX_ITEM_SIZE);
+	}
+
+	public LastItemCache(final int maxSize, final int maxItemSize) {
+		this.maxItemSize = maxItemSize;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > maxSize) {
+					statistics.evicted();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns cached last item of a node.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 *
+	 * @return cache entry or <code>null</code> if node is not cached
+	 */
+	public Entry get(BareJID serviceJid, String nodeName) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(createKey(serviceJid, nodeName));
+		}
+		return statistics.counted(entry);
+	}
+
+	/**
+	 * Returns stamp which needs to be passed to
+	 * {@link #loaded(BareJID, String, Element, long)} after last item was
+	 * loaded from repository.
+	 *
+	 * @return
+	 */
+	public long getStamp() {
+		return modifications.get();
+	}
+
+	/**
+	 * Removes node from cache, ie. after item was retracted or node was purged
+	 * or deleted.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 */
+	public void invalidate(BareJID serviceJid, String nodeName) {
+		synchronized (entries) {
+			modifications.incrementAndGet();
+			entries.remove(createKey(serviceJid, nodeName));
+		}
+	}
+
+	/**
+	 * Removes all nodes of a service from cache.
+	 *
+	 * @param serviceJid
+	 */
+	public void invalidate(BareJID serviceJid) {
+		String prefix = serviceJid.toString() + "/";
+		synchronized (entries) {
+			modifications.incrementAndGet();
+			entries.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+	}
+
+	/**
+	 * Stores item loaded from repository, unless cache was modified since
+	 * <code>stamp</code> was retrieved.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param item
+	 *            last item or <code>null</code> if node has no items
+	 * @param stamp
+	 */
+	public void loaded(BareJID serviceJid, String nodeName, Element item, long stamp) {
+		Entry entry = createEntry(item);
+		synchronized (entries) {
+			if (modifications.get() != stamp) {
+				return;
+			}
+			store(createKey(serviceJid, nodeName), entry);
+		}
+	}
+
+	/**
+	 * Stores item which was just published.
+	 *
+	 * @param serviceJid
+	 * @param nodeName
+	 * @param item
+	 */
+	public void published(BareJID serviceJid, String nodeName, Element item) {
+		Entry entry = createEntry(item);
+		synchronized (entries) {
+			modifications.incrementAndGet();
+			store(createKey(serviceJid, nodeName), entry);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		statistics.getStatistics(compName, list);
+		list.add(compName, "last-item-cache/size", size(), Level.FINEST);
+	}
+
+	public void everyHour() {
+		statistics.everyHour();
+	}
+
+	public void everyMinute() {
+		statistics.everyMinute();
+	}
+
+	public void everySecond() {
+		statistics.everySecond();
+	}
+
+	private String createKey(BareJID serviceJid, String nodeName) {
+		return serviceJid.toString() + "/" + nodeName;
+	}
+
+	private Entry createEntry(Element item) {
+		if (item == null) {
+			return NO_ITEMS;
+		}
+		if (estimateSize(item, 0) > maxItemSize) {
+			// too big to be kept in memory
+			return null;
+		}
+		return new Entry(item.clone());
+	}
+
+	/**
+	 * Estimates length of serialized element, stopping as soon as it exceeds
+	 * <code>maxItemSize</code>.
+	 */
+	private int estimateSize(Element elem, int size) {
+		size += 2 * elem.getName().length() + 5;
+		Map<String, String> attributes = elem.getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				size += attr.getKey().length() + attr.getValue().length() + 4;
+			}
+		}
+		String cdata = elem.getCData();
+		if (cdata != null) {
+			size += cdata.length();
+		}
+		List<Element> children = elem.getChildren();
+		if (children != null) {
+			for (Element child : children) {
+				if (size > maxItemSize) {
+					break;
+				}
+				size = estimateSize(child, size);
+			}
+		}
+		return size;
+	}
+
+	private void store(String key, Entry entry) {
+		if (entry == null) {
+			entries.remove(key);
+		} else {
+			entries.put(key, entry);
+		}
+	}
+
+}
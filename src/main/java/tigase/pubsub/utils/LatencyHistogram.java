@@ -0,0 +1,95 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets growing by powers of 2 milliseconds,
+ * from <code>&lt;1ms</code> up to <code>&gt;=32768ms</code>. Recording is
+ * lock free, so it can be updated concurrently by many threads.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 17;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private static int bucketFor(long millis) {
+		if (millis < 1) {
+			return 0;
+		}
+		int bucket = 64 - Long.numberOfLeadingZeros(millis);
+		return bucket >= BUCKETS ? BUCKETS - 1 : bucket;
+	}
+
+	private static String bucketName(int bucket) {
+		if (bucket == BUCKETS - 1) {
+			return ">=" + (1L << (bucket - 1)) + "ms";
+		}
+		return "<" + (1L << bucket) + "ms";
+	}
+
+	/**
+	 * Returns number of recorded values in bucket.
+	 *
+	 * @param millis
+	 *            value which belongs to bucket
+	 *
+	 * @return
+	 */
+	public long getCount(long millis) {
+		return counts.get(bucketFor(millis));
+	}
+
+	public long getTotalCount() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	public void record(long millis) {
+		counts.incrementAndGet(bucketFor(millis));
+	}
+
+	/**
+	 * Returns non empty buckets, ie. <code>[&lt;1ms: 10, &lt;4ms: 2]</code>.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = counts.get(i);
+			if (count == 0) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(bucketName(i)).append(": ").append(count);
+		}
+		return sb.append("]").toString();
+	}
+
+}
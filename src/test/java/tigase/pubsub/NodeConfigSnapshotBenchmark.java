@@ -0,0 +1,96 @@
+/*
+ * NodeConfigSnapshotBenchmark.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares memory allocated by reading node configuration from snapshot with
+ * reading it from cloned configuration. It is not run by default, use
+ * <code>-Pbenchmark</code> to run it.
+ */
+public class NodeConfigSnapshotBenchmark {
+
+	private static final int READS = 20000;
+
+	@Test
+	public void testSnapshotAllocatesLess() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		LeafNodeConfig config = NodeConfigSnapshotTest.createConfig();
+		NodeConfigSnapshot snapshot = new NodeConfigSnapshot(config);
+
+		// warm up both paths before measuring
+		readCloned(config);
+		readSnapshot(snapshot);
+
+		long tid = Thread.currentThread().getId();
+		long start = threadBean.getThreadAllocatedBytes(tid);
+		int cloned = readCloned(config);
+		long clonedBytes = threadBean.getThreadAllocatedBytes(tid) - start;
+
+		start = threadBean.getThreadAllocatedBytes(tid);
+		int shared = readSnapshot(snapshot);
+		long snapshotBytes = threadBean.getThreadAllocatedBytes(tid) - start;
+
+		assertEquals(cloned, shared);
+		assertTrue(snapshotBytes < clonedBytes);
+	}
+
+	/**
+	 * Reads configuration values used by publishing and access checks in the
+	 * way they were read before snapshots were introduced.
+	 */
+	private int readCloned(LeafNodeConfig config) throws Exception {
+		int result = 0;
+		for (int i = 0; i < READS; i++) {
+			LeafNodeConfig clone = (LeafNodeConfig) config.clone();
+			result += clone.getNodeAccessModel().ordinal() + clone.getPublisherModel().ordinal()
+					+ clone.getSendLastPublishedItem().ordinal() + clone.getNotificationPriority().ordinal()
+					+ clone.getMaxItems() + (clone.isPersistItem() ? 1 : 0) + (clone.isDeliverPresenceBased() ? 1 : 0)
+					+ (clone.isPresenceExpired() ? 1 : 0) + clone.getRosterGroupsAllowed().length;
+		}
+		return result;
+	}
+
+	private int readSnapshot(NodeConfigSnapshot snapshot) {
+		int result = 0;
+		for (int i = 0; i < READS; i++) {
+			result += snapshot.getNodeAccessModel().ordinal() + snapshot.getPublisherModel().ordinal()
+					+ snapshot.getSendLastPublishedItem().ordinal() + snapshot.getNotificationPriority().ordinal()
+					+ snapshot.getMaxItems() + (snapshot.isPersistItem() ? 1 : 0)
+					+ (snapshot.isDeliverPresenceBased() ? 1 : 0) + (snapshot.isPresenceExpired() ? 1 : 0)
+					+ snapshot.getRosterGroupsAllowed().length;
+		}
+		return result;
+	}
+
+}
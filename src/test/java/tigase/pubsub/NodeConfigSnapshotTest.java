@@ -0,0 +1,102 @@
+/*
+ * NodeConfigSnapshotTest.java
+ *
+ * Tigase PubSub Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.pubsub;
+
+import org.junit.Test;
+import tigase.pubsub.repository.cached.Node;
+import tigase.pubsub.repository.cached.NodeAffiliations;
+import tigase.pubsub.repository.cached.NodeSubscriptions;
+import tigase.xmpp.BareJID;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class NodeConfigSnapshotTest {
+
+	static LeafNodeConfig createConfig() {
+		LeafNodeConfig config = new LeafNodeConfig("blog");
+		config.setNodeType(NodeType.leaf);
+		config.setValue("pubsub#access_model", AccessModel.roster.name());
+		config.setValue("pubsub#roster_groups_allowed", new String[] { "friends", "family" });
+		config.setValue("pubsub#max_items", "5");
+		config.setValue("pubsub#send_last_published_item", SendLastPublishedItem.on_sub_and_presence.name());
+		config.setValue("pubsub#presence_based_delivery", true);
+		return config;
+	}
+
+	@Test
+	public void testSnapshotValues() {
+		LeafNodeConfig config = createConfig();
+		NodeConfigSnapshot snapshot = new NodeConfigSnapshot(config);
+
+		assertEquals("blog", snapshot.getNodeName());
+		assertEquals(NodeType.leaf, snapshot.getNodeType());
+		assertEquals(AccessModel.roster, snapshot.getNodeAccessModel());
+		assertEquals(config.getPublisherModel(), snapshot.getPublisherModel());
+		assertEquals(SendLastPublishedItem.on_sub_and_presence, snapshot.getSendLastPublishedItem());
+		assertEquals(NotificationPriority.normal, snapshot.getNotificationPriority());
+		assertArrayEquals(new String[] { "friends", "family" }, snapshot.getRosterGroupsAllowed());
+		assertEquals(Integer.valueOf(5), snapshot.getMaxItems());
+		assertEquals(config.isPersistItem(), snapshot.isPersistItem());
+		assertTrue(snapshot.isDeliverPresenceBased());
+		assertEquals(config.getCollection(), snapshot.getCollection());
+
+		// snapshot is not affected by later changes of configuration
+		config.setValue("pubsub#access_model", AccessModel.open.name());
+		assertEquals(AccessModel.roster, snapshot.getNodeAccessModel());
+	}
+
+	@Test
+	public void testCollectionSnapshot() {
+		CollectionNodeConfig config = new CollectionNodeConfig("collection");
+		config.setNodeType(NodeType.collection);
+		config.addChildren("child-1");
+
+		NodeConfigSnapshot snapshot = new NodeConfigSnapshot(config);
+
+		assertEquals(NodeType.collection, snapshot.getNodeType());
+		assertArrayEquals(new String[] { "child-1" }, snapshot.getChildren());
+		assertNull(snapshot.getMaxItems());
+		assertFalse(snapshot.isPersistItem());
+		assertNull(NodeConfigSnapshot.of(null));
+	}
+
+	@Test
+	public void testSnapshotIsReplacedOnConfigChange() {
+		Node<Long> node = new Node<Long>(1L, BareJID.bareJIDInstanceNS("pubsub.example.com"), createConfig(),
+				new NodeAffiliations(), new NodeSubscriptions(), null, new Date());
+
+		NodeConfigSnapshot snapshot = node.getNodeConfigSnapshot();
+		assertSame(snapshot, node.getNodeConfigSnapshot());
+
+		LeafNodeConfig changed = createConfig();
+		changed.setValue("pubsub#access_model", AccessModel.whitelist.name());
+		node.configCopyFrom(changed);
+
+		NodeConfigSnapshot updated = node.getNodeConfigSnapshot();
+		assertNotSame(snapshot, updated);
+		assertEquals(AccessModel.whitelist, updated.getNodeAccessModel());
+		assertEquals(AccessModel.roster, snapshot.getNodeAccessModel());
+	}
+
+}
@@ -0,0 +1,136 @@
+package tigase.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationThrottleTest {
+
+	private static class ManualClock extends NotificationThrottle.Clock {
+
+		private long now = 0;
+		private long slept = 0;
+
+		@Override
+		long nanoTime() {
+			return now;
+		}
+
+		@Override
+		void sleep(long millis) {
+			slept += millis;
+			advance(millis);
+		}
+
+		void advance(long millis) {
+			now += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+	}
+
+	private final AtomicInteger heap = new AtomicInteger(10);
+
+	private final AtomicInteger queue = new AtomicInteger(0);
+
+	private ManualClock clock;
+
+	private NotificationThrottle throttle;
+
+	@Before
+	public void setUp() {
+		clock = new ManualClock();
+		throttle = new NotificationThrottle(clock);
+		throttle.setLimits(90, 95, 100, 100, 50);
+		throttle.setHeapUsageSupplier(heap::get);
+		throttle.start(queue::get);
+	}
+
+	@Test
+	public void testNormal() {
+		assertEquals(NotificationThrottle.State.normal, throttle.getState());
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(throttle.acquire(NotificationPriority.low));
+		}
+		assertEquals(0, throttle.getDeferredCount());
+		assertEquals(0, throttle.getDroppedCount());
+		assertEquals(0, clock.slept);
+	}
+
+	@Test
+	public void testThrottledByQueueDepth() {
+		queue.set(150);
+		clock.advance(100);
+		assertEquals(NotificationThrottle.State.throttled, throttle.getState());
+
+		// bucket filled during 100ms holds credits for 10 notifications
+		for (int i = 0; i < 10; i++) {
+			assertTrue(throttle.acquire(NotificationPriority.normal));
+		}
+		assertEquals(0, throttle.getDeferredCount());
+		assertEquals(0, clock.slept);
+
+		// next ones need to wait 10ms for a credit each
+		for (int i = 0; i < 5; i++) {
+			assertTrue(throttle.acquire(NotificationPriority.normal));
+		}
+		assertEquals(5, throttle.getDeferredCount());
+		assertEquals(50, clock.slept);
+		assertEquals(0, throttle.getDroppedCount());
+
+		assertTrue(throttle.acquire(NotificationPriority.high));
+		assertEquals(5, throttle.getDeferredCount());
+		assertEquals(50, clock.slept);
+	}
+
+	@Test
+	public void testMaxDelay() {
+		throttle.setLimits(90, 95, 100, 1, 50);
+		queue.set(150);
+		assertEquals(NotificationThrottle.State.throttled, throttle.getState());
+
+		assertTrue(throttle.acquire(NotificationPriority.normal));
+		assertEquals(1, throttle.getDeferredCount());
+		assertEquals(50, clock.slept);
+	}
+
+	@Test
+	public void testShedding() {
+		heap.set(97);
+		throttle.setHeapUsageSupplier(heap::get);
+		assertEquals(NotificationThrottle.State.shedding, throttle.getState());
+
+		assertFalse(throttle.acquire(NotificationPriority.low));
+		assertTrue(throttle.acquire(NotificationPriority.normal));
+		assertTrue(throttle.acquire(NotificationPriority.high));
+		assertEquals(1, throttle.getDroppedCount());
+	}
+
+	@Test
+	public void testStop() {
+		queue.set(250);
+		assertEquals(NotificationThrottle.State.shedding, throttle.getState());
+
+		// state is kept for 100ms
+		queue.set(0);
+		clock.advance(50);
+		assertEquals(NotificationThrottle.State.shedding, throttle.getState());
+		clock.advance(50);
+		assertEquals(NotificationThrottle.State.normal, throttle.getState());
+
+		queue.set(250);
+		clock.advance(100);
+		assertEquals(NotificationThrottle.State.shedding, throttle.getState());
+		throttle.stop();
+		assertEquals(NotificationThrottle.State.normal, throttle.getState());
+		assertTrue(throttle.acquire(NotificationPriority.low));
+		assertEquals(0, throttle.getDroppedCount());
+		assertEquals(0, clock.slept);
+	}
+
+}
@@ -0,0 +1,82 @@
+package tigase.pubsub.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import tigase.xmpp.JID;
+
+public class NotificationFanOutTest {
+
+	@Test
+	public void testFanOut() throws Exception {
+		NotificationFanOut fanOut = new NotificationFanOut(4, 100, 2);
+		try {
+			JID[] subscribers = new JID[2500];
+			for (int i = 0; i < subscribers.length; i++) {
+				subscribers[i] = JID.jidInstanceNS("user" + i + "@example.com/res");
+			}
+
+			assertFalse(fanOut.isApplicable(100));
+			assertTrue(fanOut.isApplicable(subscribers.length));
+
+			Map<JID, List<Integer>> received = new ConcurrentHashMap<JID, List<Integer>>();
+			for (int publication = 0; publication < 3; publication++) {
+				final int id = publication;
+				fanOut.fanOut("pubsub.example.com/node-1", subscribers, jid -> {
+					received.computeIfAbsent(jid, k -> new ArrayList<Integer>()).add(id);
+				});
+			}
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (fanOut.getLatency("pubsub.example.com/node-1") == null
+					|| fanOut.getLatency("pubsub.example.com/node-1").getTotalCount() < 3) {
+				assertTrue("fan-out not finished in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+
+			assertEquals(subscribers.length, received.size());
+			for (JID jid : subscribers) {
+				// each subscriber is served by single worker, so order is kept
+				List<Integer> ids = received.get(jid);
+				assertEquals(3, ids.size());
+				for (int i = 0; i < 3; i++) {
+					assertEquals(i, ids.get(i).intValue());
+				}
+			}
+			assertEquals(3, fanOut.getLatency(null).getTotalCount());
+		} finally {
+			fanOut.stop();
+		}
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		NotificationFanOut fanOut = new NotificationFanOut(2, 10, 2);
+		fanOut.stop();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!fanOut.isStopped()) {
+			assertTrue("workers not stopped in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+
+		JID[] subscribers = new JID[50];
+		for (int i = 0; i < subscribers.length; i++) {
+			subscribers[i] = JID.jidInstanceNS("user" + i + "@example.com/res");
+		}
+		List<JID> received = new ArrayList<JID>();
+		// stopped fan-out sends notifications using calling thread
+		fanOut.fanOut("pubsub.example.com/node-1", subscribers, received::add);
+		assertEquals(subscribers.length, received.size());
+		assertEquals(0, fanOut.getPendingNotifications());
+	}
+
+}
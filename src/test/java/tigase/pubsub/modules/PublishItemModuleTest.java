@@ -0,0 +1,111 @@
+package tigase.pubsub.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+public class PublishItemModuleTest {
+
+	private final JID from = JID.jidInstanceNS("pubsub.example.com");
+
+	@Test
+	public void testNotificationSharesPayload() {
+		Element template = PublishItemModule.createNotificationTemplate(createItems(), createBody(), createHeaders());
+
+		Packet p1 = PublishItemModule.createNotification(template, from, JID.jidInstanceNS("user1@example.com"), "1");
+		Packet p2 = PublishItemModule.createNotification(template, from, JID.jidInstanceNS("user2@example.com"), "2");
+
+		assertEquals("user1@example.com", p1.getElement().getAttributeStaticStr("to"));
+		assertEquals("2", p2.getElement().getAttributeStaticStr("id"));
+		assertEquals(from, p1.getStanzaFrom());
+		assertEquals(JID.jidInstanceNS("user2@example.com"), p2.getStanzaTo());
+
+		List<Element> c1 = p1.getElement().getChildren();
+		List<Element> c2 = p2.getElement().getChildren();
+		assertEquals(template.getChildren().size(), c1.size());
+		for (int i = 0; i < c1.size(); i++) {
+			assertSame(c1.get(i), c2.get(i));
+		}
+		assertEquals("http://jabber.org/protocol/pubsub#event",
+				p1.getElement().getChild("event").getXMLNS());
+	}
+
+	@Test
+	public void testNotificationContentAndRecipients() {
+		Element template = PublishItemModule.createNotificationTemplate(createItems(), createBody(), createHeaders());
+		JID[] recipients = new JID[] { JID.jidInstanceNS("user1@example.com/res"),
+				JID.jidInstanceNS("user2@example.com"), JID.jidInstanceNS("user3@example.com/other") };
+
+		String expectedContent = null;
+		for (int i = 0; i < recipients.length; i++) {
+			Packet packet = PublishItemModule.createNotification(template, from, recipients[i], String.valueOf(i));
+			Element message = packet.getElement();
+
+			assertEquals("message", message.getName());
+			assertEquals(recipients[i], packet.getStanzaTo());
+			assertEquals(from, packet.getStanzaFrom());
+			assertEquals(recipients[i].toString(), message.getAttributeStaticStr("to"));
+			assertEquals(String.valueOf(i), message.getAttributeStaticStr("id"));
+
+			assertEquals("New entry published", message.getChildCData(new String[] { "message", "body" }));
+			Element items = message.findChildStaticStr(new String[] { "message", "event", "items" });
+			assertEquals("blog/entries", items.getAttributeStaticStr("node"));
+			Element item = items.getChild("item");
+			assertEquals("entry-1", item.getAttributeStaticStr("id"));
+			assertEquals("Title of entry", item.getChild("entry").getChildCData(new String[] { "entry", "title" }));
+
+			Element rule = message.findChildStaticStr(new String[] { "message", "amp", "rule" });
+			assertEquals("expire-at", rule.getAttributeStaticStr("condition"));
+			assertEquals("2030-01-01T00:00:00Z", rule.getAttributeStaticStr("value"));
+
+			Element header = message.findChildStaticStr(new String[] { "message", "headers", "header" });
+			assertEquals("http://jabber.org/protocol/shim", message.getChild("headers").getXMLNS());
+			assertEquals("Collection", header.getAttributeStaticStr("name"));
+			assertEquals("blog", header.getCData());
+
+			// every subscriber receives the same payload
+			StringBuilder content = new StringBuilder();
+			for (Element child : message.getChildren()) {
+				content.append(child.toString());
+			}
+			if (expectedContent == null) {
+				expectedContent = content.toString();
+			} else {
+				assertEquals(expectedContent, content.toString());
+			}
+		}
+	}
+
+	private List<Element> createBody() {
+		return Collections.singletonList(new Element("body", "New entry published"));
+	}
+
+	private Map<String, String> createHeaders() {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Collection", "blog");
+		return headers;
+	}
+
+	private Element createItems() {
+		Element items = new Element("items", new String[] { "node" }, new String[] { "blog/entries" });
+		Element item = new Element("item", new String[] { "id", "expire-at" },
+				new String[] { "entry-1", "2030-01-01T00:00:00Z" });
+		Element entry = new Element("entry", new String[] { "xmlns" }, new String[] { "http://www.w3.org/2005/Atom" });
+		entry.addChild(new Element("title", "Title of entry"));
+		entry.addChild(new Element("summary", "Summary of entry"));
+		item.addChild(entry);
+		items.addChild(item);
+		return items;
+	}
+
+}
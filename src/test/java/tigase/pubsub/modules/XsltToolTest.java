@@ -0,0 +1,133 @@
+package tigase.pubsub.modules;
+
+import org.junit.Test;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.xml.Element;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class XsltToolTest {
+
+	private static final String IDENTITY = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+			+ "<xsl:template match=\"@*|node()\"><xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	private static final String TO_BODY = "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\""
+			+ " xmlns:a=\"http://www.w3.org/2005/Atom\">"
+			+ "<xsl:template match=\"/\"><body><xsl:attribute name=\"lang\"><xsl:value-of select=\"//a:entry/@xml-lang\"/></xsl:attribute>"
+			+ "<xsl:value-of select=\"//a:title\"/></body></xsl:template>"
+			+ "</xsl:stylesheet>";
+
+	private static Element createItem() {
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		Element entry = new Element("entry", new String[] { "xmlns", "xml-lang" },
+									new String[] { "http://www.w3.org/2005/Atom", "en" });
+		entry.addChild(new Element("title", "Tom &amp; Jerry &lt;3"));
+		entry.addChild(new Element("link", new String[] { "href", "rel" },
+								   new String[] { "http://example.com/?a=1&amp;b=&quot;2&quot;", "alternate" }));
+		Element geo = new Element("geoloc", new String[] { "xmlns" }, new String[] { "http://jabber.org/protocol/geoloc" });
+		geo.addChild(new Element("lat", "45.44"));
+		entry.addChild(geo);
+		item.addChild(entry);
+		return item;
+	}
+
+	private static Templates compile(String xslt) throws Exception {
+		return TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(xslt)));
+	}
+
+	@Test
+	public void testIdentityRoundTrip() throws Exception {
+		XsltTool tool = new XsltTool();
+		Element item = createItem();
+		assertTrue(XsltTool.isStreamable(item));
+
+		Templates templates = compile(IDENTITY);
+		List<Element> streamed = tool.transformStreamed(item, templates.newTransformer());
+		List<Element> serialized = tool.transformSerialized(item, templates.newTransformer());
+
+		assertEquals(1, streamed.size());
+		assertEquivalent(item, streamed.get(0), null, null);
+		assertEquals(serialized.size(), streamed.size());
+		assertEquivalent(serialized.get(0), streamed.get(0), null, null);
+	}
+
+	@Test
+	public void testTransformationMatchesSerialized() throws Exception {
+		XsltTool tool = new XsltTool();
+		Element item = createItem();
+
+		Templates templates = compile(TO_BODY);
+		List<Element> streamed = tool.transformStreamed(item, templates.newTransformer());
+		List<Element> serialized = tool.transformSerialized(item, templates.newTransformer());
+
+		assertEquals(1, streamed.size());
+		assertEquals("body", streamed.get(0).getName());
+		assertEquals("en", streamed.get(0).getAttributeStaticStr("lang"));
+		assertEquals("Tom &amp; Jerry &lt;3", streamed.get(0).getCData());
+		assertEquivalent(serialized.get(0), streamed.get(0), null, null);
+	}
+
+	@Test
+	public void testMixedContentUsesSerializedForm() throws Exception {
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		Element p = new Element("p", "Hello ", new String[] { "xmlns" }, new String[] { "http://www.w3.org/1999/xhtml" });
+		p.addChild(new Element("b", "world"));
+		item.addChild(p);
+		assertFalse(XsltTool.isStreamable(item));
+
+		Element prefixed = new Element("item");
+		prefixed.addChild(new Element("x:entry", new String[] { "xmlns:x" }, new String[] { "urn:x" }));
+		assertFalse(XsltTool.isStreamable(prefixed));
+
+		LeafNodeConfig config = new LeafNodeConfig("node-1");
+		config.setValue("pubsub#embedded_body_xslt", new String[] { IDENTITY });
+		XsltTool tool = new XsltTool();
+		List<Element> result = tool.transform(item, config);
+		List<Element> serialized = tool.transformSerialized(item, compile(IDENTITY).newTransformer());
+
+		assertEquals(1, result.size());
+		assertEquals(serialized.get(0).toString(), result.get(0).toString());
+	}
+
+	private static Map<String, String> attributesOf(Element elem) {
+		Map<String, String> attrs = new HashMap<String, String>();
+		if (elem.getAttributes() != null) {
+			attrs.putAll(elem.getAttributes());
+		}
+		attrs.remove("xmlns");
+		return attrs;
+	}
+
+	/**
+	 * Compares names, namespaces, attributes, text and children of elements,
+	 * ignoring whether namespace is declared explicitly or inherited.
+	 */
+	private static void assertEquivalent(Element expected, Element actual, String expectedParentXmlns,
+										 String actualParentXmlns) {
+		assertEquals(expected.getName(), actual.getName());
+		String expectedXmlns = expected.getXMLNS() == null ? expectedParentXmlns : expected.getXMLNS();
+		String actualXmlns = actual.getXMLNS() == null ? actualParentXmlns : actual.getXMLNS();
+		assertEquals(expected.getName(), expectedXmlns, actualXmlns);
+
+		assertEquals(expected.getName(), attributesOf(expected), attributesOf(actual));
+		assertEquals(expected.getName(), expected.getCData(), actual.getCData());
+
+		List<Element> expectedChildren = expected.getChildren();
+		List<Element> actualChildren = actual.getChildren();
+		int size = expectedChildren == null ? 0 : expectedChildren.size();
+		assertEquals(expected.getName(), size, actualChildren == null ? 0 : actualChildren.size());
+		for (int i = 0; i < size; i++) {
+			assertEquivalent(expectedChildren.get(i), actualChildren.get(i), expectedXmlns, actualXmlns);
+		}
+	}
+
+}
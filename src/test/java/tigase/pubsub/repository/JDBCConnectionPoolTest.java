@@ -0,0 +1,289 @@
+package tigase.pubsub.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import tigase.pubsub.repository.JDBCConnectionPool.PooledConnection;
+
+public class JDBCConnectionPoolTest {
+
+	private final AtomicInteger created = new AtomicInteger(0);
+
+	private volatile boolean databaseDown = false;
+
+	private final List<JDBCConnectionPool> pools = new ArrayList<JDBCConnectionPool>();
+
+	@After
+	public void tearDown() {
+		for (JDBCConnectionPool pool : pools) {
+			pool.close();
+		}
+	}
+
+	private JDBCConnectionPool createPool(int size, long maxWait) throws SQLException {
+		// checks are executed only when requested by test
+		ScheduledThreadPoolExecutor healthChecker = new ScheduledThreadPoolExecutor(1) {
+			@Override
+			public void execute(Runnable command) {
+			}
+		};
+		JDBCConnectionPool pool = new JDBCConnectionPool(this::createConnection, "select 1", size, maxWait, 60 * 1000,
+				healthChecker);
+		pools.add(pool);
+		pool.open();
+		return pool;
+	}
+
+	private Connection createConnection() throws SQLException {
+		if (databaseDown) {
+			throw new SQLException("Connection refused");
+		}
+		created.incrementAndGet();
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "isClosed":
+							return false;
+						case "isValid":
+							return !databaseDown;
+						case "prepareStatement":
+							return createStatement();
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						case "toString":
+							return "Connection-" + System.identityHashCode(proxy);
+						default:
+							return null;
+					}
+				});
+	}
+
+	private PreparedStatement createStatement() {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[] { PreparedStatement.class }, (proxy, method, args) -> {
+					if ("executeQuery".equals(method.getName())) {
+						if (databaseDown) {
+							throw new SQLException("Connection reset");
+						}
+						return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ResultSet.class },
+								(rsProxy, rsMethod, rsArgs) -> null);
+					}
+					return null;
+				});
+	}
+
+	@Test
+	public void testBorrowAndRelease() throws Exception {
+		JDBCConnectionPool pool = createPool(2, 100);
+
+		PooledConnection c1 = pool.borrow();
+		PooledConnection c2 = pool.borrow();
+		assertNotSame(c1, c2);
+		assertEquals(2, pool.getActiveConnections());
+
+		pool.release(c1);
+		assertEquals(1, pool.getActiveConnections());
+		assertSame(c1, pool.borrow());
+		assertEquals(2, created.get());
+
+		pool.release(c1);
+		pool.release(c2);
+		assertEquals(0, pool.getActiveConnections());
+		assertEquals(2, pool.getIdleConnections());
+	}
+
+	@Test
+	public void testMaxWait() throws Exception {
+		JDBCConnectionPool pool = createPool(1, 50);
+
+		PooledConnection c1 = pool.borrow();
+		long start = System.currentTimeMillis();
+		try {
+			pool.borrow();
+			fail("connection should not be available");
+		} catch (SQLTimeoutException ex) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		assertEquals(1, pool.getWaitTimeouts());
+
+		pool.release(c1);
+		assertSame(c1, pool.borrow());
+	}
+
+	@Test
+	public void testInvalidatedConnectionIsCheckedInBackground() throws Exception {
+		JDBCConnectionPool pool = createPool(1, 100);
+
+		PooledConnection c1 = pool.borrow();
+		c1.invalidate();
+		pool.release(c1);
+
+		pool.checkHealth();
+		assertEquals(1, pool.getIdleConnections());
+		assertSame(c1, pool.borrow());
+		assertEquals(1, created.get());
+
+		c1.invalidate();
+		databaseDown = true;
+		pool.release(c1);
+		pool.checkHealth();
+		assertEquals(0, pool.getIdleConnections());
+		assertTrue(!pool.isCircuitBreakerOpen());
+	}
+
+	@Test
+	public void testOnlyConnectionErrorsInvalidateConnection() throws Exception {
+		JDBCConnectionPool pool = createPool(1, 100);
+
+		PooledConnection c1 = pool.borrow();
+		c1.invalidate(new SQLIntegrityConstraintViolationException("Duplicate entry", "23000"));
+		pool.release(c1);
+		// connection is returned to pool without validation
+		assertEquals(1, pool.getIdleConnections());
+		assertSame(c1, pool.borrow());
+
+		c1.invalidate(new SQLException("Communications link failure", "08S01"));
+		pool.release(c1);
+		assertEquals(0, pool.getIdleConnections());
+		pool.checkHealth();
+		assertEquals(1, pool.getIdleConnections());
+		assertSame(c1, pool.borrow());
+
+		// connection which is not valid anymore is checked in background even
+		// if SQLState does not point to connection problem
+		databaseDown = true;
+		c1.invalidate(new SQLException("Unknown error", "HY000"));
+		pool.release(c1);
+		assertEquals(1, pool.getIdleConnections());
+		pool.checkHealth();
+		assertEquals(0, pool.getIdleConnections());
+		assertEquals(0, pool.getConnections());
+	}
+
+	@Test
+	public void testBorrowDoesNotConnect() throws Exception {
+		JDBCConnectionPool pool = createPool(2, 50);
+		assertEquals(2, created.get());
+
+		PooledConnection c1 = pool.borrow();
+		PooledConnection c2 = pool.borrow();
+		c1.invalidate();
+		pool.release(c1);
+
+		// connection waiting for validation is not available
+		try {
+			pool.borrow();
+			fail("connection should not be available");
+		} catch (SQLTimeoutException ex) {
+			// expected
+		}
+		assertEquals(2, created.get());
+
+		pool.checkHealth();
+		assertSame(c1, pool.borrow());
+		pool.release(c1);
+		pool.release(c2);
+	}
+
+	@Test
+	public void testBorrowWaitsForValidatedConnection() throws Exception {
+		JDBCConnectionPool pool = createPool(2, 5000);
+
+		PooledConnection c1 = pool.borrow();
+		PooledConnection c2 = pool.borrow();
+		c1.invalidate();
+		pool.release(c1);
+
+		Thread checker = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+			}
+			pool.checkHealth();
+		});
+		checker.start();
+		// free permit is used to wait for connection validated in the meantime
+		assertSame(c1, pool.borrow());
+		checker.join();
+		assertEquals(2, created.get());
+		pool.release(c1);
+		pool.release(c2);
+	}
+
+	@Test
+	public void testCheckerKeepsPoolSize() throws Exception {
+		JDBCConnectionPool pool = createPool(2, 100);
+
+		PooledConnection c1 = pool.borrow();
+		c1.invalidate();
+		databaseDown = true;
+		pool.release(c1);
+		pool.checkHealth();
+		assertEquals(1, pool.getConnections());
+		assertTrue(!pool.isCircuitBreakerOpen());
+
+		databaseDown = false;
+		pool.checkHealth();
+		assertEquals(2, pool.getConnections());
+		assertEquals(2, pool.getIdleConnections());
+		assertEquals(3, created.get());
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		JDBCConnectionPool pool = createPool(2, 100);
+		pool.setCircuitBreaker(2, 0);
+
+		databaseDown = true;
+		PooledConnection c1 = pool.borrow();
+		PooledConnection c2 = pool.borrow();
+		c1.invalidate();
+		c2.invalidate();
+		pool.release(c1);
+		pool.release(c2);
+		pool.checkHealth();
+		assertTrue(pool.isCircuitBreakerOpen());
+		assertEquals(0, pool.getConnections());
+		try {
+			pool.borrow();
+			fail("request should be rejected");
+		} catch (SQLTransientConnectionException ex) {
+			// expected
+		}
+
+		pool.checkHealth();
+		assertTrue(pool.isCircuitBreakerOpen());
+
+		databaseDown = false;
+		pool.checkHealth();
+		assertTrue(!pool.isCircuitBreakerOpen());
+		assertEquals(2, pool.getIdleConnections());
+		assertEquals(4, created.get());
+
+		pool.release(pool.borrow());
+		assertEquals(4, created.get());
+	}
+
+}
@@ -27,17 +27,27 @@ import org.junit.runner.Description;
 import org.junit.runners.MethodSorters;
 import org.junit.runners.model.Statement;
 import tigase.db.DBInitException;
+import tigase.pubsub.CollectionItemsOrdering;
 import tigase.pubsub.LeafNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.NodeMeta;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.util.SchemaLoader;
 import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -50,7 +60,7 @@ import static org.junit.Assert.*;
 public class PubSubDAOJDBCTest {
 
 	private static final String PROJECT_ID = "pubsub";
-	private static final String VERSION = "3.2.0";
+	private static final String VERSION = "3.3.0";
 
 	private static final String uri = System.getProperty("testDbUri");
 
@@ -230,4 +240,288 @@ public class PubSubDAOJDBCTest {
 //				timeBefore < creationTime && timeAfter > creationTime);
 	}
 
+	@Test
+	public void test2_nodeLoadingWithAffiliationsAndSubscriptions() throws TigaseStringprepException, RepositoryException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test2_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner2_" + UUID.randomUUID(), "example.com");
+		BareJID subscriber = BareJID.bareJIDInstance("subscriber2_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+		repo.updateNodeAffiliation(serviceJid, nodeId, nodeName, new UsersAffiliation(owner, Affiliation.owner));
+		repo.updateNodeSubscription(serviceJid, nodeId, nodeName, new UsersSubscription(subscriber, "subid-1", Subscription.subscribed));
+
+		NodeData<Long> data = repo.loadNode(serviceJid, nodeName);
+		assertNotNull(data);
+		assertEquals(nodeId, data.getNodeId());
+		assertEquals(config.getNodeName(), data.getNodeConfig().getNodeName());
+		assertEquals(owner, data.getCreator());
+		assertEquals(Affiliation.owner, data.getNodeAffiliations().getSubscriberAffiliation(owner).getAffiliation());
+		assertEquals(Subscription.subscribed, data.getNodeSubscriptions().getSubscription(subscriber));
+		assertEquals("subid-1", data.getNodeSubscriptions().getSubscriptionId(subscriber));
+
+		assertNull(repo.loadNode(serviceJid, "missing_" + UUID.randomUUID()));
+	}
+
+	@Test
+	public void test3_itemsTrimming() throws TigaseStringprepException, RepositoryException, InterruptedException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test3_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner3_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		List<IItems.ItemData> items = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Element item = new Element("item", new String[] { "id" }, new String[] { "item-" + i });
+			items.add(new IItems.ItemData(System.currentTimeMillis(), "item-" + i, owner.toString(), item));
+		}
+		repo.writeItems(serviceJid, nodeId, items);
+		assertEquals(5, repo.getItemsIds(serviceJid, nodeId).length);
+
+		// some databases store dates with precision of a second
+		Thread.sleep(1100);
+		// updated items are the newest ones, even if they were created first
+		repo.writeItems(serviceJid, nodeId, Arrays.asList(items.get(0), items.get(2)));
+
+		repo.trimItems(serviceJid, nodeId, 2);
+		List<String> ids = Arrays.asList(repo.getItemsIds(serviceJid, nodeId));
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains("item-0"));
+		assertTrue(ids.contains("item-2"));
+
+		repo.trimItems(serviceJid, nodeId, 2);
+		ids = Arrays.asList(repo.getItemsIds(serviceJid, nodeId));
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains("item-0"));
+		assertTrue(ids.contains("item-2"));
+
+		repo.purgeItems(serviceJid, nodeId);
+		String[] left = repo.getItemsIds(serviceJid, nodeId);
+		assertTrue(left == null || left.length == 0);
+	}
+
+	@Test
+	public void test4_itemDatesWithoutPayload()
+			throws TigaseStringprepException, RepositoryException, InterruptedException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test4_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner4_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		for (int i = 0; i < 3; i++) {
+			Element item = new Element("item", new String[] { "id" }, new String[] { "item-" + i });
+			item.addChild(new Element("entry", "Entry " + i, new String[] { "xmlns" }, new String[] { "urn:test" }));
+			repo.writeItem(serviceJid, nodeId, System.currentTimeMillis(), "item-" + i, owner.toString(), item);
+		}
+
+		// dates read without payload are the same as listed for each item id
+		List<IItems.ItemMeta> metas = repo.getItemsMeta(serviceJid, nodeId, nodeName);
+		assertEquals(3, metas.size());
+		Map<String, IItems.ItemMeta> metaById = new HashMap<>();
+		for (IItems.ItemMeta meta : metas) {
+			metaById.put(meta.getId(), meta);
+		}
+		for (int i = 0; i < 3; i++) {
+			IItems.ItemMeta meta = metaById.get("item-" + i);
+			assertNotNull(meta);
+			assertEquals(meta.getCreationDate(), repo.getItemCreationDate(serviceJid, nodeId, "item-" + i));
+			assertEquals(meta.getItemUpdateDate(), repo.getItemUpdateDate(serviceJid, nodeId, "item-" + i));
+		}
+		assertNull(repo.getItemCreationDate(serviceJid, nodeId, "missing"));
+		assertNull(repo.getItemUpdateDate(serviceJid, nodeId, "missing"));
+
+		// some databases store dates with precision of a second
+		Thread.sleep(1100);
+		Element updated = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		repo.writeItem(serviceJid, nodeId, System.currentTimeMillis(), "item-1", owner.toString(), updated);
+
+		IItems.ItemMeta before = metaById.get("item-1");
+		assertEquals(before.getCreationDate(), repo.getItemCreationDate(serviceJid, nodeId, "item-1"));
+		assertTrue(repo.getItemUpdateDate(serviceJid, nodeId, "item-1").after(before.getItemUpdateDate()));
+		assertEquals(metaById.get("item-2").getItemUpdateDate(), repo.getItemUpdateDate(serviceJid, nodeId, "item-2"));
+	}
+
+	@Test
+	public void test5_multipleItemsRetrieval() throws TigaseStringprepException, RepositoryException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test5_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner5_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		List<IItems.ItemData> items = new ArrayList<>();
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < 120; i++) {
+			Element item = new Element("item", new String[] { "id" }, new String[] { "item-" + i });
+			items.add(new IItems.ItemData(System.currentTimeMillis(), "item-" + i, owner.toString(), item));
+			ids.add("item-" + i);
+		}
+		repo.writeItems(serviceJid, nodeId, items);
+
+		Map<String, Element> result = repo.getItems(serviceJid, nodeId, Arrays.asList("item-3", "missing", "item-7"));
+		assertEquals(2, result.size());
+		assertEquals("item-3", result.get("item-3").getAttributeStaticStr("id"));
+		assertEquals("item-7", result.get("item-7").getAttributeStaticStr("id"));
+
+		ids.add("missing");
+		result = repo.getItems(serviceJid, nodeId, ids);
+		assertEquals(120, result.size());
+		assertNull(result.get("missing"));
+	}
+
+	@Test
+	public void test6_serializedItemsRetrieval() throws TigaseStringprepException, RepositoryException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test6_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner6_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		item.addChild(new Element("entry", "Test entry", new String[] { "xmlns" }, new String[] { "urn:test" }));
+		IItems.ItemData itemData = new IItems.ItemData(System.currentTimeMillis(), "item-1", owner.toString(), item);
+		repo.writeItems(serviceJid, nodeId, Arrays.asList(itemData));
+
+		Map<String, String> result = repo.getItemsData(serviceJid, nodeId, Arrays.asList("item-1", "missing"));
+		assertEquals(1, result.size());
+		assertEquals(itemData.getData(), result.get("item-1"));
+		assertEquals(item, repo.parseItem(result.get("item-1")));
+	}
+
+	@Test
+	public void test7_itemsBatchWriteDeleteAndPurge() throws TigaseStringprepException, RepositoryException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test7_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner7_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		List<IItems.ItemData> items = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Element item = new Element("item", new String[] { "id" }, new String[] { "item-" + i });
+			item.addChild(new Element("entry", "Entry " + i, new String[] { "xmlns" }, new String[] { "urn:test" }));
+			items.add(new IItems.ItemData(System.currentTimeMillis(), "item-" + i, owner.toString(), item));
+		}
+		repo.writeItems(serviceJid, nodeId, items);
+		for (IItems.ItemData item : items) {
+			assertEquals(item.getItem(), repo.getItem(serviceJid, nodeId, item.getId()));
+		}
+
+		// batch may contain new items and updates of existing ones
+		Element updated = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		updated.addChild(new Element("entry", "Updated entry", new String[] { "xmlns" }, new String[] { "urn:test" }));
+		Element added = new Element("item", new String[] { "id" }, new String[] { "item-3" });
+		repo.writeItems(serviceJid, nodeId,
+						Arrays.asList(new IItems.ItemData(System.currentTimeMillis(), "item-1", owner.toString(), updated),
+									  new IItems.ItemData(System.currentTimeMillis(), "item-3", owner.toString(), added)));
+		assertEquals(4, repo.getItemsIds(serviceJid, nodeId).length);
+		assertEquals(updated, repo.getItem(serviceJid, nodeId, "item-1"));
+		assertEquals(added, repo.getItem(serviceJid, nodeId, "item-3"));
+
+		repo.deleteItems(serviceJid, nodeId, Arrays.asList("item-0", "item-3", "missing"));
+		List<String> ids = Arrays.asList(repo.getItemsIds(serviceJid, nodeId));
+		assertEquals(2, ids.size());
+		assertTrue(ids.contains("item-1"));
+		assertTrue(ids.contains("item-2"));
+		assertNull(repo.getItem(serviceJid, nodeId, "item-0"));
+
+		repo.purgeItems(serviceJid, nodeId);
+		String[] left = repo.getItemsIds(serviceJid, nodeId);
+		assertTrue(left == null || left.length == 0);
+		assertNull(repo.getItem(serviceJid, nodeId, "item-2"));
+
+		// purging node without items does nothing
+		repo.purgeItems(serviceJid, nodeId);
+		assertNotNull(repo.getNodeMeta(serviceJid, nodeName));
+	}
+
+	@Test
+	public void test8_itemsPaging() throws TigaseStringprepException, RepositoryException, InterruptedException {
+		serviceJid  = BareJID.bareJIDInstance("pubsub.example.com");
+		String nodeName = "test8_" + UUID.randomUUID();
+		BareJID owner = BareJID.bareJIDInstance("owner8_" + UUID.randomUUID(), "example.com");
+		LeafNodeConfig config = new LeafNodeConfig(nodeName);
+
+		nodeId = repo.createNode(serviceJid, nodeName, owner, config, NodeType.leaf, null);
+		assertNotNull(nodeId);
+
+		List<IItems.ItemData> items = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Element item = new Element("item", new String[] { "id" }, new String[] { "item-" + i });
+			items.add(new IItems.ItemData(System.currentTimeMillis(), "item-" + i, owner.toString(), item));
+		}
+		repo.writeItems(serviceJid, nodeId, items);
+
+		IItems.ItemsPage all = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate,
+												 null, null, null, 0, 10);
+		assertEquals(5, all.getCount());
+		assertEquals(0, all.getFirstIndex());
+		List<String> order = idsOf(all);
+		assertEquals(5, order.size());
+
+		IItems.ItemsPage page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate,
+												  null, null, null, 1, 2);
+		assertEquals(order.subList(1, 3), idsOf(page));
+		assertEquals(5, page.getCount());
+		assertEquals(1, page.getFirstIndex());
+
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, order.get(1),
+								 null, null, 0, 2);
+		assertEquals(order.subList(2, 4), idsOf(page));
+		assertEquals(2, page.getFirstIndex());
+
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, order.get(3),
+								 null, null, 0, 10);
+		assertEquals(order.subList(4, 5), idsOf(page));
+		assertEquals(4, page.getFirstIndex());
+
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, null,
+								 order.get(3), null, 0, 10);
+		assertEquals(order.subList(0, 3), idsOf(page));
+
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, "missing",
+								 null, null, 0, 10);
+		assertTrue(page.getItems().isEmpty());
+		assertEquals(5, page.getCount());
+
+		// some databases store dates with precision of a second
+		Thread.sleep(1100);
+		String oldest = order.get(4);
+		Element updated = new Element("item", new String[] { "id" }, new String[] { oldest });
+		repo.writeItem(serviceJid, nodeId, System.currentTimeMillis(), oldest, owner.toString(), updated);
+
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, null, null,
+								 null, 0, 1);
+		assertEquals(Arrays.asList(oldest), idsOf(page));
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byUpdateDate, null, null,
+								 all.getItems().get(0).getItemUpdateDate(), 0, 10);
+		assertEquals(Arrays.asList(oldest), idsOf(page));
+		page = repo.getItemsPage(serviceJid, nodeId, nodeName, CollectionItemsOrdering.byCreationDate, null, null,
+								 null, 0, 10);
+		assertEquals(5, page.getItems().size());
+		assertTrue(idsOf(page).contains(oldest));
+	}
+
+	private static List<String> idsOf(IItems.ItemsPage page) {
+		List<String> ids = new ArrayList<>();
+		for (IItems.ItemMeta meta : page.getItems()) {
+			ids.add(meta.getId());
+		}
+		return ids;
+	}
+
 }
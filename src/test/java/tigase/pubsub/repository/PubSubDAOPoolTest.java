@@ -0,0 +1,47 @@
+package tigase.pubsub.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import tigase.pubsub.repository.cached.CachedPubSubRepositoryTest.DummyPubSubDAO;
+import tigase.xmpp.BareJID;
+
+public class PubSubDAOPoolTest {
+
+	@Test
+	public void testTakeDaoTimeout() throws Exception {
+		BareJID domain = BareJID.bareJIDInstanceNS("example.com");
+		BareJID other = BareJID.bareJIDInstanceNS("other.com");
+
+		PubSubDAOPool pool = new PubSubDAOPool();
+		pool.setMaxWait(50);
+		IPubSubDAO dao = new DummyPubSubDAO();
+		IPubSubDAO defaultDao = new DummyPubSubDAO();
+		pool.addDao(domain, dao);
+		pool.addDao(null, defaultDao);
+
+		assertSame(dao, pool.takeDao(domain));
+		long start = System.currentTimeMillis();
+		try {
+			pool.takeDao(domain);
+			fail("DAO should not be available");
+		} catch (RepositoryTimeoutException ex) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= 40);
+
+		// other domains use default pool, which is not saturated
+		assertSame(defaultDao, pool.takeDao(other));
+		pool.offerDao(other, defaultDao);
+
+		pool.offerDao(domain, dao);
+		assertSame(dao, pool.takeDao(domain));
+		pool.offerDao(domain, dao);
+		assertEquals(dao, pool.takeDao(domain));
+	}
+
+}
@@ -0,0 +1,72 @@
+package tigase.pubsub.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import tigase.pubsub.CollectionItemsOrdering;
+import tigase.pubsub.repository.cached.CachedPubSubRepositoryTest.DummyPubSubDAO;
+import tigase.xmpp.BareJID;
+
+public class PubSubDAOTest {
+
+	private static class ItemsDAO extends DummyPubSubDAO {
+
+		private final List<IItems.ItemMeta> items = new ArrayList<IItems.ItemMeta>();
+
+		@Override
+		public List<IItems.ItemMeta> getItemsMeta(BareJID serviceJid, Object nodeId, String nodeName)
+				throws RepositoryException {
+			return items;
+		}
+	}
+
+	private static List<String> ids(IItems.ItemsPage page) {
+		List<String> ids = new ArrayList<String>();
+		for (IItems.ItemMeta item : page.getItems()) {
+			ids.add(item.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testItemsPage() throws Exception {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		ItemsDAO dao = new ItemsDAO();
+		for (int i = 0; i < 10; i++) {
+			// item-9 is the newest one
+			dao.items.add(new IItems.ItemMeta("test", "item-" + i, new Date(1000 * i), new Date(1000 * i)));
+		}
+
+		IItems.ItemsPage page = dao.getItemsPage(serviceJid, 1L, "test", CollectionItemsOrdering.byUpdateDate, null,
+				null, null, 0, 3);
+		assertEquals(10, page.getCount());
+		assertEquals(0, page.getFirstIndex());
+		assertEquals(Arrays.asList("item-9", "item-8", "item-7"), ids(page));
+
+		page = dao.getItemsPage(serviceJid, 1L, "test", CollectionItemsOrdering.byUpdateDate, "item-7", null, null, 0,
+				3);
+		assertEquals(3, page.getFirstIndex());
+		assertEquals(Arrays.asList("item-6", "item-5", "item-4"), ids(page));
+
+		page = dao.getItemsPage(serviceJid, 1L, "test", CollectionItemsOrdering.byUpdateDate, "item-7", "item-5",
+				null, 0, 3);
+		assertEquals(Arrays.asList("item-6"), ids(page));
+
+		page = dao.getItemsPage(serviceJid, 1L, "test", CollectionItemsOrdering.byUpdateDate, null, null,
+				new Date(7000), 1, 10);
+		assertEquals(1, page.getFirstIndex());
+		assertEquals(Arrays.asList("item-8"), ids(page));
+
+		page = dao.getItemsPage(serviceJid, 1L, "test", CollectionItemsOrdering.byUpdateDate, "missing", null, null,
+				0, 3);
+		assertTrue(page.getItems().isEmpty());
+	}
+
+}
@@ -3,10 +3,14 @@ package tigase.pubsub.repository.cached;
 import org.junit.Test;
 import tigase.db.DBInitException;
 import tigase.pubsub.AbstractNodeConfig;
+import tigase.pubsub.CollectionNodeConfig;
+import tigase.pubsub.LeafNodeConfig;
 import tigase.pubsub.NodeType;
+import tigase.pubsub.Subscription;
 import tigase.pubsub.repository.*;
 import tigase.pubsub.repository.NodeAffiliations;
 import tigase.pubsub.repository.NodeSubscriptions;
+import tigase.pubsub.repository.stateless.NodeData;
 import tigase.pubsub.repository.stateless.UsersAffiliation;
 import tigase.pubsub.repository.stateless.UsersSubscription;
 import tigase.xml.Element;
@@ -14,6 +18,11 @@ import tigase.xmpp.BareJID;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.*;
 
@@ -93,6 +102,109 @@ public class CachedPubSubRepositoryTest {
 		assertArrayEquals(nodes, result);
 	}
 
+	@Test
+	public void test_partialLoadingOfRootCollections() throws Exception {
+		CountDownLatch firstBatchRead = new CountDownLatch(1);
+		CountDownLatch readRest = new CountDownLatch(1);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public void getChildNodes(BareJID serviceJid, String nodeName, int batchSize, Consumer consumer)
+					throws RepositoryException {
+				consumer.accept(new String[] { "node-1", "node-2" });
+				firstBatchRead.countDown();
+				try {
+					readRest.await();
+				} catch (InterruptedException ex) {
+					throw new RepositoryException("interrupted", ex);
+				}
+				consumer.accept(new String[] { "node-3" });
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setDelayedRootCollectionLoading(true);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		try {
+			cachedPubSubRepository.getRootCollection(serviceJid);
+			assertFalse(true);
+		} catch (CachedPubSubRepository.RootCollectionSet.IllegalStateException ex) {
+			assertEquals(CachedPubSubRepository.RootCollectionSet.State.loading, ex.state);
+		}
+
+		assertTrue(firstBatchRead.await(5, TimeUnit.SECONDS));
+		cachedPubSubRepository.removeFromRootCollection(serviceJid, "node-3");
+		String[] result = cachedPubSubRepository.getRootCollection(serviceJid);
+		Arrays.sort(result);
+		assertArrayEquals(new String[] { "node-1", "node-2" }, result);
+
+		readRest.countDown();
+		RootCollectionSet rootCollection = cachedPubSubRepository.getRootCollectionSet(serviceJid);
+		for (int i = 0; i < 50 && !rootCollection.checkState(RootCollectionSet.State.initialized); i++) {
+			Thread.sleep(100);
+		}
+		// node removed during loading is not added by later batch
+		result = cachedPubSubRepository.getRootCollection(serviceJid);
+		Arrays.sort(result);
+		assertArrayEquals(new String[] { "node-1", "node-2" }, result);
+		assertTrue(rootCollection.getLoadTime() >= 0);
+		assertTrue(rootCollection.getQueueTime() >= 0);
+	}
+
+	@Test
+	public void test_prioritizedLoadingOfRootCollections() throws Exception {
+		CountDownLatch firstLoadStarted = new CountDownLatch(1);
+		CountDownLatch releaseFirstLoad = new CountDownLatch(1);
+		List<BareJID> loaded = Collections.synchronizedList(new ArrayList<>());
+		Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
+				threads.add(Thread.currentThread().getName());
+				if (loaded.isEmpty()) {
+					firstLoadStarted.countDown();
+					try {
+						releaseFirstLoad.await();
+					} catch (InterruptedException ex) {
+						throw new RepositoryException("interrupted", ex);
+					}
+				}
+				loaded.add(serviceJid);
+				return new String[0];
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setDelayedRootCollectionLoading(true);
+		cachedPubSubRepository.setRootCollectionLoadingThreads(1);
+
+		BareJID[] services = new BareJID[3];
+		for (int i = 0; i < services.length; i++) {
+			services[i] = BareJID.bareJIDInstanceNS("pubsub-" + i + "." + UUID.randomUUID() + ".local");
+		}
+		requestRootCollection(cachedPubSubRepository, services[0]);
+		assertTrue(firstLoadStarted.await(5, TimeUnit.SECONDS));
+		requestRootCollection(cachedPubSubRepository, services[1]);
+		requestRootCollection(cachedPubSubRepository, services[2]);
+		// service queried again is loaded before service queried later
+		requestRootCollection(cachedPubSubRepository, services[1]);
+
+		releaseFirstLoad.countDown();
+		for (int i = 0; i < 50 && loaded.size() < services.length; i++) {
+			Thread.sleep(100);
+		}
+
+		assertEquals(Arrays.asList(services), loaded);
+		assertEquals(1, threads.size());
+	}
+
+	private static void requestRootCollection(CachedPubSubRepository cachedPubSubRepository, BareJID serviceJid)
+			throws RepositoryException {
+		try {
+			cachedPubSubRepository.getRootCollection(serviceJid);
+		} catch (CachedPubSubRepository.RootCollectionSet.IllegalStateException ex) {
+			// loading is in progress
+		}
+	}
+
 	@Test
 	public void test_userRemoved_lazy() throws Exception {
 		DummyPubSubDAO dao = new DummyPubSubDAO();
@@ -148,10 +260,284 @@ public class CachedPubSubRepositoryTest {
 		assertNull(dao.getChildNodes(serviceJid, null));
 	}
 
+	@Test
+	public void test_singleFlightNodeLoading() throws Exception {
+		AtomicInteger loads = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public NodeData loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+				loads.incrementAndGet();
+				withDelay = true;
+				sleep();
+				return new NodeData(1L, new LeafNodeConfig(nodeName), serviceJid, new Date(),
+									NodeAffiliations.create((Queue<UsersAffiliation>) null), NodeSubscriptions.create());
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		String nodeName = "node-" + UUID.randomUUID().toString();
+
+		int threads = 20;
+		CyclicBarrier barrier = new CyclicBarrier(threads);
+		Set<Object> results = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<Thread> workers = new ArrayList<>();
+		AtomicInteger failures = new AtomicInteger(0);
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(() -> {
+				try {
+					barrier.await();
+					Object node = cachedPubSubRepository.getNodeMeta(serviceJid, nodeName);
+					synchronized (results) {
+						results.add(node);
+					}
+				} catch (Exception ex) {
+					failures.incrementAndGet();
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(0, failures.get());
+		assertEquals(1, loads.get());
+		assertEquals(1, results.size());
+		assertNotNull(results.iterator().next());
+		assertTrue(cachedPubSubRepository.getNodeLoadWaits() > 0);
+	}
+
+	@Test
+	public void test_collectionsIndex() throws Exception {
+		Map<String,String> parents = new ConcurrentHashMap<>();
+		AtomicInteger childLoads = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public NodeData loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+				if (!parents.containsKey(nodeName)) {
+					return null;
+				}
+				LeafNodeConfig nodeConfig = new LeafNodeConfig(nodeName);
+				nodeConfig.setCollection(parents.get(nodeName));
+				return new NodeData(1L, nodeConfig, serviceJid, new Date(),
+									NodeAffiliations.create((Queue<UsersAffiliation>) null), NodeSubscriptions.create());
+			}
+
+			@Override
+			public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
+				childLoads.incrementAndGet();
+				return parents.entrySet()
+						.stream()
+						.filter(e -> e.getValue().equals(nodeName))
+						.map(Map.Entry::getKey)
+						.toArray(String[]::new);
+			}
+
+			@Override
+			public Object getNodeId(BareJID serviceJid, String nodeName) throws RepositoryException {
+				return 1L;
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setCollectionsIndexMaxWeight(1000);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		parents.put("root", "");
+		parents.put("col", "root");
+		parents.put("leaf", "col");
+
+		assertArrayEquals(new String[] { "col", "root" }, cachedPubSubRepository.getNodeParents(serviceJid, "leaf"));
+		assertArrayEquals(new String[] { "leaf" }, cachedPubSubRepository.getNodeChildren(serviceJid, "col"));
+		assertArrayEquals(new String[] { "leaf" }, cachedPubSubRepository.getNodeChildren(serviceJid, "col"));
+		assertEquals(1, childLoads.get());
+
+		cachedPubSubRepository.createNode(serviceJid, "leaf-2", null, new LeafNodeConfig("leaf-2"), NodeType.leaf, "col");
+		parents.put("leaf-2", "col");
+		String[] children = cachedPubSubRepository.getNodeChildren(serviceJid, "col");
+		Arrays.sort(children);
+		assertArrayEquals(new String[] { "leaf", "leaf-2" }, children);
+		assertEquals(1, childLoads.get());
+		assertEquals(0, cachedPubSubRepository.verifyCollectionsIndex(serviceJid));
+
+		// change made directly in the database is detected
+		parents.put("leaf-3", "col");
+		assertEquals(1, cachedPubSubRepository.verifyCollectionsIndex(serviceJid));
+		assertEquals(3, cachedPubSubRepository.getNodeChildren(serviceJid, "col").length);
+
+		cachedPubSubRepository.deleteNode(serviceJid, "leaf-2");
+		parents.remove("leaf-2");
+		assertEquals(2, cachedPubSubRepository.getNodeChildren(serviceJid, "col").length);
+	}
+
+	@Test
+	public void test_childrenWithoutCollectionsIndex() throws Exception {
+		AtomicInteger childLoads = new AtomicInteger(0);
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public NodeData loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+				CollectionNodeConfig nodeConfig = new CollectionNodeConfig(nodeName);
+				nodeConfig.addChildren("leaf-1");
+				return new NodeData(1L, nodeConfig, serviceJid, new Date(),
+									NodeAffiliations.create((Queue<UsersAffiliation>) null), NodeSubscriptions.create());
+			}
+
+			@Override
+			public String[] getChildNodes(BareJID serviceJid, String nodeName) throws RepositoryException {
+				childLoads.incrementAndGet();
+				return new String[0];
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setCollectionsIndexMaxWeight(0);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		assertArrayEquals(new String[] { "leaf-1" }, cachedPubSubRepository.getNodeChildren(serviceJid, "col"));
+		assertArrayEquals(new String[] { "leaf-1" }, cachedPubSubRepository.getNodeChildren(serviceJid, "col"));
+		assertEquals(0, childLoads.get());
+	}
+
+	@Test
+	public void test_collectionsCycle() throws Exception {
+		DummyPubSubDAO dao = new DummyPubSubDAO() {
+			@Override
+			public NodeData loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+				LeafNodeConfig nodeConfig = new LeafNodeConfig(nodeName);
+				nodeConfig.setCollection("a".equals(nodeName) ? "b" : "a");
+				return new NodeData(1L, nodeConfig, serviceJid, new Date(),
+									NodeAffiliations.create((Queue<UsersAffiliation>) null), NodeSubscriptions.create());
+			}
+		};
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setCollectionsIndexMaxWeight(1000);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		assertArrayEquals(new String[] { "b" }, cachedPubSubRepository.getNodeParents(serviceJid, "a"));
+	}
+
+	@Test
+	public void test_writeBehindCoalescing() throws Exception {
+		WritesRecordingPubSubDAO dao = new WritesRecordingPubSubDAO();
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setWriteBehind(1000, 60 * 1000);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		BareJID jid1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+		BareJID jid2 = BareJID.bareJIDInstanceNS("user-2@example.com");
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, "node-1");
+		subscriptions.addSubscriberJid(jid1, Subscription.pending);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+		subscriptions.changeSubscription(jid1, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+		subscriptions.addSubscriberJid(jid2, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+		cachedPubSubRepository.update(serviceJid, "node-1", new LeafNodeConfig("node-1"));
+		cachedPubSubRepository.update(serviceJid, "node-1", new LeafNodeConfig("node-1"));
+
+		assertTrue(dao.subscriptionWrites.isEmpty());
+		assertEquals(0, dao.configWrites.get());
+
+		cachedPubSubRepository.forgetConfiguration(serviceJid, "node-1");
+
+		// only latest state of each subscription is written
+		assertEquals(2, dao.subscriptionWrites.size());
+		assertEquals(Subscription.subscribed, dao.subscriptionWrites.get(jid1));
+		assertEquals(Subscription.subscribed, dao.subscriptionWrites.get(jid2));
+		assertEquals(1, dao.configWrites.get());
+	}
+
+	@Test
+	public void test_writeBehindFlushOnShutdown() throws Exception {
+		WritesRecordingPubSubDAO dao = new WritesRecordingPubSubDAO();
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setWriteBehind(1000, 60 * 1000);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		BareJID jid1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+		BareJID jid2 = BareJID.bareJIDInstanceNS("user-2@example.com");
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, "node-1");
+		subscriptions.addSubscriberJid(jid1, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+		assertTrue(dao.subscriptionWrites.isEmpty());
+
+		cachedPubSubRepository.destroy();
+		assertEquals(Subscription.subscribed, dao.subscriptionWrites.get(jid1));
+
+		// changes made after shutdown are written immediately
+		subscriptions.addSubscriberJid(jid2, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+		assertEquals(Subscription.subscribed, dao.subscriptionWrites.get(jid2));
+	}
+
+	@Test
+	public void test_writeBehindKeepsFailedChanges() throws Exception {
+		WritesRecordingPubSubDAO dao = new WritesRecordingPubSubDAO();
+		CachedPubSubRepository cachedPubSubRepository = createCachedPubSubRepository(dao);
+		cachedPubSubRepository.setWriteBehind(1000, 60 * 1000);
+
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub." + UUID.randomUUID() + ".local");
+		BareJID jid1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+		String key = cachedPubSubRepository.createKey(serviceJid, "node-1");
+
+		ISubscriptions subscriptions = cachedPubSubRepository.getNodeSubscriptions(serviceJid, "node-1");
+		subscriptions.addSubscriberJid(jid1, Subscription.subscribed);
+		cachedPubSubRepository.update(serviceJid, "node-1", subscriptions);
+
+		dao.failWrites = true;
+		for (int i = 0; i < 20; i++) {
+			try {
+				cachedPubSubRepository.forgetConfiguration(serviceJid, "node-1");
+				fail("Failed write should be reported");
+			} catch (RepositoryException ex) {
+				// expected
+			}
+		}
+		assertTrue(cachedPubSubRepository.isWritePending(key));
+		assertTrue(dao.subscriptionWrites.isEmpty());
+
+		dao.failWrites = false;
+		cachedPubSubRepository.forgetConfiguration(serviceJid, "node-1");
+		assertFalse(cachedPubSubRepository.isWritePending(key));
+		assertEquals(Subscription.subscribed, dao.subscriptionWrites.get(jid1));
+	}
+
 	protected CachedPubSubRepository createCachedPubSubRepository(PubSubDAO dao) {
 		return new CachedPubSubRepository(dao, 2000);
 	}
 
+	public static class WritesRecordingPubSubDAO extends DummyPubSubDAO {
+
+		protected final AtomicInteger configWrites = new AtomicInteger(0);
+
+		protected final Map<BareJID,Subscription> subscriptionWrites = new ConcurrentHashMap<>();
+
+		protected volatile boolean failWrites = false;
+
+		@Override
+		public NodeData loadNode(BareJID serviceJid, String nodeName) throws RepositoryException {
+			return new NodeData(1L, new LeafNodeConfig(nodeName), serviceJid, new Date(),
+								NodeAffiliations.create((Queue<UsersAffiliation>) null), NodeSubscriptions.create());
+		}
+
+		@Override
+		public void updateNodeConfig(BareJID serviceJid, Object nodeId, String serializedData, Object collectionId)
+				throws RepositoryException {
+			configWrites.incrementAndGet();
+		}
+
+		@Override
+		public void updateNodeSubscription(BareJID serviceJid, Object nodeId, String nodeName,
+										   UsersSubscription userSubscription) throws RepositoryException {
+			if (failWrites) {
+				throw new RepositoryException("Database is not available");
+			}
+			subscriptionWrites.put(userSubscription.getJid(), userSubscription.getSubscription());
+		}
+	}
+
 	public static class DummyPubSubDAO extends PubSubDAO {
 
 		protected boolean withDelay;
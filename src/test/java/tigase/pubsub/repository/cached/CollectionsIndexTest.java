@@ -0,0 +1,139 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CollectionsIndexTest {
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	/**
+	 * Walks indexed parents of node up to root collection, stopping when
+	 * parent is not indexed or when node is visited again.
+	 */
+	private List<String> ancestors(CollectionsIndex index, String nodeName) {
+		List<String> result = new ArrayList<String>();
+		String parent = index.getParent(serviceJid, nodeName);
+		while (parent != null && !parent.isEmpty() && !result.contains(parent)) {
+			result.add(parent);
+			parent = index.getParent(serviceJid, parent);
+		}
+		if (parent != null && !parent.isEmpty()) {
+			result.add(parent);
+		}
+		return result;
+	}
+
+	private String[] children(CollectionsIndex index, String collection) {
+		String[] children = index.getChildren(serviceJid, collection);
+		Arrays.sort(children);
+		return children;
+	}
+
+	private CollectionsIndex createChain() {
+		CollectionsIndex index = new CollectionsIndex(1000);
+		index.nodeCreated(serviceJid, "col-1", null);
+		index.nodeCreated(serviceJid, "col-2", "col-1");
+		index.nodeCreated(serviceJid, "col-3", "col-2");
+		index.nodeCreated(serviceJid, "leaf-1", "col-3");
+		return index;
+	}
+
+	@Test
+	public void testReparentingChain() {
+		CollectionsIndex index = createChain();
+		assertEquals(Arrays.asList("col-3", "col-2", "col-1"), ancestors(index, "leaf-1"));
+
+		// subtree of moved collection moves with it
+		index.parentChanged(serviceJid, "col-3", "col-1");
+		assertEquals(Arrays.asList("col-3", "col-1"), ancestors(index, "leaf-1"));
+		assertArrayEquals(new String[] { "col-2", "col-3" }, children(index, "col-1"));
+		assertArrayEquals(new String[0], children(index, "col-2"));
+		assertArrayEquals(new String[] { "leaf-1" }, children(index, "col-3"));
+
+		index.parentChanged(serviceJid, "col-3", null);
+		assertEquals(Arrays.asList("col-3"), ancestors(index, "leaf-1"));
+		assertEquals("", index.getParent(serviceJid, "col-3"));
+		assertArrayEquals(new String[] { "col-2" }, children(index, "col-1"));
+	}
+
+	@Test
+	public void testReparentingToUnknownParent() {
+		CollectionsIndex index = new CollectionsIndex(1000);
+		index.childrenLoaded(serviceJid, "col-1", new String[] { "leaf-1", "leaf-2" }, index.getStamp(serviceJid));
+		index.childrenLoaded(serviceJid, "col-2", new String[0], index.getStamp(serviceJid));
+
+		// previous parent of leaf-1 is not indexed, but it is still removed
+		// from children of col-1
+		index.parentChanged(serviceJid, "leaf-1", "col-2");
+		assertArrayEquals(new String[] { "leaf-2" }, children(index, "col-1"));
+		assertArrayEquals(new String[] { "leaf-1" }, children(index, "col-2"));
+		assertEquals("col-2", index.getParent(serviceJid, "leaf-1"));
+	}
+
+	@Test
+	public void testCycleIsVisibleAndReversible() {
+		CollectionsIndex index = createChain();
+		long weight = index.getWeight();
+
+		// index does not reject cycles, so they may be detected by walking
+		// ancestors before configuration is changed
+		index.parentChanged(serviceJid, "col-1", "col-3");
+		assertEquals(Arrays.asList("col-2", "col-1", "col-3", "col-2"), ancestors(index, "col-3"));
+		assertArrayEquals(new String[] { "col-1", "leaf-1" }, children(index, "col-3"));
+
+		index.parentChanged(serviceJid, "col-1", null);
+		assertEquals(Arrays.asList("col-3", "col-2", "col-1"), ancestors(index, "leaf-1"));
+		assertArrayEquals(new String[] { "leaf-1" }, children(index, "col-3"));
+		assertEquals(weight, index.getWeight());
+	}
+
+	@Test
+	public void testDeletedCollectionOrphansChildren() {
+		CollectionsIndex index = createChain();
+
+		index.nodeDeleted(serviceJid, "col-2");
+
+		assertArrayEquals(new String[0], children(index, "col-1"));
+		assertNull(index.getChildren(serviceJid, "col-2"));
+		assertNull(index.getParent(serviceJid, "col-2"));
+		// parent of orphaned collection needs to be loaded again, while
+		// its own subtree is kept
+		assertNull(index.getParent(serviceJid, "col-3"));
+		assertEquals(Arrays.asList("col-3"), ancestors(index, "leaf-1"));
+	}
+
+	@Test
+	public void testOutdatedLoadIsIgnored() {
+		CollectionsIndex index = new CollectionsIndex(1000);
+		long stamp = index.getStamp(serviceJid);
+
+		index.nodeCreated(serviceJid, "leaf-1", "col-1");
+		index.childrenLoaded(serviceJid, "col-1", new String[0], stamp);
+		index.parentLoaded(serviceJid, "leaf-2", "col-1", stamp);
+
+		assertNull(index.getChildren(serviceJid, "col-1"));
+		assertNull(index.getParent(serviceJid, "leaf-2"));
+	}
+
+	@Test
+	public void testWeightIsBounded() {
+		CollectionsIndex index = new CollectionsIndex(10);
+		for (int i = 0; i < 5; i++) {
+			BareJID jid = BareJID.bareJIDInstanceNS("pubsub-" + i + ".example.com");
+			index.childrenLoaded(jid, "col-1", new String[] { "leaf-1", "leaf-2" }, index.getStamp(jid));
+		}
+
+		assertTrue(index.getWeight() <= 10);
+		assertEquals(3, index.size());
+		assertNull(index.getChildren(BareJID.bareJIDInstanceNS("pubsub-0.example.com"), "col-1"));
+		assertNotNull(index.getChildren(BareJID.bareJIDInstanceNS("pubsub-4.example.com"), "col-1"));
+	}
+
+}
@@ -0,0 +1,106 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class ItemsCacheTest {
+
+	private static Element createItem(String id) {
+		Element item = new Element("item", new String[] { "id" }, new String[] { id });
+		item.addChild(new Element("entry", "payload of " + id));
+		return item;
+	}
+
+	@Test
+	public void testLoadedAndInvalidated() {
+		ItemsCache cache = new ItemsCache(10000);
+		assertNull(cache.get("node-1", "item-1"));
+
+		Element item = createItem("item-1");
+		cache.loaded("node-1", "item-1", item, cache.getStamp("node-1", "item-1"));
+		cache.loaded("node-1", "item-2", createItem("item-2"), cache.getStamp("node-1", "item-2"));
+		cache.loaded("node-2", "item-1", createItem("item-1"), cache.getStamp("node-2", "item-1"));
+
+		assertSame(item, cache.get("node-1", "item-1"));
+
+		// only written item is discarded
+		cache.invalidate("node-1", "item-1");
+		assertNull(cache.get("node-1", "item-1"));
+		assertNotNull(cache.get("node-1", "item-2"));
+		assertNotNull(cache.get("node-2", "item-1"));
+
+		// purge discards only items of purged node
+		cache.loaded("node-1", "item-1", item, cache.getStamp("node-1", "item-1"));
+		cache.invalidate("node-1");
+		assertNull(cache.get("node-1", "item-1"));
+		assertNull(cache.get("node-1", "item-2"));
+		assertNotNull(cache.get("node-2", "item-1"));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testOutdatedLoadIsIgnored() {
+		ItemsCache cache = new ItemsCache(10000);
+		long stamp = cache.getStamp("node-1", "item-1");
+		cache.invalidate("node-1", "item-1");
+		cache.loaded("node-1", "item-1", createItem("item-1"), stamp);
+		assertNull(cache.get("node-1", "item-1"));
+
+		stamp = cache.getStamp("node-1", "item-1");
+		cache.invalidate("node-1");
+		cache.loaded("node-1", "item-1", createItem("item-1"), stamp);
+		assertNull(cache.get("node-1", "item-1"));
+	}
+
+	@Test
+	public void testTrimmedItemsAreDiscarded() {
+		ItemsCache cache = new ItemsCache(10000);
+		for (int i = 0; i < 4; i++) {
+			cache.loaded("node-1", "item-" + i, createItem("item-" + i), cache.getStamp("node-1", "item-" + i));
+		}
+		cache.loaded("node-2", "item-1", createItem("item-1"), cache.getStamp("node-2", "item-1"));
+		long otherStamp = cache.getStamp("node-2", "item-2");
+		long trimmedStamp = cache.getStamp("node-1", "item-5");
+
+		cache.retain("node-1", new HashSet<String>(Arrays.asList("item-2", "item-3")));
+
+		assertNull(cache.get("node-1", "item-0"));
+		assertNull(cache.get("node-1", "item-1"));
+		assertNotNull(cache.get("node-1", "item-2"));
+		assertNotNull(cache.get("node-1", "item-3"));
+		assertNotNull(cache.get("node-2", "item-1"));
+
+		// load of item which could be trimmed is ignored, load of other node is not
+		cache.loaded("node-1", "item-5", createItem("item-5"), trimmedStamp);
+		assertNull(cache.get("node-1", "item-5"));
+		cache.loaded("node-2", "item-2", createItem("item-2"), otherStamp);
+		assertNotNull(cache.get("node-2", "item-2"));
+	}
+
+	@Test
+	public void testBounds() {
+		Element item = createItem("item-0");
+		int weight = item.toString().length();
+		ItemsCache cache = new ItemsCache(3 * (weight + 64), weight);
+
+		for (int i = 0; i < 4; i++) {
+			cache.loaded("node-1", "item-" + i, createItem("item-" + i), cache.getStamp("node-1", "item-" + i));
+		}
+		assertEquals(3, cache.size());
+		assertNull(cache.get("node-1", "item-0"));
+		assertNotNull(cache.get("node-1", "item-3"));
+
+		cache.loaded("node-1", "item-big", createItem("item-big-one"), cache.getStamp("node-1", "item-big"));
+		assertNull(cache.get("node-1", "item-big"));
+
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+}
@@ -0,0 +1,109 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.xmpp.BareJID;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class NodeCacheTest {
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	private final Map<String,Integer> weights = new ConcurrentHashMap<>();
+
+	private Node createNode(String nodeName) {
+		return new Node<Long>(1L, serviceJid, new LeafNodeConfig(nodeName), new NodeAffiliations(),
+							  new NodeSubscriptions(), null, new Date());
+	}
+
+	private NodeCache createCache(int maxSize, int concurrencyLevel, Set<String> pinned) {
+		return new NodeCache(maxSize, concurrencyLevel, node -> weights.getOrDefault(node.getName(), 1),
+							 (key, node) -> !pinned.contains(key));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		NodeCache cache = createCache(3, 1, new HashSet<>());
+		cache.put("node-1", createNode("node-1"));
+		cache.put("node-2", createNode("node-2"));
+		cache.put("node-3", createNode("node-3"));
+		assertNotNull(cache.get("node-1"));
+
+		cache.put("node-4", createNode("node-4"));
+
+		assertEquals(3, cache.size());
+		assertNull(cache.peek("node-2"));
+		assertNotNull(cache.peek("node-1"));
+		assertNotNull(cache.peek("node-4"));
+	}
+
+	@Test
+	public void testNotEvictableNodeIsKept() {
+		Set<String> pinned = new HashSet<>();
+		pinned.add("node-1");
+		NodeCache cache = createCache(2, 1, pinned);
+		cache.put("node-1", createNode("node-1"));
+		cache.put("node-2", createNode("node-2"));
+		cache.put("node-3", createNode("node-3"));
+
+		assertNotNull(cache.peek("node-1"));
+		assertNull(cache.peek("node-2"));
+		assertNotNull(cache.peek("node-3"));
+	}
+
+	@Test
+	public void testSizeIsSplitBetweenSegments() {
+		NodeCache cache = createCache(24, 16, new HashSet<>());
+		for (int i = 0; i < 1000; i++) {
+			cache.put("node-" + i, createNode("node-" + i));
+		}
+		// limit is not rounded down to multiple of number of segments
+		assertEquals(24, cache.size());
+	}
+
+	@Test
+	public void testWeightIsBounded() {
+		NodeCache cache = createCache(100, 1, new HashSet<>());
+		cache.setMaxWeight(10);
+		weights.put("node-1", 4);
+		weights.put("node-2", 4);
+		cache.put("node-1", createNode("node-1"));
+		cache.put("node-2", createNode("node-2"));
+		assertEquals(8, cache.getWeight());
+
+		cache.put("node-3", createNode("node-3"));
+		cache.put("node-4", createNode("node-4"));
+		cache.put("node-5", createNode("node-5"));
+		assertTrue(cache.getWeight() <= 10);
+		assertNull(cache.peek("node-1"));
+	}
+
+	@Test
+	public void testWeightUpdateOnAccessEvicts() {
+		NodeCache cache = createCache(100, 1, new HashSet<>());
+		cache.setMaxWeight(10);
+		cache.put("node-1", createNode("node-1"));
+		cache.put("node-2", createNode("node-2"));
+		cache.put("node-3", createNode("node-3"));
+		assertEquals(3, cache.getWeight());
+
+		// node gained subscribers since it was cached
+		weights.put("node-3", 9);
+		assertNotNull(cache.get("node-3"));
+
+		assertTrue(cache.getWeight() <= 10);
+		assertNull(cache.peek("node-1"));
+		assertNotNull(cache.peek("node-3"));
+
+		cache.remove("node-3");
+		assertEquals(1, cache.getWeight());
+	}
+
+}
@@ -0,0 +1,53 @@
+package tigase.pubsub.repository.cached;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.LeafNodeConfig;
+import tigase.pubsub.Subscription;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+public class NodeSubscriptionsTest {
+
+	@Test
+	public void testDeliverableSubscribers() {
+		BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+		BareJID user1 = BareJID.bareJIDInstanceNS("user1@example.com");
+		BareJID user2 = BareJID.bareJIDInstanceNS("user2@example.com");
+
+		NodeAffiliations affiliations = new NodeAffiliations();
+		NodeSubscriptions subscriptions = new NodeSubscriptions();
+		Node node = new Node(1L, serviceJid, new LeafNodeConfig("test"), affiliations, subscriptions, serviceJid,
+				new Date());
+
+		subscriptions.addSubscriberJid(user1, Subscription.subscribed);
+		subscriptions.addSubscriberJid(user2, Subscription.pending);
+		// pending changes of this thread are not visible in shared snapshot
+		assertNull(subscriptions.getDeliverableSubscribers(affiliations));
+		node.subscriptionsMerge();
+
+		JID[] subscribers = subscriptions.getDeliverableSubscribers(affiliations);
+		assertArrayEquals(new JID[] { JID.jidInstance(user1) }, subscribers);
+		assertSame(subscribers, subscriptions.getDeliverableSubscribers(affiliations));
+
+		affiliations.changeAffiliation(user1, Affiliation.outcast);
+		assertNull(subscriptions.getDeliverableSubscribers(affiliations));
+		node.affiliationsMerge();
+		assertEquals(0, subscriptions.getDeliverableSubscribers(affiliations).length);
+
+		affiliations.changeAffiliation(user1, Affiliation.member);
+		subscriptions.changeSubscription(user2, Subscription.subscribed);
+		node.affiliationsMerge();
+		node.subscriptionsMerge();
+		assertEquals(2, subscriptions.getDeliverableSubscribers(affiliations).length);
+	}
+
+}
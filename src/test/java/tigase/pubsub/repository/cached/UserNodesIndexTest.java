@@ -0,0 +1,148 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.Affiliation;
+import tigase.pubsub.Subscription;
+import tigase.pubsub.repository.stateless.UsersAffiliation;
+import tigase.pubsub.repository.stateless.UsersSubscription;
+import tigase.xmpp.BareJID;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UserNodesIndexTest {
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	private final BareJID userJid = BareJID.bareJIDInstanceNS("user@example.com");
+
+	@Test
+	public void testSubscriptionsLoadedAndChanged() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		assertNull(index.getSubscriptions(serviceJid, userJid));
+
+		Map<String, UsersSubscription> loaded = new HashMap<>();
+		loaded.put("node-1", new UsersSubscription(userJid, "sub-1", Subscription.subscribed));
+		index.subscriptionsLoaded(serviceJid, userJid, loaded, index.getStamp(serviceJid, userJid));
+		assertEquals(1, index.getSubscriptions(serviceJid, userJid).size());
+		// affiliations are loaded independently
+		assertNull(index.getAffiliations(serviceJid, userJid));
+
+		UsersSubscription subscription = new UsersSubscription(userJid, "sub-2", Subscription.subscribed);
+		index.subscriptionsChanged(serviceJid, "node-2", Collections.singletonList(subscription));
+		// stored copy is not affected by changes of shared instance
+		subscription.setSubscription(Subscription.pending);
+		Map<String, UsersSubscription> subscriptions = index.getSubscriptions(serviceJid, userJid);
+		assertEquals(2, subscriptions.size());
+		assertEquals(Subscription.subscribed, subscriptions.get("node-2").getSubscription());
+
+		index.subscriptionsChanged(serviceJid, "node-1",
+				Collections.singletonList(new UsersSubscription(userJid, "sub-1", Subscription.none)));
+		subscriptions = index.getSubscriptions(serviceJid, userJid);
+		assertEquals(1, subscriptions.size());
+		assertTrue(subscriptions.containsKey("node-2"));
+	}
+
+	@Test
+	public void testAffiliationsLoadedAndChanged() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		index.affiliationsLoaded(serviceJid, userJid, new HashMap<String, UsersAffiliation>(),
+				index.getStamp(serviceJid, userJid));
+		assertTrue(index.getAffiliations(serviceJid, userJid).isEmpty());
+
+		index.affiliationsChanged(serviceJid, "node-1",
+				Collections.singletonList(new UsersAffiliation(userJid, Affiliation.owner)));
+		assertEquals(Affiliation.owner, index.getAffiliations(serviceJid, userJid).get("node-1").getAffiliation());
+
+		index.affiliationsChanged(serviceJid, "node-1",
+				Collections.singletonList(new UsersAffiliation(userJid, Affiliation.none)));
+		assertTrue(index.getAffiliations(serviceJid, userJid).isEmpty());
+	}
+
+	@Test
+	public void testOutdatedLoadIsIgnored() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		long stamp = index.getStamp(serviceJid, userJid);
+
+		index.subscriptionsChanged(serviceJid, "node-1",
+				Collections.singletonList(new UsersSubscription(userJid, "sub-1", Subscription.subscribed)));
+		index.subscriptionsLoaded(serviceJid, userJid, new HashMap<String, UsersSubscription>(), stamp);
+
+		assertNull(index.getSubscriptions(serviceJid, userJid));
+	}
+
+	@Test
+	public void testNodeDeleted() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		Map<String, UsersSubscription> loaded = new HashMap<>();
+		loaded.put("node-1", new UsersSubscription(userJid, "sub-1", Subscription.subscribed));
+		loaded.put("node-2", new UsersSubscription(userJid, "sub-2", Subscription.subscribed));
+		index.subscriptionsLoaded(serviceJid, userJid, loaded, index.getStamp(serviceJid, userJid));
+
+		index.nodeDeleted(serviceJid, "node-1");
+
+		assertEquals(Collections.singleton("node-2"), index.getSubscriptions(serviceJid, userJid).keySet());
+		assertEquals(2, index.getWeight());
+	}
+
+	@Test
+	public void testNodeDeletedInOtherService() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		BareJID otherServiceJid = BareJID.bareJIDInstanceNS("pubsub.example.net");
+		Map<String, UsersSubscription> loaded = new HashMap<>();
+		loaded.put("node-1", new UsersSubscription(userJid, "sub-1", Subscription.subscribed));
+		index.subscriptionsLoaded(serviceJid, userJid, loaded, index.getStamp(serviceJid, userJid));
+		long stamp = index.getStamp(serviceJid, userJid);
+		long otherStamp = index.getStamp(otherServiceJid, userJid);
+
+		index.nodeDeleted(otherServiceJid, "node-1");
+
+		assertEquals(Collections.singleton("node-1"), index.getSubscriptions(serviceJid, userJid).keySet());
+		// node removal outdates loads of all users of its service only
+		assertNotEquals(otherStamp, index.getStamp(otherServiceJid, userJid));
+		assertEquals(stamp, index.getStamp(serviceJid, userJid));
+	}
+
+	@Test
+	public void testReturnedMapIsNotCopied() {
+		UserNodesIndex index = new UserNodesIndex(1000);
+		Map<String, UsersSubscription> loaded = new HashMap<>();
+		loaded.put("node-1", new UsersSubscription(userJid, "sub-1", Subscription.subscribed));
+		index.subscriptionsLoaded(serviceJid, userJid, loaded, index.getStamp(serviceJid, userJid));
+
+		Map<String, UsersSubscription> subscriptions = index.getSubscriptions(serviceJid, userJid);
+		assertSame(subscriptions, index.getSubscriptions(serviceJid, userJid));
+		try {
+			subscriptions.remove("node-1");
+			fail("Indexed subscriptions must not be modifiable");
+		} catch (UnsupportedOperationException ex) {
+		}
+
+		// change replaces map, so previously returned one stays unchanged
+		index.subscriptionsChanged(serviceJid, "node-2",
+				Collections.singletonList(new UsersSubscription(userJid, "sub-2", Subscription.subscribed)));
+		assertEquals(1, subscriptions.size());
+		assertEquals(2, index.getSubscriptions(serviceJid, userJid).size());
+	}
+
+	@Test
+	public void testWeightIsBounded() {
+		UserNodesIndex index = new UserNodesIndex(10);
+		for (int i = 0; i < 5; i++) {
+			BareJID jid = BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+			Map<String, UsersSubscription> loaded = new HashMap<>();
+			loaded.put("node-1", new UsersSubscription(jid, "sub-1", Subscription.subscribed));
+			loaded.put("node-2", new UsersSubscription(jid, "sub-2", Subscription.subscribed));
+			index.subscriptionsLoaded(serviceJid, jid, loaded, index.getStamp(serviceJid, jid));
+		}
+
+		assertTrue(index.getWeight() <= 10);
+		assertEquals(3, index.size());
+		assertNull(index.getSubscriptions(serviceJid, BareJID.bareJIDInstanceNS("user-0@example.com")));
+		assertNotNull(index.getSubscriptions(serviceJid, BareJID.bareJIDInstanceNS("user-4@example.com")));
+	}
+
+}
@@ -0,0 +1,60 @@
+package tigase.pubsub.repository.cached;
+
+import org.junit.Test;
+import tigase.pubsub.repository.UserRoster;
+import tigase.xmpp.BareJID;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class UserRosterCacheTest {
+
+	private final BareJID owner = BareJID.bareJIDInstanceNS("owner@example.com");
+
+	private final UserRoster roster = new UserRoster(Collections.emptyMap());
+
+	@Test
+	public void testLoadedAndInvalidated() {
+		UserRosterCache cache = new UserRosterCache(10, 60 * 1000);
+		assertNull(cache.get(owner));
+
+		cache.loaded(owner, roster, cache.getStamp());
+		assertSame(roster, cache.get(owner));
+
+		cache.invalidate(owner);
+		assertNull(cache.get(owner));
+	}
+
+	@Test
+	public void testOutdatedLoadIsIgnored() {
+		UserRosterCache cache = new UserRosterCache(10, 60 * 1000);
+		long stamp = cache.getStamp();
+
+		cache.invalidate(owner);
+		cache.loaded(owner, roster, stamp);
+
+		assertNull(cache.get(owner));
+	}
+
+	@Test
+	public void testExpiration() throws Exception {
+		UserRosterCache cache = new UserRosterCache(10, 10);
+		cache.loaded(owner, roster, cache.getStamp());
+
+		Thread.sleep(20);
+		assertNull(cache.get(owner));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testBounds() {
+		UserRosterCache cache = new UserRosterCache(2, 60 * 1000);
+		for (int i = 0; i < 3; i++) {
+			cache.loaded(BareJID.bareJIDInstanceNS("user-" + i + "@example.com"), roster, cache.getStamp());
+		}
+		assertEquals(2, cache.size());
+		assertNull(cache.get(BareJID.bareJIDInstanceNS("user-0@example.com")));
+	}
+
+}
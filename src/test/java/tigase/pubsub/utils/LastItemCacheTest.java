@@ -0,0 +1,84 @@
+package tigase.pubsub.utils;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import static org.junit.Assert.*;
+
+public class LastItemCacheTest {
+
+	private final BareJID serviceJid = BareJID.bareJIDInstanceNS("pubsub.example.com");
+
+	@Test
+	public void testPublishedAndInvalidated() {
+		LastItemCache cache = new LastItemCache(10);
+		assertNull(cache.get(serviceJid, "node-1"));
+
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		cache.published(serviceJid, "node-1", item);
+
+		LastItemCache.Entry entry = cache.get(serviceJid, "node-1");
+		assertNotNull(entry);
+		assertEquals(item, entry.getItem());
+		assertNotSame(item, entry.getItem());
+
+		cache.invalidate(serviceJid, "node-1");
+		assertNull(cache.get(serviceJid, "node-1"));
+	}
+
+	@Test
+	public void testLoadedWithoutItems() {
+		LastItemCache cache = new LastItemCache(10);
+		cache.loaded(serviceJid, "node-1", null, cache.getStamp());
+
+		LastItemCache.Entry entry = cache.get(serviceJid, "node-1");
+		assertNotNull(entry);
+		assertNull(entry.getItem());
+	}
+
+	@Test
+	public void testOutdatedLoadIsIgnored() {
+		LastItemCache cache = new LastItemCache(10);
+		long stamp = cache.getStamp();
+
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-2" });
+		cache.published(serviceJid, "node-1", item);
+		cache.loaded(serviceJid, "node-1", new Element("item", new String[] { "id" }, new String[] { "item-1" }), stamp);
+
+		assertEquals("item-2", cache.get(serviceJid, "node-1").getItem().getAttributeStaticStr("id"));
+	}
+
+	@Test
+	public void testBounds() {
+		LastItemCache cache = new LastItemCache(2, 100);
+		for (int i = 0; i < 3; i++) {
+			cache.published(serviceJid, "node-" + i, new Element("item", new String[] { "id" }, new String[] { "item-" + i }));
+		}
+		assertEquals(2, cache.size());
+		assertNull(cache.get(serviceJid, "node-0"));
+
+		Element big = new Element("item", new String(new char[200]).replace('\0', 'x'), new String[] { "id" }, new String[] { "big" });
+		cache.published(serviceJid, "node-1", big);
+		assertNull(cache.get(serviceJid, "node-1"));
+
+		cache.invalidate(serviceJid);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSizeOfNestedItem() {
+		LastItemCache cache = new LastItemCache(10, 100);
+		Element item = new Element("item", new String[] { "id" }, new String[] { "item-1" });
+		item.addChild(new Element("entry", "short"));
+		cache.published(serviceJid, "node-1", item);
+		assertNotNull(cache.get(serviceJid, "node-1"));
+
+		for (int i = 0; i < 10; i++) {
+			item.addChild(new Element("entry", "0123456789"));
+		}
+		cache.published(serviceJid, "node-1", item);
+		assertNull(cache.get(serviceJid, "node-1"));
+	}
+
+}